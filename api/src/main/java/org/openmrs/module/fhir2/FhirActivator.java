@@ -11,7 +11,10 @@ package org.openmrs.module.fhir2;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.BaseModuleActivator;
+import org.openmrs.module.fhir2.api.export.BulkExportWorker;
+import org.openmrs.module.fhir2.api.sync.SyncSnapshotWorker;
 
 /**
  * This class contains the logic that is run every time this module is either started or shutdown
@@ -25,6 +28,14 @@ public class FhirActivator extends BaseModuleActivator {
 	 * @see #started()
 	 */
 	public void started() {
+		// activators are not Spring beans, so the workers cannot be injected here
+		for (BulkExportWorker worker : Context.getRegisteredComponents(BulkExportWorker.class)) {
+			worker.start();
+		}
+		for (SyncSnapshotWorker worker : Context.getRegisteredComponents(SyncSnapshotWorker.class)) {
+			worker.start();
+		}
+		
 		log.info("Started FHIR");
 	}
 	
@@ -23,4 +23,38 @@ public class FhirConstants {
 	
 	public static String PATIENT = "Patient";
 	
+	public static String PERSON = "Person";
+	
+	public static String SEARCH_CACHE_ENABLED_PROPERTY = "fhir2.search.cache.enabled";
+	
+	public static String SEARCH_CACHE_TTL_PROPERTY = "fhir2.search.cache.ttlSeconds";
+	
+	public static String SEARCH_CACHE_MAX_ENTRIES_PROPERTY = "fhir2.search.cache.maxEntries";
+	
+	public static String EXPORT_DIRECTORY_PROPERTY = "fhir2.export.directory";
+	
+	public static String IMPORT_DIRECTORY_PROPERTY = "fhir2.import.directory";
+	
+	public static String SYNC_DIRECTORY_PROPERTY = "fhir2.sync.directory";
+	
+	public static String CHANGES_RETENTION_DAYS_PROPERTY = "fhir2.changes.retentionDays";
+	
+	public static String CHANGES_COMMIT_TIMEOUT_SECONDS_PROPERTY = "fhir2.changes.commitTimeoutSeconds";
+	
+	public static String TOKEN_SIGNING_KEY_RUNTIME_PROPERTY = "fhir2.tokens.signingKey";
+	
+	public static String TOKEN_LIFETIME_SECONDS_PROPERTY = "fhir2.tokens.lifetimeSeconds";
+	
+	public static String COMPRESSION_THRESHOLD_PROPERTY = "fhir2.compression.thresholdBytes";
+	
+	public static String BULKHEAD_PROPERTY_PREFIX = "fhir2.bulkhead.";
+	
+	public static String REQUEST_TIMEOUT_SECONDS_PROPERTY = "fhir2.requests.timeoutSeconds";
+	
+	public static String LOOKUP_TIMEOUT_SECONDS_PROPERTY = "fhir2.queries.lookupTimeoutSeconds";
+	
+	public static String SEARCH_TIMEOUT_SECONDS_PROPERTY = "fhir2.queries.searchTimeoutSeconds";
+	
+	public static String STREAM_TIMEOUT_SECONDS_PROPERTY = "fhir2.queries.streamTimeoutSeconds";
+	
 }
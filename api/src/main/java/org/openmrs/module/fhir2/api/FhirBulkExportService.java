@@ -0,0 +1,66 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api;
+
+import java.io.File;
+import java.util.Date;
+import java.util.Set;
+
+import org.openmrs.module.fhir2.api.export.BulkExportFormat;
+import org.openmrs.module.fhir2.api.export.BulkExportJob;
+
+/**
+ * Runs FHIR Bulk Data exports in the background. Every export is split into partitions, each of which is written to an
+ * NDJSON or Parquet file of its own by any node in the cluster, see
+ * {@link org.openmrs.module.fhir2.api.export.BulkExportWorker}
+ */
+public interface FhirBulkExportService {
+	
+	/**
+	 * @return the resource types which can be exported
+	 */
+	Set<String> getSupportedResourceTypes();
+	
+	/**
+	 * Queues an export
+	 *
+	 * @param resourceTypes the resource types to export, which must be supported
+	 * @param since if not null, only resources created or changed at or after this time are exported
+	 * @param format the format to write the files in
+	 * @param request the request which started the export, which is reported back with its output
+	 * @return the queued job, which belongs to the authenticated user
+	 * @throws ca.uhn.fhir.rest.server.exceptions.InvalidRequestException if a resource type is not supported
+	 * @throws org.openmrs.api.context.ContextAuthenticationException if the user may not read every resource type
+	 */
+	BulkExportJob startExport(Set<String> resourceTypes, Date since, BulkExportFormat format, String request);
+	
+	/**
+	 * @param jobId the id of the export
+	 * @return the export, or null if there is no such export or it was started by another user
+	 * @throws org.openmrs.api.context.ContextAuthenticationException if the user may not read every resource type
+	 */
+	BulkExportJob getExport(String jobId);
+	
+	/**
+	 * @param jobId the id of the export
+	 * @param fileName the name of a file in the manifest of the export
+	 * @return the file, or null if the export has not completed, did not produce a file with that name or was started
+	 *         by another user
+	 */
+	File getExportFile(String jobId, String fileName);
+	
+	/**
+	 * Cancels an export if it is still running and deletes its files
+	 *
+	 * @param jobId the id of the export
+	 * @return false if there was no such export or it was started by another user
+	 */
+	boolean deleteExport(String jobId);
+}
@@ -0,0 +1,47 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Set;
+
+import org.openmrs.module.fhir2.api.imports.BulkImportResult;
+
+/**
+ * Imports NDJSON files of new resources in bulk, see {@link org.openmrs.module.fhir2.api.imports.NdjsonImportPipeline}
+ */
+public interface FhirBulkImportService {
+	
+	/**
+	 * @return the resource types which can be imported
+	 */
+	Set<String> getSupportedResourceTypes();
+	
+	/**
+	 * Imports NDJSON as it is read, e.g. from the body of a request
+	 *
+	 * @param reader the NDJSON to import
+	 * @return the outcome of the import, including the lines which could not be imported
+	 */
+	BulkImportResult importNdjson(Reader reader) throws IOException;
+	
+	/**
+	 * Imports an NDJSON file from the directory set by the
+	 * {@link org.openmrs.module.fhir2.FhirConstants#IMPORT_DIRECTORY_PROPERTY} global property. Files ending in .gz
+	 * are decompressed as they are read.
+	 *
+	 * @param fileName the name of the file, relative to the import directory
+	 * @return the outcome of the import, including the lines which could not be imported
+	 * @throws ca.uhn.fhir.rest.server.exceptions.InvalidRequestException if there is no such file in the import
+	 *             directory
+	 */
+	BulkImportResult importFile(String fileName) throws IOException;
+}
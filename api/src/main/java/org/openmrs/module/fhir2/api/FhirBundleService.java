@@ -0,0 +1,39 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api;
+
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * Processes batch and transaction bundles. Entries may read a resource (GET [type]/[id]), search (GET [type]?[param]=
+ * [value]) or create a resource (POST [type]); responses are returned in the order of the entries.
+ */
+public interface FhirBundleService {
+	
+	/**
+	 * Processes the entries of a batch independently of each other, several at a time, each in a session of its own. An
+	 * entry which fails is answered with an OperationOutcome and does not affect the others.
+	 *
+	 * @param bundle a bundle of type batch
+	 * @return the batch-response bundle
+	 */
+	Bundle processBatch(Bundle bundle);
+	
+	/**
+	 * Processes the entries of a transaction in a single database transaction: creates first, in one batch, then reads
+	 * and searches. If any entry fails, nothing is saved. A created resource may refer to another one created by the
+	 * transaction by the {@code urn:uuid} fullUrl of its entry; any other {@code urn:uuid} reference is rejected.
+	 *
+	 * @param bundle a bundle of type transaction
+	 * @return the transaction-response bundle
+	 * @throws ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException for the first entry which fails
+	 */
+	Bundle processTransaction(Bundle bundle);
+}
@@ -0,0 +1,31 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api;
+
+import java.util.List;
+
+import org.openmrs.module.fhir2.api.changes.ResourceChange;
+
+/**
+ * The feed of every create, update, void and delete of a Person or Patient, in the order they were committed. A
+ * consumer keeps the id of the last change it has processed as its cursor and asks for the changes after it.
+ */
+public interface FhirChangeFeedService {
+	
+	/**
+	 * Returns the changes after a cursor, waiting for one if there are none yet
+	 *
+	 * @param cursor the id of the last change the consumer has processed; 0 to start from the oldest change kept
+	 * @param maxResults the maximum number of changes to return
+	 * @param timeout the maximum time to wait for a change in milliseconds
+	 * @return the changes after the cursor, ordered by id; empty if there were none before the time ran out
+	 */
+	List<ResourceChange> getChanges(long cursor, int maxResults, long timeout) throws InterruptedException;
+}
@@ -10,15 +10,49 @@
 package org.openmrs.module.fhir2.api;
 
 import java.util.Collection;
+import java.util.function.Consumer;
 
 import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.Patient;
 import org.openmrs.PatientIdentifierType;
+import org.openmrs.module.fhir2.api.search.SearchCancellation;
 
 public interface FhirPatientService {
 	
 	Patient getPatientByUuid(String uuid);
 	
+	/**
+	 * Creates a patient. The server assigns its id, any id on the resource is ignored.
+	 *
+	 * @param patient the patient to create
+	 * @return the created patient
+	 */
+	Patient createPatient(Patient patient);
+	
+	/**
+	 * Updates a patient to match the given resource. Only the fields, names, addresses and identifiers which differ are
+	 * written, see {@link org.openmrs.module.fhir2.api.translators.PatientTranslator#toOpenmrsType(org.openmrs.Patient,
+	 * Patient)}.
+	 *
+	 * @param uuid the uuid of the patient to update
+	 * @param patient the new state of the patient
+	 * @return the updated patient
+	 * @throws ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException if there is no patient with the uuid
+	 */
+	Patient updatePatient(String uuid, Patient patient);
+	
+	/**
+	 * Changes a patient by applying a JSON Patch to it. Only what the patch addresses is translated and written, see
+	 * {@link org.openmrs.module.fhir2.api.patch.JsonPatchApplier}.
+	 *
+	 * @param uuid the uuid of the patient to patch
+	 * @param patch the JSON Patch document
+	 * @return the patched patient
+	 * @throws ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException if there is no patient with the uuid
+	 * @throws ca.uhn.fhir.rest.server.exceptions.InvalidRequestException if the patch cannot be applied
+	 */
+	Patient patchPatient(String uuid, String patch);
+	
 	PatientIdentifierType getPatientIdentifierTypeByIdentifier(Identifier identifier);
 	
 	Collection<Patient> findPatientsByName(String name);
@@ -26,4 +60,28 @@ public interface FhirPatientService {
 	Collection<Patient> findPatientsByGivenName(String given);
 	
 	Collection<Patient> findPatientsByFamilyName(String family);
+	
+	/**
+	 * Finds the patients matching a FHIR _filter expression
+	 *
+	 * @param filter the value of the _filter parameter
+	 * @return the matching patients
+	 * @throws ca.uhn.fhir.rest.server.exceptions.InvalidRequestException if the filter is invalid or unsupported
+	 */
+	Collection<Patient> findPatientsByFilter(String filter);
+	
+	/**
+	 * Translates the patients matching a name one at a time and hands each to the consumer, without holding the
+	 * complete result set in memory
+	 *
+	 * @param name the name to search for
+	 * @param consumer receives each matching patient
+	 * @param cancellation stops the search, including its running statement, e.g. once the client has gone away
+	 * @throws java.util.concurrent.CancellationException if the search was cancelled
+	 */
+	void streamPatientsByName(String name, Consumer<Patient> consumer, SearchCancellation cancellation);
+	
+	void streamPatientsByGivenName(String given, Consumer<Patient> consumer, SearchCancellation cancellation);
+	
+	void streamPatientsByFamilyName(String family, Consumer<Patient> consumer, SearchCancellation cancellation);
 }
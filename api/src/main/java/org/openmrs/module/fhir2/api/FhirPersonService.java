@@ -15,4 +15,16 @@ public interface FhirPersonService {
 	
 	Person getPersonByUuid(String uuid);
 	
+	/**
+	 * Changes a person by applying a JSON Patch to it, see
+	 * {@link org.openmrs.module.fhir2.api.patch.JsonPatchApplier}
+	 *
+	 * @param uuid the uuid of the person to patch
+	 * @param patch the JSON Patch document
+	 * @return the patched person
+	 * @throws ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException if there is no person with the uuid
+	 * @throws ca.uhn.fhir.rest.server.exceptions.InvalidRequestException if the patch cannot be applied
+	 */
+	Person patchPerson(String uuid, String patch);
+
 }
@@ -0,0 +1,49 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Date;
+
+import org.openmrs.module.fhir2.api.sync.SyncArea;
+import org.openmrs.module.fhir2.api.sync.SyncSnapshot;
+
+/**
+ * Offline sync for mobile clients: a client downloads the snapshot of the patients in its area once, and from then on
+ * only the deltas since the version of the data it holds
+ */
+public interface FhirSyncService {
+	
+	/**
+	 * @param locationUuid the uuid of a location
+	 * @return the area of the address of the location
+	 * @throws ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException if there is no such location
+	 * @throws ca.uhn.fhir.rest.server.exceptions.InvalidRequestException if the location has no address
+	 */
+	SyncArea getLocationArea(String locationUuid);
+	
+	/**
+	 * @param area the area
+	 * @return the latest snapshot of the area, or null if it is still being built
+	 */
+	SyncSnapshot getSnapshot(SyncArea area);
+	
+	/**
+	 * Writes the patients in an area which were created, changed or voided since a version as NDJSON. Voided patients
+	 * are written as inactive, so that clients remove them.
+	 *
+	 * @param area the area
+	 * @param since the version the client holds
+	 * @param writer where to write the patients
+	 * @return the number of patients written
+	 */
+	long writeDelta(SyncArea area, Date since, Writer writer) throws IOException;
+}
@@ -0,0 +1,59 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.auth;
+
+import org.openmrs.User;
+import org.openmrs.api.context.UserContext;
+
+/**
+ * The context of work done on behalf of a user who was authenticated elsewhere, such as by the request which started
+ * the work. A {@link UserContext} also holds the proxy privileges and the state of whatever thread is using it, so
+ * each thread doing such work is given a context of its own, see {@link #copyOf(UserContext)}; only the user, which is
+ * not changed by the work, is shared.
+ */
+public class AuthenticatedUserContext extends UserContext {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private final User user;
+	
+	public AuthenticatedUserContext(User user) {
+		this.user = user;
+	}
+	
+	/**
+	 * @param userContext the context of the thread handing the work over
+	 * @return a new context for the same user, in the same locale, without any proxy privileges
+	 */
+	public static UserContext copyOf(UserContext userContext) {
+		if (!userContext.isAuthenticated()) {
+			return new UserContext();
+		}
+		
+		UserContext copy = new AuthenticatedUserContext(userContext.getAuthenticatedUser());
+		copy.setLocale(userContext.getLocale());
+		return copy;
+	}
+	
+	@Override
+	public User getAuthenticatedUser() {
+		return user;
+	}
+	
+	@Override
+	public boolean isAuthenticated() {
+		return true;
+	}
+	
+	@Override
+	public void refreshAuthenticatedUser() {
+		// the user was loaded by whoever handed the work over, which is as recent as it needs to be
+	}
+}
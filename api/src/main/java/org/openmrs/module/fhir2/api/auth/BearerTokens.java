@@ -0,0 +1,271 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.auth;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Inject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Clock;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Privilege;
+import org.openmrs.Role;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.api.FhirGlobalPropertyService;
+import org.springframework.stereotype.Component;
+
+/**
+ * Issues and verifies stateless bearer tokens. A token is a JWT signed with HMAC-SHA256 under the key in the
+ * {@link FhirConstants#TOKEN_SIGNING_KEY_RUNTIME_PROPERTY} runtime property, and carries the user's id, uuid and
+ * username together with each of their roles and the privileges of the role. A node can therefore verify a token
+ * and rebuild the user it was issued to from the token alone, without a session or reading the user from the
+ * database, so requests can be sent to any node.
+ * <p>
+ * As the privileges are those the user had when the token was issued, a change to them only takes effect once the
+ * token expires. Changing the key revokes every token issued so far. Tokens are disabled while no key is set.
+ * <p>
+ * The key is a runtime property rather than a global property, as anyone who knows it can issue a token for any user
+ * with any privileges, and global properties can be read through the API.
+ */
+@Component
+@Setter(AccessLevel.PACKAGE)
+public class BearerTokens {
+	
+	private static final Log log = LogFactory.getLog(BearerTokens.class);
+	
+	private static final String HMAC_ALGORITHM = "HmacSHA256";
+	
+	private static final int MIN_KEY_LENGTH = 32;
+	
+	private static final int DEFAULT_LIFETIME_SECONDS = 3600;
+	
+	private static final long SETTINGS_REFRESH_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+	
+	private static final String HEADER = encode("{\"alg\":\"HS256\",\"typ\":\"JWT\"}".getBytes(StandardCharsets.UTF_8));
+	
+	private static final String CLAIM_SUBJECT = "sub";
+	
+	private static final String CLAIM_USER_ID = "uid";
+	
+	private static final String CLAIM_USERNAME = "name";
+	
+	private static final String CLAIM_ROLES = "roles";
+	
+	private static final String CLAIM_ISSUED_AT = "iat";
+	
+	private static final String CLAIM_EXPIRES_AT = "exp";
+	
+	private static final String[] REQUIRED_CLAIMS = { CLAIM_SUBJECT, CLAIM_USER_ID, CLAIM_USERNAME, CLAIM_ROLES,
+	        CLAIM_EXPIRES_AT };
+	
+	@Inject
+	private FhirGlobalPropertyService globalPropertyService;
+	
+	private Supplier<Properties> runtimeProperties = Context::getRuntimeProperties;
+	
+	private Clock clock = Clock.systemUTC();
+	
+	private volatile SecretKeySpec key;
+	
+	private volatile int lifetimeSeconds = DEFAULT_LIFETIME_SECONDS;
+	
+	private volatile long settingsLoadedAt;
+	
+	public boolean isEnabled() {
+		refreshSettings();
+		return key != null;
+	}
+	
+	/**
+	 * @return the number of seconds a newly issued token is valid for
+	 */
+	public int getLifetimeSeconds() {
+		refreshSettings();
+		return lifetimeSeconds;
+	}
+	
+	/**
+	 * @param user the authenticated user to issue a token to
+	 * @return the token
+	 * @throws IllegalStateException if tokens are disabled
+	 */
+	public String issue(User user) {
+		refreshSettings();
+		SecretKeySpec currentKey = key;
+		if (currentKey == null) {
+			throw new IllegalStateException("Bearer tokens are disabled as no signing key is set");
+		}
+		
+		long now = TimeUnit.MILLISECONDS.toSeconds(clock.millis());
+		JsonObject roles = new JsonObject();
+		for (Role role : user.getAllRoles()) {
+			JsonArray privileges = new JsonArray();
+			if (role.getPrivileges() != null) {
+				for (Privilege privilege : role.getPrivileges()) {
+					privileges.add(privilege.getPrivilege());
+				}
+			}
+			
+			roles.add(role.getRole(), privileges);
+		}
+		
+		JsonObject claims = new JsonObject();
+		claims.addProperty(CLAIM_SUBJECT, user.getUuid());
+		claims.addProperty(CLAIM_USER_ID, user.getUserId());
+		claims.addProperty(CLAIM_USERNAME, StringUtils.defaultIfEmpty(user.getUsername(), user.getSystemId()));
+		claims.add(CLAIM_ROLES, roles);
+		claims.addProperty(CLAIM_ISSUED_AT, now);
+		claims.addProperty(CLAIM_EXPIRES_AT, now + lifetimeSeconds);
+		
+		String signed = HEADER + "." + encode(claims.toString().getBytes(StandardCharsets.UTF_8));
+		return signed + "." + encode(sign(currentKey, signed));
+	}
+	
+	/**
+	 * @param token a token sent by a client
+	 * @return the user the token was issued to, with the roles and privileges it carries, or null if the token is not
+	 *         valid, has expired, or tokens are disabled
+	 */
+	public User verify(String token) {
+		refreshSettings();
+		SecretKeySpec currentKey = key;
+		String[] parts = StringUtils.split(token, '.');
+		if (currentKey == null || parts == null || parts.length != 3 || !HEADER.equals(parts[0])) {
+			return null;
+		}
+		
+		try {
+			byte[] signature = Base64.getUrlDecoder().decode(parts[2]);
+			if (!MessageDigest.isEqual(signature, sign(currentKey, parts[0] + "." + parts[1]))) {
+				return null;
+			}
+			
+			JsonObject claims = new JsonParser().parse(new String(Base64.getUrlDecoder().decode(parts[1]),
+			        StandardCharsets.UTF_8)).getAsJsonObject();
+			for (String claim : REQUIRED_CLAIMS) {
+				if (!claims.has(claim)) {
+					return null;
+				}
+			}
+			
+			if (claims.get(CLAIM_EXPIRES_AT).getAsLong() <= TimeUnit.MILLISECONDS.toSeconds(clock.millis())) {
+				return null;
+			}
+			
+			return toUser(claims);
+		}
+		catch (IllegalArgumentException | IllegalStateException | ClassCastException | UnsupportedOperationException
+		        | JsonParseException e) {
+			// a malformed token, which cannot have been issued by this server
+			return null;
+		}
+	}
+	
+	private static User toUser(JsonObject claims) {
+		User user = new User(claims.get(CLAIM_USER_ID).getAsInt());
+		user.setUuid(claims.get(CLAIM_SUBJECT).getAsString());
+		user.setUsername(claims.get(CLAIM_USERNAME).getAsString());
+		
+		Set<Role> roles = new HashSet<>();
+		for (Map.Entry<String, JsonElement> entry : claims.getAsJsonObject(CLAIM_ROLES).entrySet()) {
+			Role role = new Role(entry.getKey());
+			Set<Privilege> privileges = new HashSet<>();
+			for (JsonElement privilege : entry.getValue().getAsJsonArray()) {
+				privileges.add(new Privilege(privilege.getAsString()));
+			}
+			
+			role.setPrivileges(privileges);
+			roles.add(role);
+		}
+		
+		user.setRoles(roles);
+		return user;
+	}
+	
+	private void refreshSettings() {
+		long now = System.currentTimeMillis();
+		if (now - settingsLoadedAt < SETTINGS_REFRESH_INTERVAL) {
+			return;
+		}
+		
+		synchronized (this) {
+			if (now - settingsLoadedAt < SETTINGS_REFRESH_INTERVAL) {
+				return;
+			}
+			
+			key = parseKey(runtimeProperties.get().getProperty(FhirConstants.TOKEN_SIGNING_KEY_RUNTIME_PROPERTY));
+			lifetimeSeconds = globalPropertyService.getGlobalProperty(FhirConstants.TOKEN_LIFETIME_SECONDS_PROPERTY,
+			    DEFAULT_LIFETIME_SECONDS);
+			settingsLoadedAt = now;
+		}
+	}
+	
+	private static SecretKeySpec parseKey(String value) {
+		if (StringUtils.isBlank(value)) {
+			return null;
+		}
+		
+		byte[] bytes;
+		try {
+			bytes = Base64.getMimeDecoder().decode(value.trim());
+		}
+		catch (IllegalArgumentException e) {
+			log.warn("Bearer tokens are disabled as the runtime property "
+			        + FhirConstants.TOKEN_SIGNING_KEY_RUNTIME_PROPERTY + " is not Base64");
+			return null;
+		}
+		
+		if (bytes.length < MIN_KEY_LENGTH) {
+			log.warn("Bearer tokens are disabled as the runtime property "
+			        + FhirConstants.TOKEN_SIGNING_KEY_RUNTIME_PROPERTY + " is shorter than " + MIN_KEY_LENGTH
+			        + " bytes");
+			return null;
+		}
+		
+		return new SecretKeySpec(bytes, HMAC_ALGORITHM);
+	}
+	
+	private static byte[] sign(SecretKeySpec key, String signed) {
+		try {
+			Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+			mac.init(key);
+			return mac.doFinal(signed.getBytes(StandardCharsets.US_ASCII));
+		}
+		catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to sign with " + HMAC_ALGORITHM, e);
+		}
+	}
+	
+	private static String encode(byte[] bytes) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+	}
+}
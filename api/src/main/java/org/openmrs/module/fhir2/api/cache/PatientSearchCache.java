@@ -0,0 +1,145 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.cache;
+
+import javax.inject.Inject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.api.FhirGlobalPropertyService;
+import org.springframework.stereotype.Component;
+
+/**
+ * Short-lived cache of patient search results, keyed by the search parameter and its lower-cased value, as the name
+ * searches it caches are case-insensitive and lower-case their search terms in the same way. Only the ordered uuids of
+ * the matching patients are stored; on a hit the patients are reloaded by uuid, which skips the search itself. Entries
+ * expire after a short TTL and are all dropped whenever a person or person name changes, see
+ * {@link PatientSearchCacheInvalidator}.
+ * <p>
+ * The cache is disabled unless the {@link FhirConstants#SEARCH_CACHE_ENABLED_PROPERTY} global property is set to true.
+ */
+@Component
+@Setter(AccessLevel.PACKAGE)
+public class PatientSearchCache {
+	
+	private static final long SETTINGS_REFRESH_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+	
+	private static final int DEFAULT_TTL_SECONDS = 30;
+	
+	private static final int DEFAULT_MAX_ENTRIES = 1000;
+	
+	@Inject
+	private FhirGlobalPropertyService globalPropertyService;
+	
+	private final AtomicLong generation = new AtomicLong();
+	
+	private volatile Cache<String, List<String>> cache;
+	
+	private volatile long settingsLoadedAt;
+	
+	private int ttlSeconds;
+	
+	private int maxEntries;
+	
+	public boolean isEnabled() {
+		refreshSettings();
+		return cache != null;
+	}
+	
+	/**
+	 * The generation is incremented every time the cache is invalidated. Callers read it before running a search and
+	 * hand it back to {@link #put(String, String, List, long)}, so results computed from data which changed while the
+	 * search was running are never cached.
+	 * 
+	 * @return the current generation of the cache
+	 */
+	public long getGeneration() {
+		return generation.get();
+	}
+	
+	/**
+	 * @param parameter the search parameter
+	 * @param value the search value
+	 * @return the ordered uuids of the matching patients or null if the search is not cached
+	 */
+	public List<String> get(String parameter, String value) {
+		Cache<String, List<String>> current = cache;
+		return current == null ? null : current.getIfPresent(key(parameter, value));
+	}
+	
+	public void put(String parameter, String value, List<String> uuids, long searchGeneration) {
+		Cache<String, List<String>> current = cache;
+		if (current == null || generation.get() != searchGeneration) {
+			return;
+		}
+		
+		String key = key(parameter, value);
+		current.put(key, Collections.unmodifiableList(new ArrayList<>(uuids)));
+		
+		// an invalidation may have raced with the put above
+		if (generation.get() != searchGeneration) {
+			current.invalidate(key);
+		}
+	}
+	
+	public void invalidateAll() {
+		generation.incrementAndGet();
+		
+		Cache<String, List<String>> current = cache;
+		if (current != null) {
+			current.invalidateAll();
+		}
+	}
+	
+	private void refreshSettings() {
+		long now = System.currentTimeMillis();
+		if (now - settingsLoadedAt < SETTINGS_REFRESH_INTERVAL) {
+			return;
+		}
+		
+		synchronized (this) {
+			if (now - settingsLoadedAt < SETTINGS_REFRESH_INTERVAL) {
+				return;
+			}
+			
+			if (globalPropertyService.getGlobalProperty(FhirConstants.SEARCH_CACHE_ENABLED_PROPERTY, false)) {
+				int newTtlSeconds = globalPropertyService.getGlobalProperty(FhirConstants.SEARCH_CACHE_TTL_PROPERTY,
+				    DEFAULT_TTL_SECONDS);
+				int newMaxEntries = globalPropertyService.getGlobalProperty(
+				    FhirConstants.SEARCH_CACHE_MAX_ENTRIES_PROPERTY, DEFAULT_MAX_ENTRIES);
+				
+				if (cache == null || newTtlSeconds != ttlSeconds || newMaxEntries != maxEntries) {
+					ttlSeconds = newTtlSeconds;
+					maxEntries = newMaxEntries;
+					cache = CacheBuilder.newBuilder().expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+					        .maximumSize(maxEntries).build();
+				}
+			} else {
+				cache = null;
+			}
+			
+			settingsLoadedAt = now;
+		}
+	}
+	
+	private static String key(String parameter, String value) {
+		return parameter + ":" + (value == null ? "" : value.toLowerCase(Locale.ROOT));
+	}
+}
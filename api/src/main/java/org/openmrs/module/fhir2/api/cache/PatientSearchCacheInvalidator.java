@@ -0,0 +1,72 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.cache;
+
+import javax.inject.Inject;
+
+import java.io.Serializable;
+
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.Transaction;
+import org.hibernate.type.Type;
+import org.openmrs.Person;
+import org.openmrs.PersonName;
+import org.springframework.stereotype.Component;
+
+/**
+ * Hibernate interceptor which drops the {@link PatientSearchCache} once a transaction that saved, updated or deleted a
+ * person or a person name has completed. OpenMRS registers every {@link org.hibernate.Interceptor} bean with its
+ * session factory.
+ */
+@Component
+@Setter(AccessLevel.PACKAGE)
+public class PatientSearchCacheInvalidator extends EmptyInterceptor {
+	
+	private static final long serialVersionUID = 1L;
+	
+	@Inject
+	private transient PatientSearchCache searchCache;
+	
+	private final transient ThreadLocal<Boolean> namesChanged = new ThreadLocal<>();
+	
+	@Override
+	public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+		recordChange(entity);
+		return false;
+	}
+	
+	@Override
+	public boolean onFlushDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState,
+	        String[] propertyNames, Type[] types) {
+		recordChange(entity);
+		return false;
+	}
+	
+	@Override
+	public void onDelete(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+		recordChange(entity);
+	}
+	
+	@Override
+	public void afterTransactionCompletion(Transaction tx) {
+		if (Boolean.TRUE.equals(namesChanged.get())) {
+			namesChanged.remove();
+			searchCache.invalidateAll();
+		}
+	}
+	
+	private void recordChange(Object entity) {
+		if (entity instanceof Person || entity instanceof PersonName) {
+			namesChanged.set(Boolean.TRUE);
+		}
+	}
+}
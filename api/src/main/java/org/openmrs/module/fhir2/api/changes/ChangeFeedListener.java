@@ -0,0 +1,229 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.changes;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.MapMaker;
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.action.spi.AfterTransactionCompletionProcess;
+import org.hibernate.action.spi.BeforeTransactionCompletionProcess;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventSource;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostDeleteEventListener;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.Person;
+import org.openmrs.PersonAddress;
+import org.openmrs.PersonAttribute;
+import org.openmrs.PersonName;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.springframework.stereotype.Component;
+
+/**
+ * Writes the change feed outbox. Every insert, update and delete of a person, a patient, or one of their names,
+ * addresses, attributes or identifiers is recorded against the session which flushed it, merged per resource, and
+ * written to the outbox just before the session's transaction commits, in the same way as Hibernate Envers writes its
+ * audit tables. The outbox rows therefore commit or roll back together with the changes they record, whichever code
+ * made them, and as they are inserted at the very end of the transaction, their ids are assigned in nearly the order
+ * the transactions commit.
+ * <p>
+ * A person who is a patient is both a Person and a Patient resource, so their changes are recorded for both.
+ */
+@Component
+@Setter(AccessLevel.PACKAGE)
+public class ChangeFeedListener implements PostInsertEventListener, PostUpdateEventListener, PostDeleteEventListener {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private static final String[] VOIDED_PROPERTIES = { "voided", "personVoided" };
+	
+	@Inject
+	@Named("sessionFactory")
+	private transient SessionFactory sessionFactory;
+	
+	@Inject
+	private transient ChangeFeedMonitor monitor;
+	
+	/**
+	 * The changes are removed once their session's transaction completes, whether it commits or not; the sessions are
+	 * held weakly so that the changes of a session closed without completing its transaction are not kept either
+	 */
+	private final transient Map<EventSource, PendingChanges> pending = new MapMaker().weakKeys().makeMap();
+	
+	@PostConstruct
+	public void register() {
+		EventListenerRegistry registry = ((SessionFactoryImplementor) sessionFactory).getServiceRegistry()
+		        .getService(EventListenerRegistry.class);
+		registry.appendListeners(EventType.POST_INSERT, this);
+		registry.appendListeners(EventType.POST_UPDATE, this);
+		registry.appendListeners(EventType.POST_DELETE, this);
+	}
+	
+	@Override
+	public void onPostInsert(PostInsertEvent event) {
+		record(event.getSession(), event.getEntity(), ChangeOperation.CREATE);
+	}
+	
+	@Override
+	public void onPostUpdate(PostUpdateEvent event) {
+		ChangeOperation operation = ChangeOperation.UPDATE;
+		if (event.getEntity() instanceof Person
+		        && isVoided(event.getPersister(), event.getOldState(), event.getState())) {
+			operation = ChangeOperation.VOID;
+		}
+		
+		record(event.getSession(), event.getEntity(), operation);
+	}
+	
+	@Override
+	public void onPostDelete(PostDeleteEvent event) {
+		record(event.getSession(), event.getEntity(), ChangeOperation.DELETE);
+	}
+	
+	@Override
+	public boolean requiresPostCommitHanding(EntityPersister persister) {
+		return false;
+	}
+	
+	private void record(EventSource session, Object entity, ChangeOperation operation) {
+		if (entity instanceof Person) {
+			recordPerson(session, (Person) entity, operation);
+		} else if (entity instanceof PersonName) {
+			recordPerson(session, ((PersonName) entity).getPerson(), ChangeOperation.UPDATE);
+		} else if (entity instanceof PersonAddress) {
+			recordPerson(session, ((PersonAddress) entity).getPerson(), ChangeOperation.UPDATE);
+		} else if (entity instanceof PersonAttribute) {
+			recordPerson(session, ((PersonAttribute) entity).getPerson(), ChangeOperation.UPDATE);
+		} else if (entity instanceof PatientIdentifier) {
+			Patient patient = ((PatientIdentifier) entity).getPatient();
+			if (patient != null) {
+				getPending(session).add(FhirConstants.PATIENT, patient.getUuid(), ChangeOperation.UPDATE);
+			}
+		}
+	}
+	
+	private void recordPerson(EventSource session, Person person, ChangeOperation operation) {
+		if (person == null) {
+			return;
+		}
+		
+		PendingChanges changes = getPending(session);
+		changes.add(FhirConstants.PERSON, person.getUuid(), operation);
+		if (person instanceof Patient || Boolean.TRUE.equals(person.getIsPatient())) {
+			changes.add(FhirConstants.PATIENT, person.getUuid(), operation);
+		}
+	}
+	
+	private PendingChanges getPending(EventSource session) {
+		return pending.computeIfAbsent(session, key -> {
+			PendingChanges changes = new PendingChanges();
+			key.getActionQueue().registerProcess((BeforeTransactionCompletionProcess) changes);
+			key.getActionQueue().registerProcess((AfterTransactionCompletionProcess) changes);
+			return changes;
+		});
+	}
+	
+	/**
+	 * @return whether the update voided the entity; an update of a detached entity has no old state, so it counts as
+	 *         voiding the entity if it is voided
+	 */
+	private static boolean isVoided(EntityPersister persister, Object[] oldState, Object[] state) {
+		String[] propertyNames = persister.getPropertyNames();
+		for (int i = 0; i < propertyNames.length; i++) {
+			for (String voided : VOIDED_PROPERTIES) {
+				if (voided.equals(propertyNames[i]) && Boolean.TRUE.equals(state[i])
+				        && (oldState == null || !Boolean.TRUE.equals(oldState[i]))) {
+					return true;
+				}
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * The changes a session has flushed in its current transaction, merged per resource
+	 */
+	private class PendingChanges implements BeforeTransactionCompletionProcess, AfterTransactionCompletionProcess {
+		
+		private final Map<String, ResourceChange> changes = new LinkedHashMap<>();
+		
+		private final List<Long> changeIds = new ArrayList<>();
+		
+		private synchronized void add(String resourceType, String uuid, ChangeOperation operation) {
+			String key = resourceType + "/" + uuid;
+			ResourceChange change = changes.get(key);
+			if (change == null) {
+				change = new ResourceChange();
+				change.setResourceType(resourceType);
+				change.setResourceUuid(uuid);
+				change.setOperation(operation);
+				changes.put(key, change);
+			} else {
+				change.setOperation(change.getOperation().merge(operation));
+			}
+		}
+		
+		private synchronized List<ResourceChange> drain() {
+			List<ResourceChange> drained = new ArrayList<>(changes.values());
+			changes.clear();
+			return drained;
+		}
+		
+		@Override
+		public void doBeforeTransactionCompletion(SessionImplementor session) {
+			// flushing the outbox rows cannot record further changes, but the loop does not rely on that
+			List<ResourceChange> changes;
+			while (!(changes = drain()).isEmpty()) {
+				Date now = new Date();
+				for (ResourceChange change : changes) {
+					change.setDateCreated(now);
+					((Session) session).save(change);
+					// identity ids are assigned as the row is inserted
+					changeIds.add(change.getChangeId());
+					monitor.recorded(change.getChangeId());
+				}
+				
+				((Session) session).flush();
+			}
+		}
+		
+		@Override
+		public void doAfterTransactionCompletion(boolean success, SessionImplementor session) {
+			try {
+				monitor.completed(changeIds, success);
+			}
+			finally {
+				pending.remove(session);
+			}
+		}
+	}
+}
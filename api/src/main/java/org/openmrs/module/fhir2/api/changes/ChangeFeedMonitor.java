@@ -0,0 +1,140 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.changes;
+
+import javax.inject.Inject;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.openmrs.module.fhir2.api.dao.FhirChangeFeedDao;
+import org.springframework.stereotype.Component;
+
+/**
+ * Tells long-polling change feed requests when there are new changes. Changes committed on this node are announced
+ * by the {@link ChangeFeedListener} as soon as they commit; those committed on other nodes are noticed by polling for
+ * the latest change id, which is done at most once every {@link #POLL_INTERVAL} however many requests are waiting, so
+ * the cost to the database is constant.
+ * <p>
+ * The monitor also knows which change ids this node has written but not committed, and which it has rolled back, so
+ * that a gap in the ids can be told apart from a change which is about to commit.
+ */
+@Component
+@Setter(AccessLevel.PACKAGE)
+public class ChangeFeedMonitor {
+	
+	private static final long POLL_INTERVAL = 1000;
+	
+	/**
+	 * Only the most recent rolled back ids are kept; a gap left by an older one is waited out like one left by another
+	 * node
+	 */
+	private static final int MAX_ROLLED_BACK_IDS = 10000;
+	
+	@Inject
+	private FhirChangeFeedDao dao;
+	
+	private long latestChangeId;
+	
+	private long lastPolled;
+	
+	private final Set<Long> uncommittedIds = new HashSet<>();
+	
+	private final TreeSet<Long> rolledBackIds = new TreeSet<>();
+	
+	/**
+	 * Called as a change is written, before its transaction completes
+	 *
+	 * @param changeId the id of the change
+	 */
+	public synchronized void recorded(long changeId) {
+		uncommittedIds.add(changeId);
+	}
+	
+	/**
+	 * Called once a transaction which recorded changes has completed
+	 *
+	 * @param changeIds the ids of the changes the transaction recorded
+	 * @param committed whether the transaction committed; if not, its ids will never be used
+	 */
+	public synchronized void completed(Collection<Long> changeIds, boolean committed) {
+		if (changeIds.isEmpty()) {
+			return;
+		}
+		
+		uncommittedIds.removeAll(changeIds);
+		if (!committed) {
+			rolledBackIds.addAll(changeIds);
+			while (rolledBackIds.size() > MAX_ROLLED_BACK_IDS) {
+				rolledBackIds.pollFirst();
+			}
+			return;
+		}
+		
+		long changeId = Collections.max(changeIds);
+		if (changeId > latestChangeId) {
+			latestChangeId = changeId;
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * @param fromChangeId the first change id to check
+	 * @param toChangeId the change id after the last one to check
+	 * @return whether any of the changes has been written on this node by a transaction which has not completed yet
+	 */
+	public synchronized boolean hasUncommitted(long fromChangeId, long toChangeId) {
+		for (long changeId : uncommittedIds) {
+			if (changeId >= fromChangeId && changeId < toChangeId) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * @return whether the change was written on this node by a transaction which rolled back
+	 */
+	public synchronized boolean isRolledBack(long changeId) {
+		return rolledBackIds.contains(changeId);
+	}
+	
+	/**
+	 * Waits until there is a change after the given one
+	 *
+	 * @param changeId the id of the latest change the caller has seen
+	 * @param timeout the maximum time to wait in milliseconds
+	 * @return whether there is a later change; false if the time ran out
+	 */
+	public synchronized boolean await(long changeId, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (true) {
+			long now = System.currentTimeMillis();
+			if (now - lastPolled >= POLL_INTERVAL) {
+				latestChangeId = Math.max(latestChangeId, dao.getLatestChangeId());
+				lastPolled = now;
+			}
+			
+			if (latestChangeId > changeId) {
+				return true;
+			} else if (now >= deadline) {
+				return false;
+			}
+			
+			wait(Math.max(1, Math.min(deadline, lastPolled + POLL_INTERVAL) - now));
+		}
+	}
+}
@@ -0,0 +1,32 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.changes;
+
+public enum ChangeOperation {
+	CREATE,
+	UPDATE,
+	VOID,
+	DELETE;
+	
+	/**
+	 * Merges two changes of the same resource in one transaction into the one a consumer needs to see
+	 */
+	public ChangeOperation merge(ChangeOperation later) {
+		if (later == DELETE || this == DELETE) {
+			return DELETE;
+		} else if (this == CREATE) {
+			return CREATE;
+		} else if (later == VOID || this == VOID) {
+			return VOID;
+		}
+		
+		return UPDATE;
+	}
+}
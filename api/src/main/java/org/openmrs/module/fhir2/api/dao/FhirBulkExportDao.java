@@ -0,0 +1,70 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.dao;
+
+import java.util.Date;
+import java.util.List;
+
+import org.openmrs.Patient;
+import org.openmrs.Person;
+import org.openmrs.module.fhir2.api.sync.SyncArea;
+
+/**
+ * Reads the data for bulk exports in pages ordered by primary key. Every page is read in its own short-lived, read-only
+ * session and returned detached, with everything the translators read already loaded, so the memory used by an export
+ * does not grow with the number of records exported.
+ */
+public interface FhirBulkExportDao {
+	
+	/**
+	 * @param lastPatientId only patients with a greater patient id are returned; 0 for the first page
+	 * @param maxPatientId only patients with a patient id up to this are returned
+	 * @param since if not null, only patients created or changed at or after this time are returned, including voided
+	 *            patients
+	 * @param maxResults the size of the page
+	 * @return the next page of patients, ordered by patient id; empty once every patient has been read
+	 */
+	List<Patient> getPatientPage(int lastPatientId, int maxPatientId, Date since, int maxResults);
+	
+	/**
+	 * @param lastPersonId only persons with a greater person id are returned; 0 for the first page
+	 * @param maxPersonId only persons with a person id up to this are returned
+	 * @param since if not null, only persons created or changed at or after this time are returned, including voided
+	 *            persons
+	 * @param maxResults the size of the page
+	 * @return the next page of persons, ordered by person id; empty once every person has been read
+	 */
+	List<Person> getPersonPage(int lastPersonId, int maxPersonId, Date since, int maxResults);
+	
+	/**
+	 * @param area only patients with an address in this area are returned
+	 * @param lastPatientId only patients with a greater patient id are returned; 0 for the first page
+	 * @param since if not null, only patients created or changed at or after this time are returned, including voided
+	 *            patients
+	 * @param maxResults the size of the page
+	 * @return the next page of patients, ordered by patient id; empty once every patient has been read
+	 */
+	List<Patient> getPatientPage(SyncArea area, int lastPatientId, Date since, int maxResults);
+	
+	/**
+	 * @return the greatest patient id, or 0 if there are no patients
+	 */
+	int getMaxPatientId();
+	
+	/**
+	 * @return the greatest person id, or 0 if there are no persons
+	 */
+	int getMaxPersonId();
+	
+	/**
+	 * @return the names of the identifier types which are not retired, which are the systems of patient identifiers
+	 */
+	List<String> getPatientIdentifierTypeNames();
+}
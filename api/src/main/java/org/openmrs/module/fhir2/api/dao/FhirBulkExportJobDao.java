@@ -0,0 +1,101 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.dao;
+
+import java.util.Date;
+import java.util.List;
+
+import org.openmrs.module.fhir2.api.export.BulkExportJob;
+import org.openmrs.module.fhir2.api.export.BulkExportPartition;
+
+/**
+ * Stores bulk export jobs and the leases on their partitions. Every method runs in a transaction of its own, so the
+ * state it leaves behind is immediately visible to the other nodes sharing the database.
+ */
+public interface FhirBulkExportJobDao {
+	
+	/**
+	 * Saves a new job together with its partitions
+	 */
+	void saveJob(BulkExportJob job);
+	
+	/**
+	 * @return the job with its partitions, or null if there is no such job
+	 */
+	BulkExportJob getJobByUuid(String uuid);
+	
+	/**
+	 * @return the jobs which finished before the given time
+	 */
+	List<BulkExportJob> getJobsFinishedBefore(Date finishedBefore);
+	
+	/**
+	 * Deletes a job and its partitions
+	 */
+	void deleteJob(BulkExportJob job);
+	
+	/**
+	 * Cancels every unfinished partition of a job and marks the job as cancelled, unless it has already finished
+	 */
+	void cancelJob(BulkExportJob job);
+	
+	/**
+	 * @param now the current time
+	 * @param maxResults the maximum number of partitions to return
+	 * @return the ids of partitions which have never been claimed or whose lease has expired
+	 */
+	List<Integer> getClaimablePartitionIds(Date now, int maxResults);
+	
+	/**
+	 * Claims a partition, unless it was claimed by another node in the meantime
+	 *
+	 * @param partitionId the partition to claim
+	 * @param owner the node claiming the partition
+	 * @param now the current time
+	 * @param leaseExpiresAt the time at which the claim lapses unless it is renewed
+	 * @return the claimed partition with its job, or null if the partition could not be claimed
+	 */
+	BulkExportPartition claimPartition(int partitionId, String owner, Date now, Date leaseExpiresAt);
+	
+	/**
+	 * @return false if the partition is no longer leased by the owner
+	 */
+	boolean renewLease(int partitionId, String owner, Date leaseExpiresAt);
+	
+	/**
+	 * Records how far the export of a partition has got, and renews the lease on it
+	 *
+	 * @param lastKey the key of the last record written to the partition's file
+	 * @param fileOffset the length of the file up to and including that record
+	 * @param resourceCount the number of resources in the file up to and including that record
+	 * @return false if the partition is no longer leased by the owner
+	 */
+	boolean checkpointPartition(int partitionId, String owner, int lastKey, long fileOffset, long resourceCount,
+	        Date leaseExpiresAt);
+	
+	/**
+	 * Marks a partition as exported and, if it was the last unfinished partition of its job, completes the job
+	 *
+	 * @return false if the partition is no longer leased by the owner
+	 */
+	boolean completePartition(int partitionId, String owner, long resourceCount);
+	
+	/**
+	 * Gives up the lease on a partition, so another node can claim it straight away and resume it from its last
+	 * checkpoint
+	 */
+	void releasePartition(int partitionId, String owner);
+	
+	/**
+	 * Records a failed attempt to export a partition. The partition is released to be tried again, unless it has been
+	 * attempted maxAttempts times, in which case it and its job fail.
+	 */
+	void failPartition(int partitionId, String owner, String error, int maxAttempts);
+}
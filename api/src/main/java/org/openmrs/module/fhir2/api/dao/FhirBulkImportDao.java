@@ -0,0 +1,40 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.dao;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.Person;
+
+/**
+ * Reads the reference data for bulk imports and saves the imported records in batches
+ */
+public interface FhirBulkImportDao {
+	
+	/**
+	 * Resolves the identifier types of a batch of records at once. This is called by the threads translating the
+	 * records, so it reads in a short-lived session of its own and returns the identifier types detached.
+	 *
+	 * @param names the names of identifier types, i.e. the systems of FHIR identifiers
+	 * @return the unretired identifier type with each name, by name; names without one are left out
+	 */
+	Map<String, PatientIdentifierType> getPatientIdentifierTypesByNames(Collection<String> names);
+	
+	/**
+	 * Saves a batch of new persons and patients in a single transaction, so either all of them are saved or none of
+	 * them are
+	 *
+	 * @param records the records to save; patients are saved as patients
+	 */
+	void saveBatch(List<? extends Person> records);
+}
@@ -0,0 +1,40 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.dao;
+
+import java.util.Date;
+import java.util.List;
+
+import org.openmrs.module.fhir2.api.changes.ResourceChange;
+
+/**
+ * Reads the change feed outbox, which is written by {@link org.openmrs.module.fhir2.api.changes.ChangeFeedListener}
+ */
+public interface FhirChangeFeedDao {
+	
+	/**
+	 * @param changeId only changes with a greater id are returned; 0 for the first page
+	 * @param maxResults the size of the page
+	 * @return the next page of changes, ordered by id
+	 */
+	List<ResourceChange> getChangesAfter(long changeId, int maxResults);
+	
+	/**
+	 * @return the id of the latest change, or 0 if there are none
+	 */
+	long getLatestChangeId();
+	
+	/**
+	 * Deletes the changes recorded before the given time
+	 *
+	 * @return the number of changes deleted
+	 */
+	int deleteChangesBefore(Date before);
+}
@@ -12,14 +12,34 @@ package org.openmrs.module.fhir2.api.dao;
 import javax.validation.constraints.NotNull;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
 
 import org.openmrs.Patient;
 import org.openmrs.PatientIdentifierType;
+import org.openmrs.module.fhir2.api.search.FilterExpression;
+import org.openmrs.module.fhir2.api.search.SearchCancellation;
 
 public interface FhirPatientDao {
 	
 	Patient getPatientByUuid(@NotNull String uuid);
 	
+	/**
+	 * Loads the patients with the given uuids
+	 *
+	 * @param uuids the uuids of the patients to load
+	 * @return the patients which exist, in the same order as the supplied uuids
+	 */
+	List<Patient> getPatientsByUuids(@NotNull List<String> uuids);
+	
+	/**
+	 * Saves a new patient, or the changes made to a patient which was loaded by this DAO
+	 *
+	 * @param patient the patient to save
+	 * @return the saved patient
+	 */
+	Patient savePatient(@NotNull Patient patient);
+	
 	PatientIdentifierType getPatientIdentifierTypeByNameOrUuid(String name, String uuid);
 	
 	Collection<Patient> findPatientsByName(String name);
@@ -27,4 +47,28 @@ public interface FhirPatientDao {
 	Collection<Patient> findPatientsByGivenName(String given);
 	
 	Collection<Patient> findPatientsByFamilyName(String family);
+	
+	/**
+	 * Finds the patients matching a parsed _filter expression with a single query
+	 *
+	 * @param filter the filter to apply
+	 * @return the matching patients
+	 * @throws ca.uhn.fhir.rest.server.exceptions.InvalidRequestException if the filter cannot be expressed as a query
+	 */
+	List<Patient> findPatientsByFilter(@NotNull FilterExpression filter);
+	
+	/**
+	 * Streams the patients matching a name one at a time. Each patient is detached from the session after the action
+	 * has processed it, so memory use does not grow with the number of matches.
+	 *
+	 * @param name the name to match against given, middle and family names
+	 * @param action the action to apply to each patient
+	 * @param cancellation cancels the running statement, and stops the stream before the next patient
+	 * @throws java.util.concurrent.CancellationException if the stream was cancelled
+	 */
+	void streamPatientsByName(String name, Consumer<Patient> action, SearchCancellation cancellation);
+	
+	void streamPatientsByGivenName(String given, Consumer<Patient> action, SearchCancellation cancellation);
+	
+	void streamPatientsByFamilyName(String family, Consumer<Patient> action, SearchCancellation cancellation);
 }
@@ -16,4 +16,12 @@ public interface FhirPersonDao {
 	
 	Person getPersonByUuid(@NotNull String uuid);
 	
+	/**
+	 * Saves a new or changed person
+	 *
+	 * @param person the person to save
+	 * @return the saved person
+	 */
+	Person savePerson(@NotNull Person person);
+
 }
@@ -0,0 +1,72 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.dao.impl;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import com.google.common.collect.Lists;
+import org.hibernate.Session;
+import org.openmrs.Patient;
+import org.openmrs.Person;
+
+/**
+ * Loads the collections of patients and persons which their fetch plan does not join. Each statement fetches one
+ * collection for a whole batch of entities already in the session, which Hibernate initializes in place, so a result
+ * of any size takes one statement per collection and batch rather than one per entity.
+ */
+final class CollectionLoader {
+	
+	private static final int BATCH_SIZE = 500;
+	
+	private CollectionLoader() {
+	}
+	
+	static List<Patient> loadPatientCollections(Session session, List<Patient> patients) {
+		load(session, patients, Patient::getPatientId, FhirQueries.PATIENT_ADDRESSES_BY_IDS);
+		load(session, patients, Patient::getPatientId, FhirQueries.PATIENT_IDENTIFIERS_BY_IDS);
+		return patients;
+	}
+	
+	static List<Person> loadPersonCollections(Session session, List<Person> persons) {
+		load(session, persons, Person::getPersonId, FhirQueries.PERSON_ADDRESSES_BY_IDS);
+		return persons;
+	}
+	
+	static Patient loadPatientCollections(Session session, Patient patient) {
+		if (patient != null) {
+			loadPatientCollections(session, Collections.singletonList(patient));
+		}
+		
+		return patient;
+	}
+	
+	static Person loadPersonCollections(Session session, Person person) {
+		if (person != null) {
+			loadPersonCollections(session, Collections.singletonList(person));
+		}
+		
+		return person;
+	}
+	
+	private static <E> void load(Session session, List<E> entities, Function<E, Integer> idExtractor,
+	        String hql) {
+		if (entities.isEmpty()) {
+			return;
+		}
+		
+		List<Integer> ids = entities.stream().map(idExtractor).collect(Collectors.toList());
+		for (List<Integer> batch : Lists.partition(ids, BATCH_SIZE)) {
+			session.createQuery(hql).setParameterList("ids", batch).list();
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.dao.impl;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.hibernate.FlushMode;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.openmrs.Patient;
+import org.openmrs.Person;
+import org.openmrs.module.fhir2.api.dao.FhirBulkExportDao;
+import org.openmrs.module.fhir2.api.sync.SyncArea;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+@Component
+@Setter(AccessLevel.PACKAGE)
+public class FhirBulkExportDaoImpl implements FhirBulkExportDao {
+	
+	@Inject
+	@Named("sessionFactory")
+	SessionFactory sessionFactory;
+	
+	@Override
+	public List<Patient> getPatientPage(int lastPatientId, int maxPatientId, Date since, int maxResults) {
+		String idsHql = since == null ? FhirQueries.EXPORT_PATIENT_IDS : FhirQueries.EXPORT_PATIENT_IDS_SINCE;
+		return readPage(
+		    session -> createIdsQuery(session, idsHql, lastPatientId, since).setInteger("maxId", maxPatientId),
+		    FhirQueries.EXPORT_PATIENTS_BY_IDS, CollectionLoader::loadPatientCollections, maxResults,
+		    Patient::getPatientId);
+	}
+	
+	@Override
+	public List<Person> getPersonPage(int lastPersonId, int maxPersonId, Date since, int maxResults) {
+		String idsHql = since == null ? FhirQueries.EXPORT_PERSON_IDS : FhirQueries.EXPORT_PERSON_IDS_SINCE;
+		return readPage(
+		    session -> createIdsQuery(session, idsHql, lastPersonId, since).setInteger("maxId", maxPersonId),
+		    FhirQueries.EXPORT_PERSONS_BY_IDS, CollectionLoader::loadPersonCollections, maxResults,
+		    Person::getPersonId);
+	}
+	
+	@Override
+	public List<Patient> getPatientPage(SyncArea area, int lastPatientId, Date since, int maxResults) {
+		StringBuilder hql = new StringBuilder(FhirQueries.SYNC_PATIENT_IDS);
+		appendIf(hql, area.getCity(), FhirQueries.SYNC_ADDRESS_CITY);
+		appendIf(hql, area.getState(), FhirQueries.SYNC_ADDRESS_STATE);
+		appendIf(hql, area.getPostalCode(), FhirQueries.SYNC_ADDRESS_POSTAL_CODE);
+		appendIf(hql, area.getCountry(), FhirQueries.SYNC_ADDRESS_COUNTRY);
+		hql.append(since == null ? FhirQueries.SYNC_PATIENTS_NOT_VOIDED : FhirQueries.SYNC_PATIENTS_SINCE);
+		
+		return readPage(session -> {
+			Query query = createIdsQuery(session, hql.toString(), lastPatientId, since);
+			setIf(query, "city", area.getCity());
+			setIf(query, "state", area.getState());
+			setIf(query, "postalCode", area.getPostalCode());
+			setIf(query, "country", area.getCountry());
+			return query;
+		}, FhirQueries.EXPORT_PATIENTS_BY_IDS, CollectionLoader::loadPatientCollections, maxResults,
+		    Patient::getPatientId);
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public int getMaxPatientId() {
+		return getMaxId(FhirQueries.MAX_PATIENT_ID);
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public int getMaxPersonId() {
+		return getMaxId(FhirQueries.MAX_PERSON_ID);
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	@SuppressWarnings("unchecked")
+	public List<String> getPatientIdentifierTypeNames() {
+		return sessionFactory.getCurrentSession().createQuery(FhirQueries.PATIENT_IDENTIFIER_TYPE_NAMES).list();
+	}
+	
+	private static Query createIdsQuery(Session session, String hql, int lastId, Date since) {
+		Query query = session.createQuery(hql).setInteger("lastId", lastId);
+		if (since != null) {
+			query.setTimestamp("since", since);
+		}
+		
+		return query;
+	}
+	
+	private static void appendIf(StringBuilder hql, String value, String condition) {
+		if (value != null) {
+			hql.append(condition);
+		}
+	}
+	
+	private static void setIf(Query query, String name, String value) {
+		if (value != null) {
+			query.setString(name, value);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private <T> List<T> readPage(Function<Session, Query> idsQueryFactory, String entitiesHql,
+	        BiConsumer<Session, List<T>> collectionLoader, int maxResults, ToIntFunction<T> idExtractor) {
+		// the export runs outside of any request, so it does not use (or bind) the current session; closing this session
+		// detaches everything it loaded, and the fetch plan and the collection loader ensure that is all the translators
+		// need
+		Session session = sessionFactory.openSession();
+		try {
+			session.setDefaultReadOnly(true);
+			session.setFlushMode(FlushMode.MANUAL);
+			
+			List<Integer> ids = idsQueryFactory.apply(session).setMaxResults(maxResults).list();
+			if (ids.isEmpty()) {
+				return new ArrayList<>();
+			}
+			
+			List<T> page = new ArrayList<>(session.createQuery(entitiesHql).setParameterList("ids", ids).list());
+			collectionLoader.accept(session, page);
+			page.sort(Comparator.comparingInt(idExtractor));
+			return page;
+		}
+		finally {
+			session.close();
+		}
+	}
+	
+	private int getMaxId(String hql) {
+		Integer maxId = (Integer) sessionFactory.getCurrentSession().createQuery(hql).uniqueResult();
+		return maxId == null ? 0 : maxId;
+	}
+}
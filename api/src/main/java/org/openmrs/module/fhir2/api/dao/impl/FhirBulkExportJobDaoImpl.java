@@ -0,0 +1,209 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.dao.impl;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import java.util.Date;
+import java.util.List;
+
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.hibernate.LockOptions;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.openmrs.module.fhir2.api.dao.FhirBulkExportJobDao;
+import org.openmrs.module.fhir2.api.export.BulkExportJob;
+import org.openmrs.module.fhir2.api.export.BulkExportPartition;
+import org.openmrs.module.fhir2.api.export.BulkExportStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+@Component
+@Setter(AccessLevel.PACKAGE)
+public class FhirBulkExportJobDaoImpl implements FhirBulkExportJobDao {
+	
+	@Inject
+	@Named("sessionFactory")
+	SessionFactory sessionFactory;
+	
+	@Override
+	@Transactional
+	public void saveJob(BulkExportJob job) {
+		getSession().save(job);
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public BulkExportJob getJobByUuid(String uuid) {
+		return (BulkExportJob) getSession().createQuery(FhirQueries.EXPORT_JOB_BY_UUID).setString("uuid", uuid)
+		        .uniqueResult();
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	@SuppressWarnings("unchecked")
+	public List<BulkExportJob> getJobsFinishedBefore(Date finishedBefore) {
+		return getSession().createQuery(FhirQueries.FINISHED_EXPORT_JOBS).setTimestamp("finishedBefore", finishedBefore)
+		        .list();
+	}
+	
+	@Override
+	@Transactional
+	public void deleteJob(BulkExportJob job) {
+		getSession().createQuery(FhirQueries.DELETE_EXPORT_PARTITIONS).setInteger("jobId", job.getJobId())
+		        .executeUpdate();
+		getSession().createQuery(FhirQueries.DELETE_EXPORT_JOB).setInteger("jobId", job.getJobId()).executeUpdate();
+	}
+	
+	@Override
+	@Transactional
+	public void cancelJob(BulkExportJob job) {
+		lockJob(job.getJobId());
+		finishJob(job.getJobId(), BulkExportStatus.CANCELLED, null);
+		getSession().createQuery(FhirQueries.CANCEL_EXPORT_PARTITIONS).setInteger("jobId", job.getJobId())
+		        .setParameter("cancelled", BulkExportStatus.CANCELLED)
+		        .setParameter("accepted", BulkExportStatus.ACCEPTED)
+		        .setParameter("inProgress", BulkExportStatus.IN_PROGRESS).executeUpdate();
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	@SuppressWarnings("unchecked")
+	public List<Integer> getClaimablePartitionIds(Date now, int maxResults) {
+		return getSession().createQuery(FhirQueries.CLAIMABLE_EXPORT_PARTITIONS)
+		        .setParameter("accepted", BulkExportStatus.ACCEPTED)
+		        .setParameter("inProgress", BulkExportStatus.IN_PROGRESS).setTimestamp("now", now)
+		        .setMaxResults(maxResults).list();
+	}
+	
+	@Override
+	@Transactional
+	public BulkExportPartition claimPartition(int partitionId, String owner, Date now, Date leaseExpiresAt) {
+		Integer jobId = lockJobOfPartition(partitionId);
+		if (jobId == null) {
+			return null;
+		}
+		
+		int claimed = getSession().createQuery(FhirQueries.CLAIM_EXPORT_PARTITION).setInteger("partitionId", partitionId)
+		        .setString("owner", owner).setTimestamp("now", now).setTimestamp("leaseExpiresAt", leaseExpiresAt)
+		        .setParameter("accepted", BulkExportStatus.ACCEPTED)
+		        .setParameter("inProgress", BulkExportStatus.IN_PROGRESS).executeUpdate();
+		if (claimed == 0) {
+			return null;
+		}
+		
+		getSession().createQuery(FhirQueries.START_EXPORT_JOB).setInteger("jobId", jobId)
+		        .setParameter("accepted", BulkExportStatus.ACCEPTED)
+		        .setParameter("inProgress", BulkExportStatus.IN_PROGRESS).executeUpdate();
+		
+		return (BulkExportPartition) getSession().createQuery(FhirQueries.EXPORT_PARTITION_WITH_JOB)
+		        .setInteger("partitionId", partitionId).uniqueResult();
+	}
+	
+	@Override
+	@Transactional
+	public boolean renewLease(int partitionId, String owner, Date leaseExpiresAt) {
+		return getSession().createQuery(FhirQueries.RENEW_EXPORT_PARTITION_LEASE).setInteger("partitionId", partitionId)
+		        .setString("owner", owner).setTimestamp("leaseExpiresAt", leaseExpiresAt)
+		        .setParameter("inProgress", BulkExportStatus.IN_PROGRESS).executeUpdate() > 0;
+	}
+	
+	@Override
+	@Transactional
+	public boolean checkpointPartition(int partitionId, String owner, int lastKey, long fileOffset, long resourceCount,
+	        Date leaseExpiresAt) {
+		return getSession().createQuery(FhirQueries.CHECKPOINT_EXPORT_PARTITION).setInteger("partitionId", partitionId)
+		        .setString("owner", owner).setInteger("lastKey", lastKey).setLong("fileOffset", fileOffset)
+		        .setLong("resourceCount", resourceCount).setTimestamp("leaseExpiresAt", leaseExpiresAt)
+		        .setParameter("inProgress", BulkExportStatus.IN_PROGRESS).executeUpdate() > 0;
+	}
+	
+	@Override
+	@Transactional
+	public boolean completePartition(int partitionId, String owner, long resourceCount) {
+		// the nodes finishing the last partitions of a job are serialized on the job, so exactly one of them sees no
+		// unfinished partitions left and completes the job
+		Integer jobId = lockJobOfPartition(partitionId);
+		if (jobId == null || getSession().createQuery(FhirQueries.COMPLETE_EXPORT_PARTITION)
+		        .setInteger("partitionId", partitionId).setString("owner", owner)
+		        .setLong("resourceCount", resourceCount).setParameter("complete", BulkExportStatus.COMPLETE)
+		        .setParameter("inProgress", BulkExportStatus.IN_PROGRESS).executeUpdate() == 0) {
+			return false;
+		}
+		
+		long unfinished = (Long) getSession().createQuery(FhirQueries.UNFINISHED_EXPORT_PARTITION_COUNT)
+		        .setInteger("jobId", jobId).setParameter("complete", BulkExportStatus.COMPLETE).uniqueResult();
+		if (unfinished == 0) {
+			finishJob(jobId, BulkExportStatus.COMPLETE, null);
+		}
+		
+		return true;
+	}
+	
+	@Override
+	@Transactional
+	public void releasePartition(int partitionId, String owner) {
+		finishPartition(partitionId, owner, BulkExportStatus.ACCEPTED);
+	}
+	
+	@Override
+	@Transactional
+	public void failPartition(int partitionId, String owner, String error, int maxAttempts) {
+		Integer jobId = lockJobOfPartition(partitionId);
+		if (jobId == null) {
+			return;
+		}
+		
+		BulkExportPartition partition = (BulkExportPartition) getSession().get(BulkExportPartition.class, partitionId);
+		if (partition.getAttempts() < maxAttempts) {
+			finishPartition(partitionId, owner, BulkExportStatus.ACCEPTED);
+		} else if (finishPartition(partitionId, owner, BulkExportStatus.FAILED)) {
+			finishJob(jobId, BulkExportStatus.FAILED, error);
+		}
+	}
+	
+	private boolean finishPartition(int partitionId, String owner, BulkExportStatus status) {
+		return getSession().createQuery(FhirQueries.FINISH_EXPORT_PARTITION).setInteger("partitionId", partitionId)
+		        .setString("owner", owner).setParameter("status", status).setParameter("inProgress", BulkExportStatus.IN_PROGRESS).executeUpdate() > 0;
+	}
+	
+	private void finishJob(int jobId, BulkExportStatus status, String error) {
+		getSession().createQuery(FhirQueries.FINISH_EXPORT_JOB).setInteger("jobId", jobId).setParameter("status", status)
+		        .setString("error", error).setTimestamp("now", new Date())
+		        .setParameter("accepted", BulkExportStatus.ACCEPTED)
+		        .setParameter("inProgress", BulkExportStatus.IN_PROGRESS).executeUpdate();
+	}
+	
+	/**
+	 * Every change to the partitions of a job first locks the job, so changes to a job and its partitions always take
+	 * their locks in the same order
+	 *
+	 * @return the id of the locked job, or null if the partition does not exist
+	 */
+	private Integer lockJobOfPartition(int partitionId) {
+		Integer jobId = (Integer) getSession().createQuery(FhirQueries.EXPORT_PARTITION_JOB_ID)
+		        .setInteger("partitionId", partitionId).uniqueResult();
+		if (jobId != null) {
+			lockJob(jobId);
+		}
+		
+		return jobId;
+	}
+	
+	private void lockJob(int jobId) {
+		getSession().get(BulkExportJob.class, jobId, LockOptions.UPGRADE);
+	}
+	
+	private Session getSession() {
+		return sessionFactory.getCurrentSession();
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.dao.impl;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.Person;
+import org.openmrs.api.PatientService;
+import org.openmrs.api.PersonService;
+import org.openmrs.module.fhir2.api.dao.FhirBulkImportDao;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+@Component
+@Setter(AccessLevel.PACKAGE)
+public class FhirBulkImportDaoImpl implements FhirBulkImportDao {
+	
+	/**
+	 * The number of records saved between flushes. Keep this a multiple of hibernate.jdbc.batch_size, so that updates
+	 * are sent in full JDBC batches; inserts into tables with identity keys are never batched by Hibernate.
+	 */
+	private static final int FLUSH_INTERVAL = 50;
+	
+	@Inject
+	PatientService patientService;
+	
+	@Inject
+	PersonService personService;
+	
+	@Inject
+	@Named("sessionFactory")
+	SessionFactory sessionFactory;
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public Map<String, PatientIdentifierType> getPatientIdentifierTypesByNames(Collection<String> names) {
+		Map<String, PatientIdentifierType> identifierTypes = new HashMap<>();
+		if (names.isEmpty()) {
+			return identifierTypes;
+		}
+		
+		Session session = sessionFactory.openSession();
+		try {
+			session.setDefaultReadOnly(true);
+			session.setFlushMode(FlushMode.MANUAL);
+			
+			// ordered by id, so that of several types with the same name the first is used, as for a single identifier
+			List<PatientIdentifierType> results = session.createQuery(FhirQueries.PATIENT_IDENTIFIER_TYPES_BY_NAMES)
+			        .setParameterList("names", names).list();
+			for (PatientIdentifierType identifierType : results) {
+				identifierTypes.putIfAbsent(identifierType.getName(), identifierType);
+			}
+			
+			return identifierTypes;
+		}
+		finally {
+			session.close();
+		}
+	}
+	
+	@Override
+	@Transactional
+	public void saveBatch(List<? extends Person> records) {
+		Session session = sessionFactory.getCurrentSession();
+		try {
+			int count = 0;
+			for (Person record : records) {
+				if (record instanceof Patient) {
+					patientService.savePatient((Patient) record);
+				} else {
+					personService.savePerson(record);
+				}
+				
+				// nothing saved is read again, so the session is kept from growing with the size of the batch
+				if (++count % FLUSH_INTERVAL == 0) {
+					session.flush();
+					session.clear();
+				}
+			}
+			
+			session.flush();
+		}
+		finally {
+			// the session may outlive the transaction, e.g. in a web request, and must not keep the records of a batch
+			// which failed, as they would otherwise be flushed again with the next batch
+			session.clear();
+		}
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.dao.impl;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import java.util.Date;
+import java.util.List;
+
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.hibernate.SessionFactory;
+import org.openmrs.module.fhir2.api.changes.ResourceChange;
+import org.openmrs.module.fhir2.api.dao.FhirChangeFeedDao;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+@Component
+@Setter(AccessLevel.PACKAGE)
+public class FhirChangeFeedDaoImpl implements FhirChangeFeedDao {
+	
+	@Inject
+	@Named("sessionFactory")
+	SessionFactory sessionFactory;
+	
+	@Override
+	@Transactional(readOnly = true)
+	@SuppressWarnings("unchecked")
+	public List<ResourceChange> getChangesAfter(long changeId, int maxResults) {
+		return sessionFactory.getCurrentSession().createQuery(FhirQueries.CHANGES_AFTER).setLong("changeId", changeId)
+		        .setMaxResults(maxResults).list();
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public long getLatestChangeId() {
+		Long changeId = (Long) sessionFactory.getCurrentSession().createQuery(FhirQueries.LATEST_CHANGE_ID)
+		        .uniqueResult();
+		return changeId == null ? 0 : changeId;
+	}
+	
+	@Override
+	@Transactional
+	public int deleteChangesBefore(Date before) {
+		return sessionFactory.getCurrentSession().createQuery(FhirQueries.DELETE_CHANGES_BEFORE)
+		        .setTimestamp("before", before).executeUpdate();
+	}
+}
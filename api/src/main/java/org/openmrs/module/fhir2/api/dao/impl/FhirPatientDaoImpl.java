@@ -9,25 +9,37 @@
  */
 package org.openmrs.module.fhir2.api.dao.impl;
 
-import static org.hibernate.criterion.Restrictions.and;
-import static org.hibernate.criterion.Restrictions.ilike;
-import static org.hibernate.criterion.Restrictions.or;
-import static org.hibernate.criterion.Restrictions.eq;
+import static org.openmrs.module.fhir2.api.dao.impl.FhirQueries.namePattern;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.NoSuchElementException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import lombok.AccessLevel;
 import lombok.Setter;
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
-import org.hibernate.criterion.MatchMode;
 import org.openmrs.Patient;
 import org.openmrs.PatientIdentifierType;
 import org.openmrs.api.PatientService;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.api.FhirGlobalPropertyService;
 import org.openmrs.module.fhir2.api.dao.FhirPatientDao;
+import org.openmrs.module.fhir2.api.search.FilterExpression;
+import org.openmrs.module.fhir2.api.search.SearchCancellation;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -35,6 +47,24 @@ import org.springframework.transaction.annotation.Transactional;
 @Setter(AccessLevel.PACKAGE)
 public class FhirPatientDaoImpl implements FhirPatientDao {
 	
+	private static final int STREAM_FETCH_SIZE = 100;
+	
+	private static final int STREAM_CLEAR_INTERVAL = 100;
+	
+	/*
+	 * Default statement timeouts, in seconds, per kind of query; the database cancels a statement which runs longer, so
+	 * a pathological search cannot hold a connection indefinitely. Lookups by key take milliseconds, searches with a
+	 * leading wildcard may have to scan a whole index, and a stream's statement keeps running while the rows are
+	 * being read. Each can be changed by a global property.
+	 */
+	private static final int DEFAULT_LOOKUP_TIMEOUT = 10;
+	
+	private static final int DEFAULT_SEARCH_TIMEOUT = 30;
+	
+	private static final int DEFAULT_STREAM_TIMEOUT = 120;
+	
+	private static final long SETTINGS_REFRESH_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+	
 	@Inject
 	PatientService patientService;
 	
@@ -42,51 +72,206 @@ public class FhirPatientDaoImpl implements FhirPatientDao {
 	@Named("sessionFactory")
 	SessionFactory sessionFactory;
 	
+	@Inject
+	FhirGlobalPropertyService globalPropertyService;
+	
+	private volatile int lookupTimeout;
+	
+	private volatile int searchTimeout;
+	
+	private volatile int streamTimeout;
+	
+	private volatile long settingsLoadedAt;
+	
 	@Override
+	@Transactional(readOnly = true)
 	public Patient getPatientByUuid(String uuid) {
-		return patientService.getPatientByUuid(uuid);
+		Patient patient = (Patient) createQuery(FhirQueries.PATIENT_BY_UUID, getLookupTimeout()).setString("uuid", uuid)
+		        .uniqueResult();
+		return CollectionLoader.loadPatientCollections(sessionFactory.getCurrentSession(), patient);
 	}
 	
 	@Override
 	@Transactional(readOnly = true)
 	@SuppressWarnings("unchecked")
+	public List<Patient> getPatientsByUuids(List<String> uuids) {
+		if (uuids.isEmpty()) {
+			return new ArrayList<>();
+		}
+		
+		Map<String, Patient> patientsByUuid = new HashMap<>();
+		List<Patient> patients = createQuery(FhirQueries.PATIENTS_BY_UUIDS, getLookupTimeout())
+		        .setParameterList("uuids", uuids).list();
+		for (Patient patient : CollectionLoader.loadPatientCollections(sessionFactory.getCurrentSession(), patients)) {
+			patientsByUuid.put(patient.getUuid(), patient);
+		}
+		
+		return uuids.stream().map(patientsByUuid::get).filter(Objects::nonNull).collect(Collectors.toList());
+	}
+	
+	@Override
+	@Transactional
+	public Patient savePatient(Patient patient) {
+		return patientService.savePatient(patient);
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
 	public PatientIdentifierType getPatientIdentifierTypeByNameOrUuid(String name, String uuid) {
-		List<PatientIdentifierType> identifierTypes = (List<PatientIdentifierType>) sessionFactory.getCurrentSession()
-				.createCriteria(PatientIdentifierType.class).add(or(
-					and(eq("name", name), eq("retired", false)),
-						eq("uuid", uuid))).list();
+		// favour uuid if one was supplied; two index lookups are cheaper than a single or-ed query, which cannot use
+		// either index
+		if (uuid != null) {
+			PatientIdentifierType identifierType = (PatientIdentifierType) createQuery(
+			    FhirQueries.PATIENT_IDENTIFIER_TYPE_BY_UUID, getLookupTimeout()).setString("uuid", uuid).uniqueResult();
+			
+			if (identifierType != null) {
+				return identifierType;
+			}
+		}
 		
-		if (identifierTypes.isEmpty()) {
+		if (name == null) {
 			return null;
-		} else {
-			// favour uuid if one was supplied
-			if (uuid != null) {
-				try {
-					return identifierTypes.stream().filter((idType) -> uuid.equals(idType.getUuid())).findFirst().get();
-				} catch (NoSuchElementException ignored) {}
-			}
-			
-			return identifierTypes.get(0);
 		}
+		
+		return (PatientIdentifierType) createQuery(FhirQueries.PATIENT_IDENTIFIER_TYPE_BY_NAME, getLookupTimeout())
+		        .setString("name", name).setMaxResults(1).uniqueResult();
 	}
 	
 	@Override
 	@Transactional(readOnly = true)
+	@SuppressWarnings("unchecked")
 	public List<Patient> findPatientsByName(String name) {
-		return patientService.getPatients(name);
+		return CollectionLoader.loadPatientCollections(sessionFactory.getCurrentSession(),
+		    (List<Patient>) createQuery(FhirQueries.PATIENTS_BY_NAME, getSearchTimeout())
+		            .setString("name", namePattern(name)).list());
 	}
 	
 	@Override
 	@SuppressWarnings("unchecked")
 	public List<Patient> findPatientsByGivenName(String given) {
-		return sessionFactory.getCurrentSession().createCriteria(Patient.class).createAlias("names", "names")
-				.add(ilike("names.givenName", given, MatchMode.ANYWHERE)).list();
+		return CollectionLoader.loadPatientCollections(sessionFactory.getCurrentSession(),
+		    (List<Patient>) createQuery(FhirQueries.PATIENTS_BY_GIVEN_NAME, getSearchTimeout())
+		            .setString("givenName", namePattern(given)).list());
 	}
 	
 	@Override
 	@SuppressWarnings("unchecked")
 	public List<Patient> findPatientsByFamilyName(String family) {
-		return sessionFactory.getCurrentSession().createCriteria(Patient.class).createAlias("names", "names")
-				.add(ilike("names.familyName", family, MatchMode.ANYWHERE)).list();
+		return CollectionLoader.loadPatientCollections(sessionFactory.getCurrentSession(),
+		    (List<Patient>) createQuery(FhirQueries.PATIENTS_BY_FAMILY_NAME, getSearchTimeout())
+		            .setString("familyName", namePattern(family)).list());
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	@SuppressWarnings("unchecked")
+	public List<Patient> findPatientsByFilter(FilterExpression filter) {
+		PatientFilterCompiler compiledFilter = PatientFilterCompiler.compile(filter);
+		
+		Query query = createQuery(FhirQueries.PATIENTS_BY_FILTER + "(" + compiledFilter.getCondition() + ")",
+		    getSearchTimeout());
+		compiledFilter.getParameters().forEach(query::setParameter);
+		return CollectionLoader.loadPatientCollections(sessionFactory.getCurrentSession(),
+		    (List<Patient>) query.list());
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public void streamPatientsByName(String name, Consumer<Patient> action, SearchCancellation cancellation) {
+		scroll(createStreamingQuery(FhirQueries.STREAM_PATIENTS_BY_NAME).setString("name", namePattern(name)),
+		    action, cancellation);
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public void streamPatientsByGivenName(String given, Consumer<Patient> action, SearchCancellation cancellation) {
+		scroll(createStreamingQuery(FhirQueries.STREAM_PATIENTS_BY_GIVEN_NAME).setString("givenName",
+		    namePattern(given)), action, cancellation);
+	}
+	
+	@Override
+	@Transactional(readOnly = true)
+	public void streamPatientsByFamilyName(String family, Consumer<Patient> action,
+	        SearchCancellation cancellation) {
+		scroll(createStreamingQuery(FhirQueries.STREAM_PATIENTS_BY_FAMILY_NAME).setString("familyName",
+		    namePattern(family)), action, cancellation);
+	}
+	
+	private void scroll(Query query, Consumer<Patient> action, SearchCancellation cancellation) {
+		Session session = sessionFactory.getCurrentSession();
+		// cancelling the query makes the statement fail wherever it is, so the cancellation is checked on failure too
+		cancellation.setCanceller(session::cancelQuery);
+		ScrollableResults results = null;
+		try {
+			results = query.scroll(ScrollMode.FORWARD_ONLY);
+			int count = 0;
+			while (results.next()) {
+				if (cancellation.isCancelled()) {
+					throw new CancellationException("The search was cancelled");
+				}
+				
+				Patient patient = (Patient) results.get(0);
+				action.accept(patient);
+				session.evict(patient);
+				
+				// evicting the patient does not necessarily evict everything loaded while translating it
+				if (++count % STREAM_CLEAR_INTERVAL == 0) {
+					session.clear();
+				}
+			}
+		}
+		catch (HibernateException e) {
+			if (cancellation.isCancelled()) {
+				throw new CancellationException("The search was cancelled");
+			}
+			
+			throw e;
+		}
+		finally {
+			cancellation.setCanceller(null);
+			if (results != null) {
+				results.close();
+			}
+		}
+	}
+	
+	private Query createStreamingQuery(String hql) {
+		// note that MySQL Connector/J only streams rows from the server if useCursorFetch is enabled on the connection
+		return sessionFactory.getCurrentSession().createQuery(hql).setReadOnly(true).setFetchSize(STREAM_FETCH_SIZE)
+		        .setTimeout(getStreamTimeout());
+	}
+	
+	private Query createQuery(String hql, int timeout) {
+		return sessionFactory.getCurrentSession().createQuery(hql).setTimeout(timeout);
+	}
+	
+	private int getLookupTimeout() {
+		refreshTimeouts();
+		return lookupTimeout;
+	}
+	
+	private int getSearchTimeout() {
+		refreshTimeouts();
+		return searchTimeout;
+	}
+	
+	private int getStreamTimeout() {
+		refreshTimeouts();
+		return streamTimeout;
+	}
+	
+	private void refreshTimeouts() {
+		long now = System.currentTimeMillis();
+		if (now - settingsLoadedAt < SETTINGS_REFRESH_INTERVAL) {
+			return;
+		}
+		
+		lookupTimeout = globalPropertyService.getGlobalProperty(FhirConstants.LOOKUP_TIMEOUT_SECONDS_PROPERTY,
+		    DEFAULT_LOOKUP_TIMEOUT);
+		searchTimeout = globalPropertyService.getGlobalProperty(FhirConstants.SEARCH_TIMEOUT_SECONDS_PROPERTY,
+		    DEFAULT_SEARCH_TIMEOUT);
+		streamTimeout = globalPropertyService.getGlobalProperty(FhirConstants.STREAM_TIMEOUT_SECONDS_PROPERTY,
+		    DEFAULT_STREAM_TIMEOUT);
+		settingsLoadedAt = now;
 	}
 }
@@ -10,22 +10,40 @@ package org.openmrs.module.fhir2.api.dao.impl;
 
 import lombok.AccessLevel;
 import lombok.Setter;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
 import org.openmrs.Person;
 import org.openmrs.api.PersonService;
 import org.openmrs.module.fhir2.api.dao.FhirPersonDao;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
 
 import javax.inject.Inject;
+import javax.inject.Named;
 
 @Component
 @Setter(AccessLevel.PACKAGE)
 public class FhirPersonDaoImpl implements FhirPersonDao {
 	
+	@Inject
+	@Named("sessionFactory")
+	SessionFactory sessionFactory;
+	
 	@Inject
 	PersonService personService;
 	
 	@Override
+	@Transactional(readOnly = true)
 	public Person getPersonByUuid(String uuid) {
-		return personService.getPersonByUuid(uuid);
+		Session session = sessionFactory.getCurrentSession();
+		Person person = (Person) session.createQuery(FhirQueries.PERSON_BY_UUID).setString("uuid", uuid)
+		        .uniqueResult();
+		return CollectionLoader.loadPersonCollections(session, person);
+	}
+	
+	@Override
+	@Transactional
+	public Person savePerson(Person person) {
+		return personService.savePerson(person);
 	}
 }
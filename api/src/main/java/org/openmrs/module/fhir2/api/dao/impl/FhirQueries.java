@@ -0,0 +1,265 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.dao.impl;
+
+import java.util.Locale;
+
+/**
+ * Catalogue of the HQL statements issued by the FHIR DAOs.
+ * <p>
+ * Every statement is a constant which only varies by its bound parameters, so Hibernate translates each one once and
+ * then serves it from its query plan cache, and the generated SQL is identical on every call, so prepared statement
+ * caches are effective. The statements that return patients or persons fetch the names with the entities, and
+ * {@link CollectionLoader} then loads the remaining collections the translators read, one statement per collection, so
+ * translation does not trigger further lazy loads. Joining more than one collection into the same statement would
+ * return the product of their rows.
+ * <p>
+ * Name searches are case-insensitive prefix matches, as FHIR string searches are: the lower-cased names are compared
+ * with a pattern built by {@link #namePattern(String)}. PostgreSQL answers them from the module's indexes of the
+ * lower-cased names; MySQL before 8.0 and H2 cannot index an expression, and scan the narrow covering indexes of the
+ * names instead. The matching names are selected in a subquery which is not correlated with the patient, so the
+ * database finds them first and then looks the patients up by key.
+ */
+final class FhirQueries {
+
+	private FhirQueries() {
+	}
+
+	private static final String PATIENT_FETCH_PLAN = "select distinct p from Patient p left join fetch p.names ";
+
+	private static final String PERSON_FETCH_PLAN = "select distinct p from Person p left join fetch p.names ";
+
+	static final String PATIENT_ADDRESSES_BY_IDS = "select distinct p from Patient p left join fetch p.addresses "
+	        + "where p.patientId in (:ids)";
+
+	static final String PATIENT_IDENTIFIERS_BY_IDS = "select distinct p from Patient p "
+	        + "left join fetch p.identifiers pi left join fetch pi.identifierType where p.patientId in (:ids)";
+
+	static final String PERSON_ADDRESSES_BY_IDS = "select distinct p from Person p left join fetch p.addresses "
+	        + "where p.personId in (:ids)";
+
+	static final String PATIENT_BY_UUID = PATIENT_FETCH_PLAN + "where p.uuid = :uuid";
+
+	static final String PATIENTS_BY_UUIDS = PATIENT_FETCH_PLAN + "where p.uuid in (:uuids)";
+
+	static final char LIKE_ESCAPE = '!';
+
+	private static final String BY_GIVEN_NAME = "p.patientId in (select pn.person.personId from PersonName pn "
+	        + "where lower(pn.givenName) like :givenName escape '" + LIKE_ESCAPE + "' and pn.voided = false)";
+
+	private static final String BY_FAMILY_NAME = "p.patientId in (select pn.person.personId from PersonName pn "
+	        + "where lower(pn.familyName) like :familyName escape '" + LIKE_ESCAPE + "' and pn.voided = false)";
+
+	/*
+	 * A name matches any of the given, middle and family names; PostgreSQL combines the indexes of the three names to
+	 * find them.
+	 */
+	private static final String BY_NAME = "p.patientId in (select pn.person.personId from PersonName pn "
+	        + "where (lower(pn.givenName) like :name escape '" + LIKE_ESCAPE + "' or lower(pn.middleName) like :name "
+	        + "escape '" + LIKE_ESCAPE + "' or lower(pn.familyName) like :name escape '" + LIKE_ESCAPE + "') "
+	        + "and pn.voided = false)";
+
+	static final String PATIENTS_BY_NAME = PATIENT_FETCH_PLAN + "where p.voided = false and " + BY_NAME;
+
+	static final String PATIENTS_BY_GIVEN_NAME = PATIENT_FETCH_PLAN + "where p.voided = false and " + BY_GIVEN_NAME;
+
+	static final String PATIENTS_BY_FAMILY_NAME = PATIENT_FETCH_PLAN + "where p.voided = false and " + BY_FAMILY_NAME;
+
+	/**
+	 * Prefix of the query for a _filter search, the condition compiled by {@link PatientFilterCompiler} is appended
+	 */
+	static final String PATIENTS_BY_FILTER = PATIENT_FETCH_PLAN + "where p.voided = false and ";
+
+	/*
+	 * Streamed patients are loaded one row at a time, so these statements must not fetch collections; the translator
+	 * initializes them while the row is being written.
+	 */
+	private static final String PATIENT_STREAM = "select p from Patient p ";
+
+	static final String STREAM_PATIENTS_BY_NAME = PATIENT_STREAM + "where p.voided = false and " + BY_NAME
+	        + " order by p.patientId";
+
+	static final String STREAM_PATIENTS_BY_GIVEN_NAME = PATIENT_STREAM + "where p.voided = false and " + BY_GIVEN_NAME
+	        + " order by p.patientId";
+
+	static final String STREAM_PATIENTS_BY_FAMILY_NAME = PATIENT_STREAM + "where p.voided = false and " + BY_FAMILY_NAME
+	        + " order by p.patientId";
+
+	/*
+	 * Bulk export reads one page of keys of a partition at a time and then loads the page with the fetch plan. Paging on
+	 * the key rather than an offset keeps every page an index range scan, and paging a fetch join directly would make
+	 * Hibernate page in memory. An export with a _since includes voided records, so that clients see them become
+	 * inactive.
+	 */
+	static final String EXPORT_PATIENT_IDS = "select p.patientId from Patient p where p.patientId > :lastId "
+	        + "and p.patientId <= :maxId and p.voided = false order by p.patientId";
+
+	static final String EXPORT_PATIENT_IDS_SINCE = "select p.patientId from Patient p where p.patientId > :lastId "
+	        + "and p.patientId <= :maxId and (p.dateCreated >= :since or p.dateChanged >= :since or p.personDateChanged >= :since) "
+	        + "order by p.patientId";
+
+	static final String EXPORT_PATIENTS_BY_IDS = PATIENT_FETCH_PLAN + "where p.patientId in (:ids)";
+
+	static final String EXPORT_PERSON_IDS = "select p.personId from Person p where p.personId > :lastId "
+	        + "and p.personId <= :maxId and p.personVoided = false order by p.personId";
+
+	static final String EXPORT_PERSON_IDS_SINCE = "select p.personId from Person p where p.personId > :lastId "
+	        + "and p.personId <= :maxId and (p.personDateCreated >= :since or p.personDateChanged >= :since) order by p.personId";
+
+	static final String EXPORT_PERSONS_BY_IDS = PERSON_FETCH_PLAN + "where p.personId in (:ids)";
+
+	/*
+	 * Offline sync reads the patients with an address in an area a page at a time, in the same way as bulk export. The
+	 * address conditions are appended for the fields the area restricts, so there are only a few distinct statements.
+	 */
+	static final String SYNC_PATIENT_IDS = "select p.patientId from Patient p where p.patientId > :lastId "
+	        + "and exists (select pa from PersonAddress pa where pa.person = p and pa.voided = false";
+
+	static final String SYNC_ADDRESS_CITY = " and pa.cityVillage = :city";
+
+	static final String SYNC_ADDRESS_STATE = " and pa.stateProvince = :state";
+
+	static final String SYNC_ADDRESS_POSTAL_CODE = " and pa.postalCode = :postalCode";
+
+	static final String SYNC_ADDRESS_COUNTRY = " and pa.country = :country";
+
+	static final String SYNC_PATIENTS_NOT_VOIDED = ") and p.voided = false order by p.patientId";
+
+	/*
+	 * Editing a name, address or identifier only stamps its own row, so a delta also includes the patients with a
+	 * child row which was created, changed or voided since; each is found through the index on its person.
+	 */
+	static final String SYNC_PATIENTS_SINCE = ") and (p.dateCreated >= :since or p.dateChanged >= :since "
+	        + "or p.personDateChanged >= :since "
+	        + "or exists (select pn from PersonName pn where pn.person = p and (pn.dateCreated >= :since "
+	        + "or pn.dateChanged >= :since or pn.dateVoided >= :since)) "
+	        + "or exists (select pa from PersonAddress pa where pa.person = p and (pa.dateCreated >= :since "
+	        + "or pa.dateChanged >= :since or pa.dateVoided >= :since)) "
+	        + "or exists (select pi from PatientIdentifier pi where pi.patient = p and (pi.dateCreated >= :since "
+	        + "or pi.dateChanged >= :since or pi.dateVoided >= :since))) order by p.patientId";
+
+	static final String MAX_PATIENT_ID = "select max(p.patientId) from Patient p";
+
+	static final String MAX_PERSON_ID = "select max(p.personId) from Person p";
+
+	/*
+	 * Export partitions are claimed with a conditional update, so when several nodes race for the same partition the
+	 * database lets exactly one of them win. Every later change to a partition is conditional on its owner and status,
+	 * so a node whose lease was taken over can no longer change it.
+	 */
+	static final String EXPORT_JOB_BY_UUID = "select distinct j from BulkExportJob j left join fetch j.partitions "
+	        + "where j.uuid = :uuid";
+
+	static final String FINISHED_EXPORT_JOBS = "from BulkExportJob j where j.dateFinished < :finishedBefore";
+
+	static final String CLAIMABLE_EXPORT_PARTITIONS = "select p.partitionId from BulkExportPartition p "
+	        + "where p.status = :accepted or (p.status = :inProgress and p.leaseExpiresAt < :now) order by p.partitionId";
+
+	static final String CLAIM_EXPORT_PARTITION = "update BulkExportPartition p set p.status = :inProgress, "
+	        + "p.owner = :owner, p.leaseExpiresAt = :leaseExpiresAt, p.attempts = p.attempts + 1 "
+	        + "where p.partitionId = :partitionId "
+	        + "and (p.status = :accepted or (p.status = :inProgress and p.leaseExpiresAt < :now))";
+
+	static final String EXPORT_PARTITION_WITH_JOB = "select p from BulkExportPartition p join fetch p.job "
+	        + "where p.partitionId = :partitionId";
+
+	static final String EXPORT_PARTITION_JOB_ID = "select p.job.jobId from BulkExportPartition p "
+	        + "where p.partitionId = :partitionId";
+
+	static final String START_EXPORT_JOB = "update BulkExportJob j set j.status = :inProgress "
+	        + "where j.jobId = :jobId and j.status = :accepted";
+
+	static final String RENEW_EXPORT_PARTITION_LEASE = "update BulkExportPartition p "
+	        + "set p.leaseExpiresAt = :leaseExpiresAt "
+	        + "where p.partitionId = :partitionId and p.owner = :owner and p.status = :inProgress";
+
+	/*
+	 * A checkpoint renews the lease as well, and is written by the owner only. Releasing a partition keeps its
+	 * checkpoint, so whoever claims it next carries on from there.
+	 */
+	static final String CHECKPOINT_EXPORT_PARTITION = "update BulkExportPartition p set p.lastKey = :lastKey, "
+	        + "p.fileOffset = :fileOffset, p.resourceCount = :resourceCount, p.leaseExpiresAt = :leaseExpiresAt "
+	        + "where p.partitionId = :partitionId and p.owner = :owner and p.status = :inProgress";
+
+	static final String COMPLETE_EXPORT_PARTITION = "update BulkExportPartition p set p.status = :complete, "
+	        + "p.owner = null, p.leaseExpiresAt = null, p.resourceCount = :resourceCount "
+	        + "where p.partitionId = :partitionId and p.owner = :owner and p.status = :inProgress";
+
+	static final String FINISH_EXPORT_PARTITION = "update BulkExportPartition p set p.status = :status, "
+	        + "p.owner = null, p.leaseExpiresAt = null "
+	        + "where p.partitionId = :partitionId and p.owner = :owner and p.status = :inProgress";
+
+	static final String UNFINISHED_EXPORT_PARTITION_COUNT = "select count(p) from BulkExportPartition p "
+	        + "where p.job.jobId = :jobId and p.status <> :complete";
+
+	static final String FINISH_EXPORT_JOB = "update BulkExportJob j set j.status = :status, j.error = :error, "
+	        + "j.dateFinished = :now where j.jobId = :jobId and (j.status = :accepted or j.status = :inProgress)";
+
+	static final String CANCEL_EXPORT_PARTITIONS = "update BulkExportPartition p set p.status = :cancelled, "
+	        + "p.owner = null, p.leaseExpiresAt = null "
+	        + "where p.job.jobId = :jobId and (p.status = :accepted or p.status = :inProgress)";
+
+	static final String DELETE_EXPORT_PARTITIONS = "delete from BulkExportPartition p where p.job.jobId = :jobId";
+
+	static final String DELETE_EXPORT_JOB = "delete from BulkExportJob j where j.jobId = :jobId";
+
+	/*
+	 * The change feed pages on the id of the outbox rows, which only grows, so every page is a range scan of the primary
+	 * key however long the outbox is.
+	 */
+	static final String CHANGES_AFTER = "from ResourceChange c where c.changeId > :changeId order by c.changeId";
+
+	static final String LATEST_CHANGE_ID = "select max(c.changeId) from ResourceChange c";
+
+	static final String DELETE_CHANGES_BEFORE = "delete from ResourceChange c where c.dateCreated < :before";
+
+	static final String PATIENT_IDENTIFIER_TYPE_BY_UUID = "from PatientIdentifierType pit where pit.uuid = :uuid";
+
+	static final String PATIENT_IDENTIFIER_TYPE_BY_NAME = "from PatientIdentifierType pit "
+	        + "where pit.name = :name and pit.retired = false order by pit.patientIdentifierTypeId";
+
+	static final String PATIENT_IDENTIFIER_TYPES_BY_NAMES = "from PatientIdentifierType pit "
+	        + "where pit.name in (:names) and pit.retired = false order by pit.patientIdentifierTypeId";
+
+	static final String PATIENT_IDENTIFIER_TYPE_NAMES = "select pit.name from PatientIdentifierType pit "
+	        + "where pit.retired = false order by pit.patientIdentifierTypeId";
+
+	static final String PERSON_BY_UUID = PERSON_FETCH_PLAN + "where p.uuid = :uuid";
+
+	/**
+	 * Converts a search term into a bound parameter value for a prefix match
+	 */
+	static String startsWithPattern(String value) {
+		return escapeLike(value) + "%";
+	}
+
+	/**
+	 * Converts a name search term into a bound parameter value for a case-insensitive prefix match of a lower-cased name
+	 */
+	static String namePattern(String value) {
+		return startsWithPattern(value.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Escapes the wildcards of {@code like} in a value, for a comparison with {@code escape '!'}
+	 */
+	static String escapeLike(String value) {
+		StringBuilder escaped = new StringBuilder(value.length());
+		for (char c : value.toCharArray()) {
+			if (c == '%' || c == '_' || c == LIKE_ESCAPE) {
+				escaped.append(LIKE_ESCAPE);
+			}
+
+			escaped.append(c);
+		}
+
+		return escaped.toString();
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.dao.impl;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import lombok.Getter;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.openmrs.module.fhir2.api.search.FilterExpression;
+import org.openmrs.module.fhir2.api.search.FilterOperator;
+
+/**
+ * Compiles a {@link FilterExpression} into an HQL condition on the patient alias {@code p}, with every value bound as a
+ * parameter. Parameters or operators which cannot be expressed in HQL are rejected with an
+ * {@link InvalidRequestException}, so a filter is either answered entirely by the database or not at all.
+ * <p>
+ * String comparisons are not lower-cased, so that equality and prefix matches can be answered from an index; their
+ * case sensitivity follows the collation of the database.
+ */
+final class PatientFilterCompiler {
+	
+	private final StringBuilder condition = new StringBuilder();
+	
+	@Getter
+	private final Map<String, Object> parameters = new LinkedHashMap<>();
+	
+	private PatientFilterCompiler() {
+	}
+	
+	static PatientFilterCompiler compile(FilterExpression filter) {
+		PatientFilterCompiler compiler = new PatientFilterCompiler();
+		compiler.append(filter);
+		return compiler;
+	}
+	
+	String getCondition() {
+		return condition.toString();
+	}
+	
+	private void append(FilterExpression expression) {
+		if (expression instanceof FilterExpression.And) {
+			appendAll(((FilterExpression.And) expression).getOperands(), " and ");
+		} else if (expression instanceof FilterExpression.Or) {
+			appendAll(((FilterExpression.Or) expression).getOperands(), " or ");
+		} else if (expression instanceof FilterExpression.Not) {
+			condition.append("not (");
+			append(((FilterExpression.Not) expression).getOperand());
+			condition.append(")");
+		} else {
+			appendComparison((FilterExpression.Comparison) expression);
+		}
+	}
+	
+	private void appendAll(List<FilterExpression> operands, String operator) {
+		condition.append("(");
+		for (int i = 0; i < operands.size(); i++) {
+			if (i > 0) {
+				condition.append(operator);
+			}
+			
+			append(operands.get(i));
+		}
+		condition.append(")");
+	}
+	
+	private void appendComparison(FilterExpression.Comparison comparison) {
+		if (comparison.getOperator() == FilterOperator.NE) {
+			condition.append("not (");
+			appendComparison(new FilterExpression.Comparison(comparison.getParameter(), FilterOperator.EQ, comparison
+			        .getValue()));
+			condition.append(")");
+			return;
+		}
+		
+		switch (comparison.getParameter()) {
+			case "name":
+				appendNameComparison(comparison, "pn.givenName", "pn.middleName", "pn.familyName");
+				break;
+			case "given":
+				appendNameComparison(comparison, "pn.givenName", "pn.middleName");
+				break;
+			case "family":
+				appendNameComparison(comparison, "pn.familyName");
+				break;
+			case "identifier":
+				String identifier = bindString(comparison);
+				condition.append("exists (select pi.patientIdentifierId from PatientIdentifier pi where pi.patient = p ")
+				        .append("and pi.voided = false and pi.identifier").append(stringComparison(comparison, identifier))
+				        .append(")");
+				break;
+			case "birthdate":
+				appendBirthdateComparison(comparison);
+				break;
+			case "gender":
+				appendGenderComparison(comparison);
+				break;
+			default:
+				throw new InvalidRequestException("Unsupported _filter parameter '" + comparison.getParameter() + "'");
+		}
+	}
+	
+	private void appendNameComparison(FilterExpression.Comparison comparison, String... properties) {
+		String parameter = bindString(comparison);
+		condition.append("exists (select pn.personNameId from PersonName pn where pn.person = p and pn.voided = false ")
+		        .append("and (");
+		for (int i = 0; i < properties.length; i++) {
+			if (i > 0) {
+				condition.append(" or ");
+			}
+			
+			condition.append(properties[i]).append(stringComparison(comparison, parameter));
+		}
+		condition.append("))");
+	}
+	
+	private void appendBirthdateComparison(FilterExpression.Comparison comparison) {
+		DateTimeType date;
+		try {
+			date = new DateTimeType(comparison.getValue());
+		}
+		catch (DataFormatException e) {
+			throw new InvalidRequestException("Invalid date '" + comparison.getValue() + "' in _filter");
+		}
+		
+		// a partial date such as 1990 covers the whole range up to the start of the next year
+		Date start = date.getValue();
+		Date end = date.getPrecision().add(start, 1);
+		
+		switch (comparison.getOperator()) {
+			case EQ:
+				condition.append("(p.birthdate >= ").append(bind(start)).append(" and p.birthdate < ").append(bind(end))
+				        .append(")");
+				break;
+			case GT:
+				condition.append("p.birthdate >= ").append(bind(end));
+				break;
+			case GE:
+				condition.append("p.birthdate >= ").append(bind(start));
+				break;
+			case LT:
+				condition.append("p.birthdate < ").append(bind(start));
+				break;
+			case LE:
+				condition.append("p.birthdate < ").append(bind(end));
+				break;
+			default:
+				throw unsupportedOperator(comparison);
+		}
+	}
+	
+	private void appendGenderComparison(FilterExpression.Comparison comparison) {
+		if (comparison.getOperator() != FilterOperator.EQ) {
+			throw unsupportedOperator(comparison);
+		}
+		
+		String gender;
+		switch (comparison.getValue()) {
+			case "male":
+				gender = "M";
+				break;
+			case "female":
+				gender = "F";
+				break;
+			case "other":
+				gender = "O";
+				break;
+			case "unknown":
+				gender = "U";
+				break;
+			default:
+				throw new InvalidRequestException("Invalid gender '" + comparison.getValue() + "' in _filter");
+		}
+		
+		condition.append("p.gender = ").append(bind(gender));
+	}
+	
+	private String bindString(FilterExpression.Comparison comparison) {
+		String value = comparison.getValue();
+		switch (comparison.getOperator()) {
+			case EQ:
+				return bind(value);
+			case SW:
+				return bind(FhirQueries.startsWithPattern(value));
+			case CO:
+				return bind("%" + FhirQueries.escapeLike(value) + "%");
+			case EW:
+				return bind("%" + FhirQueries.escapeLike(value));
+			default:
+				throw unsupportedOperator(comparison);
+		}
+	}
+	
+	private static String stringComparison(FilterExpression.Comparison comparison, String parameter) {
+		if (comparison.getOperator() == FilterOperator.EQ) {
+			return " = " + parameter;
+		}
+		
+		return " like " + parameter + " escape '" + FhirQueries.LIKE_ESCAPE + "'";
+	}
+	
+	private String bind(Object value) {
+		String name = "p" + parameters.size();
+		parameters.put(name, value);
+		return ":" + name;
+	}
+	
+	private static InvalidRequestException unsupportedOperator(FilterExpression.Comparison comparison) {
+		return new InvalidRequestException("The " + comparison.getOperator().name().toLowerCase()
+		        + " operator is not supported for the _filter parameter '" + comparison.getParameter() + "'");
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.export;
+
+/**
+ * The formats bulk exports are written in. The format of an export is recorded in the extension of its files.
+ */
+public enum BulkExportFormat {
+	
+	/**
+	 * One FHIR resource per line
+	 */
+	NDJSON(".ndjson", "application/fhir+ndjson"),
+	
+	/**
+	 * Flattened resources in a Parquet file, one column per column of a {@link ViewDefinition}
+	 */
+	PARQUET(".parquet", "application/vnd.apache.parquet");
+	
+	private final String extension;
+	
+	private final String contentType;
+	
+	BulkExportFormat(String extension, String contentType) {
+		this.extension = extension;
+		this.contentType = contentType;
+	}
+	
+	public String getExtension() {
+		return extension;
+	}
+	
+	public String getContentType() {
+		return contentType;
+	}
+	
+	/**
+	 * @param fileName the name of a file written by an export
+	 * @return the format the file is written in
+	 */
+	public static BulkExportFormat forFileName(String fileName) {
+		return fileName.endsWith(PARQUET.extension) ? PARQUET : NDJSON;
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.export;
+
+import javax.persistence.CascadeType;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.FetchType;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+import javax.persistence.OrderBy;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.openmrs.User;
+
+/**
+ * A bulk export. The export itself is split into {@link BulkExportPartition}s which are processed by whichever nodes
+ * claim them, so the job only records what was requested and the overall outcome.
+ */
+@Entity
+@Table(name = "fhir_export_job")
+@Getter
+@Setter
+public class BulkExportJob {
+	
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@Column(name = "job_id")
+	private Integer jobId;
+	
+	@Column(name = "uuid", nullable = false, unique = true, length = 38)
+	private String uuid;
+	
+	@Column(name = "resource_types", nullable = false)
+	private String resourceTypes;
+	
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "since")
+	private Date since;
+	
+	@Column(name = "request", nullable = false, length = 2048)
+	private String request;
+	
+	/**
+	 * The user who requested the export, who is the only one who may follow, download or cancel it, and as whom its
+	 * partitions are exported
+	 */
+	@ManyToOne(fetch = FetchType.LAZY)
+	@JoinColumn(name = "creator")
+	private User creator;
+	
+	/**
+	 * The time the export was requested. Every resource changed before this time is included in the export, so it is
+	 * the value of _since for the next incremental export.
+	 */
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "transaction_time", nullable = false)
+	private Date transactionTime;
+	
+	@Enumerated(EnumType.STRING)
+	@Column(name = "status", nullable = false, length = 20)
+	private BulkExportStatus status = BulkExportStatus.ACCEPTED;
+	
+	@Column(name = "error", length = 1024)
+	private String error;
+	
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "date_finished")
+	private Date dateFinished;
+	
+	@OneToMany(mappedBy = "job", cascade = CascadeType.ALL)
+	@OrderBy("partitionId")
+	private List<BulkExportPartition> partitions = new ArrayList<>();
+	
+	public List<String> getResourceTypeList() {
+		return Arrays.asList(resourceTypes.split(","));
+	}
+	
+	public void setResourceTypeList(Collection<String> resourceTypeList) {
+		resourceTypes = String.join(",", resourceTypeList);
+	}
+	
+	public void addPartition(BulkExportPartition partition) {
+		partition.setJob(this);
+		partitions.add(partition);
+	}
+	
+	public int getCompletedPartitionCount() {
+		return (int) partitions.stream().filter(p -> p.getStatus() == BulkExportStatus.COMPLETE).count();
+	}
+	
+	/**
+	 * @return the files written by the export, in key order; partitions which did not contain any resources are
+	 *         omitted
+	 */
+	public List<BulkExportOutput> getOutputs() {
+		return partitions.stream().filter(p -> p.getStatus() == BulkExportStatus.COMPLETE && p.getResourceCount() > 0)
+		        .map(p -> new BulkExportOutput(p.getResourceType(), p.getFileName(), p.getResourceCount()))
+		        .collect(Collectors.toList());
+	}
+}
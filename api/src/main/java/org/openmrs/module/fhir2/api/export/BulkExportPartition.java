@@ -0,0 +1,106 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.export;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.FetchType;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import java.util.Date;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * A range of keys of one resource type in a {@link BulkExportJob}, which is exported to a file of its own.
+ * <p>
+ * Partitions are processed by any node which claims them. A claim is a lease: the owner must renew it before
+ * {@link #getLeaseExpiresAt()} or another node may claim the partition and export it again. The status of a partition
+ * is {@link BulkExportStatus#ACCEPTED} until it is claimed and {@link BulkExportStatus#IN_PROGRESS} while it is leased.
+ * <p>
+ * The owner periodically checkpoints its progress: the last key written, and the length of the file and the number of
+ * resources in it up to that key. Whoever claims the partition next, after a restart or a lost lease, truncates the
+ * file to the checkpointed length and carries on after the checkpointed key.
+ */
+@Entity
+@Table(name = "fhir_export_partition")
+@Getter
+@Setter
+public class BulkExportPartition {
+	
+	@Id
+	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@Column(name = "partition_id")
+	private Integer partitionId;
+	
+	@ManyToOne(fetch = FetchType.LAZY, optional = false)
+	@JoinColumn(name = "job_id", nullable = false)
+	private BulkExportJob job;
+	
+	@Column(name = "resource_type", nullable = false, length = 50)
+	private String resourceType;
+	
+	/**
+	 * Keys greater than this are in the partition
+	 */
+	@Column(name = "start_key", nullable = false)
+	private int startKey;
+	
+	/**
+	 * Keys up to and including this are in the partition
+	 */
+	@Column(name = "end_key", nullable = false)
+	private int endKey;
+	
+	@Column(name = "file_name", nullable = false)
+	private String fileName;
+	
+	@Enumerated(EnumType.STRING)
+	@Column(name = "status", nullable = false, length = 20)
+	private BulkExportStatus status = BulkExportStatus.ACCEPTED;
+	
+	@Column(name = "owner")
+	private String owner;
+	
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "lease_expires_at")
+	private Date leaseExpiresAt;
+	
+	@Column(name = "attempts", nullable = false)
+	private int attempts;
+	
+	/**
+	 * The key of the last record written up to the checkpoint, or the start key if nothing has been written yet
+	 */
+	@Column(name = "last_key", nullable = false)
+	private int lastKey;
+	
+	/**
+	 * The length of the partial file up to the checkpoint
+	 */
+	@Column(name = "file_offset", nullable = false)
+	private long fileOffset;
+	
+	/**
+	 * The number of resources written up to the checkpoint, and once the partition is complete the number exported
+	 */
+	@Column(name = "resource_count", nullable = false)
+	private long resourceCount;
+}
@@ -0,0 +1,121 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.export;
+
+import javax.inject.Inject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.api.FhirGlobalPropertyService;
+import org.openmrs.util.OpenmrsUtil;
+import org.springframework.stereotype.Component;
+
+/**
+ * Locates the files written by bulk exports. Partitions of one export may be written by different nodes, so in a
+ * cluster the {@link FhirConstants#EXPORT_DIRECTORY_PROPERTY} global property must point to a directory shared by all
+ * of them; by default files are written to fhir2/export in the application data directory.
+ */
+@Component
+@Setter(AccessLevel.PACKAGE)
+public class BulkExportStorage {
+	
+	private static final Log log = LogFactory.getLog(BulkExportStorage.class);
+	
+	private static final String PARTIAL_FILE_SUFFIX = ".part";
+	
+	private static final String COMPRESSED_FILE_SUFFIX = ".gz";
+	
+	@Inject
+	private FhirGlobalPropertyService globalPropertyService;
+	
+	public File getJobDirectory(String jobUuid) {
+		String directory = globalPropertyService.getGlobalProperty(FhirConstants.EXPORT_DIRECTORY_PROPERTY,
+		    (String) null);
+		if (directory == null) {
+			directory = OpenmrsUtil.getApplicationDataDirectory() + File.separator + "fhir2" + File.separator + "export";
+		}
+		
+		return new File(directory, jobUuid);
+	}
+	
+	/**
+	 * @return the file a completed partition was written to
+	 */
+	public File getFile(BulkExportPartition partition) {
+		return new File(getJobDirectory(partition.getJob().getUuid()), partition.getFileName());
+	}
+	
+	/**
+	 * A partition is written to a partial file which is only renamed once the partition is complete, so a node which
+	 * takes over a partition never exposes the output of the node it took the partition from
+	 *
+	 * @return the file a partition is written to while it is being exported
+	 */
+	public File getPartialFile(BulkExportPartition partition) {
+		return new File(getJobDirectory(partition.getJob().getUuid()), partition.getFileName() + PARTIAL_FILE_SUFFIX);
+	}
+	
+	/**
+	 * Every export file is also written gzipped, so that clients accepting gzip can download it without the server
+	 * compressing it on every request
+	 *
+	 * @return the gzipped copy of an export file, which exists if the file is complete
+	 */
+	public static File getCompressedFile(File file) {
+		return new File(file.getPath() + COMPRESSED_FILE_SUFFIX);
+	}
+	
+	/**
+	 * @param job the job
+	 * @param fileName the name of a file in the job's manifest
+	 * @return the file, or null if the job did not produce a file with that name
+	 */
+	public File getOutputFile(BulkExportJob job, String fileName) {
+		for (BulkExportOutput output : job.getOutputs()) {
+			if (output.getFileName().equals(fileName)) {
+				return new File(getJobDirectory(job.getUuid()), output.getFileName());
+			}
+		}
+		
+		return null;
+	}
+	
+	public void deleteFiles(String jobUuid) {
+		Path directory = getJobDirectory(jobUuid).toPath();
+		if (!Files.exists(directory)) {
+			return;
+		}
+		
+		try (Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+				try {
+					Files.delete(path);
+				}
+				catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+		catch (IOException | UncheckedIOException e) {
+			log.warn("Could not delete the files of bulk export " + jobUuid, e);
+		}
+	}
+}
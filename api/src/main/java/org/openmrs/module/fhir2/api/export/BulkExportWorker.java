@@ -0,0 +1,429 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.export;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import java.util.zip.GZIPOutputStream;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Base;
+import org.openmrs.Patient;
+import org.openmrs.Person;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.api.auth.AuthenticatedUserContext;
+import org.openmrs.module.fhir2.api.dao.FhirBulkExportDao;
+import org.openmrs.module.fhir2.api.dao.FhirBulkExportJobDao;
+import org.openmrs.module.fhir2.api.translators.PatientTranslator;
+import org.openmrs.module.fhir2.api.translators.PersonTranslator;
+import org.openmrs.util.PrivilegeConstants;
+import org.springframework.stereotype.Component;
+
+/**
+ * Exports the partitions of bulk export jobs. Every node running the module runs a worker, which periodically claims
+ * partitions which are waiting or whose lease has expired, up to {@link #MAX_PARTITIONS} at a time, so exports are
+ * spread over every node sharing the database. While a partition is exported its lease is renewed in the background;
+ * if a renewal fails, because the lease was taken over or the job was cancelled, the export of the partition stops.
+ * <p>
+ * Every {@link #CHECKPOINT_INTERVAL} the progress of a partition is checkpointed, see {@link BulkExportPartition}, so an
+ * export interrupted by a restart or a failure resumes from its last checkpoint instead of starting over. When the
+ * worker is stopped it releases its partitions, so they are resumed as soon as a worker is started again; the
+ * partitions of a node which goes away without stopping are resumed once their leases expire. Partitions exported as
+ * Parquet are not checkpointed, see {@link ColumnarExportPipeline}, and are exported from the start every time.
+ * <p>
+ * The worker is started by {@link org.openmrs.module.fhir2.FhirActivator} once the module has started.
+ */
+@Component
+@Setter(AccessLevel.PACKAGE)
+public class BulkExportWorker {
+	
+	private static final Log log = LogFactory.getLog(BulkExportWorker.class);
+	
+	private static final int MAX_PARTITIONS = 2;
+	
+	private static final int MAX_ATTEMPTS = 3;
+	
+	private static final int PAGE_SIZE = 500;
+	
+	/**
+	 * The number of rows in each row group of a columnar export, a multiple of the page size
+	 */
+	private static final int ROW_GROUP_SIZE = 20 * PAGE_SIZE;
+	
+	private static final long POLL_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+	
+	private static final long LEASE_DURATION = TimeUnit.MINUTES.toMillis(2);
+	
+	private static final long LEASE_RENEWAL_INTERVAL = LEASE_DURATION / 4;
+	
+	private static final long CHECKPOINT_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+	
+	private static final int COMPRESSION_BUFFER_SIZE = 64 * 1024;
+	
+	@Inject
+	private FhirBulkExportDao dao;
+	
+	@Inject
+	private FhirBulkExportJobDao jobDao;
+	
+	@Inject
+	private BulkExportStorage storage;
+	
+	@Inject
+	private PatientTranslator patientTranslator;
+	
+	@Inject
+	private PersonTranslator personTranslator;
+	
+	@Inject
+	@Named("fhirR4")
+	private FhirContext fhirContext;
+	
+	/**
+	 * Identifies this node as the owner of its leases
+	 */
+	@Getter
+	private String nodeId = getHostName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+	
+	/**
+	 * The partitions being exported by this node, with a flag which is set when the lease on the partition is lost
+	 */
+	private final Map<Integer, AtomicBoolean> activePartitions = new ConcurrentHashMap<>();
+	
+	private ScheduledExecutorService scheduler;
+	
+	private ExecutorService partitionExecutor;
+	
+	private ExecutorService readerExecutor;
+	
+	private ExecutorService translatorExecutor;
+	
+	private int translatorThreads;
+	
+	private volatile boolean stopping;
+	
+	public synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		
+		stopping = false;
+		translatorThreads = Runtime.getRuntime().availableProcessors();
+		scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory("fhir2-export-scheduler-%d"));
+		partitionExecutor = Executors.newFixedThreadPool(MAX_PARTITIONS, threadFactory("fhir2-export-%d"));
+		readerExecutor = Executors.newCachedThreadPool(threadFactory("fhir2-export-reader-%d"));
+		translatorExecutor = Executors.newFixedThreadPool(translatorThreads,
+		    threadFactory("fhir2-export-translator-%d"));
+		
+		scheduler.scheduleWithFixedDelay(this::claimPartitions, 0, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+		scheduler.scheduleWithFixedDelay(this::renewLeases, LEASE_RENEWAL_INTERVAL, LEASE_RENEWAL_INTERVAL,
+		    TimeUnit.MILLISECONDS);
+	}
+	
+	@PreDestroy
+	public synchronized void stop() {
+		if (scheduler == null) {
+			return;
+		}
+		
+		stopping = true;
+		scheduler.shutdownNow();
+		activePartitions.values().forEach(lost -> lost.set(true));
+		partitionExecutor.shutdownNow();
+		readerExecutor.shutdownNow();
+		translatorExecutor.shutdownNow();
+		
+		try {
+			partitionExecutor.awaitTermination(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		scheduler = null;
+	}
+	
+	void claimPartitions() {
+		try {
+			Date now = new Date();
+			int capacity = MAX_PARTITIONS - activePartitions.size();
+			if (capacity <= 0) {
+				return;
+			}
+			
+			// fetch a few more than we can take, as other nodes may claim some of them first
+			for (Integer partitionId : jobDao.getClaimablePartitionIds(now, capacity * 4)) {
+				if (activePartitions.size() >= MAX_PARTITIONS) {
+					break;
+				}
+				
+				BulkExportPartition partition = jobDao.claimPartition(partitionId, nodeId, now,
+				    new Date(now.getTime() + LEASE_DURATION));
+				if (partition != null) {
+					AtomicBoolean lost = new AtomicBoolean();
+					activePartitions.put(partitionId, lost);
+					partitionExecutor.execute(() -> export(partition, lost));
+				}
+			}
+		}
+		catch (RuntimeException e) {
+			log.warn("Could not claim bulk export partitions", e);
+		}
+	}
+	
+	void renewLeases() {
+		for (Map.Entry<Integer, AtomicBoolean> activePartition : activePartitions.entrySet()) {
+			try {
+				if (!jobDao.renewLease(activePartition.getKey(), nodeId,
+				    new Date(System.currentTimeMillis() + LEASE_DURATION))) {
+					activePartition.getValue().set(true);
+				}
+			}
+			catch (RuntimeException e) {
+				// the lease is still valid for a while, so the renewal is simply retried next time
+				log.warn("Could not renew the lease on bulk export partition " + activePartition.getKey(), e);
+			}
+		}
+	}
+	
+	void export(BulkExportPartition partition, AtomicBoolean lost) {
+		int partitionId = partition.getPartitionId();
+		File partialFile = storage.getPartialFile(partition);
+		// the partition is exported as the user who requested the export, so it reads no more than they may; the
+		// translators work on the records the reader loaded and closed the session of, so they need no context of their
+		// own
+		Context.openSession();
+		try {
+			Context.setUserContext(new AuthenticatedUserContext(getRequestingUser(partition.getJob())));
+			Files.createDirectories(partialFile.getParentFile().toPath());
+			
+			File file = storage.getFile(partition);
+			long count;
+			if (BulkExportFormat.forFileName(partition.getFileName()) == BulkExportFormat.PARQUET) {
+				// Parquet compresses its pages itself, so there is no gzipped copy
+				count = createColumnarPipeline(partition, lost).export(partialFile, written -> {});
+			} else {
+				count = exportNdjson(partition, partialFile, lost);
+				
+				// the gzipped copy is moved into place first, so it exists whenever the file does
+				File compressedPartialFile = BulkExportStorage.getCompressedFile(partialFile);
+				compress(partialFile, compressedPartialFile);
+				Files.move(compressedPartialFile.toPath(), BulkExportStorage.getCompressedFile(file).toPath(),
+				    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			
+			Files.move(partialFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+			    StandardCopyOption.ATOMIC_MOVE);
+			if (!jobDao.completePartition(partitionId, nodeId, count)) {
+				deleteIfJobGone(partition);
+			}
+		}
+		catch (CancellationException e) {
+			if (stopping) {
+				jobDao.releasePartition(partitionId, nodeId);
+			} else {
+				deleteIfJobGone(partition);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			jobDao.releasePartition(partitionId, nodeId);
+		}
+		catch (IOException | RuntimeException e) {
+			log.error("Export of bulk export partition " + partitionId + " failed", e);
+			jobDao.failPartition(partitionId, nodeId, e.getMessage() == null ? e.getClass().getSimpleName()
+			        : e.getMessage(), MAX_ATTEMPTS);
+		}
+		finally {
+			activePartitions.remove(partitionId);
+			Context.closeSession();
+		}
+	}
+	
+	/**
+	 * @return the user who requested the export, loaded in the current session
+	 * @throws IllegalStateException if the export does not record who requested it
+	 */
+	private static User getRequestingUser(BulkExportJob job) {
+		if (job.getCreator() == null) {
+			throw new IllegalStateException("The export does not record the user who requested it");
+		}
+		
+		// the worker runs without an authenticated user until it has loaded the one it runs as
+		Context.addProxyPrivilege(PrivilegeConstants.GET_USERS);
+		try {
+			User user = Context.getUserService().getUser(job.getCreator().getUserId());
+			if (user == null || user.isRetired()) {
+				throw new IllegalStateException("The user who requested the export no longer exists");
+			}
+			
+			return user;
+		}
+		finally {
+			Context.removeProxyPrivilege(PrivilegeConstants.GET_USERS);
+		}
+	}
+	
+	private long exportNdjson(BulkExportPartition partition, File partialFile, AtomicBoolean lost)
+	        throws IOException, InterruptedException {
+		int firstKey = partition.getLastKey();
+		long fileOffset = partition.getFileOffset();
+		long resourceCount = partition.getResourceCount();
+		if (partialFile.length() < fileOffset) {
+			// the output up to the checkpoint is gone, e.g. it was written to a directory this node does not share, so
+			// the checkpoint is reset before anything is written
+			log.warn("Output of bulk export partition " + partition.getPartitionId()
+			        + " is missing, exporting it from the start");
+			firstKey = partition.getStartKey();
+			fileOffset = 0;
+			resourceCount = 0;
+			checkpoint(partition.getPartitionId(), firstKey, fileOffset, resourceCount, lost);
+		}
+		
+		return createPipeline(partition, firstKey, lost).export(partialFile, fileOffset, resourceCount, written -> {});
+	}
+	
+	private void checkpoint(int partitionId, int lastKey, long fileOffset, long resourceCount, AtomicBoolean lost) {
+		try {
+			if (!jobDao.checkpointPartition(partitionId, nodeId, lastKey, fileOffset, resourceCount,
+			    new Date(System.currentTimeMillis() + LEASE_DURATION))) {
+				lost.set(true);
+			}
+		}
+		catch (RuntimeException e) {
+			// a missed checkpoint only means more is exported again should the export be resumed
+			log.warn("Could not checkpoint bulk export partition " + partitionId, e);
+		}
+	}
+	
+	private static void compress(File source, File target) throws IOException {
+		try (OutputStream out = new GZIPOutputStream(new FileOutputStream(target), COMPRESSION_BUFFER_SIZE)) {
+			Files.copy(source.toPath(), out);
+		}
+	}
+	
+	private NdjsonExportPipeline<?> createPipeline(BulkExportPartition partition, int firstKey, AtomicBoolean lost) {
+		Date since = partition.getJob().getSince();
+		int endKey = partition.getEndKey();
+		if (FhirConstants.PATIENT.equals(partition.getResourceType())) {
+			return createPipeline((lastKey, maxResults) -> dao.getPatientPage(lastKey, endKey, since, maxResults),
+			    Patient::getPatientId, patientTranslator::toFhirResource, partition, firstKey, lost);
+		} else if (FhirConstants.PERSON.equals(partition.getResourceType())) {
+			return createPipeline((lastKey, maxResults) -> dao.getPersonPage(lastKey, endKey, since, maxResults),
+			    Person::getPersonId, personTranslator::toFhirResource, partition, firstKey, lost);
+		}
+		
+		throw new IllegalArgumentException("Unsupported resource type " + partition.getResourceType());
+	}
+	
+	private <T> NdjsonExportPipeline<T> createPipeline(NdjsonExportPipeline.PageReader<T> reader,
+	        ToIntFunction<T> keyExtractor, Function<T, ? extends IBaseResource> translator, BulkExportPartition partition,
+	        int firstKey, AtomicBoolean lost) {
+		int partitionId = partition.getPartitionId();
+		NdjsonExportPipeline.Checkpointer checkpointer = new NdjsonExportPipeline.Checkpointer() {
+			
+			private long lastCheckpoint = System.currentTimeMillis();
+			
+			@Override
+			public boolean isDue() {
+				return System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_INTERVAL;
+			}
+			
+			@Override
+			public void checkpoint(int lastKey, long fileOffset, long resourceCount) {
+				lastCheckpoint = System.currentTimeMillis();
+				BulkExportWorker.this.checkpoint(partitionId, lastKey, fileOffset, resourceCount, lost);
+			}
+		};
+		
+		return NdjsonExportPipeline.<T> builder().reader(reader).firstKey(firstKey).keyExtractor(keyExtractor)
+		        .translator(translator).fhirContext(fhirContext).readerExecutor(readerExecutor)
+		        .translatorExecutor(translatorExecutor).pageSize(PAGE_SIZE).maxPagesInFlight(translatorThreads * 2)
+		        .cancelled(lost::get).checkpointer(checkpointer).build();
+	}
+	
+	private ColumnarExportPipeline<?> createColumnarPipeline(BulkExportPartition partition, AtomicBoolean lost) {
+		Date since = partition.getJob().getSince();
+		int endKey = partition.getEndKey();
+		if (FhirConstants.PATIENT.equals(partition.getResourceType())) {
+			ViewDefinition view = ViewDefinition.patient(dao.getPatientIdentifierTypeNames());
+			return createColumnarPipeline(
+			    (lastKey, maxResults) -> dao.getPatientPage(lastKey, endKey, since, maxResults), Patient::getPatientId,
+			    patientTranslator::toFhirResource, view, partition, lost);
+		} else if (FhirConstants.PERSON.equals(partition.getResourceType())) {
+			return createColumnarPipeline(
+			    (lastKey, maxResults) -> dao.getPersonPage(lastKey, endKey, since, maxResults), Person::getPersonId,
+			    personTranslator::toFhirResource, ViewDefinition.person(), partition, lost);
+		}
+		
+		throw new IllegalArgumentException("Unsupported resource type " + partition.getResourceType());
+	}
+	
+	private <T> ColumnarExportPipeline<T> createColumnarPipeline(NdjsonExportPipeline.PageReader<T> reader,
+	        ToIntFunction<T> keyExtractor, Function<T, ? extends Base> translator, ViewDefinition view,
+	        BulkExportPartition partition, AtomicBoolean lost) {
+		return ColumnarExportPipeline.<T> builder().reader(reader).firstKey(partition.getStartKey())
+		        .keyExtractor(keyExtractor).translator(translator).view(view).readerExecutor(readerExecutor)
+		        .translatorExecutor(translatorExecutor).pageSize(PAGE_SIZE).maxPagesInFlight(translatorThreads * 2)
+		        .rowGroupSize(ROW_GROUP_SIZE).cancelled(lost::get).build();
+	}
+	
+	private void deleteIfJobGone(BulkExportPartition partition) {
+		// a partition taken over by another node is left alone, but the files of a deleted job must not reappear
+		if (jobDao.getJobByUuid(partition.getJob().getUuid()) == null) {
+			storage.deleteFiles(partition.getJob().getUuid());
+		}
+	}
+	
+	private static ThreadFactory threadFactory(String nameFormat) {
+		return new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build();
+	}
+	
+	private static String getHostName() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		}
+		catch (UnknownHostException e) {
+			return "localhost";
+		}
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.export;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.function.ToIntFunction;
+
+import lombok.Builder;
+import org.hl7.fhir.r4.model.Base;
+import org.openmrs.api.APIException;
+
+/**
+ * Exports every record of one type to a Parquet file, flattened by a {@link ViewDefinition}. The pipeline has the same
+ * stages as the {@link NdjsonExportPipeline}: a reader reads pages of records ordered by key, translators translate and
+ * flatten the pages in parallel, and the writer, the calling thread, collects the rows in order. Once it has
+ * {@code rowGroupSize} rows the writer has the columns of the row group encoded in parallel by the translator executor,
+ * and writes them out. At most {@code maxPagesInFlight} pages and one row group are held in memory at any time.
+ * <p>
+ * A Parquet file is only readable once its footer has been written, so unlike an NDJSON export a columnar export is
+ * not checkpointed and is always run from the start.
+ *
+ * @param <T> the OpenMRS type being exported
+ */
+@Builder
+public class ColumnarExportPipeline<T> {
+	
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	private static final Page END_OF_DATA = new Page(CompletableFuture.completedFuture(null));
+	
+	private final NdjsonExportPipeline.PageReader<T> reader;
+	
+	/**
+	 * The key after which the export starts
+	 */
+	private final int firstKey;
+	
+	private final ToIntFunction<T> keyExtractor;
+	
+	private final Function<T, ? extends Base> translator;
+	
+	private final ViewDefinition view;
+	
+	private final ExecutorService readerExecutor;
+	
+	private final Executor translatorExecutor;
+	
+	private final int pageSize;
+	
+	private final int maxPagesInFlight;
+	
+	private final int rowGroupSize;
+	
+	private final BooleanSupplier cancelled;
+	
+	/**
+	 * Runs the export into a new file
+	 *
+	 * @param file the file to write; it is replaced if it exists
+	 * @param progress receives the number of resources written after each row group
+	 * @return the number of resources written
+	 * @throws CancellationException if the export was cancelled while running
+	 */
+	public long export(File file, LongConsumer progress) throws IOException, InterruptedException {
+		BlockingQueue<Page> pages = new ArrayBlockingQueue<>(maxPagesInFlight);
+		Future<?> readerTask = readerExecutor.submit(() -> read(pages));
+		
+		long count = 0;
+		try (ParquetFileWriter writer = new ParquetFileWriter(
+		        new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE), view.getColumnNames())) {
+			List<String[]> rowGroup = new ArrayList<>(rowGroupSize);
+			Page page;
+			while ((page = pages.take()) != END_OF_DATA) {
+				List<String[]> rows = await(page.rows);
+				if (cancelled.getAsBoolean()) {
+					throw new CancellationException();
+				}
+				
+				rowGroup.addAll(rows);
+				if (rowGroup.size() >= rowGroupSize) {
+					count += writeRowGroup(writer, rowGroup);
+					progress.accept(rowGroup.size());
+					rowGroup.clear();
+				}
+			}
+			
+			// the reader stops early when the export is cancelled, so the file may be incomplete
+			if (cancelled.getAsBoolean()) {
+				throw new CancellationException();
+			}
+			
+			if (!rowGroup.isEmpty()) {
+				count += writeRowGroup(writer, rowGroup);
+				progress.accept(rowGroup.size());
+			}
+		}
+		finally {
+			// only does anything if the writer failed; the reader must not be left blocked on a full queue
+			readerTask.cancel(true);
+			pages.forEach(pending -> pending.rows.cancel(true));
+		}
+		
+		return count;
+	}
+	
+	private int writeRowGroup(ParquetFileWriter writer, List<String[]> rows) throws IOException, InterruptedException {
+		int columnCount = view.getColumnNames().size();
+		List<CompletableFuture<ParquetFileWriter.EncodedColumn>> columns = new ArrayList<>(columnCount);
+		for (int i = 0; i < columnCount; i++) {
+			int column = i;
+			columns.add(CompletableFuture.supplyAsync(() -> {
+				List<String> values = new ArrayList<>(rows.size());
+				for (String[] row : rows) {
+					values.add(row[column]);
+				}
+				
+				return ParquetFileWriter.encodeColumn(values);
+			}, translatorExecutor));
+		}
+		
+		List<ParquetFileWriter.EncodedColumn> encodedColumns = new ArrayList<>(columnCount);
+		for (CompletableFuture<ParquetFileWriter.EncodedColumn> column : columns) {
+			encodedColumns.add(await(column));
+		}
+		
+		writer.writeRowGroup(encodedColumns, rows.size());
+		return rows.size();
+	}
+	
+	private void read(BlockingQueue<Page> pages) {
+		try {
+			try {
+				int lastKey = firstKey;
+				List<T> page;
+				while (!cancelled.getAsBoolean() && !(page = reader.read(lastKey, pageSize)).isEmpty()) {
+					lastKey = keyExtractor.applyAsInt(page.get(page.size() - 1));
+					
+					List<T> records = page;
+					pages.put(new Page(CompletableFuture.supplyAsync(() -> flatten(records), translatorExecutor)));
+				}
+				
+				pages.put(END_OF_DATA);
+			}
+			catch (RuntimeException e) {
+				// hand the failure to the writer, which would otherwise wait for the next page forever
+				CompletableFuture<List<String[]>> failure = new CompletableFuture<>();
+				failure.completeExceptionally(e);
+				pages.put(new Page(failure));
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private List<String[]> flatten(List<T> records) {
+		List<String[]> rows = new ArrayList<>(records.size());
+		for (T record : records) {
+			rows.add(view.evaluate(translator.apply(record)));
+		}
+		
+		return rows;
+	}
+	
+	private static <V> V await(CompletableFuture<V> future) throws InterruptedException {
+		try {
+			return future.get();
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			
+			throw new APIException("Failed to export page", e.getCause());
+		}
+	}
+	
+	/**
+	 * A page of flattened records
+	 */
+	private static final class Page {
+		
+		private final CompletableFuture<List<String[]>> rows;
+		
+		private Page(CompletableFuture<List<String[]>> rows) {
+			this.rows = rows;
+		}
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.export;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import java.util.function.ToIntFunction;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import lombok.Builder;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openmrs.api.APIException;
+
+/**
+ * Exports every record of one type to an NDJSON file. The export runs as a pipeline of three stages:
+ * <ol>
+ * <li>a reader, which reads pages of records ordered by key and hands each page to the translator executor</li>
+ * <li>translators, which translate and encode a page each, in parallel</li>
+ * <li>a writer, the calling thread, which writes the encoded pages to the file in the order they were read</li>
+ * </ol>
+ * The stages are connected by a bounded queue of pending pages, so a slow writer stops the reader and at most
+ * {@code maxPagesInFlight} pages are held in memory at any time, however many records are exported.
+ * <p>
+ * Because pages are written in key order, the file up to the end of any page holds exactly the records up to the last
+ * key of that page. When a {@link Checkpointer} is given, the writer syncs the file at the end of a page whenever a
+ * checkpoint is due and hands it the page's last key and the file's length, and an interrupted export can be resumed by
+ * starting after that key at that length.
+ *
+ * @param <T> the OpenMRS type being exported
+ */
+@Builder
+public class NdjsonExportPipeline<T> {
+	
+	private static final Page END_OF_DATA = new Page(0, CompletableFuture.completedFuture(null));
+	
+	/**
+	 * Reads the page of records following the given key, see {@link org.openmrs.module.fhir2.api.dao.FhirBulkExportDao}
+	 */
+	@FunctionalInterface
+	public interface PageReader<T> {
+		
+		List<T> read(int lastKey, int maxResults);
+	}
+	
+	/**
+	 * Records how far an export has got
+	 */
+	public interface Checkpointer {
+		
+		/**
+		 * @return whether a checkpoint should be recorded at the end of the page just written
+		 */
+		boolean isDue();
+		
+		/**
+		 * Called once the file is synced up to the end of a page
+		 *
+		 * @param lastKey the key of the last record written
+		 * @param fileOffset the length of the file up to and including that record
+		 * @param resourceCount the number of resources in the file up to and including that record
+		 */
+		void checkpoint(int lastKey, long fileOffset, long resourceCount);
+	}
+	
+	private final PageReader<T> reader;
+	
+	/**
+	 * The key after which the export starts
+	 */
+	private final int firstKey;
+	
+	private final ToIntFunction<T> keyExtractor;
+	
+	private final Function<T, ? extends IBaseResource> translator;
+	
+	private final FhirContext fhirContext;
+	
+	private final ExecutorService readerExecutor;
+	
+	private final Executor translatorExecutor;
+	
+	private final int pageSize;
+	
+	private final int maxPagesInFlight;
+	
+	private final BooleanSupplier cancelled;
+	
+	/**
+	 * Optional, receives the checkpoints of the export
+	 */
+	private final Checkpointer checkpointer;
+	
+	/**
+	 * Runs the export into a new file
+	 *
+	 * @param file the file to write; it is replaced if it exists
+	 * @param progress receives the number of resources written after each page
+	 * @return the number of resources written
+	 * @throws CancellationException if the export was cancelled while running
+	 */
+	public long export(File file, LongConsumer progress) throws IOException, InterruptedException {
+		return export(file, 0, 0, progress);
+	}
+	
+	/**
+	 * Runs the export, resuming it from a checkpoint. The export must start after the checkpoint's last key.
+	 *
+	 * @param file the file to write
+	 * @param fileOffset the length of the file at the checkpoint; anything after it is discarded
+	 * @param resourceCount the number of resources in the file at the checkpoint
+	 * @param progress receives the number of resources written after each page
+	 * @return the number of resources in the file
+	 * @throws CancellationException if the export was cancelled while running
+	 */
+	public long export(File file, long fileOffset, long resourceCount, LongConsumer progress)
+	        throws IOException, InterruptedException {
+		BlockingQueue<Page> pages = new ArrayBlockingQueue<>(maxPagesInFlight);
+		Future<?> readerTask = readerExecutor.submit(() -> read(pages));
+		
+		long count = resourceCount;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+		    StandardOpenOption.WRITE)) {
+			// anything after the checkpoint was written after it was recorded, and is about to be written again
+			channel.truncate(fileOffset);
+			channel.position(fileOffset);
+			
+			Writer writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.name()));
+			Page page;
+			while ((page = pages.take()) != END_OF_DATA) {
+				List<String> lines = await(page.lines);
+				if (cancelled.getAsBoolean()) {
+					throw new CancellationException();
+				}
+				
+				for (String line : lines) {
+					writer.write(line);
+					writer.write('\n');
+				}
+				
+				count += lines.size();
+				progress.accept(lines.size());
+				
+				if (checkpointer != null && checkpointer.isDue()) {
+					writer.flush();
+					channel.force(false);
+					checkpointer.checkpoint(page.lastKey, channel.position(), count);
+				}
+			}
+			
+			// the reader stops early when the export is cancelled, so the file may be incomplete
+			if (cancelled.getAsBoolean()) {
+				throw new CancellationException();
+			}
+			
+			writer.flush();
+			channel.force(false);
+		}
+		finally {
+			// only does anything if the writer failed; the reader must not be left blocked on a full queue
+			readerTask.cancel(true);
+			pages.forEach(page -> page.lines.cancel(true));
+		}
+		
+		return count;
+	}
+	
+	private void read(BlockingQueue<Page> pages) {
+		try {
+			try {
+				int lastKey = firstKey;
+				List<T> page;
+				while (!cancelled.getAsBoolean() && !(page = reader.read(lastKey, pageSize)).isEmpty()) {
+					lastKey = keyExtractor.applyAsInt(page.get(page.size() - 1));
+					
+					List<T> records = page;
+					pages.put(new Page(lastKey, CompletableFuture.supplyAsync(() -> encode(records), translatorExecutor)));
+				}
+				
+				pages.put(END_OF_DATA);
+			}
+			catch (RuntimeException e) {
+				// hand the failure to the writer, which would otherwise wait for the next page forever
+				CompletableFuture<List<String>> failure = new CompletableFuture<>();
+				failure.completeExceptionally(e);
+				pages.put(new Page(0, failure));
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private List<String> encode(List<T> records) {
+		// parsers are not thread-safe, so every page gets its own
+		IParser parser = fhirContext.newJsonParser();
+		
+		List<String> lines = new ArrayList<>(records.size());
+		for (T record : records) {
+			lines.add(parser.encodeResourceToString(translator.apply(record)));
+		}
+		
+		return lines;
+	}
+	
+	private static List<String> await(CompletableFuture<List<String>> page) throws InterruptedException {
+		try {
+			return page.get();
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			
+			throw new APIException("Failed to export page", e.getCause());
+		}
+	}
+	
+	/**
+	 * A page of encoded records, with the key of the last record on it
+	 */
+	private static final class Page {
+		
+		private final int lastKey;
+		
+		private final CompletableFuture<List<String>> lines;
+		
+		private Page(int lastKey, CompletableFuture<List<String>> lines) {
+			this.lastKey = lastKey;
+			this.lines = lines;
+		}
+	}
+}
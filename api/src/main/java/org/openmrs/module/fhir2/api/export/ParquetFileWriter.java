@@ -0,0 +1,268 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.export;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a Parquet file of optional string columns. Rows are written in row groups; every column of a row group is a
+ * single gzipped data page, which is encoded by {@link #encodeColumn(List)} independently of the other columns, so the
+ * columns of a row group can be encoded in parallel and then written in order with
+ * {@link #writeRowGroup(List, long)}.
+ * <p>
+ * Only the metadata of each row group is kept once it has been written, so the memory used does not grow with the size
+ * of the file. The footer listing the row groups is written by {@link #close()}.
+ */
+class ParquetFileWriter implements Closeable {
+	
+	private static final byte[] MAGIC = "PAR1".getBytes(StandardCharsets.US_ASCII);
+	
+	private static final String CREATED_BY = "openmrs-module-fhir2";
+	
+	// values from the Parquet format's Thrift definitions
+	
+	private static final int TYPE_BYTE_ARRAY = 6;
+	
+	private static final int REPETITION_OPTIONAL = 1;
+	
+	private static final int CONVERTED_TYPE_UTF8 = 0;
+	
+	private static final int ENCODING_PLAIN = 0;
+	
+	private static final int ENCODING_RLE = 3;
+	
+	private static final int CODEC_GZIP = 2;
+	
+	private static final int PAGE_TYPE_DATA = 0;
+	
+	/**
+	 * A page, ready to be written as the chunk of one column of a row group
+	 */
+	static final class EncodedColumn {
+		
+		private final byte[] bytes;
+		
+		private final int uncompressedSize;
+		
+		private final int valueCount;
+		
+		private EncodedColumn(byte[] bytes, int uncompressedSize, int valueCount) {
+			this.bytes = bytes;
+			this.uncompressedSize = uncompressedSize;
+			this.valueCount = valueCount;
+		}
+	}
+	
+	/**
+	 * The metadata of a written column chunk
+	 */
+	private static final class ColumnChunk {
+		
+		private final long offset;
+		
+		private final EncodedColumn column;
+		
+		private ColumnChunk(long offset, EncodedColumn column) {
+			this.offset = offset;
+			this.column = column;
+		}
+	}
+	
+	private static final class RowGroup {
+		
+		private final List<ColumnChunk> columns;
+		
+		private final long rowCount;
+		
+		private RowGroup(List<ColumnChunk> columns, long rowCount) {
+			this.columns = columns;
+			this.rowCount = rowCount;
+		}
+	}
+	
+	private final OutputStream out;
+	
+	private final List<String> columnNames;
+	
+	private final List<RowGroup> rowGroups = new ArrayList<>();
+	
+	private long position;
+	
+	private long rowCount;
+	
+	/**
+	 * @param out the stream to write the file to, which is closed with this writer
+	 * @param columnNames the names of the columns
+	 */
+	ParquetFileWriter(OutputStream out, List<String> columnNames) throws IOException {
+		this.out = out;
+		this.columnNames = columnNames;
+		write(MAGIC);
+	}
+	
+	/**
+	 * Encodes the values of one column of a row group as a data page. This only depends on its arguments, so it may be
+	 * called from any thread.
+	 *
+	 * @param values the values of the column, one per row, null where a row has no value
+	 * @return the encoded column
+	 */
+	static EncodedColumn encodeColumn(List<String> values) {
+		try {
+			ByteArrayOutputStream page = new ByteArrayOutputStream();
+			writeDefinitionLevels(values, page);
+			for (String value : values) {
+				if (value != null) {
+					byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+					page.write(littleEndian(bytes.length));
+					page.write(bytes);
+				}
+			}
+			
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			try (OutputStream gzip = new GZIPOutputStream(compressed)) {
+				page.writeTo(gzip);
+			}
+			
+			byte[] header = new ThriftCompactWriter().beginStruct().i32Field(1, PAGE_TYPE_DATA).i32Field(2, page.size())
+			        .i32Field(3, compressed.size()).structField(5).i32Field(1, values.size())
+			        .i32Field(2, ENCODING_PLAIN).i32Field(3, ENCODING_RLE).i32Field(4, ENCODING_RLE).endStruct().endStruct()
+			        .toByteArray();
+			
+			ByteArrayOutputStream column = new ByteArrayOutputStream(header.length + compressed.size());
+			column.write(header);
+			compressed.writeTo(column);
+			return new EncodedColumn(column.toByteArray(), header.length + page.size(), values.size());
+		}
+		catch (IOException e) {
+			// only in-memory streams are written to
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * @param columns the encoded columns of the row group, in the order of the column names
+	 * @param rows the number of rows in the row group
+	 */
+	void writeRowGroup(List<EncodedColumn> columns, long rows) throws IOException {
+		if (columns.size() != columnNames.size()) {
+			throw new IllegalArgumentException("Expected " + columnNames.size() + " columns, got " + columns.size());
+		}
+		
+		List<ColumnChunk> chunks = new ArrayList<>(columns.size());
+		for (EncodedColumn column : columns) {
+			chunks.add(new ColumnChunk(position, column));
+			write(column.bytes);
+		}
+		
+		rowGroups.add(new RowGroup(chunks, rows));
+		rowCount += rows;
+	}
+	
+	/**
+	 * Writes the footer and closes the stream
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			byte[] footer = encodeFileMetaData();
+			write(footer);
+			write(littleEndian(footer.length));
+			write(MAGIC);
+		}
+		finally {
+			out.close();
+		}
+	}
+	
+	private byte[] encodeFileMetaData() {
+		ThriftCompactWriter metadata = new ThriftCompactWriter().beginStruct().i32Field(1, 1);
+		
+		metadata.listField(2, ThriftCompactWriter.STRUCT, columnNames.size() + 1);
+		metadata.beginStruct().stringField(4, "schema").i32Field(5, columnNames.size()).endStruct();
+		for (String columnName : columnNames) {
+			metadata.beginStruct().i32Field(1, TYPE_BYTE_ARRAY).i32Field(3, REPETITION_OPTIONAL)
+			        .stringField(4, columnName).i32Field(6, CONVERTED_TYPE_UTF8).endStruct();
+		}
+		
+		metadata.i64Field(3, rowCount);
+		
+		metadata.listField(4, ThriftCompactWriter.STRUCT, rowGroups.size());
+		for (RowGroup rowGroup : rowGroups) {
+			long totalSize = 0;
+			metadata.beginStruct().listField(1, ThriftCompactWriter.STRUCT, rowGroup.columns.size());
+			for (int i = 0; i < rowGroup.columns.size(); i++) {
+				ColumnChunk chunk = rowGroup.columns.get(i);
+				totalSize += chunk.column.uncompressedSize;
+				
+				metadata.beginStruct().i64Field(2, chunk.offset).structField(3).i32Field(1, TYPE_BYTE_ARRAY);
+				metadata.listField(2, ThriftCompactWriter.I32, 2).i32(ENCODING_PLAIN).i32(ENCODING_RLE);
+				metadata.listField(3, ThriftCompactWriter.BINARY, 1).string(columnNames.get(i));
+				metadata.i32Field(4, CODEC_GZIP).i64Field(5, chunk.column.valueCount)
+				        .i64Field(6, chunk.column.uncompressedSize).i64Field(7, chunk.column.bytes.length)
+				        .i64Field(9, chunk.offset).endStruct().endStruct();
+			}
+			
+			metadata.i64Field(2, totalSize).i64Field(3, rowGroup.rowCount).endStruct();
+		}
+		
+		return metadata.stringField(6, CREATED_BY).endStruct().toByteArray();
+	}
+	
+	/**
+	 * Definition levels are 1 for a value and 0 for a null, written as bit-packed runs of the RLE/bit-packing hybrid
+	 * encoding, preceded by their length
+	 */
+	private static void writeDefinitionLevels(List<String> values, ByteArrayOutputStream page) throws IOException {
+		int groups = (values.size() + 7) / 8;
+		ByteArrayOutputStream levels = new ByteArrayOutputStream(groups + 5);
+		
+		// the header of a bit-packed run is its number of groups of 8 values, shifted, with the low bit set
+		int header = groups << 1 | 1;
+		while ((header & ~0x7F) != 0) {
+			levels.write(header & 0x7F | 0x80);
+			header >>>= 7;
+		}
+		levels.write(header);
+		
+		for (int group = 0; group < groups; group++) {
+			int bits = 0;
+			for (int i = 0; i < 8 && group * 8 + i < values.size(); i++) {
+				if (values.get(group * 8 + i) != null) {
+					bits |= 1 << i;
+				}
+			}
+			
+			levels.write(bits);
+		}
+		
+		page.write(littleEndian(levels.size()));
+		levels.writeTo(page);
+	}
+	
+	private void write(byte[] bytes) throws IOException {
+		out.write(bytes);
+		position += bytes.length;
+	}
+	
+	private static byte[] littleEndian(int value) {
+		return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+	}
+}
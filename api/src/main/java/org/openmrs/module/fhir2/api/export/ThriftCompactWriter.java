@@ -0,0 +1,140 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.export;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Writes the Thrift compact protocol, which Parquet uses for its page headers and file metadata. Only the types those
+ * structures need are supported.
+ */
+final class ThriftCompactWriter {
+	
+	static final byte I32 = 5;
+	
+	static final byte I64 = 6;
+	
+	static final byte BINARY = 8;
+	
+	static final byte LIST = 9;
+	
+	static final byte STRUCT = 12;
+	
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	
+	/**
+	 * Field ids are written as deltas from the previous field of the same struct
+	 */
+	private final Deque<Short> enclosingFieldIds = new ArrayDeque<>();
+	
+	private short lastFieldId;
+	
+	ThriftCompactWriter i32Field(int id, int value) {
+		fieldHeader(id, I32);
+		varint(zigZag(value));
+		return this;
+	}
+	
+	ThriftCompactWriter i64Field(int id, long value) {
+		fieldHeader(id, I64);
+		varint(zigZag(value));
+		return this;
+	}
+	
+	ThriftCompactWriter stringField(int id, String value) {
+		fieldHeader(id, BINARY);
+		string(value);
+		return this;
+	}
+	
+	ThriftCompactWriter structField(int id) {
+		fieldHeader(id, STRUCT);
+		return beginStruct();
+	}
+	
+	/**
+	 * Starts a list field, whose elements are written next
+	 */
+	ThriftCompactWriter listField(int id, byte elementType, int size) {
+		fieldHeader(id, LIST);
+		if (size < 15) {
+			out.write(size << 4 | elementType);
+		} else {
+			out.write(0xF0 | elementType);
+			varint(size);
+		}
+		
+		return this;
+	}
+	
+	ThriftCompactWriter i32(int value) {
+		varint(zigZag(value));
+		return this;
+	}
+	
+	ThriftCompactWriter string(String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		varint(bytes.length);
+		out.write(bytes, 0, bytes.length);
+		return this;
+	}
+	
+	/**
+	 * Starts a struct which is an element of a list, or the top-level struct
+	 */
+	ThriftCompactWriter beginStruct() {
+		enclosingFieldIds.push(lastFieldId);
+		lastFieldId = 0;
+		return this;
+	}
+	
+	ThriftCompactWriter endStruct() {
+		out.write(0);
+		lastFieldId = enclosingFieldIds.pop();
+		return this;
+	}
+	
+	byte[] toByteArray() {
+		return out.toByteArray();
+	}
+	
+	private void fieldHeader(int id, byte type) {
+		int delta = id - lastFieldId;
+		if (delta > 0 && delta <= 15) {
+			out.write(delta << 4 | type);
+		} else {
+			out.write(type);
+			varint(zigZag(id));
+		}
+		
+		lastFieldId = (short) id;
+	}
+	
+	private void varint(long value) {
+		long remaining = value;
+		while ((remaining & ~0x7FL) != 0) {
+			out.write((int) (remaining & 0x7F | 0x80));
+			remaining >>>= 7;
+		}
+		
+		out.write((int) remaining);
+	}
+	
+	private static long zigZag(long value) {
+		return value << 1 ^ value >> 63;
+	}
+	
+	private static long zigZag(int value) {
+		return (value << 1 ^ value >> 31) & 0xFFFFFFFFL;
+	}
+}
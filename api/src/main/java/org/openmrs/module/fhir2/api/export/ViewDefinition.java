@@ -0,0 +1,200 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.export;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Property;
+
+/**
+ * Flattens resources of one type into rows of string columns, in the style of the SQL on FHIR view definitions. Each
+ * column is defined by a path in a small subset of FHIRPath: element names separated by dots, {@code first()}, and
+ * {@code where(element = 'value')}, e.g. {@code identifier.where(system = 'OpenMRS ID').value}. A column holds the
+ * first value its path selects, or null if it selects nothing.
+ */
+public class ViewDefinition {
+	
+	private static final String FIRST = "first()";
+	
+	private static final String WHERE = "where(";
+	
+	private final String resourceType;
+	
+	private final List<String> columnNames = new ArrayList<>();
+	
+	private final List<List<Step>> columnPaths = new ArrayList<>();
+	
+	public ViewDefinition(String resourceType) {
+		this.resourceType = resourceType;
+	}
+	
+	/**
+	 * The default view of patients
+	 *
+	 * @param identifierSystems the identifier systems which each get a column of their own
+	 */
+	public static ViewDefinition patient(List<String> identifierSystems) {
+		ViewDefinition view = demographics("Patient");
+		for (String system : identifierSystems) {
+			String columnName = "identifier_" + system.toLowerCase().replaceAll("[^a-z0-9]+", "_");
+			while (view.columnNames.contains(columnName)) {
+				columnName += "_";
+			}
+			
+			view.column(columnName,
+			    "identifier.where(system = '" + system.replace("\\", "\\\\").replace("'", "\\'") + "').value");
+		}
+		
+		return view;
+	}
+	
+	/**
+	 * The default view of persons
+	 */
+	public static ViewDefinition person() {
+		return demographics("Person");
+	}
+	
+	private static ViewDefinition demographics(String resourceType) {
+		return new ViewDefinition(resourceType).column("id", "id").column("gender", "gender")
+		        .column("birth_date", "birthDate").column("family", "name.first().family")
+		        .column("given", "name.first().given.first()").column("city", "address.first().city");
+	}
+	
+	/**
+	 * Adds a column
+	 *
+	 * @param name the name of the column, which must be unique
+	 * @param path the path selecting the value of the column
+	 * @return this view
+	 * @throws IllegalArgumentException if the name is taken or the path is not valid
+	 */
+	public ViewDefinition column(String name, String path) {
+		if (columnNames.contains(name)) {
+			throw new IllegalArgumentException("The view already has a column named " + name);
+		}
+		
+		columnNames.add(name);
+		columnPaths.add(parsePath(path));
+		return this;
+	}
+	
+	public String getResourceType() {
+		return resourceType;
+	}
+	
+	public List<String> getColumnNames() {
+		return Collections.unmodifiableList(columnNames);
+	}
+	
+	/**
+	 * @param resource a resource of the view's type
+	 * @return the value of every column for the resource
+	 */
+	public String[] evaluate(Base resource) {
+		String[] row = new String[columnPaths.size()];
+		for (int i = 0; i < row.length; i++) {
+			List<Base> selected = Collections.singletonList(resource);
+			for (Step step : columnPaths.get(i)) {
+				selected = step.apply(selected);
+			}
+			
+			row[i] = selected.isEmpty() || !selected.get(0).isPrimitive() ? null : selected.get(0).primitiveValue();
+		}
+		
+		return row;
+	}
+	
+	private static List<Base> children(Base parent, String element) {
+		Property property = parent.getNamedProperty(element);
+		return property == null ? Collections.emptyList() : property.getValues();
+	}
+	
+	private static List<Step> parsePath(String path) {
+		List<Step> steps = new ArrayList<>();
+		for (String segment : splitPath(path)) {
+			if (segment.equals(FIRST)) {
+				steps.add(values -> values.isEmpty() ? values : values.subList(0, 1));
+			} else if (segment.startsWith(WHERE) && segment.endsWith(")")) {
+				steps.add(parseWhere(path, segment.substring(WHERE.length(), segment.length() - 1)));
+			} else if (segment.matches("[A-Za-z][A-Za-z0-9]*")) {
+				steps.add(values -> values.stream().flatMap(value -> children(value, segment).stream())
+				        .collect(Collectors.toList()));
+			} else {
+				throw new IllegalArgumentException("Unsupported step " + segment + " in path " + path);
+			}
+		}
+		
+		return steps;
+	}
+	
+	private static Step parseWhere(String path, String condition) {
+		int equals = condition.indexOf('=');
+		String element = equals < 0 ? "" : condition.substring(0, equals).trim();
+		String literal = equals < 0 ? "" : condition.substring(equals + 1).trim();
+		if (!element.matches("[A-Za-z][A-Za-z0-9]*") || literal.length() < 2 || !literal.startsWith("'")
+		        || !literal.endsWith("'")) {
+			throw new IllegalArgumentException("Unsupported condition " + condition + " in path " + path);
+		}
+		
+		String expected = literal.substring(1, literal.length() - 1).replaceAll("\\\\(.)", "$1");
+		return values -> values.stream().filter(value -> children(value, element).stream()
+		        .anyMatch(child -> child.isPrimitive() && Objects.equals(expected, child.primitiveValue())))
+		        .collect(Collectors.toList());
+	}
+	
+	/**
+	 * Splits a path at the dots which are not within a literal or a function call
+	 */
+	private static List<String> splitPath(String path) {
+		List<String> segments = new ArrayList<>();
+		StringBuilder segment = new StringBuilder();
+		boolean quoted = false;
+		int depth = 0;
+		for (int i = 0; i < path.length(); i++) {
+			char c = path.charAt(i);
+			if (quoted && c == '\\' && i + 1 < path.length()) {
+				segment.append(c).append(path.charAt(++i));
+				continue;
+			}
+			
+			if (c == '\'') {
+				quoted = !quoted;
+			} else if (!quoted && c == '(') {
+				depth++;
+			} else if (!quoted && c == ')') {
+				depth--;
+			} else if (!quoted && depth == 0 && c == '.') {
+				segments.add(segment.toString().trim());
+				segment.setLength(0);
+				continue;
+			}
+			
+			segment.append(c);
+		}
+		
+		segments.add(segment.toString().trim());
+		return segments;
+	}
+	
+	/**
+	 * One step of a path, from the values selected so far to the values it selects
+	 */
+	@FunctionalInterface
+	private interface Step {
+		
+		List<Base> apply(List<Base> values);
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.impl;
+
+import javax.inject.Inject;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.api.FhirBulkExportService;
+import org.openmrs.module.fhir2.api.dao.FhirBulkExportDao;
+import org.openmrs.module.fhir2.api.dao.FhirBulkExportJobDao;
+import org.openmrs.module.fhir2.api.export.BulkExportFormat;
+import org.openmrs.module.fhir2.api.export.BulkExportJob;
+import org.openmrs.module.fhir2.api.export.BulkExportPartition;
+import org.openmrs.module.fhir2.api.export.BulkExportStatus;
+import org.openmrs.module.fhir2.api.export.BulkExportStorage;
+import org.openmrs.util.PrivilegeConstants;
+import org.springframework.stereotype.Component;
+
+@Component
+@Setter(AccessLevel.PACKAGE)
+public class FhirBulkExportServiceImpl implements FhirBulkExportService {
+	
+	private static final Set<String> SUPPORTED_RESOURCE_TYPES = Collections
+	        .unmodifiableSet(new LinkedHashSet<>(Arrays.asList(FhirConstants.PATIENT, FhirConstants.PERSON)));
+	
+	/**
+	 * The number of keys in each partition of an export. Keys are assigned sequentially, so this is roughly the number
+	 * of records in each partition and in each file.
+	 */
+	private static final int PARTITION_SIZE = 50000;
+	
+	private static final long JOB_RETENTION = TimeUnit.DAYS.toMillis(1);
+	
+	@Inject
+	private FhirBulkExportDao dao;
+	
+	@Inject
+	private FhirBulkExportJobDao jobDao;
+	
+	@Inject
+	private BulkExportStorage storage;
+	
+	@Override
+	public Set<String> getSupportedResourceTypes() {
+		return SUPPORTED_RESOURCE_TYPES;
+	}
+	
+	@Override
+	public BulkExportJob startExport(Set<String> resourceTypes, Date since, BulkExportFormat format, String request) {
+		for (String resourceType : resourceTypes) {
+			if (!SUPPORTED_RESOURCE_TYPES.contains(resourceType)) {
+				throw new InvalidRequestException("Resources of type " + resourceType + " cannot be exported");
+			}
+		}
+		
+		Set<String> exportedTypes = resourceTypes.isEmpty() ? SUPPORTED_RESOURCE_TYPES : resourceTypes;
+		requireReadPrivileges(exportedTypes);
+		
+		removeExpiredExports();
+		
+		BulkExportJob job = new BulkExportJob();
+		job.setUuid(UUID.randomUUID().toString());
+		job.setResourceTypeList(exportedTypes);
+		job.setSince(since);
+		job.setRequest(request);
+		job.setCreator(Context.getAuthenticatedUser());
+		job.setTransactionTime(new Date());
+		
+		for (String resourceType : job.getResourceTypeList()) {
+			int maxKey = FhirConstants.PATIENT.equals(resourceType) ? dao.getMaxPatientId() : dao.getMaxPersonId();
+			int partitionCount = Math.max(1, (maxKey + PARTITION_SIZE - 1) / PARTITION_SIZE);
+			
+			for (int i = 0; i < partitionCount; i++) {
+				BulkExportPartition partition = new BulkExportPartition();
+				partition.setResourceType(resourceType);
+				partition.setStartKey(i * PARTITION_SIZE);
+				partition.setLastKey(partition.getStartKey());
+				// the last partition is open ended, so records created after the partitions were planned are not lost
+				partition.setEndKey(i == partitionCount - 1 ? Integer.MAX_VALUE : (i + 1) * PARTITION_SIZE);
+				partition.setFileName(resourceType + "-" + (i + 1) + format.getExtension());
+				job.addPartition(partition);
+			}
+		}
+		
+		jobDao.saveJob(job);
+		return job;
+	}
+	
+	@Override
+	public BulkExportJob getExport(String jobId) {
+		BulkExportJob job = jobDao.getJobByUuid(jobId);
+		if (job == null || !isCreatedByAuthenticatedUser(job)) {
+			return null;
+		}
+		
+		// the user may have lost the privileges to read the resources since the export was started
+		requireReadPrivileges(job.getResourceTypeList());
+		return job;
+	}
+	
+	@Override
+	public File getExportFile(String jobId, String fileName) {
+		BulkExportJob job = getExport(jobId);
+		if (job == null || job.getStatus() != BulkExportStatus.COMPLETE) {
+			return null;
+		}
+		
+		return storage.getOutputFile(job, fileName);
+	}
+	
+	@Override
+	public boolean deleteExport(String jobId) {
+		BulkExportJob job = jobDao.getJobByUuid(jobId);
+		if (job == null || !isCreatedByAuthenticatedUser(job)) {
+			return false;
+		}
+		
+		// nodes still exporting partitions of the job stop once they fail to renew their leases
+		jobDao.deleteJob(job);
+		storage.deleteFiles(job.getUuid());
+		return true;
+	}
+	
+	/**
+	 * An export contains every resource of its types, so starting or following one requires the privilege to read all
+	 * of them
+	 */
+	private static void requireReadPrivileges(Collection<String> resourceTypes) {
+		for (String resourceType : resourceTypes) {
+			Context.requirePrivilege(FhirConstants.PATIENT.equals(resourceType) ? PrivilegeConstants.GET_PATIENTS
+			        : PrivilegeConstants.GET_PEOPLE);
+		}
+	}
+	
+	/**
+	 * Exports are only visible to the user who started them; to everyone else they do not exist
+	 */
+	private static boolean isCreatedByAuthenticatedUser(BulkExportJob job) {
+		User user = Context.getAuthenticatedUser();
+		return user != null && job.getCreator() != null && user.getUserId().equals(job.getCreator().getUserId());
+	}
+	
+	private void removeExpiredExports() {
+		for (BulkExportJob job : jobDao.getJobsFinishedBefore(new Date(System.currentTimeMillis() - JOB_RETENTION))) {
+			jobDao.deleteJob(job);
+			storage.deleteFiles(job.getUuid());
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.impl;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Patient;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.Person;
+import org.openmrs.api.APIException;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.api.FhirBulkImportService;
+import org.openmrs.module.fhir2.api.FhirGlobalPropertyService;
+import org.openmrs.module.fhir2.api.dao.FhirBulkImportDao;
+import org.openmrs.module.fhir2.api.imports.BulkImportResult;
+import org.openmrs.module.fhir2.api.imports.NdjsonImportPipeline;
+import org.openmrs.module.fhir2.api.translators.PatientTranslator;
+import org.openmrs.module.fhir2.api.translators.PersonTranslator;
+import org.openmrs.util.OpenmrsUtil;
+import org.springframework.stereotype.Component;
+
+@Component
+@Setter(AccessLevel.PACKAGE)
+public class FhirBulkImportServiceImpl implements FhirBulkImportService {
+	
+	private static final Set<String> SUPPORTED_RESOURCE_TYPES = Collections
+	        .unmodifiableSet(new LinkedHashSet<>(Arrays.asList(FhirConstants.PATIENT, FhirConstants.PERSON)));
+	
+	/**
+	 * The number of lines saved in each transaction
+	 */
+	private static final int BATCH_SIZE = 500;
+	
+	private static final int MAX_ERRORS = 1000;
+	
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	
+	private static final String COMPRESSED_FILE_SUFFIX = ".gz";
+	
+	@Inject
+	private FhirBulkImportDao dao;
+	
+	@Inject
+	private PatientTranslator patientTranslator;
+	
+	@Inject
+	private PersonTranslator personTranslator;
+	
+	@Inject
+	private FhirGlobalPropertyService globalPropertyService;
+	
+	@Inject
+	@Named("fhirR4")
+	private FhirContext fhirContext;
+	
+	@Override
+	public Set<String> getSupportedResourceTypes() {
+		return SUPPORTED_RESOURCE_TYPES;
+	}
+	
+	@Override
+	public BulkImportResult importNdjson(Reader reader) throws IOException {
+		int translatorThreads = Runtime.getRuntime().availableProcessors();
+		ExecutorService translatorExecutor = Executors.newFixedThreadPool(translatorThreads,
+		    new ThreadFactoryBuilder().setNameFormat("fhir2-import-%d").setDaemon(true).build());
+		try {
+			return NdjsonImportPipeline.builder().fhirContext(fhirContext).resourceTypes(SUPPORTED_RESOURCE_TYPES)
+			        .identifierTypeResolver(dao::getPatientIdentifierTypesByNames).translator(this::translate)
+			        .writer(dao::saveBatch).translatorExecutor(translatorExecutor).batchSize(BATCH_SIZE)
+			        .maxBatchesInFlight(translatorThreads * 2).maxErrors(MAX_ERRORS).build().run(reader);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new APIException("The import was interrupted", e);
+		}
+		finally {
+			translatorExecutor.shutdownNow();
+		}
+	}
+	
+	@Override
+	public BulkImportResult importFile(String fileName) throws IOException {
+		File directory = getImportDirectory().getCanonicalFile();
+		File file = new File(directory, fileName).getCanonicalFile();
+		// a file name must not lead out of the import directory
+		if (!file.getPath().startsWith(directory.getPath() + File.separator) || !file.isFile()) {
+			throw new InvalidRequestException("Could not find file " + fileName + " in the import directory");
+		}
+		
+		InputStream in = new FileInputStream(file);
+		try {
+			if (file.getName().endsWith(COMPRESSED_FILE_SUFFIX)) {
+				in = new GZIPInputStream(in, READ_BUFFER_SIZE);
+			}
+			
+			return importNdjson(
+			    new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), READ_BUFFER_SIZE));
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	private Person translate(IBaseResource resource, Map<String, PatientIdentifierType> identifierTypes) {
+		if (resource instanceof Patient) {
+			return patientTranslator.toOpenmrsType((Patient) resource,
+			    identifier -> identifierTypes.get(identifier.getSystem()));
+		}
+		
+		return personTranslator.toOpenmrsType((org.hl7.fhir.r4.model.Person) resource);
+	}
+	
+	private File getImportDirectory() {
+		String directory = globalPropertyService.getGlobalProperty(FhirConstants.IMPORT_DIRECTORY_PROPERTY,
+		    (String) null);
+		if (directory == null) {
+			directory = OpenmrsUtil.getApplicationDataDirectory() + File.separator + "fhir2" + File.separator
+			        + "import";
+		}
+		
+		return new File(directory);
+	}
+}
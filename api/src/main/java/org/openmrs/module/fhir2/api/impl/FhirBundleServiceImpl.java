@@ -0,0 +1,430 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.impl;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.NotImplementedOperationException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import ca.uhn.fhir.util.UrlUtil;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.Person;
+import org.openmrs.api.ValidationException;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.api.FhirBundleService;
+import org.openmrs.module.fhir2.api.FhirPatientService;
+import org.openmrs.module.fhir2.api.FhirPersonService;
+import org.openmrs.module.fhir2.api.auth.AuthenticatedUserContext;
+import org.openmrs.module.fhir2.api.dao.FhirBulkImportDao;
+import org.openmrs.module.fhir2.api.translators.PatientTranslator;
+import org.openmrs.module.fhir2.api.translators.PersonTranslator;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+@Component
+@Setter(AccessLevel.PACKAGE)
+public class FhirBundleServiceImpl implements FhirBundleService {
+	
+	private static final Log log = LogFactory.getLog(FhirBundleServiceImpl.class);
+	
+	/**
+	 * The number of batch entries processed at a time, shared by all requests, so that a large batch cannot take every
+	 * connection of the database connection pool
+	 */
+	private static final int BATCH_THREADS = 8;
+	
+	private static final String STATUS_OK = "200 OK";
+	
+	private static final String STATUS_CREATED = "201 Created";
+	
+	private static final String URN_UUID_PREFIX = "urn:uuid:";
+	
+	@Inject
+	private FhirPatientService patientService;
+	
+	@Inject
+	private FhirPersonService personService;
+	
+	@Inject
+	private PatientTranslator patientTranslator;
+	
+	@Inject
+	private PersonTranslator personTranslator;
+	
+	@Inject
+	private FhirBulkImportDao importDao;
+	
+	@Inject
+	@Named("fhirR4")
+	private FhirContext fhirContext;
+	
+	private final ExecutorService batchExecutor = Executors.newFixedThreadPool(BATCH_THREADS,
+	    new ThreadFactoryBuilder().setNameFormat("fhir2-batch-%d").setDaemon(true).build());
+	
+	@PreDestroy
+	public void stop() {
+		batchExecutor.shutdownNow();
+	}
+	
+	@Override
+	public Bundle processBatch(Bundle bundle) {
+		Bundle response = new Bundle();
+		response.setType(Bundle.BundleType.BATCHRESPONSE);
+		
+		List<BundleEntryComponent> entries = bundle.getEntry();
+		if (entries.size() == 1) {
+			// there is nothing to run alongside, so the entry is processed in the session of the request
+			response.addEntry(processBatchEntry(entries.get(0)));
+			return response;
+		}
+		
+		// the entries are processed on behalf of the user who sent the batch, each in a context of its own
+		UserContext userContext = Context.getUserContext();
+		List<CompletableFuture<BundleEntryComponent>> responses = new ArrayList<>(entries.size());
+		for (BundleEntryComponent entry : entries) {
+			UserContext entryUserContext = AuthenticatedUserContext.copyOf(userContext);
+			responses.add(CompletableFuture
+			        .supplyAsync(() -> inSession(entryUserContext, () -> processBatchEntry(entry)), batchExecutor));
+		}
+		
+		for (CompletableFuture<BundleEntryComponent> entryResponse : responses) {
+			response.addEntry(entryResponse.join());
+		}
+		
+		return response;
+	}
+	
+	@Override
+	@Transactional
+	public Bundle processTransaction(Bundle bundle) {
+		List<BundleEntryComponent> entries = bundle.getEntry();
+		BundleEntryComponent[] responses = new BundleEntryComponent[entries.size()];
+		
+		List<Integer> creates = new ArrayList<>();
+		List<Integer> reads = new ArrayList<>();
+		List<Person> records = new ArrayList<>();
+		int entryIndex = -1;
+		try {
+			Map<String, PatientIdentifierType> identifierTypes = resolveIdentifierTypes(entries);
+			Map<String, String> createdReferences = getCreatedReferences(entries);
+			for (entryIndex = 0; entryIndex < entries.size(); entryIndex++) {
+				BundleEntryComponent entry = entries.get(entryIndex);
+				if (getMethod(entry) == HTTPVerb.POST) {
+					creates.add(entryIndex);
+					resolveReferences(entry.getResource(), createdReferences);
+					records.add(translate(entry, identifierTypes));
+				} else {
+					reads.add(entryIndex);
+				}
+			}
+			
+			// creates are processed before reads, as FHIR requires, and are saved together to be flushed in batches
+			entryIndex = -1;
+			importDao.saveBatch(records);
+			for (int i = 0; i < creates.size(); i++) {
+				responses[creates.get(i)] = createdResponse(entries.get(creates.get(i)), records.get(i));
+			}
+			
+			for (int read : reads) {
+				entryIndex = read;
+				responses[read] = read(entries.get(read));
+			}
+		}
+		catch (RuntimeException e) {
+			BaseServerResponseException serverException = toServerException(e);
+			if (entryIndex < 0) {
+				throw serverException;
+			}
+			
+			throw BaseServerResponseException.newInstance(serverException.getStatusCode(),
+			    "Bundle entry " + entryIndex + ": " + serverException.getMessage());
+		}
+		
+		Bundle response = new Bundle();
+		response.setType(Bundle.BundleType.TRANSACTIONRESPONSE);
+		for (BundleEntryComponent entryResponse : responses) {
+			response.addEntry(entryResponse);
+		}
+		
+		return response;
+	}
+	
+	private BundleEntryComponent processBatchEntry(BundleEntryComponent entry) {
+		try {
+			if (getMethod(entry) == HTTPVerb.GET) {
+				return read(entry);
+			}
+			
+			List<BundleEntryComponent> create = Collections.singletonList(entry);
+			Person record = translate(entry, resolveIdentifierTypes(create));
+			importDao.saveBatch(Collections.singletonList(record));
+			return createdResponse(entry, record);
+		}
+		catch (RuntimeException e) {
+			BaseServerResponseException serverException = toServerException(e);
+			
+			OperationOutcome outcome = new OperationOutcome();
+			outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR)
+			        .setCode(OperationOutcome.IssueType.PROCESSING).setDiagnostics(serverException.getMessage());
+			
+			BundleEntryComponent response = new BundleEntryComponent();
+			response.getResponse().setStatus(Integer.toString(serverException.getStatusCode())).setOutcome(outcome);
+			return response;
+		}
+	}
+	
+	private BundleEntryComponent read(BundleEntryComponent entry) {
+		String url = StringUtils.removeStart(entry.getRequest().getUrl(), "/");
+		String query = StringUtils.substringAfter(url, "?");
+		String[] path = StringUtils.split(StringUtils.substringBefore(url, "?"), '/');
+		
+		Resource resource;
+		if (path.length == 2 && query.isEmpty()) {
+			resource = read(path[0], path[1]);
+		} else if (path.length == 1) {
+			resource = search(path[0], UrlUtil.parseQueryString(query));
+		} else {
+			throw new InvalidRequestException("Unsupported request url " + entry.getRequest().getUrl());
+		}
+		
+		BundleEntryComponent response = new BundleEntryComponent();
+		response.setResource(resource);
+		response.getResponse().setStatus(STATUS_OK);
+		return response;
+	}
+	
+	private Resource read(String type, String id) {
+		Resource resource;
+		if (FhirConstants.PATIENT.equals(type)) {
+			resource = patientService.getPatientByUuid(id);
+		} else if (FhirConstants.PERSON.equals(type)) {
+			resource = personService.getPersonByUuid(id);
+		} else {
+			throw new InvalidRequestException("Resources of type " + type + " cannot be read in a bundle");
+		}
+		
+		if (resource == null) {
+			throw new ResourceNotFoundException("Could not find " + type + " with Id " + id);
+		}
+		
+		return resource;
+	}
+	
+	private Bundle search(String type, Map<String, String[]> parameters) {
+		if (!FhirConstants.PATIENT.equals(type)) {
+			throw new InvalidRequestException("Resources of type " + type + " cannot be searched in a bundle");
+		}
+		
+		if (parameters.size() != 1) {
+			throw new InvalidRequestException(
+			        "A search must have exactly one of the name, given, family or _filter parameters");
+		}
+		
+		Map.Entry<String, String[]> parameter = parameters.entrySet().iterator().next();
+		String value = parameter.getValue()[0];
+		Collection<Patient> patients;
+		switch (parameter.getKey()) {
+			case Patient.SP_NAME:
+				patients = patientService.findPatientsByName(value);
+				break;
+			case Patient.SP_GIVEN:
+				patients = patientService.findPatientsByGivenName(value);
+				break;
+			case Patient.SP_FAMILY:
+				patients = patientService.findPatientsByFamilyName(value);
+				break;
+			case Constants.PARAM_FILTER:
+				patients = patientService.findPatientsByFilter(value);
+				break;
+			default:
+				throw new InvalidRequestException("Unsupported search parameter " + parameter.getKey());
+		}
+		
+		Bundle searchset = new Bundle();
+		searchset.setType(Bundle.BundleType.SEARCHSET);
+		searchset.setTotal(patients.size());
+		for (Patient patient : patients) {
+			searchset.addEntry().setResource(patient);
+		}
+		
+		return searchset;
+	}
+	
+	private Person translate(BundleEntryComponent entry, Map<String, PatientIdentifierType> identifierTypes) {
+		Resource resource = entry.getResource();
+		String type = StringUtils.removeStart(entry.getRequest().getUrl(), "/");
+		if (resource == null || !resource.fhirType().equals(type)) {
+			throw new InvalidRequestException("A create must have a resource of the type in its url");
+		}
+		
+		// the server assigns the id of a new resource, unless the bundle gave it a uuid to be referred to by
+		String fullUrl = StringUtils.defaultString(entry.getFullUrl());
+		resource.setId(fullUrl.startsWith(URN_UUID_PREFIX) ? fullUrl.substring(URN_UUID_PREFIX.length()) : null);
+		
+		if (resource instanceof Patient) {
+			return patientTranslator.toOpenmrsType((Patient) resource,
+			    identifier -> identifierTypes.get(identifier.getSystem()));
+		} else if (resource instanceof org.hl7.fhir.r4.model.Person) {
+			return personTranslator.toOpenmrsType((org.hl7.fhir.r4.model.Person) resource);
+		}
+		
+		throw new InvalidRequestException("Resources of type " + type + " cannot be created in a bundle");
+	}
+	
+	/**
+	 * An entry of a transaction may refer to a resource created by another entry by the {@code urn:uuid} in that
+	 * entry's fullUrl, which is the uuid the resource is created with, see {@link #translate}
+	 * 
+	 * @return the references to the resources created by the entries, keyed by their fullUrl
+	 */
+	private static Map<String, String> getCreatedReferences(List<BundleEntryComponent> entries) {
+		Map<String, String> createdReferences = new HashMap<>();
+		for (BundleEntryComponent entry : entries) {
+			String fullUrl = entry.getFullUrl();
+			if (entry.getResource() == null || fullUrl == null || !fullUrl.startsWith(URN_UUID_PREFIX)
+			        || entry.getRequest().getMethod() != HTTPVerb.POST) {
+				continue;
+			}
+			
+			String reference = entry.getResource().fhirType() + "/" + fullUrl.substring(URN_UUID_PREFIX.length());
+			if (createdReferences.put(fullUrl, reference) != null) {
+				throw new InvalidRequestException("More than one entry has the fullUrl " + fullUrl);
+			}
+		}
+		
+		return createdReferences;
+	}
+	
+	/**
+	 * Replaces every {@code urn:uuid} reference in a resource by a reference to the resource created by the entry it
+	 * names; a {@code urn:uuid} which names no such entry cannot be resolved and is rejected
+	 */
+	private void resolveReferences(Resource resource, Map<String, String> createdReferences) {
+		if (resource == null) {
+			return;
+		}
+		
+		for (Reference reference : fhirContext.newTerser().getAllPopulatedChildElementsOfType(resource,
+		    Reference.class)) {
+			String target = reference.getReference();
+			if (target == null || !target.startsWith(URN_UUID_PREFIX)) {
+				continue;
+			}
+			
+			String resolved = createdReferences.get(target);
+			if (resolved == null) {
+				throw new InvalidRequestException(
+				        "Reference " + target + " does not refer to a resource created by the transaction");
+			}
+			
+			reference.setReference(resolved);
+		}
+	}
+	
+	/**
+	 * Resolves the identifier systems of every patient created by the entries at once, rather than once per identifier
+	 */
+	private Map<String, PatientIdentifierType> resolveIdentifierTypes(List<BundleEntryComponent> entries) {
+		Set<String> systems = new HashSet<>();
+		for (BundleEntryComponent entry : entries) {
+			if (entry.getResource() instanceof Patient) {
+				for (Identifier identifier : ((Patient) entry.getResource()).getIdentifier()) {
+					if (identifier.hasSystem()) {
+						systems.add(identifier.getSystem());
+					}
+				}
+			}
+		}
+		
+		return importDao.getPatientIdentifierTypesByNames(systems);
+	}
+	
+	private static BundleEntryComponent createdResponse(BundleEntryComponent entry, Person record) {
+		BundleEntryComponent response = new BundleEntryComponent();
+		response.getResponse().setStatus(STATUS_CREATED)
+		        .setLocation(entry.getResource().fhirType() + "/" + record.getUuid());
+		return response;
+	}
+	
+	private static HTTPVerb getMethod(BundleEntryComponent entry) {
+		if (!entry.getRequest().hasMethod() || !entry.getRequest().hasUrl()) {
+			throw new InvalidRequestException("Every entry must have a request with a method and url");
+		}
+		
+		HTTPVerb method = entry.getRequest().getMethod();
+		if (method != HTTPVerb.GET && method != HTTPVerb.POST) {
+			throw new NotImplementedOperationException(method.toCode() + " requests are not supported in a bundle");
+		}
+		
+		return method;
+	}
+	
+	private static BaseServerResponseException toServerException(RuntimeException e) {
+		if (e instanceof BaseServerResponseException) {
+			return (BaseServerResponseException) e;
+		} else if (e instanceof ValidationException) {
+			return new UnprocessableEntityException(e.getMessage());
+		}
+		
+		log.error("Could not process bundle entry", e);
+		return new InternalErrorException(e.getMessage(), e);
+	}
+	
+	/**
+	 * Runs a task on a thread of the batch executor, with a session of its own
+	 */
+	private static <T> T inSession(UserContext userContext, Supplier<T> task) {
+		Context.openSession();
+		try {
+			Context.setUserContext(userContext);
+			return task.get();
+		}
+		finally {
+			Context.closeSession();
+		}
+	}
+}
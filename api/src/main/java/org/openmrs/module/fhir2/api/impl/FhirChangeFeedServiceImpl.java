@@ -0,0 +1,175 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.impl;
+
+import javax.inject.Inject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.api.FhirChangeFeedService;
+import org.openmrs.module.fhir2.api.FhirGlobalPropertyService;
+import org.openmrs.module.fhir2.api.changes.ChangeFeedMonitor;
+import org.openmrs.module.fhir2.api.changes.ResourceChange;
+import org.openmrs.module.fhir2.api.dao.FhirChangeFeedDao;
+import org.springframework.stereotype.Component;
+
+@Component
+@Setter(AccessLevel.PACKAGE)
+public class FhirChangeFeedServiceImpl implements FhirChangeFeedService {
+	
+	/**
+	 * How often a request waiting behind a gap in the change ids checks whether the gap has been resolved
+	 */
+	private static final long GAP_CHECK_INTERVAL = 1000;
+	
+	private static final long SETTINGS_REFRESH_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+	
+	private static final int DEFAULT_COMMIT_TIMEOUT_SECONDS = 120;
+	
+	/**
+	 * Each waiting request holds a server thread, so any requests beyond this are answered without waiting
+	 */
+	private static final int MAX_WAITING_REQUESTS = 32;
+	
+	private static final long PURGE_INTERVAL = TimeUnit.HOURS.toMillis(1);
+	
+	private static final int DEFAULT_RETENTION_DAYS = 7;
+	
+	@Inject
+	private FhirChangeFeedDao dao;
+	
+	@Inject
+	private ChangeFeedMonitor monitor;
+	
+	@Inject
+	private FhirGlobalPropertyService globalPropertyService;
+	
+	private final Semaphore waitingRequests = new Semaphore(MAX_WAITING_REQUESTS);
+	
+	private final AtomicLong lastPurged = new AtomicLong();
+	
+	private volatile long commitTimeout;
+	
+	private volatile long settingsLoadedAt;
+	
+	@Override
+	public List<ResourceChange> getChanges(long cursor, int maxResults, long timeout) throws InterruptedException {
+		removeExpiredChanges();
+		
+		List<ResourceChange> changes = getSettledChanges(cursor, maxResults);
+		if (!changes.isEmpty() || timeout <= 0 || !waitingRequests.tryAcquire()) {
+			return changes;
+		}
+		
+		try {
+			long deadline = System.currentTimeMillis() + timeout;
+			long seen = cursor;
+			long remaining;
+			while (changes.isEmpty() && (remaining = deadline - System.currentTimeMillis()) > 0) {
+				// changes behind a gap are waited for as well as new ones
+				if (monitor.await(seen, Math.min(remaining, GAP_CHECK_INTERVAL))) {
+					seen = Math.max(seen, dao.getLatestChangeId());
+				}
+				changes = getSettledChanges(cursor, maxResults);
+			}
+			
+			return changes;
+		}
+		finally {
+			waitingRequests.release();
+		}
+	}
+	
+	/**
+	 * A consumer never sees a change before a change with a lower id, so the changes are cut off at the first gap in
+	 * their ids which has not been resolved, see {@link #isResolved}
+	 */
+	private List<ResourceChange> getSettledChanges(long cursor, int maxResults) {
+		List<ResourceChange> changes = dao.getChangesAfter(cursor, maxResults);
+		if (changes.isEmpty()) {
+			return Collections.emptyList();
+		}
+		
+		long timedOutBefore = System.currentTimeMillis() - getCommitTimeout();
+		List<ResourceChange> settled = new ArrayList<>(changes.size());
+		long expected = cursor + 1;
+		for (ResourceChange change : changes) {
+			if (!isResolved(expected, change, timedOutBefore)) {
+				break;
+			}
+			
+			settled.add(change);
+			expected = change.getChangeId() + 1;
+		}
+		
+		return settled;
+	}
+	
+	/**
+	 * Outbox rows are inserted just before their transaction commits, so an id missing before a change belongs to a
+	 * transaction which is about to commit or to one which rolled back. The gap is resolved once each of its ids is
+	 * known to have been rolled back on this node, or once the change after it was written longer ago than any
+	 * transaction may take to commit, which also covers ids used by other nodes. An id which this node has written but
+	 * not yet committed is never passed.
+	 * 
+	 * @param expected the id which follows the last settled change
+	 * @param change the change after the gap, if any
+	 * @param timedOutBefore the time before which every transaction has completed
+	 */
+	private boolean isResolved(long expected, ResourceChange change, long timedOutBefore) {
+		if (change.getDateCreated().getTime() < timedOutBefore) {
+			return !monitor.hasUncommitted(expected, change.getChangeId());
+		}
+		
+		for (long missing = expected; missing < change.getChangeId(); missing++) {
+			if (!monitor.isRolledBack(missing)) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @return the longest a transaction may take from writing its changes to committing, in milliseconds
+	 */
+	private long getCommitTimeout() {
+		long now = System.currentTimeMillis();
+		if (now - settingsLoadedAt >= SETTINGS_REFRESH_INTERVAL) {
+			int commitTimeoutSeconds = globalPropertyService.getGlobalProperty(
+			    FhirConstants.CHANGES_COMMIT_TIMEOUT_SECONDS_PROPERTY, DEFAULT_COMMIT_TIMEOUT_SECONDS);
+			commitTimeout = TimeUnit.SECONDS.toMillis(commitTimeoutSeconds);
+			settingsLoadedAt = now;
+		}
+		
+		return commitTimeout;
+	}
+	
+	private void removeExpiredChanges() {
+		long now = System.currentTimeMillis();
+		long last = lastPurged.get();
+		if (now - last < PURGE_INTERVAL || !lastPurged.compareAndSet(last, now)) {
+			return;
+		}
+		
+		int retentionDays = globalPropertyService.getGlobalProperty(FhirConstants.CHANGES_RETENTION_DAYS_PROPERTY,
+		    DEFAULT_RETENTION_DAYS);
+		dao.deleteChangesBefore(new Date(now - TimeUnit.DAYS.toMillis(retentionDays)));
+	}
+}
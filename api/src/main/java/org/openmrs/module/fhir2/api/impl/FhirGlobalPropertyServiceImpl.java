@@ -0,0 +1,54 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.impl;
+
+import javax.inject.Inject;
+
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.module.fhir2.api.FhirGlobalPropertyService;
+import org.openmrs.module.fhir2.api.dao.FhirGlobalPropertyDao;
+import org.springframework.stereotype.Component;
+
+@Component
+@Setter(AccessLevel.PACKAGE)
+public class FhirGlobalPropertyServiceImpl implements FhirGlobalPropertyService {
+	
+	@Inject
+	private FhirGlobalPropertyDao dao;
+	
+	@Override
+	public String getGlobalProperty(String property, String defaultValue) {
+		String value = dao.getGlobalProperty(property);
+		return StringUtils.isBlank(value) ? defaultValue : value.trim();
+	}
+	
+	@Override
+	public int getGlobalProperty(String property, int defaultValue) {
+		String value = getGlobalProperty(property, (String) null);
+		if (value == null) {
+			return defaultValue;
+		}
+		
+		try {
+			return Integer.parseInt(value);
+		}
+		catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+	
+	@Override
+	public boolean getGlobalProperty(String property, boolean defaultValue) {
+		String value = getGlobalProperty(property, (String) null);
+		return value == null ? defaultValue : Boolean.parseBoolean(value);
+	}
+}
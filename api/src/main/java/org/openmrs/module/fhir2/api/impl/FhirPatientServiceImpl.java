@@ -12,17 +12,28 @@ package org.openmrs.module.fhir2.api.impl;
 import javax.inject.Inject;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import lombok.AccessLevel;
 import lombok.Setter;
 import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.Patient;
 import org.openmrs.PatientIdentifierType;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.fhir2.api.FhirPatientService;
+import org.openmrs.module.fhir2.api.cache.PatientSearchCache;
 import org.openmrs.module.fhir2.api.dao.FhirPatientDao;
+import org.openmrs.module.fhir2.api.patch.JsonPatchApplier;
+import org.openmrs.module.fhir2.api.search.FilterParser;
+import org.openmrs.module.fhir2.api.search.SearchCancellation;
 import org.openmrs.module.fhir2.api.translators.PatientTranslator;
+import org.openmrs.util.PrivilegeConstants;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
 
 @Component
 @Setter(AccessLevel.PACKAGE)
@@ -34,28 +45,121 @@ public class FhirPatientServiceImpl implements FhirPatientService {
 	@Inject
 	private FhirPatientDao dao;
 	
+	@Inject
+	private PatientSearchCache searchCache;
+	
+	@Inject
+	private JsonPatchApplier patchApplier;
+	
 	@Override
 	public Patient getPatientByUuid(String uuid) {
+		Context.requirePrivilege(PrivilegeConstants.GET_PATIENTS);
 		return translator.toFhirResource(dao.getPatientByUuid(uuid));
 	}
 	
+	@Override
+	public Patient createPatient(Patient patient) {
+		patient.setId((String) null);
+		return translator.toFhirResource(dao.savePatient(translator.toOpenmrsType(patient)));
+	}
+	
+	@Override
+	@Transactional
+	public Patient updatePatient(String uuid, Patient patient) {
+		Context.requirePrivilege(PrivilegeConstants.GET_PATIENTS);
+		org.openmrs.Patient currentPatient = dao.getPatientByUuid(uuid);
+		if (currentPatient == null) {
+			throw new ResourceNotFoundException("Could not find patient with Id " + uuid);
+		}
+		
+		return translator.toFhirResource(dao.savePatient(translator.toOpenmrsType(currentPatient, patient)));
+	}
+	
+	@Override
+	@Transactional
+	public Patient patchPatient(String uuid, String patch) {
+		Context.requirePrivilege(PrivilegeConstants.GET_PATIENTS);
+		org.openmrs.Patient currentPatient = dao.getPatientByUuid(uuid);
+		if (currentPatient == null) {
+			throw new ResourceNotFoundException("Could not find patient with Id " + uuid);
+		}
+		
+		patchApplier.applyToPatient(currentPatient, patch);
+		return translator.toFhirResource(dao.savePatient(currentPatient));
+	}
+	
 	@Override
 	public PatientIdentifierType getPatientIdentifierTypeByIdentifier(Identifier identifier) {
+		Context.requirePrivilege(PrivilegeConstants.GET_IDENTIFIER_TYPES);
 		return dao.getPatientIdentifierTypeByNameOrUuid(identifier.getSystem(), null);
 	}
 	
 	@Override
 	public Collection<Patient> findPatientsByName(String name) {
-		return dao.findPatientsByName(name).stream().map(translator::toFhirResource).collect(Collectors.toList());
+		return search(Patient.SP_NAME, name, dao::findPatientsByName);
 	}
 	
 	@Override
 	public Collection<Patient> findPatientsByGivenName(String given) {
-		return dao.findPatientsByGivenName(given).stream().map(translator::toFhirResource).collect(Collectors.toList());
+		return search(Patient.SP_GIVEN, given, dao::findPatientsByGivenName);
 	}
 	
 	@Override
 	public Collection<Patient> findPatientsByFamilyName(String family) {
-		return dao.findPatientsByFamilyName(family).stream().map(translator::toFhirResource).collect(Collectors.toList());
+		return search(Patient.SP_FAMILY, family, dao::findPatientsByFamilyName);
+	}
+	
+	@Override
+	public Collection<Patient> findPatientsByFilter(String filter) {
+		Context.requirePrivilege(PrivilegeConstants.GET_PATIENTS);
+		return translate(dao.findPatientsByFilter(FilterParser.parse(filter)));
+	}
+	
+	@Override
+	public void streamPatientsByName(String name, Consumer<Patient> consumer, SearchCancellation cancellation) {
+		Context.requirePrivilege(PrivilegeConstants.GET_PATIENTS);
+		dao.streamPatientsByName(name, patient -> consumer.accept(translator.toFhirResource(patient)), cancellation);
+	}
+	
+	@Override
+	public void streamPatientsByGivenName(String given, Consumer<Patient> consumer,
+	        SearchCancellation cancellation) {
+		Context.requirePrivilege(PrivilegeConstants.GET_PATIENTS);
+		dao.streamPatientsByGivenName(given, patient -> consumer.accept(translator.toFhirResource(patient)),
+		    cancellation);
+	}
+	
+	@Override
+	public void streamPatientsByFamilyName(String family, Consumer<Patient> consumer,
+	        SearchCancellation cancellation) {
+		Context.requirePrivilege(PrivilegeConstants.GET_PATIENTS);
+		dao.streamPatientsByFamilyName(family, patient -> consumer.accept(translator.toFhirResource(patient)),
+		    cancellation);
+	}
+	
+	private Collection<Patient> search(String parameter, String value,
+	        Function<String, Collection<org.openmrs.Patient>> search) {
+		// the DAO reads patients directly rather than through the PatientService, so the privilege the PatientService
+		// would require is checked here
+		Context.requirePrivilege(PrivilegeConstants.GET_PATIENTS);
+		if (!searchCache.isEnabled()) {
+			return translate(search.apply(value));
+		}
+		
+		List<String> uuids = searchCache.get(parameter, value);
+		if (uuids != null) {
+			return translate(dao.getPatientsByUuids(uuids));
+		}
+		
+		long generation = searchCache.getGeneration();
+		Collection<org.openmrs.Patient> patients = search.apply(value);
+		searchCache.put(parameter, value,
+		    patients.stream().map(org.openmrs.Patient::getUuid).collect(Collectors.toList()), generation);
+		
+		return translate(patients);
+	}
+	
+	private Collection<Patient> translate(Collection<org.openmrs.Patient> patients) {
+		return patients.stream().map(translator::toFhirResource).collect(Collectors.toList());
 	}
 }
@@ -8,13 +8,18 @@
  */
 package org.openmrs.module.fhir2.api.impl;
 
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import lombok.AccessLevel;
 import lombok.Setter;
 import org.hl7.fhir.r4.model.Person;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.fhir2.api.FhirPersonService;
 import org.openmrs.module.fhir2.api.dao.FhirPersonDao;
+import org.openmrs.module.fhir2.api.patch.JsonPatchApplier;
 import org.openmrs.module.fhir2.api.translators.PersonTranslator;
+import org.openmrs.util.PrivilegeConstants;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
 
 import javax.inject.Inject;
 
@@ -28,8 +33,27 @@ public class FhirPersonServiceImpl implements FhirPersonService {
 	@Inject
 	private PersonTranslator personTranslator;
 	
+	@Inject
+	private JsonPatchApplier patchApplier;
+	
 	@Override
 	public Person getPersonByUuid(String uuid) {
+		// the DAO reads the person directly rather than through the PersonService, so the privilege the PersonService
+		// would require is checked here
+		Context.requirePrivilege(PrivilegeConstants.GET_PEOPLE);
 		return personTranslator.toFhirResource(fhirPersonDao.getPersonByUuid(uuid));
 	}
+	
+	@Override
+	@Transactional
+	public Person patchPerson(String uuid, String patch) {
+		Context.requirePrivilege(PrivilegeConstants.GET_PEOPLE);
+		org.openmrs.Person person = fhirPersonDao.getPersonByUuid(uuid);
+		if (person == null) {
+			throw new ResourceNotFoundException("Could not find person with Id " + uuid);
+		}
+		
+		patchApplier.applyToPerson(person, patch);
+		return personTranslator.toFhirResource(fhirPersonDao.savePerson(person));
+	}
 }
@@ -0,0 +1,101 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.impl;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Date;
+import java.util.List;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.fhir2.api.FhirSyncService;
+import org.openmrs.module.fhir2.api.dao.FhirBulkExportDao;
+import org.openmrs.module.fhir2.api.sync.SyncArea;
+import org.openmrs.module.fhir2.api.sync.SyncSnapshot;
+import org.openmrs.module.fhir2.api.sync.SyncSnapshotWorker;
+import org.openmrs.module.fhir2.api.translators.PatientTranslator;
+import org.openmrs.util.PrivilegeConstants;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+@Component
+@Setter(AccessLevel.PACKAGE)
+public class FhirSyncServiceImpl implements FhirSyncService {
+	
+	private static final int PAGE_SIZE = 500;
+	
+	@Inject
+	private FhirBulkExportDao dao;
+	
+	@Inject
+	private SyncSnapshotWorker worker;
+	
+	@Inject
+	private PatientTranslator patientTranslator;
+	
+	@Inject
+	@Named("fhirR4")
+	private FhirContext fhirContext;
+	
+	@Override
+	@Transactional(readOnly = true)
+	public SyncArea getLocationArea(String locationUuid) {
+		Location location = Context.getLocationService().getLocationByUuid(locationUuid);
+		if (location == null) {
+			throw new ResourceNotFoundException("Could not find location with Id " + locationUuid);
+		}
+		
+		try {
+			return new SyncArea(location.getCityVillage(), location.getStateProvince(), location.getPostalCode(),
+			        location.getCountry());
+		}
+		catch (IllegalArgumentException e) {
+			throw new InvalidRequestException("Location " + locationUuid + " has no address to sync the patients of");
+		}
+	}
+	
+	@Override
+	public SyncSnapshot getSnapshot(SyncArea area) {
+		Context.requirePrivilege(PrivilegeConstants.GET_PATIENTS);
+		return worker.getSnapshot(area);
+	}
+	
+	@Override
+	public long writeDelta(SyncArea area, Date since, Writer writer) throws IOException {
+		Context.requirePrivilege(PrivilegeConstants.GET_PATIENTS);
+		IParser parser = fhirContext.newJsonParser().setPrettyPrint(false);
+		long count = 0;
+		int lastKey = 0;
+		List<Patient> page;
+		do {
+			page = dao.getPatientPage(area, lastKey, since, PAGE_SIZE);
+			for (Patient patient : page) {
+				writer.write(parser.encodeResourceToString(patientTranslator.toFhirResource(patient)));
+				writer.write('\n');
+				lastKey = patient.getPatientId();
+			}
+			
+			count += page.size();
+		} while (page.size() == PAGE_SIZE);
+		
+		return count;
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.imports;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lombok.Getter;
+
+/**
+ * The outcome of a bulk import. Only the first {@code maxErrors} errors are kept, so that a file which is wrong
+ * throughout does not produce a report as large as itself.
+ */
+@Getter
+public class BulkImportResult {
+	
+	private final int maxErrors;
+	
+	/**
+	 * The number of resources read, whether they were imported or not
+	 */
+	private long resourceCount;
+	
+	private long importedCount;
+	
+	private long errorCount;
+	
+	private final List<BulkImportError> errors = new ArrayList<>();
+	
+	public BulkImportResult(int maxErrors) {
+		this.maxErrors = maxErrors;
+	}
+	
+	void addResources(long count) {
+		resourceCount += count;
+	}
+	
+	void addImported(long count) {
+		importedCount += count;
+	}
+	
+	void addError(BulkImportError error) {
+		errorCount++;
+		if (errors.size() < maxErrors) {
+			errors.add(error);
+		}
+	}
+}
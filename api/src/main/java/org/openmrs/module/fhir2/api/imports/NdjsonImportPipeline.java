@@ -0,0 +1,292 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.imports;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import lombok.Builder;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.Person;
+import org.openmrs.api.APIException;
+
+/**
+ * Imports an NDJSON file, one resource per line, in batches of {@code batchSize} lines. The file is read incrementally
+ * by the calling thread, which hands every batch to the translator executor; there the lines of a batch are parsed, the
+ * identifier types of all their identifiers are resolved with a single lookup and the resources are translated, with
+ * several batches being prepared in parallel. The calling thread then writes the translated batches in the order they
+ * were read, each with a single call to the writer, which is expected to save a batch in one transaction.
+ * <p>
+ * A line which cannot be imported does not stop the import, it is reported in the {@link BulkImportResult}. If the
+ * writer fails to save a batch, the records of the batch are written again one at a time to find the ones at fault.
+ * At most {@code maxBatchesInFlight} batches are held in memory at any time, however long the file.
+ */
+@Builder
+public class NdjsonImportPipeline {
+	
+	/**
+	 * Translates a parsed resource into a new OpenMRS record
+	 */
+	@FunctionalInterface
+	public interface Translator {
+		
+		/**
+		 * @param resource the resource to translate
+		 * @param identifierTypes the identifier types of the batch's identifiers, by system
+		 * @return the record to save
+		 */
+		Person translate(IBaseResource resource, Map<String, PatientIdentifierType> identifierTypes);
+	}
+	
+	private final FhirContext fhirContext;
+	
+	/**
+	 * The resource types which can be imported
+	 */
+	private final Set<String> resourceTypes;
+	
+	/**
+	 * Looks up the identifier types with the given names, see
+	 * {@link org.openmrs.module.fhir2.api.dao.FhirBulkImportDao#getPatientIdentifierTypesByNames}
+	 */
+	private final Function<Set<String>, Map<String, PatientIdentifierType>> identifierTypeResolver;
+	
+	private final Translator translator;
+	
+	/**
+	 * Saves a batch of records, all or none of them
+	 */
+	private final Consumer<List<Person>> writer;
+	
+	private final Executor translatorExecutor;
+	
+	private final int batchSize;
+	
+	private final int maxBatchesInFlight;
+	
+	private final int maxErrors;
+	
+	/**
+	 * Runs the import
+	 *
+	 * @param input the NDJSON to import; blank lines are skipped
+	 * @return the outcome of the import
+	 */
+	public BulkImportResult run(Reader input) throws IOException, InterruptedException {
+		BulkImportResult result = new BulkImportResult(maxErrors);
+		Deque<CompletableFuture<Batch>> batches = new ArrayDeque<>();
+		try {
+			BufferedReader reader = input instanceof BufferedReader ? (BufferedReader) input
+			        : new BufferedReader(input);
+			List<Line> lines = new ArrayList<>(batchSize);
+			long lineNumber = 0;
+			String text;
+			while ((text = reader.readLine()) != null) {
+				lineNumber++;
+				if (StringUtils.isBlank(text)) {
+					continue;
+				}
+				
+				lines.add(new Line(lineNumber, text));
+				if (lines.size() == batchSize) {
+					submit(lines, batches, result);
+					lines = new ArrayList<>(batchSize);
+				}
+			}
+			
+			if (!lines.isEmpty()) {
+				submit(lines, batches, result);
+			}
+			
+			while (!batches.isEmpty()) {
+				write(await(batches.poll()), result);
+			}
+		}
+		finally {
+			// only does anything if the import failed; batches still being prepared are abandoned
+			batches.forEach(batch -> batch.cancel(true));
+		}
+		
+		return result;
+	}
+	
+	private void submit(List<Line> lines, Deque<CompletableFuture<Batch>> batches, BulkImportResult result)
+	        throws InterruptedException {
+		// reading stops until the oldest batch has been written, which bounds the number of batches in memory
+		if (batches.size() >= maxBatchesInFlight) {
+			write(await(batches.poll()), result);
+		}
+		
+		batches.add(CompletableFuture.supplyAsync(() -> prepare(lines), translatorExecutor));
+	}
+	
+	private Batch prepare(List<Line> lines) {
+		// parsers are not thread-safe, so every batch gets its own
+		IParser parser = fhirContext.newJsonParser();
+		
+		Batch batch = new Batch(lines.size());
+		List<Record> parsed = new ArrayList<>(lines.size());
+		Set<String> systems = new HashSet<>();
+		for (Line line : lines) {
+			try {
+				IBaseResource resource = parser.parseResource(line.text);
+				String resourceType = fhirContext.getResourceDefinition(resource).getName();
+				if (!resourceTypes.contains(resourceType)) {
+					batch.errors.add(
+					    new BulkImportError(line.number, "Resources of type " + resourceType + " cannot be imported"));
+					continue;
+				}
+				
+				// the parser qualifies the id with the resource type, but only the id itself becomes the uuid
+				if (resource.getIdElement().hasIdPart()) {
+					resource.setId(resource.getIdElement().getIdPart());
+				}
+				
+				if (resource instanceof Patient) {
+					for (Identifier identifier : ((Patient) resource).getIdentifier()) {
+						if (identifier.hasSystem()) {
+							systems.add(identifier.getSystem());
+						}
+					}
+				}
+				
+				parsed.add(new Record(line.number, resource));
+			}
+			catch (RuntimeException e) {
+				batch.errors.add(new BulkImportError(line.number, getMessage(e)));
+			}
+		}
+		
+		batch.identifierTypes = systems.isEmpty() ? Collections.emptyMap() : identifierTypeResolver.apply(systems);
+		for (Record record : parsed) {
+			try {
+				record.translated = translator.translate(record.resource, batch.identifierTypes);
+				batch.records.add(record);
+			}
+			catch (RuntimeException e) {
+				batch.errors.add(new BulkImportError(record.lineNumber, getMessage(e)));
+			}
+		}
+		
+		return batch;
+	}
+	
+	private void write(Batch batch, BulkImportResult result) {
+		result.addResources(batch.lineCount);
+		
+		List<BulkImportError> errors = new ArrayList<>(batch.errors);
+		if (!batch.records.isEmpty()) {
+			try {
+				writer.accept(batch.records.stream().map(record -> record.translated).collect(Collectors.toList()));
+				result.addImported(batch.records.size());
+			}
+			catch (RuntimeException e) {
+				for (Record record : batch.records) {
+					try {
+						// the failed attempt may have left the records it was given half saved, so they are translated
+						// again
+						Person retried = translator.translate(record.resource, batch.identifierTypes);
+						writer.accept(Collections.singletonList(retried));
+						result.addImported(1);
+					}
+					catch (RuntimeException recordException) {
+						errors.add(new BulkImportError(record.lineNumber, getMessage(recordException)));
+					}
+				}
+			}
+		}
+		
+		errors.sort(Comparator.comparingLong(BulkImportError::getLineNumber));
+		errors.forEach(result::addError);
+	}
+	
+	private static Batch await(CompletableFuture<Batch> batch) throws InterruptedException {
+		try {
+			return batch.get();
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			
+			throw new APIException("Failed to import batch", e.getCause());
+		}
+	}
+	
+	private static String getMessage(Exception e) {
+		return e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+	}
+	
+	private static final class Line {
+		
+		private final long number;
+		
+		private final String text;
+		
+		private Line(long number, String text) {
+			this.number = number;
+			this.text = text;
+		}
+	}
+	
+	private static final class Record {
+		
+		private final long lineNumber;
+		
+		private final IBaseResource resource;
+		
+		private Person translated;
+		
+		private Record(long lineNumber, IBaseResource resource) {
+			this.lineNumber = lineNumber;
+			this.resource = resource;
+		}
+	}
+	
+	/**
+	 * The records of a batch which were translated, and the errors of those which were not
+	 */
+	private static final class Batch {
+		
+		private final int lineCount;
+		
+		private final List<Record> records = new ArrayList<>();
+		
+		private final List<BulkImportError> errors = new ArrayList<>();
+		
+		private Map<String, PatientIdentifierType> identifierTypes;
+		
+		private Batch(int lineCount) {
+			this.lineCount = lineCount;
+		}
+	}
+}
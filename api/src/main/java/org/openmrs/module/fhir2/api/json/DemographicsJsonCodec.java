@@ -0,0 +1,649 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.json;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import ca.uhn.fhir.parser.DataFormatException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Address;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Element;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Person;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Type;
+
+/**
+ * Streaming JSON encoding and parsing of the Patient and Person resources produced by the translators, i.e. with an id,
+ * identifiers, names, gender, birth date, deceased, addresses and, for persons, links to patients.
+ * <p>
+ * The encoding writes the same bytes as HAPI's JSON parser with its default options: elements in the order of the R4
+ * definitions and no whitespace, written with the same Gson writer HAPI uses. A resource with anything else, such as
+ * meta, narrative, extensions or element ids on primitives, is not supported and must be left to HAPI, see
+ * {@link #canEncode(IBaseResource)}. Likewise, parsing gives up and returns null on any member it does not know, so
+ * that HAPI parses the document and reports its errors.
+ */
+final class DemographicsJsonCodec {
+	
+	private static final String PATIENT = "Patient";
+	
+	private static final String PERSON = "Person";
+	
+	private DemographicsJsonCodec() {
+	}
+	
+	static boolean canEncode(IBaseResource resource) {
+		if (resource instanceof Patient) {
+			return canEncode((Patient) resource);
+		} else if (resource instanceof Person) {
+			return canEncode((Person) resource);
+		}
+		
+		return false;
+	}
+	
+	static boolean canParse(Class<?> resourceType) {
+		return resourceType.isAssignableFrom(Patient.class) || resourceType.isAssignableFrom(Person.class);
+	}
+	
+	/**
+	 * Writes and closes the writer, as HAPI does; only supported for resources accepted by
+	 * {@link #canEncode(IBaseResource)}
+	 */
+	static void encode(IBaseResource resource, Writer writer) throws IOException {
+		try (JsonWriter json = new JsonWriter(writer)) {
+			if (resource instanceof Patient) {
+				writePatient((Patient) resource, json);
+			} else {
+				writePerson((Person) resource, json);
+			}
+		}
+	}
+	
+	/**
+	 * @return the parsed resource, or null if the document is not one this codec supports or is not valid
+	 */
+	static IBaseResource parse(Class<?> resourceType, String document) {
+		try (JsonReader json = new JsonReader(new StringReader(document))) {
+			json.beginObject();
+			// the resource type is always written first, a document with it elsewhere is left to HAPI
+			if (!json.hasNext() || !"resourceType".equals(json.nextName())) {
+				return null;
+			}
+			
+			String type = json.nextString();
+			DomainResource result;
+			if (PATIENT.equals(type) && (resourceType == null || resourceType.isAssignableFrom(Patient.class))) {
+				result = readPatient(json);
+			} else if (PERSON.equals(type) && (resourceType == null || resourceType.isAssignableFrom(Person.class))) {
+				result = readPerson(json);
+			} else {
+				return null;
+			}
+			
+			json.endObject();
+			if (json.peek() != JsonToken.END_DOCUMENT) {
+				return null;
+			}
+			
+			// HAPI qualifies the id of a parsed resource with its type
+			if (result.hasIdElement()) {
+				String id = result.getIdElement().getValue();
+				if (id.indexOf('/') >= 0) {
+					return null;
+				}
+				
+				result.setIdElement(new IdType(type, id));
+			}
+			
+			return result;
+		}
+		catch (UnsupportedMemberException | IOException | IllegalStateException | IllegalArgumentException
+		        | FHIRException | DataFormatException e) {
+			return null;
+		}
+	}
+	
+	private static boolean canEncode(Patient patient) {
+		if (!canEncodeResource(patient) || patient.hasLink() || patient.hasTelecom() || patient.hasMaritalStatus()
+		        || patient.hasMultipleBirth() || patient.hasPhoto() || patient.hasContact()
+		        || patient.hasCommunication() || patient.hasGeneralPractitioner()
+		        || patient.hasManagingOrganization()) {
+			return false;
+		}
+		
+		if (patient.hasDeceased()) {
+			Type deceased = patient.getDeceased();
+			if (!(deceased instanceof BooleanType || deceased instanceof DateTimeType)
+			        || !isPlain((PrimitiveType<?>) deceased)) {
+				return false;
+			}
+		}
+		
+		return canEncodeIdentifiers(patient.getIdentifier()) && (!patient.hasActiveElement()
+		        || isPlain(patient.getActiveElement())) && canEncodeNames(patient.getName())
+		        && (!patient.hasGenderElement() || canEncodeGender(patient.getGenderElement()))
+		        && (!patient.hasBirthDateElement() || isPlain(patient.getBirthDateElement()))
+		        && canEncodeAddresses(patient.getAddress());
+	}
+	
+	private static boolean canEncode(Person person) {
+		if (!canEncodeResource(person) || person.hasIdentifier() || person.hasTelecom() || person.hasPhoto()
+		        || person.hasManagingOrganization()) {
+			return false;
+		}
+		
+		for (Person.PersonLinkComponent link : person.getLink()) {
+			if (link.isEmpty() || link.hasId() || link.hasExtension() || link.hasModifierExtension()
+			        || link.hasAssurance() || !link.hasTarget() || !canEncodeTarget(link.getTarget())) {
+				return false;
+			}
+		}
+		
+		return canEncodeNames(person.getName())
+		        && (!person.hasGenderElement() || canEncodeGender(person.getGenderElement()))
+		        && (!person.hasBirthDateElement() || isPlain(person.getBirthDateElement()))
+		        && canEncodeAddresses(person.getAddress())
+		        && (!person.hasActiveElement() || isPlain(person.getActiveElement()));
+	}
+	
+	private static boolean canEncodeResource(DomainResource resource) {
+		if (resource.hasMeta() || resource.hasImplicitRules() || resource.hasLanguage() || resource.hasText()
+		        || resource.hasContained() || resource.hasExtension() || resource.hasModifierExtension()) {
+			return false;
+		}
+		
+		IdType id = resource.getIdElement();
+		return id.isEmpty() || (id.hasIdPart() && !id.hasBaseUrl() && !id.hasVersionIdPart()
+		        && !id.getValue().startsWith("urn:"));
+	}
+	
+	private static boolean canEncodeIdentifiers(List<Identifier> identifiers) {
+		for (Identifier identifier : identifiers) {
+			if (!isPlain(identifier) || identifier.hasType() || identifier.hasPeriod() || identifier.hasAssigner()
+			        || identifier.hasUseElement() && !isPlain(identifier.getUseElement())
+			        || identifier.hasSystemElement() && !isPlain(identifier.getSystemElement())
+			        || identifier.hasValueElement() && !isPlain(identifier.getValueElement())) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	private static boolean canEncodeNames(List<HumanName> names) {
+		for (HumanName name : names) {
+			if (!isPlain(name) || name.hasUse() || name.hasText() || name.hasPrefix() || name.hasSuffix()
+			        || name.hasPeriod() || name.hasFamilyElement() && !isPlain(name.getFamilyElement())) {
+				return false;
+			}
+			
+			for (StringType given : name.getGiven()) {
+				if (!isPlain(given)) {
+					return false;
+				}
+			}
+		}
+		
+		return true;
+	}
+	
+	private static boolean canEncodeAddresses(List<Address> addresses) {
+		for (Address address : addresses) {
+			if (!isPlain(address) || address.hasType() || address.hasText() || address.hasLine()
+			        || address.hasDistrict() || address.hasPeriod()
+			        || address.hasUseElement() && !isPlain(address.getUseElement())
+			        || address.hasCityElement() && !isPlain(address.getCityElement())
+			        || address.hasStateElement() && !isPlain(address.getStateElement())
+			        || address.hasPostalCodeElement() && !isPlain(address.getPostalCodeElement())
+			        || address.hasCountryElement() && !isPlain(address.getCountryElement())) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	private static boolean canEncodeGender(PrimitiveType<Enumerations.AdministrativeGender> gender) {
+		return isPlain(gender) && gender.getValue() != Enumerations.AdministrativeGender.NULL;
+	}
+	
+	/**
+	 * Only the id and the display, which is what the translator sets; HAPI rewrites references relative to the server
+	 */
+	private static boolean canEncodeTarget(Reference target) {
+		return !target.hasExtension() && !target.hasReference() && !target.hasType() && !target.hasIdentifier()
+		        && (!target.hasDisplayElement() || isPlain(target.getDisplayElement()));
+	}
+	
+	/**
+	 * An element present in a list must not be empty, as HAPI would leave it out
+	 */
+	private static boolean isPlain(Element element) {
+		return !element.isEmpty() && !element.hasExtension();
+	}
+	
+	/**
+	 * A primitive is written as its value alone
+	 */
+	private static boolean isPlain(PrimitiveType<?> primitive) {
+		return primitive.hasValue() && !primitive.hasId() && !primitive.hasExtension();
+	}
+	
+	private static void writePatient(Patient patient, JsonWriter json) throws IOException {
+		json.beginObject();
+		json.name("resourceType").value(PATIENT);
+		writeId(patient, json);
+		if (patient.hasIdentifier()) {
+			json.name("identifier").beginArray();
+			for (Identifier identifier : patient.getIdentifier()) {
+				writeIdentifier(identifier, json);
+			}
+			json.endArray();
+		}
+		if (patient.hasActiveElement()) {
+			json.name("active").value(patient.getActive());
+		}
+		writeNames(patient.getName(), json);
+		if (patient.hasGenderElement()) {
+			json.name("gender").value(patient.getGender().toCode());
+		}
+		if (patient.hasBirthDateElement()) {
+			json.name("birthDate").value(patient.getBirthDateElement().getValueAsString());
+		}
+		if (patient.hasDeceased()) {
+			Type deceased = patient.getDeceased();
+			if (deceased instanceof BooleanType) {
+				json.name("deceasedBoolean").value(((BooleanType) deceased).booleanValue());
+			} else {
+				json.name("deceasedDateTime").value(((DateTimeType) deceased).getValueAsString());
+			}
+		}
+		writeAddresses(patient.getAddress(), json);
+		json.endObject();
+	}
+	
+	private static void writePerson(Person person, JsonWriter json) throws IOException {
+		json.beginObject();
+		json.name("resourceType").value(PERSON);
+		writeId(person, json);
+		writeNames(person.getName(), json);
+		if (person.hasGenderElement()) {
+			json.name("gender").value(person.getGender().toCode());
+		}
+		if (person.hasBirthDateElement()) {
+			json.name("birthDate").value(person.getBirthDateElement().getValueAsString());
+		}
+		writeAddresses(person.getAddress(), json);
+		if (person.hasActiveElement()) {
+			json.name("active").value(person.getActive());
+		}
+		if (person.hasLink()) {
+			json.name("link").beginArray();
+			for (Person.PersonLinkComponent link : person.getLink()) {
+				Reference target = link.getTarget();
+				json.beginObject().name("target").beginObject();
+				writeElementId(target, json);
+				writeString("display", target.getDisplayElement(), json);
+				json.endObject().endObject();
+			}
+			json.endArray();
+		}
+		json.endObject();
+	}
+	
+	private static void writeId(DomainResource resource, JsonWriter json) throws IOException {
+		if (!resource.getIdElement().isEmpty()) {
+			json.name("id").value(resource.getIdElement().getIdPart());
+		}
+	}
+	
+	private static void writeElementId(Element element, JsonWriter json) throws IOException {
+		if (element.hasId()) {
+			json.name("id").value(element.getId());
+		}
+	}
+	
+	private static void writeString(String name, PrimitiveType<?> value, JsonWriter json) throws IOException {
+		if (value != null && value.hasValue()) {
+			json.name(name).value(value.getValueAsString());
+		}
+	}
+	
+	private static void writeIdentifier(Identifier identifier, JsonWriter json) throws IOException {
+		json.beginObject();
+		writeElementId(identifier, json);
+		if (identifier.hasUse()) {
+			json.name("use").value(identifier.getUse().toCode());
+		}
+		writeString("system", identifier.getSystemElement(), json);
+		writeString("value", identifier.getValueElement(), json);
+		json.endObject();
+	}
+	
+	private static void writeNames(List<HumanName> names, JsonWriter json) throws IOException {
+		if (names.isEmpty()) {
+			return;
+		}
+		
+		json.name("name").beginArray();
+		for (HumanName name : names) {
+			json.beginObject();
+			writeElementId(name, json);
+			writeString("family", name.getFamilyElement(), json);
+			if (name.hasGiven()) {
+				json.name("given").beginArray();
+				for (StringType given : name.getGiven()) {
+					json.value(given.getValue());
+				}
+				json.endArray();
+			}
+			json.endObject();
+		}
+		json.endArray();
+	}
+	
+	private static void writeAddresses(List<Address> addresses, JsonWriter json) throws IOException {
+		if (addresses.isEmpty()) {
+			return;
+		}
+		
+		json.name("address").beginArray();
+		for (Address address : addresses) {
+			json.beginObject();
+			writeElementId(address, json);
+			if (address.hasUse()) {
+				json.name("use").value(address.getUse().toCode());
+			}
+			writeString("city", address.getCityElement(), json);
+			writeString("state", address.getStateElement(), json);
+			writeString("postalCode", address.getPostalCodeElement(), json);
+			writeString("country", address.getCountryElement(), json);
+			json.endObject();
+		}
+		json.endArray();
+	}
+	
+	private static Patient readPatient(JsonReader json) throws IOException, UnsupportedMemberException {
+		Patient patient = new Patient();
+		Set<String> seen = new HashSet<>();
+		while (json.hasNext()) {
+			String name = nextName(json, seen);
+			switch (name) {
+				case "id":
+					patient.setId(nextString(json));
+					break;
+				case "identifier":
+					json.beginArray();
+					while (json.hasNext()) {
+						patient.addIdentifier(readIdentifier(json));
+					}
+					json.endArray();
+					break;
+				case "active":
+					patient.setActive(json.nextBoolean());
+					break;
+				case "name":
+					readNames(json, patient.getName());
+					break;
+				case "gender":
+					patient.setGender(Enumerations.AdministrativeGender.fromCode(nextString(json)));
+					break;
+				case "birthDate":
+					patient.setBirthDateElement(new DateType(nextString(json)));
+					break;
+				case "deceasedBoolean":
+					checkDeceased(seen);
+					patient.setDeceased(new BooleanType(json.nextBoolean()));
+					break;
+				case "deceasedDateTime":
+					checkDeceased(seen);
+					patient.setDeceased(new DateTimeType(nextString(json)));
+					break;
+				case "address":
+					readAddresses(json, patient.getAddress());
+					break;
+				default:
+					throw new UnsupportedMemberException();
+			}
+		}
+		
+		return patient;
+	}
+	
+	private static Person readPerson(JsonReader json) throws IOException, UnsupportedMemberException {
+		Person person = new Person();
+		Set<String> seen = new HashSet<>();
+		while (json.hasNext()) {
+			String name = nextName(json, seen);
+			switch (name) {
+				case "id":
+					person.setId(nextString(json));
+					break;
+				case "name":
+					readNames(json, person.getName());
+					break;
+				case "gender":
+					person.setGender(Enumerations.AdministrativeGender.fromCode(nextString(json)));
+					break;
+				case "birthDate":
+					person.setBirthDateElement(new DateType(nextString(json)));
+					break;
+				case "address":
+					readAddresses(json, person.getAddress());
+					break;
+				case "active":
+					person.setActive(json.nextBoolean());
+					break;
+				case "link":
+					json.beginArray();
+					while (json.hasNext()) {
+						person.addLink().setTarget(readTarget(json));
+					}
+					json.endArray();
+					break;
+				default:
+					throw new UnsupportedMemberException();
+			}
+		}
+		
+		return person;
+	}
+	
+	private static Identifier readIdentifier(JsonReader json) throws IOException, UnsupportedMemberException {
+		Identifier identifier = new Identifier();
+		Set<String> seen = new HashSet<>();
+		json.beginObject();
+		while (json.hasNext()) {
+			String name = nextName(json, seen);
+			switch (name) {
+				case "id":
+					identifier.setId(nextString(json));
+					break;
+				case "use":
+					identifier.setUse(Identifier.IdentifierUse.fromCode(nextString(json)));
+					break;
+				case "system":
+					identifier.setSystem(nextString(json));
+					break;
+				case "value":
+					identifier.setValue(nextString(json));
+					break;
+				default:
+					throw new UnsupportedMemberException();
+			}
+		}
+		json.endObject();
+		
+		return identifier;
+	}
+	
+	private static void readNames(JsonReader json, List<HumanName> names)
+	        throws IOException, UnsupportedMemberException {
+		json.beginArray();
+		while (json.hasNext()) {
+			HumanName humanName = new HumanName();
+			Set<String> seen = new HashSet<>();
+			json.beginObject();
+			while (json.hasNext()) {
+				String name = nextName(json, seen);
+				switch (name) {
+					case "id":
+						humanName.setId(nextString(json));
+						break;
+					case "family":
+						humanName.setFamily(nextString(json));
+						break;
+					case "given":
+						json.beginArray();
+						while (json.hasNext()) {
+							humanName.addGiven(nextString(json));
+						}
+						json.endArray();
+						break;
+					default:
+						throw new UnsupportedMemberException();
+				}
+			}
+			json.endObject();
+			names.add(humanName);
+		}
+		json.endArray();
+	}
+	
+	private static void readAddresses(JsonReader json, List<Address> addresses)
+	        throws IOException, UnsupportedMemberException {
+		json.beginArray();
+		while (json.hasNext()) {
+			Address address = new Address();
+			Set<String> seen = new HashSet<>();
+			json.beginObject();
+			while (json.hasNext()) {
+				String name = nextName(json, seen);
+				switch (name) {
+					case "id":
+						address.setId(nextString(json));
+						break;
+					case "use":
+						address.setUse(Address.AddressUse.fromCode(nextString(json)));
+						break;
+					case "city":
+						address.setCity(nextString(json));
+						break;
+					case "state":
+						address.setState(nextString(json));
+						break;
+					case "postalCode":
+						address.setPostalCode(nextString(json));
+						break;
+					case "country":
+						address.setCountry(nextString(json));
+						break;
+					default:
+						throw new UnsupportedMemberException();
+				}
+			}
+			json.endObject();
+			addresses.add(address);
+		}
+		json.endArray();
+	}
+	
+	private static Reference readTarget(JsonReader json) throws IOException, UnsupportedMemberException {
+		json.beginObject();
+		if (!json.hasNext() || !"target".equals(json.nextName())) {
+			throw new UnsupportedMemberException();
+		}
+		
+		Reference target = new Reference();
+		Set<String> seen = new HashSet<>();
+		json.beginObject();
+		while (json.hasNext()) {
+			String name = nextName(json, seen);
+			switch (name) {
+				case "id":
+					target.setId(nextString(json));
+					break;
+				case "display":
+					target.setDisplay(nextString(json));
+					break;
+				default:
+					throw new UnsupportedMemberException();
+			}
+		}
+		json.endObject();
+		json.endObject();
+		
+		return target;
+	}
+	
+	/**
+	 * A repeated member is left to HAPI, which decides how to handle it
+	 */
+	private static String nextName(JsonReader json, Set<String> seen) throws IOException, UnsupportedMemberException {
+		String name = json.nextName();
+		if (!seen.add(name)) {
+			throw new UnsupportedMemberException();
+		}
+		
+		return name;
+	}
+	
+	/**
+	 * Empty strings are invalid in FHIR, and a null is read by HAPI as an absent value; both are left to HAPI
+	 */
+	private static String nextString(JsonReader json) throws IOException, UnsupportedMemberException {
+		if (json.peek() != JsonToken.STRING) {
+			throw new UnsupportedMemberException();
+		}
+		
+		String value = json.nextString();
+		if (value.isEmpty()) {
+			throw new UnsupportedMemberException();
+		}
+		
+		return value;
+	}
+	
+	private static void checkDeceased(Set<String> seen) throws UnsupportedMemberException {
+		if (seen.contains("deceasedBoolean") && seen.contains("deceasedDateTime")) {
+			throw new UnsupportedMemberException();
+		}
+	}
+	
+	private static class UnsupportedMemberException extends Exception {
+		
+		private static final long serialVersionUID = 1L;
+		
+		UnsupportedMemberException() {
+			// thrown often enough on fallback that the stack trace is not worth filling in
+			super(null, null, false, false);
+		}
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.json;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.parser.IParserErrorHandler;
+import ca.uhn.fhir.parser.LenientErrorHandler;
+
+/**
+ * The R4 context of the module, whose JSON parsers encode and parse the Patient and Person resources produced by the
+ * translators without HAPI's reflective model traversal, see {@link FastJsonParser}.
+ */
+public class FastJsonFhirContext extends FhirContext {
+	
+	private volatile IParserErrorHandler parserErrorHandler = new LenientErrorHandler();
+	
+	public FastJsonFhirContext() {
+		super(FhirVersionEnum.R4);
+	}
+	
+	@Override
+	public IParser newJsonParser() {
+		return new FastJsonParser(this, parserErrorHandler);
+	}
+	
+	@Override
+	public void setParserErrorHandler(IParserErrorHandler parserErrorHandler) {
+		super.setParserErrorHandler(parserErrorHandler);
+		this.parserErrorHandler = parserErrorHandler;
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.json;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collection;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.parser.IParserErrorHandler;
+import ca.uhn.fhir.parser.JsonParser;
+import com.google.common.io.CharStreams;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * A JSON parser which hands the resources {@link DemographicsJsonCodec} supports to it, and everything else, including
+ * any resource with an element the codec does not know, to HAPI. The codec is only used with HAPI's default encoding
+ * options, i.e. when the output is not pretty printed or restricted to a summary or to some elements, as that is the
+ * output it reproduces.
+ */
+public class FastJsonParser extends JsonParser {
+	
+	private boolean prettyPrint;
+	
+	public FastJsonParser(FhirContext context, IParserErrorHandler parserErrorHandler) {
+		super(context, parserErrorHandler);
+	}
+	
+	@Override
+	public IParser setPrettyPrint(boolean prettyPrint) {
+		this.prettyPrint = prettyPrint;
+		return super.setPrettyPrint(prettyPrint);
+	}
+	
+	@Override
+	public void encodeResourceToWriter(IBaseResource resource, Writer writer) throws IOException, DataFormatException {
+		if (hasDefaultEncoding() && DemographicsJsonCodec.canEncode(resource)) {
+			DemographicsJsonCodec.encode(resource, writer);
+		} else {
+			super.encodeResourceToWriter(resource, writer);
+		}
+	}
+	
+	@Override
+	public String encodeResourceToString(IBaseResource resource) throws DataFormatException {
+		if (!hasDefaultEncoding() || !DemographicsJsonCodec.canEncode(resource)) {
+			return super.encodeResourceToString(resource);
+		}
+		
+		StringWriter writer = new StringWriter();
+		try {
+			DemographicsJsonCodec.encode(resource, writer);
+		}
+		catch (IOException e) {
+			// a StringWriter does not throw
+			throw new DataFormatException(e);
+		}
+		
+		return writer.toString();
+	}
+	
+	@Override
+	public <T extends IBaseResource> T parseResource(Class<T> resourceType, Reader reader) throws DataFormatException {
+		if (resourceType != null && !DemographicsJsonCodec.canParse(resourceType)) {
+			return super.parseResource(resourceType, reader);
+		}
+		
+		// the document is kept, so that HAPI can parse it if the codec cannot
+		String json;
+		try {
+			json = CharStreams.toString(reader);
+		}
+		catch (IOException e) {
+			throw new DataFormatException("Unable to read the resource", e);
+		}
+		
+		IBaseResource parsed = DemographicsJsonCodec.parse(resourceType, json);
+		if (parsed == null) {
+			return super.parseResource(resourceType, new StringReader(json));
+		}
+		
+		@SuppressWarnings("unchecked")
+		T result = resourceType == null ? (T) parsed : resourceType.cast(parsed);
+		return result;
+	}
+	
+	private boolean hasDefaultEncoding() {
+		return !prettyPrint && !isSummaryMode() && !isOmitResourceId() && getEncodeForceResourceId() == null
+		        && isEmpty(getEncodeElements()) && isEmpty(getDontEncodeElements());
+	}
+	
+	private static boolean isEmpty(Collection<?> collection) {
+		return collection == null || collection.isEmpty();
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.patch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * A JSON Patch (RFC 6902) document. The add, remove and replace operations are supported; move, copy and test are not.
+ */
+public class JsonPatch {
+	
+	public static final String ADD = "add";
+	
+	public static final String REMOVE = "remove";
+	
+	public static final String REPLACE = "replace";
+	
+	/**
+	 * The last segment of a path which appends to an array
+	 */
+	public static final String APPEND = "-";
+	
+	private static final List<String> SUPPORTED_OPERATIONS = Arrays.asList(ADD, REMOVE, REPLACE);
+	
+	@Getter
+	@RequiredArgsConstructor
+	public static class Operation {
+		
+		private final String op;
+		
+		/**
+		 * The segments of the path, unescaped
+		 */
+		private final List<String> path;
+		
+		private final JsonElement value;
+		
+		public boolean is(String op) {
+			return this.op.equals(op);
+		}
+	}
+	
+	private JsonPatch() {
+	}
+	
+	/**
+	 * @param patch the JSON Patch document
+	 * @return its operations, in order
+	 * @throws InvalidRequestException if the document is not a valid patch, or uses an unsupported operation
+	 */
+	public static List<Operation> parse(String patch) {
+		JsonElement document;
+		try {
+			document = new JsonParser().parse(patch);
+		}
+		catch (JsonParseException e) {
+			throw new InvalidRequestException("The patch is not valid JSON: " + e.getMessage());
+		}
+		
+		if (!document.isJsonArray()) {
+			throw new InvalidRequestException("A JSON Patch must be an array of operations");
+		}
+		
+		List<Operation> operations = new ArrayList<>();
+		for (JsonElement element : document.getAsJsonArray()) {
+			if (!element.isJsonObject()) {
+				throw new InvalidRequestException("Every operation of a JSON Patch must be an object");
+			}
+			
+			JsonObject operation = element.getAsJsonObject();
+			String op = getString(operation, "op");
+			if (!SUPPORTED_OPERATIONS.contains(op)) {
+				throw new InvalidRequestException("Unsupported patch operation " + op);
+			}
+			
+			JsonElement value = operation.get("value");
+			if (value == null && !REMOVE.equals(op)) {
+				throw new InvalidRequestException("The " + op + " operation needs a value");
+			}
+			
+			operations.add(new Operation(op, parsePath(getString(operation, "path")), value));
+		}
+		
+		return operations;
+	}
+	
+	/**
+	 * Applies an operation to a JSON document at the given path, which may differ from the path of the operation
+	 *
+	 * @param document the document to change
+	 * @param path the segments of the path to apply the operation at
+	 * @param operation the operation to apply
+	 * @throws InvalidRequestException if the path does not exist in the document
+	 */
+	public static void apply(JsonElement document, List<String> path, Operation operation) {
+		JsonElement parent = document;
+		for (String segment : path.subList(0, path.size() - 1)) {
+			parent = getChild(parent, segment);
+			if (parent == null) {
+				throw pathNotFound(path);
+			}
+		}
+		
+		String last = path.get(path.size() - 1);
+		if (parent.isJsonObject()) {
+			JsonObject object = parent.getAsJsonObject();
+			if (!operation.is(ADD) && !object.has(last)) {
+				throw pathNotFound(path);
+			}
+			
+			if (operation.is(REMOVE)) {
+				object.remove(last);
+			} else {
+				object.add(last, operation.getValue());
+			}
+		} else if (parent.isJsonArray()) {
+			JsonArray array = parent.getAsJsonArray();
+			if (operation.is(ADD)) {
+				insert(array, APPEND.equals(last) ? array.size() : index(last, array.size() + 1), operation.getValue());
+			} else if (operation.is(REMOVE)) {
+				array.remove(index(last, array.size()));
+			} else {
+				array.set(index(last, array.size()), operation.getValue());
+			}
+		} else {
+			throw pathNotFound(path);
+		}
+	}
+	
+	/**
+	 * @param segment a path segment addressing an element of an array
+	 * @param size the number of valid indices
+	 * @return the index
+	 * @throws InvalidRequestException if the segment is not an index below size
+	 */
+	public static int index(String segment, int size) {
+		if (segment.isEmpty() || !segment.chars().allMatch(Character::isDigit) || segment.length() > 9
+		        || Integer.parseInt(segment) >= size) {
+			throw new InvalidRequestException("Invalid array index " + segment);
+		}
+		
+		return Integer.parseInt(segment);
+	}
+	
+	private static List<String> parsePath(String path) {
+		if (path.isEmpty()) {
+			return Collections.emptyList();
+		}
+		
+		if (!path.startsWith("/")) {
+			throw new InvalidRequestException("Invalid patch path " + path);
+		}
+		
+		return Arrays.stream(path.substring(1).split("/", -1))
+		        .map(segment -> segment.replace("~1", "/").replace("~0", "~")).collect(Collectors.toList());
+	}
+	
+	private static String getString(JsonObject object, String member) {
+		JsonElement element = object.get(member);
+		if (element == null || !element.isJsonPrimitive() || !element.getAsJsonPrimitive().isString()) {
+			throw new InvalidRequestException("Every operation of a JSON Patch must have a string " + member);
+		}
+		
+		return element.getAsString();
+	}
+	
+	private static JsonElement getChild(JsonElement parent, String segment) {
+		if (parent.isJsonObject()) {
+			return parent.getAsJsonObject().get(segment);
+		} else if (parent.isJsonArray()) {
+			return parent.getAsJsonArray().get(index(segment, parent.getAsJsonArray().size()));
+		}
+		
+		return null;
+	}
+	
+	private static void insert(JsonArray array, int index, JsonElement value) {
+		array.add(value);
+		for (int i = array.size() - 1; i > index; i--) {
+			array.set(i, array.get(i - 1));
+		}
+		
+		array.set(index, value);
+	}
+	
+	private static InvalidRequestException pathNotFound(List<String> path) {
+		return new InvalidRequestException("Path /" + String.join("/", path) + " does not exist");
+	}
+}
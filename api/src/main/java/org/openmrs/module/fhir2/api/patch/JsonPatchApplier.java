@@ -0,0 +1,283 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.patch;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.StrictErrorHandler;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.hl7.fhir.r4.model.Property;
+import org.openmrs.BaseOpenmrsData;
+import org.openmrs.Person;
+import org.openmrs.module.fhir2.api.translators.AddressTranslator;
+import org.openmrs.module.fhir2.api.translators.GenderTranslator;
+import org.openmrs.module.fhir2.api.translators.OpenmrsFhirUpdatableTranslator;
+import org.openmrs.module.fhir2.api.translators.PatientIdentifierTranslator;
+import org.openmrs.module.fhir2.api.translators.PersonNameTranslator;
+import org.springframework.stereotype.Component;
+
+/**
+ * Applies JSON Patches to patients and persons directly, without translating the whole resource. Each operation
+ * changes the one field, name, address or identifier it addresses: an operation within a name, address or identifier
+ * translates only that element to FHIR, patches it and applies it back with its updatable translator, so no other rows
+ * are touched.
+ * <p>
+ * Array indices refer to the order in which the elements appear in the resource as it is read. OpenMRS keeps names,
+ * addresses and identifiers in sets, so added elements are always appended and removed ones are voided.
+ */
+@Component
+@Setter(AccessLevel.PACKAGE)
+public class JsonPatchApplier {
+	
+	private static final String VOID_REASON = "Voided by FHIR module";
+	
+	private static final String NAME = "name";
+	
+	private static final String ADDRESS = "address";
+	
+	private static final String IDENTIFIER = "identifier";
+	
+	private static final String ACTIVE = "active";
+	
+	private static final String BIRTH_DATE = "birthDate";
+	
+	private static final String GENDER = "gender";
+	
+	private static final String DECEASED_BOOLEAN = "deceasedBoolean";
+	
+	private static final String DECEASED_DATE_TIME = "deceasedDateTime";
+	
+	private static final List<String> PERSON_FIELDS = Arrays.asList(ACTIVE, BIRTH_DATE, GENDER);
+	
+	private static final List<String> PATIENT_FIELDS = Arrays.asList(DECEASED_BOOLEAN, DECEASED_DATE_TIME);
+	
+	@Inject
+	@Named("fhirR4")
+	private FhirContext fhirContext;
+	
+	@Inject
+	private PersonNameTranslator nameTranslator;
+	
+	@Inject
+	private AddressTranslator addressTranslator;
+	
+	@Inject
+	private PatientIdentifierTranslator identifierTranslator;
+	
+	@Inject
+	private GenderTranslator genderTranslator;
+	
+	/**
+	 * @param patient the patient to change
+	 * @param patch a JSON Patch of the patient's Patient resource
+	 * @throws InvalidRequestException if the patch is invalid or changes something which cannot be patched
+	 */
+	public void applyToPatient(org.openmrs.Patient patient, String patch) {
+		for (JsonPatch.Operation operation : JsonPatch.parse(patch)) {
+			String element = getElement(operation);
+			if (IDENTIFIER.equals(element)) {
+				patchElement(Patient.class, operation, patient.getActiveIdentifiers(), identifierTranslator,
+				    patient::addIdentifier);
+			} else if (PATIENT_FIELDS.contains(element)) {
+				patchDeceased(patient, (Patient) parseField(Patient.class, operation));
+			} else {
+				apply(Patient.class, patient, operation);
+			}
+		}
+	}
+	
+	/**
+	 * @param person the person to change
+	 * @param patch a JSON Patch of the person's Person resource
+	 * @throws InvalidRequestException if the patch is invalid or changes something which cannot be patched
+	 */
+	public void applyToPerson(Person person, String patch) {
+		for (JsonPatch.Operation operation : JsonPatch.parse(patch)) {
+			apply(org.hl7.fhir.r4.model.Person.class, person, operation);
+		}
+	}
+	
+	private void apply(Class<? extends DomainResource> resourceType, Person person, JsonPatch.Operation operation) {
+		String element = getElement(operation);
+		if (NAME.equals(element)) {
+			patchElement(resourceType, operation, new ArrayList<>(person.getNames()), nameTranslator, person::addName);
+		} else if (ADDRESS.equals(element)) {
+			patchElement(resourceType, operation, new ArrayList<>(person.getAddresses()), addressTranslator,
+			    person::addAddress);
+		} else if (PERSON_FIELDS.contains(element)) {
+			patchField(person, parseField(resourceType, operation), element);
+		} else {
+			throw new InvalidRequestException("Patching " + element + " is not supported");
+		}
+	}
+	
+	private void patchField(Person person, DomainResource fragment, String element) {
+		Object value = getPrimitiveValue(fragment, element);
+		if (ACTIVE.equals(element)) {
+			// a person is active unless it says otherwise
+			boolean voided = Boolean.FALSE.equals(value);
+			if (voided != person.getVoided()) {
+				person.setVoided(voided);
+				person.setVoidReason(voided ? VOID_REASON : null);
+			}
+		} else if (BIRTH_DATE.equals(element)) {
+			person.setBirthdate((Date) value);
+		} else {
+			person.setGender(
+			    value == null ? null : genderTranslator.toOpenmrsType((Enumerations.AdministrativeGender) value));
+		}
+	}
+	
+	private void patchDeceased(org.openmrs.Patient patient, Patient fragment) {
+		if (fragment.hasDeceasedDateTimeType()) {
+			patient.setDead(true);
+			patient.setDeathDate(fragment.getDeceasedDateTimeType().getValue());
+		} else {
+			patient.setDead(fragment.hasDeceasedBooleanType() && fragment.getDeceasedBooleanType().booleanValue());
+			patient.setDeathDate(null);
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private <E extends BaseOpenmrsData, F extends Base> void patchElement(Class<? extends DomainResource> resourceType,
+	        JsonPatch.Operation operation, List<E> currentElements, OpenmrsFhirUpdatableTranslator<E, F> translator,
+	        Consumer<E> adder) {
+		List<String> path = operation.getPath();
+		String element = path.get(0);
+		if (path.size() == 1) {
+			throw new InvalidRequestException("Each " + element + " must be patched by its index");
+		}
+		
+		if (path.size() == 2 && operation.is(JsonPatch.ADD)) {
+			if (!JsonPatch.APPEND.equals(path.get(1))) {
+				JsonPatch.index(path.get(1), currentElements.size() + 1);
+			}
+			
+			E added = translator.toOpenmrsType((F) parseElement(resourceType, element, operation.getValue()));
+			added.setUuid(UUID.randomUUID().toString());
+			adder.accept(added);
+			return;
+		}
+		
+		E current = currentElements.get(JsonPatch.index(path.get(1), currentElements.size()));
+		if (path.size() == 2) {
+			if (operation.is(JsonPatch.REMOVE)) {
+				current.setVoided(true);
+				current.setVoidReason(VOID_REASON);
+			} else {
+				translator.toOpenmrsType(current, (F) parseElement(resourceType, element, operation.getValue()));
+			}
+			
+			return;
+		}
+		
+		// a change within the element: only the element itself is translated, patched and translated back
+		DomainResource projection = newResource(resourceType);
+		projection.setProperty(element, translator.toFhirResource(current));
+		JsonElement json = new JsonParser().parse(fhirContext.newJsonParser().encodeResourceToString(projection));
+		
+		List<String> elementPath = new ArrayList<>(Arrays.asList(element, "0"));
+		elementPath.addAll(path.subList(2, path.size()));
+		JsonPatch.apply(json, elementPath, operation);
+		
+		DomainResource patched = parse(resourceType, json.getAsJsonObject());
+		Property property = patched.getNamedProperty(element);
+		translator.toOpenmrsType(current,
+		    (F) (property.hasValues() ? property.getValues().get(0) : patched.addChild(element)));
+	}
+	
+	private DomainResource parseField(Class<? extends DomainResource> resourceType, JsonPatch.Operation operation) {
+		if (operation.getPath().size() != 1) {
+			throw new InvalidRequestException("Only the whole of " + operation.getPath().get(0) + " can be patched");
+		}
+		
+		JsonObject fragment = newFragment(resourceType);
+		if (!operation.is(JsonPatch.REMOVE)) {
+			fragment.add(operation.getPath().get(0), operation.getValue());
+		}
+		
+		return parse(resourceType, fragment);
+	}
+	
+	private Base parseElement(Class<? extends DomainResource> resourceType, String element, JsonElement value) {
+		JsonArray array = new JsonArray();
+		array.add(value);
+		JsonObject fragment = newFragment(resourceType);
+		fragment.add(element, array);
+		
+		Property property = parse(resourceType, fragment).getNamedProperty(element);
+		if (!property.hasValues()) {
+			throw new InvalidRequestException("The value of the " + element + " is not valid");
+		}
+		
+		return property.getValues().get(0);
+	}
+	
+	/**
+	 * Only a resource holding the patched values is parsed, rather than the whole resource
+	 */
+	private JsonObject newFragment(Class<? extends DomainResource> resourceType) {
+		JsonObject fragment = new JsonObject();
+		fragment.addProperty("resourceType", fhirContext.getResourceDefinition(resourceType).getName());
+		return fragment;
+	}
+	
+	/**
+	 * Patched values are parsed strictly, so that an invalid value is rejected rather than silently dropped
+	 */
+	private DomainResource parse(Class<? extends DomainResource> resourceType, JsonObject json) {
+		try {
+			return fhirContext.newJsonParser().setParserErrorHandler(new StrictErrorHandler())
+			        .parseResource(resourceType, json.toString());
+		}
+		catch (DataFormatException e) {
+			throw new InvalidRequestException("The patched resource is not valid: " + e.getMessage());
+		}
+	}
+	
+	private DomainResource newResource(Class<? extends DomainResource> resourceType) {
+		return (DomainResource) fhirContext.getResourceDefinition(resourceType).newInstance();
+	}
+	
+	private static String getElement(JsonPatch.Operation operation) {
+		if (operation.getPath().isEmpty()) {
+			throw new InvalidRequestException("A patch cannot replace the whole resource, use an update instead");
+		}
+		
+		return operation.getPath().get(0);
+	}
+	
+	private static Object getPrimitiveValue(DomainResource resource, String element) {
+		Property property = resource.getNamedProperty(element);
+		return property != null && property.hasValues() ? ((PrimitiveType<?>) property.getValues().get(0)).getValue()
+		        : null;
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.search;
+
+import java.util.List;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Abstract syntax tree of a FHIR {@code _filter} expression, as produced by {@link FilterParser}
+ */
+public abstract class FilterExpression {
+	
+	private FilterExpression() {
+	}
+	
+	/**
+	 * A single comparison, e.g. {@code family eq "Otieno"}
+	 */
+	@Getter
+	@RequiredArgsConstructor
+	public static class Comparison extends FilterExpression {
+		
+		private final String parameter;
+		
+		private final FilterOperator operator;
+		
+		private final String value;
+	}
+	
+	/**
+	 * Two or more expressions joined with {@code and}
+	 */
+	@Getter
+	@RequiredArgsConstructor
+	public static class And extends FilterExpression {
+		
+		private final List<FilterExpression> operands;
+	}
+	
+	/**
+	 * Two or more expressions joined with {@code or}
+	 */
+	@Getter
+	@RequiredArgsConstructor
+	public static class Or extends FilterExpression {
+		
+		private final List<FilterExpression> operands;
+	}
+	
+	/**
+	 * A negated expression, e.g. {@code not (gender eq male)}
+	 */
+	@Getter
+	@RequiredArgsConstructor
+	public static class Not extends FilterExpression {
+		
+		private final FilterExpression operand;
+	}
+}
@@ -0,0 +1,39 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.search;
+
+/**
+ * The comparison operators of the FHIR {@code _filter} parameter which can be compiled into a database query
+ */
+public enum FilterOperator {
+	EQ,
+	NE,
+	CO,
+	SW,
+	EW,
+	GT,
+	LT,
+	GE,
+	LE;
+	
+	/**
+	 * @param code the operator as it appears in a filter, e.g. {@code eq}
+	 * @return the matching operator or null if the operator is not supported
+	 */
+	public static FilterOperator fromCode(String code) {
+		for (FilterOperator operator : values()) {
+			if (operator.name().equalsIgnoreCase(code)) {
+				return operator;
+			}
+		}
+		
+		return null;
+	}
+}
@@ -0,0 +1,222 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.search;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+
+/**
+ * Parses the subset of the FHIR {@code _filter} syntax which can be compiled into a database query: comparisons of a
+ * parameter with a value, combined with {@code and}, {@code or}, {@code not} and parentheses. {@code and} binds more
+ * tightly than {@code or}.
+ * <p>
+ * Filters are limited in length and in the number of comparisons, and anything outside the supported subset is
+ * rejected with an {@link InvalidRequestException} before any query is run.
+ */
+public class FilterParser {
+	
+	public static final int MAX_FILTER_LENGTH = 2000;
+	
+	public static final int MAX_COMPARISONS = 32;
+	
+	private static final String AND = "and";
+	
+	private static final String OR = "or";
+	
+	private static final String NOT = "not";
+	
+	private final String filter;
+	
+	private int position = 0;
+	
+	private int comparisons = 0;
+	
+	private FilterParser(String filter) {
+		this.filter = filter;
+	}
+	
+	/**
+	 * @param filter the value of a {@code _filter} parameter
+	 * @return the parsed expression
+	 * @throws InvalidRequestException if the filter is malformed or uses unsupported constructs
+	 */
+	public static FilterExpression parse(String filter) {
+		if (filter == null || filter.trim().isEmpty()) {
+			throw new InvalidRequestException("The _filter parameter must not be empty");
+		}
+		
+		if (filter.length() > MAX_FILTER_LENGTH) {
+			throw new InvalidRequestException("The _filter parameter may not be longer than " + MAX_FILTER_LENGTH
+			        + " characters");
+		}
+		
+		FilterParser parser = new FilterParser(filter);
+		FilterExpression expression = parser.parseOr();
+		
+		parser.skipWhitespace();
+		if (parser.position < filter.length()) {
+			throw parser.error("Unexpected input");
+		}
+		
+		return expression;
+	}
+	
+	private FilterExpression parseOr() {
+		List<FilterExpression> operands = new ArrayList<>();
+		operands.add(parseAnd());
+		while (consumeKeyword(OR)) {
+			operands.add(parseAnd());
+		}
+		
+		return operands.size() == 1 ? operands.get(0) : new FilterExpression.Or(operands);
+	}
+	
+	private FilterExpression parseAnd() {
+		List<FilterExpression> operands = new ArrayList<>();
+		operands.add(parseUnary());
+		while (consumeKeyword(AND)) {
+			operands.add(parseUnary());
+		}
+		
+		return operands.size() == 1 ? operands.get(0) : new FilterExpression.And(operands);
+	}
+	
+	private FilterExpression parseUnary() {
+		skipWhitespace();
+		if (consumeKeyword(NOT)) {
+			skipWhitespace();
+			if (!consume('(')) {
+				throw error("Expected ( after not");
+			}
+			
+			return new FilterExpression.Not(parseParenthesized());
+		}
+		
+		if (consume('(')) {
+			return parseParenthesized();
+		}
+		
+		return parseComparison();
+	}
+	
+	private FilterExpression parseParenthesized() {
+		FilterExpression expression = parseOr();
+		skipWhitespace();
+		if (!consume(')')) {
+			throw error("Expected )");
+		}
+		
+		return expression;
+	}
+	
+	private FilterExpression parseComparison() {
+		if (++comparisons > MAX_COMPARISONS) {
+			throw new InvalidRequestException("The _filter parameter may not contain more than " + MAX_COMPARISONS
+			        + " comparisons");
+		}
+		
+		String parameter = readWord();
+		if (parameter.isEmpty()) {
+			throw error("Expected a parameter name");
+		}
+		
+		int operatorPosition = position;
+		String operatorCode = readWord();
+		FilterOperator operator = FilterOperator.fromCode(operatorCode);
+		if (operator == null) {
+			position = operatorPosition;
+			throw error("Unsupported operator '" + operatorCode + "'");
+		}
+		
+		skipWhitespace();
+		String value = peek() == '"' ? readString() : readWord();
+		if (value.isEmpty()) {
+			throw error("Expected a value");
+		}
+		
+		return new FilterExpression.Comparison(parameter, operator, value);
+	}
+	
+	private String readWord() {
+		skipWhitespace();
+		int start = position;
+		while (position < filter.length()) {
+			char c = filter.charAt(position);
+			if (Character.isWhitespace(c) || c == '(' || c == ')' || c == '"') {
+				break;
+			}
+			
+			position++;
+		}
+		
+		return filter.substring(start, position);
+	}
+	
+	private String readString() {
+		int start = position++;
+		StringBuilder value = new StringBuilder();
+		while (position < filter.length()) {
+			char c = filter.charAt(position++);
+			if (c == '"') {
+				return value.toString();
+			}
+			
+			if (c == '\\') {
+				if (position == filter.length()) {
+					break;
+				}
+				
+				c = filter.charAt(position++);
+			}
+			
+			value.append(c);
+		}
+		
+		position = start;
+		throw error("Unterminated string");
+	}
+	
+	private boolean consumeKeyword(String keyword) {
+		skipWhitespace();
+		int end = position + keyword.length();
+		if (end <= filter.length() && filter.regionMatches(true, position, keyword, 0, keyword.length())
+		        && (end == filter.length() || Character.isWhitespace(filter.charAt(end)) || filter.charAt(end) == '(')) {
+			position = end;
+			return true;
+		}
+		
+		return false;
+	}
+	
+	private boolean consume(char c) {
+		if (peek() == c) {
+			position++;
+			return true;
+		}
+		
+		return false;
+	}
+	
+	private char peek() {
+		return position < filter.length() ? filter.charAt(position) : 0;
+	}
+	
+	private void skipWhitespace() {
+		while (position < filter.length() && Character.isWhitespace(filter.charAt(position))) {
+			position++;
+		}
+	}
+	
+	private InvalidRequestException error(String message) {
+		return new InvalidRequestException("Invalid _filter at position " + position + ": " + message);
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.search;
+
+/**
+ * Lets a search be cancelled from another thread, e.g. once the client which asked for it has gone away. The search
+ * registers how to cancel whatever it is blocked on, such as its running statement, and checks
+ * {@link #isCancelled()} between results.
+ */
+public class SearchCancellation {
+	
+	private volatile boolean cancelled;
+	
+	private Runnable canceller;
+	
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	
+	/**
+	 * Cancels the search; this may be called from any thread, and more than once
+	 */
+	public void cancel() {
+		Runnable currentCanceller;
+		synchronized (this) {
+			cancelled = true;
+			currentCanceller = canceller;
+		}
+		
+		if (currentCanceller != null) {
+			currentCanceller.run();
+		}
+	}
+	
+	/**
+	 * @param canceller cancels the work the search is currently doing, or null once there is nothing to cancel; run
+	 *            straight away if the search has already been cancelled
+	 */
+	public void setCanceller(Runnable canceller) {
+		synchronized (this) {
+			this.canceller = canceller;
+			if (!cancelled || canceller == null) {
+				return;
+			}
+		}
+		
+		canceller.run();
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.sync;
+
+import java.nio.charset.StandardCharsets;
+
+import com.google.common.hash.Hashing;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The area an offline sync covers: the patients with an address matching every field which is set
+ */
+@Getter
+@EqualsAndHashCode
+public class SyncArea {
+	
+	private final String city;
+	
+	private final String state;
+	
+	private final String postalCode;
+	
+	private final String country;
+	
+	/**
+	 * @throws IllegalArgumentException if none of the fields is set
+	 */
+	public SyncArea(String city, String state, String postalCode, String country) {
+		this.city = StringUtils.trimToNull(city);
+		this.state = StringUtils.trimToNull(state);
+		this.postalCode = StringUtils.trimToNull(postalCode);
+		this.country = StringUtils.trimToNull(country);
+		
+		if (this.city == null && this.state == null && this.postalCode == null && this.country == null) {
+			throw new IllegalArgumentException("A sync area needs at least one address field");
+		}
+	}
+	
+	/**
+	 * @return a key identifying the area, which can be used as a file name
+	 */
+	public String getKey() {
+		return Hashing.sha256().hashString(toString(), StandardCharsets.UTF_8).toString().substring(0, 32);
+	}
+	
+	@Override
+	public String toString() {
+		return "city=" + StringUtils.defaultString(city) + "|state=" + StringUtils.defaultString(state) + "|postalCode="
+		        + StringUtils.defaultString(postalCode) + "|country=" + StringUtils.defaultString(country);
+	}
+}
@@ -0,0 +1,33 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.sync;
+
+import java.io.File;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * A snapshot of the patients in a {@link SyncArea}, written as NDJSON with a gzipped copy
+ */
+@Getter
+@RequiredArgsConstructor
+public class SyncSnapshot {
+	
+	private final SyncArea area;
+	
+	/**
+	 * The time in milliseconds at which the snapshot was started; every change made since is in the deltas from this
+	 * version
+	 */
+	private final long version;
+	
+	private final File file;
+}
@@ -0,0 +1,273 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.sync;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
+
+import ca.uhn.fhir.context.FhirContext;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Patient;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.api.FhirGlobalPropertyService;
+import org.openmrs.module.fhir2.api.dao.FhirBulkExportDao;
+import org.openmrs.module.fhir2.api.export.BulkExportStorage;
+import org.openmrs.module.fhir2.api.export.NdjsonExportPipeline;
+import org.openmrs.module.fhir2.api.translators.PatientTranslator;
+import org.openmrs.util.OpenmrsUtil;
+import org.springframework.stereotype.Component;
+
+/**
+ * Builds the offline sync snapshots of the areas clients sync, in the background. The first request for an area
+ * queues a build of its snapshot; from then on the snapshot is rebuilt every {@link #REFRESH_INTERVAL} for as long as
+ * the area is requested at least once every {@link #AREA_RETENTION}, so clients always get a recent snapshot without
+ * waiting for one to be built. Snapshots are written with the {@link NdjsonExportPipeline}, as the patients translated
+ * by the {@link PatientTranslator}, and are kept on the node which built them.
+ * <p>
+ * The worker is started by {@link org.openmrs.module.fhir2.FhirActivator} once the module has started.
+ */
+@Component
+@Setter(AccessLevel.PACKAGE)
+public class SyncSnapshotWorker {
+	
+	private static final Log log = LogFactory.getLog(SyncSnapshotWorker.class);
+	
+	private static final long REFRESH_INTERVAL = TimeUnit.HOURS.toMillis(1);
+	
+	private static final long AREA_RETENTION = TimeUnit.DAYS.toMillis(7);
+	
+	private static final long POLL_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+	
+	private static final int PAGE_SIZE = 500;
+	
+	private static final int TRANSLATOR_THREADS = 2;
+	
+	private static final String SNAPSHOT_EXTENSION = ".ndjson";
+	
+	private static final String PARTIAL_FILE_SUFFIX = ".part";
+	
+	@Inject
+	private FhirBulkExportDao dao;
+	
+	@Inject
+	private PatientTranslator patientTranslator;
+	
+	@Inject
+	private FhirGlobalPropertyService globalPropertyService;
+	
+	@Inject
+	@Named("fhirR4")
+	private FhirContext fhirContext;
+	
+	private final Map<SyncArea, AreaState> areas = new ConcurrentHashMap<>();
+	
+	private ScheduledExecutorService scheduler;
+	
+	private ExecutorService builderExecutor;
+	
+	private ExecutorService readerExecutor;
+	
+	private ExecutorService translatorExecutor;
+	
+	private volatile boolean stopping;
+	
+	public synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		
+		stopping = false;
+		scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory("fhir2-sync-scheduler-%d"));
+		// snapshots are built one at a time, so building them never takes more than a few threads from the server
+		builderExecutor = Executors.newSingleThreadExecutor(threadFactory("fhir2-sync-%d"));
+		readerExecutor = Executors.newCachedThreadPool(threadFactory("fhir2-sync-reader-%d"));
+		translatorExecutor = Executors.newFixedThreadPool(TRANSLATOR_THREADS,
+		    threadFactory("fhir2-sync-translator-%d"));
+		
+		scheduler.scheduleWithFixedDelay(this::refreshSnapshots, POLL_INTERVAL, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+	
+	@PreDestroy
+	public synchronized void stop() {
+		if (scheduler == null) {
+			return;
+		}
+		
+		stopping = true;
+		scheduler.shutdownNow();
+		builderExecutor.shutdownNow();
+		readerExecutor.shutdownNow();
+		translatorExecutor.shutdownNow();
+		scheduler = null;
+	}
+	
+	/**
+	 * @param area the area
+	 * @return the latest snapshot of the area, or null if none has been built yet, in which case one is queued
+	 */
+	public SyncSnapshot getSnapshot(SyncArea area) {
+		AreaState state = areas.computeIfAbsent(area, key -> new AreaState(findSnapshot(key)));
+		state.lastRequested = System.currentTimeMillis();
+		if (state.snapshot == null) {
+			queueBuild(area, state);
+		}
+		
+		return state.snapshot;
+	}
+	
+	void refreshSnapshots() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<SyncArea, AreaState> area : areas.entrySet()) {
+			AreaState state = area.getValue();
+			if (now - state.lastRequested > AREA_RETENTION) {
+				// nobody syncs the area any more; its files are kept, so a later request still starts from a snapshot
+				areas.remove(area.getKey());
+			} else if (state.snapshot == null || now - state.snapshot.getVersion() > REFRESH_INTERVAL) {
+				queueBuild(area.getKey(), state);
+			}
+		}
+	}
+	
+	void build(SyncArea area, AreaState state) {
+		long version = System.currentTimeMillis();
+		File directory = getAreaDirectory(area);
+		File file = new File(directory, version + SNAPSHOT_EXTENSION);
+		File partialFile = new File(directory, file.getName() + PARTIAL_FILE_SUFFIX);
+		try {
+			Files.createDirectories(directory.toPath());
+			
+			NdjsonExportPipeline.<Patient> builder()
+			        .reader((lastKey, maxResults) -> dao.getPatientPage(area, lastKey, null, maxResults))
+			        .keyExtractor(Patient::getPatientId).translator(patientTranslator::toFhirResource)
+			        .fhirContext(fhirContext).readerExecutor(readerExecutor).translatorExecutor(translatorExecutor)
+			        .pageSize(PAGE_SIZE).maxPagesInFlight(TRANSLATOR_THREADS * 2).cancelled(() -> stopping).build()
+			        .export(partialFile, written -> {});
+			
+			// the gzipped copy is moved into place first, so it exists whenever the snapshot does
+			File compressedPartialFile = BulkExportStorage.getCompressedFile(partialFile);
+			try (OutputStream out = new GZIPOutputStream(new FileOutputStream(compressedPartialFile))) {
+				Files.copy(partialFile.toPath(), out);
+			}
+			Files.move(compressedPartialFile.toPath(), BulkExportStorage.getCompressedFile(file).toPath(),
+			    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			Files.move(partialFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+			    StandardCopyOption.ATOMIC_MOVE);
+			
+			SyncSnapshot previous = state.snapshot;
+			state.snapshot = new SyncSnapshot(area, version, file);
+			if (previous != null) {
+				// a client may still be downloading the previous snapshot; on most systems the download carries on
+				delete(previous.getFile());
+			}
+		}
+		catch (CancellationException e) {
+			// the worker is stopping
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (IOException | RuntimeException e) {
+			log.error("Could not build the sync snapshot of " + area, e);
+		}
+		finally {
+			delete(partialFile);
+			state.building.set(false);
+		}
+	}
+	
+	private void queueBuild(SyncArea area, AreaState state) {
+		ExecutorService executor = builderExecutor;
+		if (executor != null && !stopping && state.building.compareAndSet(false, true)) {
+			executor.execute(() -> build(area, state));
+		}
+	}
+	
+	/**
+	 * @return the latest snapshot of the area on disk, e.g. from before a restart, or null if there is none
+	 */
+	private SyncSnapshot findSnapshot(SyncArea area) {
+		File[] files = getAreaDirectory(area).listFiles((dir, name) -> name.matches("\\d+\\" + SNAPSHOT_EXTENSION));
+		if (files == null) {
+			return null;
+		}
+		
+		SyncSnapshot latest = null;
+		for (File file : files) {
+			long version = Long.parseLong(file.getName().substring(0, file.getName().indexOf('.')));
+			if (latest == null || version > latest.getVersion()) {
+				latest = new SyncSnapshot(area, version, file);
+			}
+		}
+		
+		return latest;
+	}
+	
+	private File getAreaDirectory(SyncArea area) {
+		String directory = globalPropertyService.getGlobalProperty(FhirConstants.SYNC_DIRECTORY_PROPERTY,
+		    (String) null);
+		if (directory == null) {
+			directory = OpenmrsUtil.getApplicationDataDirectory() + File.separator + "fhir2" + File.separator + "sync";
+		}
+		
+		return new File(directory, area.getKey());
+	}
+	
+	private static void delete(File file) {
+		try {
+			Files.deleteIfExists(file.toPath());
+			Files.deleteIfExists(BulkExportStorage.getCompressedFile(file).toPath());
+		}
+		catch (IOException e) {
+			log.warn("Could not delete " + file, e);
+		}
+	}
+	
+	private static ThreadFactory threadFactory(String nameFormat) {
+		return new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build();
+	}
+	
+	/**
+	 * What the worker knows about an area
+	 */
+	static final class AreaState {
+		
+		private volatile SyncSnapshot snapshot;
+		
+		private volatile long lastRequested;
+		
+		private final AtomicBoolean building = new AtomicBoolean();
+		
+		private AreaState(SyncSnapshot snapshot) {
+			this.snapshot = snapshot;
+		}
+	}
+}
@@ -0,0 +1,28 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.translators;
+
+/**
+ * Generic interface for a translator which can apply a FHIR resource to existing OpenMRS data
+ *
+ * @param <T> OpenMRS data type
+ * @param <U> FHIR resource type
+ */
+public interface OpenmrsFhirUpdatableTranslator<T, U> extends OpenmrsFhirTranslator<T, U> {
+	
+	/**
+	 * Updates an existing OpenMRS data element to match a FHIR resource, changing only what differs
+	 *
+	 * @param currentData the OpenMRS data element to update
+	 * @param resource the FHIR resource to apply
+	 * @return the updated OpenMRS data element
+	 */
+	T toOpenmrsType(T currentData, U resource);
+}
@@ -9,10 +9,13 @@
  */
 package org.openmrs.module.fhir2.api.translators;
 
+import java.util.function.Function;
+
 import org.hl7.fhir.r4.model.Identifier;
 import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
 
-public interface PatientIdentifierTranslator extends OpenmrsFhirTranslator<PatientIdentifier, Identifier> {
+public interface PatientIdentifierTranslator extends OpenmrsFhirUpdatableTranslator<PatientIdentifier, Identifier> {
 	
 	/**
 	 * Maps a {@link PatientIdentifier} to a FHIR {@link Identifier}
@@ -31,4 +34,26 @@ public interface PatientIdentifierTranslator extends OpenmrsFhirTranslator<Patie
 	 */
 	@Override
 	PatientIdentifier toOpenmrsType(Identifier identifier);
+	
+	/**
+	 * Updates a {@link PatientIdentifier} to match an {@link Identifier}, setting only what differs. The identifier
+	 * type is only looked up if the system has changed.
+	 * 
+	 * @param currentIdentifier the patient identifier to update
+	 * @param identifier the FHIR identifier to apply
+	 * @return the updated OpenMRS patient identifier
+	 */
+	@Override
+	PatientIdentifier toOpenmrsType(PatientIdentifier currentIdentifier, Identifier identifier);
+	
+	/**
+	 * Maps a {@link Identifier} to a {@link PatientIdentifier}, resolving its identifier type with the given resolver
+	 * instead of looking it up, e.g. when the identifier types of many identifiers have been looked up at once
+	 * 
+	 * @param identifier the identifier to translate
+	 * @param identifierTypeResolver returns the identifier type of an identifier, or null if it has none
+	 * @return the corresponding OpenMRS patient identifier
+	 */
+	PatientIdentifier toOpenmrsType(Identifier identifier,
+	        Function<Identifier, PatientIdentifierType> identifierTypeResolver);
 }
@@ -9,9 +9,13 @@
  */
 package org.openmrs.module.fhir2.api.translators;
 
+import java.util.function.Function;
+
+import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.Patient;
+import org.openmrs.PatientIdentifierType;
 
-public interface PatientTranslator extends OpenmrsFhirTranslator<org.openmrs.Patient, org.hl7.fhir.r4.model.Patient> {
+public interface PatientTranslator extends OpenmrsFhirUpdatableTranslator<org.openmrs.Patient, Patient> {
 	
 	/**
 	 * Maps a {@link org.openmrs.Patient} to a {@link Patient}
@@ -30,4 +34,27 @@ public interface PatientTranslator extends OpenmrsFhirTranslator<org.openmrs.Pat
 	 */
 	@Override
 	org.openmrs.Patient toOpenmrsType(Patient patient);
+	
+	/**
+	 * Updates an existing {@link org.openmrs.Patient} to match a {@link Patient}. Names, addresses and identifiers are
+	 * matched by their id, or else by their content; matched ones are only changed where they differ, new ones are
+	 * added and those which are no longer present are voided.
+	 * 
+	 * @param currentPatient the patient to update
+	 * @param patient the FHIR patient to apply
+	 * @return the updated OpenMRS patient
+	 */
+	@Override
+	org.openmrs.Patient toOpenmrsType(org.openmrs.Patient currentPatient, Patient patient);
+	
+	/**
+	 * Maps a {@link Patient} to a {@link org.openmrs.Patient}, resolving the identifier types of its identifiers with
+	 * the given resolver, see {@link PatientIdentifierTranslator#toOpenmrsType(Identifier, Function)}
+	 * 
+	 * @param patient the FHIR patient to map
+	 * @param identifierTypeResolver returns the identifier type of an identifier, or null if it has none
+	 * @return the corresponding OpenMRS patient
+	 */
+	org.openmrs.Patient toOpenmrsType(Patient patient,
+	        Function<Identifier, PatientIdentifierType> identifierTypeResolver);
 }
@@ -12,7 +12,7 @@ package org.openmrs.module.fhir2.api.translators;
 import org.hl7.fhir.r4.model.HumanName;
 import org.openmrs.PersonName;
 
-public interface PersonNameTranslator extends OpenmrsFhirTranslator<org.openmrs.PersonName, org.hl7.fhir.r4.model.HumanName> {
+public interface PersonNameTranslator extends OpenmrsFhirUpdatableTranslator<PersonName, HumanName> {
 	
 	/**
 	 * Maps a {@link PersonName} to a {@link HumanName}
@@ -31,4 +31,14 @@ public interface PersonNameTranslator extends OpenmrsFhirTranslator<org.openmrs.
 	 */
 	@Override
 	PersonName toOpenmrsType(HumanName name);
+	
+	/**
+	 * Updates a {@link PersonName} to match a {@link HumanName}, setting only the parts which differ
+	 * 
+	 * @param currentName the name to update
+	 * @param name the FHIR name to apply
+	 * @return the updated OpenMRS name
+	 */
+	@Override
+	PersonName toOpenmrsType(PersonName currentName, HumanName name);
 }
@@ -9,6 +9,10 @@
  */
 package org.openmrs.module.fhir2.api.translators.impl;
 
+import static org.openmrs.module.fhir2.api.translators.impl.TranslatorUtils.sameText;
+
+import java.util.Objects;
+
 import org.hl7.fhir.r4.model.Address;
 import org.openmrs.PersonAddress;
 import org.openmrs.module.fhir2.api.translators.AddressTranslator;
@@ -51,4 +55,30 @@ public class AddressTranslatorImpl implements AddressTranslator {
 		
 		return personAddress;
 	}
+	
+	@Override
+	public PersonAddress toOpenmrsType(PersonAddress currentAddress, Address address) {
+		PersonAddress incoming = toOpenmrsType(address);
+		if (!sameText(currentAddress.getCityVillage(), incoming.getCityVillage())) {
+			currentAddress.setCityVillage(incoming.getCityVillage());
+		}
+		
+		if (!sameText(currentAddress.getStateProvince(), incoming.getStateProvince())) {
+			currentAddress.setStateProvince(incoming.getStateProvince());
+		}
+		
+		if (!sameText(currentAddress.getCountry(), incoming.getCountry())) {
+			currentAddress.setCountry(incoming.getCountry());
+		}
+		
+		if (!sameText(currentAddress.getPostalCode(), incoming.getPostalCode())) {
+			currentAddress.setPostalCode(incoming.getPostalCode());
+		}
+		
+		if (!Objects.equals(currentAddress.getPreferred(), incoming.getPreferred())) {
+			currentAddress.setPreferred(incoming.getPreferred());
+		}
+		
+		return currentAddress;
+	}
 }
@@ -11,6 +11,9 @@ package org.openmrs.module.fhir2.api.translators.impl;
 
 import javax.inject.Inject;
 
+import java.util.Objects;
+import java.util.function.Function;
+
 import lombok.AccessLevel;
 import lombok.Setter;
 import org.hl7.fhir.r4.model.Identifier;
@@ -51,6 +54,12 @@ public class PatientIdentifierTranslatorImpl implements PatientIdentifierTransla
 	
 	@Override
 	public PatientIdentifier toOpenmrsType(Identifier identifier) {
+		return toOpenmrsType(identifier, patientService::getPatientIdentifierTypeByIdentifier);
+	}
+	
+	@Override
+	public PatientIdentifier toOpenmrsType(Identifier identifier,
+	        Function<Identifier, PatientIdentifierType> identifierTypeResolver) {
 		if (identifier == null) {
 			return null;
 		}
@@ -65,7 +74,7 @@ public class PatientIdentifierTranslatorImpl implements PatientIdentifierTransla
 			patientIdentifier.setPreferred(false);
 		}
 		
-		PatientIdentifierType type = patientService.getPatientIdentifierTypeByIdentifier(identifier);
+		PatientIdentifierType type = identifierTypeResolver.apply(identifier);
 		if (type == null) {
 			// TODO implement error handling
 			throw new APIException("cannot find identifier type for ");
@@ -75,4 +84,22 @@ public class PatientIdentifierTranslatorImpl implements PatientIdentifierTransla
 		
 		return patientIdentifier;
 	}
+	
+	@Override
+	public PatientIdentifier toOpenmrsType(PatientIdentifier currentIdentifier, Identifier identifier) {
+		if (!currentIdentifier.getIdentifierType().getName().equals(identifier.getSystem())) {
+			currentIdentifier.setIdentifierType(toOpenmrsType(identifier).getIdentifierType());
+		}
+		
+		if (!Objects.equals(currentIdentifier.getIdentifier(), identifier.getValue())) {
+			currentIdentifier.setIdentifier(identifier.getValue());
+		}
+		
+		boolean preferred = Identifier.IdentifierUse.OFFICIAL.equals(identifier.getUse());
+		if (preferred != currentIdentifier.getPreferred()) {
+			currentIdentifier.setPreferred(preferred);
+		}
+		
+		return currentIdentifier;
+	}
 }
@@ -9,8 +9,19 @@
  */
 package org.openmrs.module.fhir2.api.translators.impl;
 
+import static org.openmrs.module.fhir2.api.translators.impl.TranslatorUtils.sameDate;
+import static org.openmrs.module.fhir2.api.translators.impl.TranslatorUtils.sameText;
+
 import javax.inject.Inject;
 
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
 import lombok.AccessLevel;
 import lombok.Setter;
 import org.hl7.fhir.exceptions.FHIRException;
@@ -20,7 +31,9 @@ import org.hl7.fhir.r4.model.DateTimeType;
 import org.hl7.fhir.r4.model.HumanName;
 import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.Patient;
+import org.openmrs.BaseOpenmrsData;
 import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
 import org.openmrs.PersonAddress;
 import org.openmrs.PersonName;
 import org.openmrs.module.fhir2.api.translators.AddressTranslator;
@@ -34,6 +47,8 @@ import org.springframework.stereotype.Component;
 @Setter(AccessLevel.PACKAGE)
 public class PatientTranslatorImpl implements PatientTranslator {
 	
+	private static final String VOID_REASON = "Voided by FHIR module";
+	
 	@Inject
 	private PatientIdentifierTranslator identifierTranslator;
 	
@@ -86,14 +101,21 @@ public class PatientTranslatorImpl implements PatientTranslator {
 	
 	@Override
 	public org.openmrs.Patient toOpenmrsType(Patient fhirPatient) {
+		return toOpenmrsType(fhirPatient, null);
+	}
+	
+	@Override
+	public org.openmrs.Patient toOpenmrsType(Patient fhirPatient,
+	        Function<Identifier, PatientIdentifierType> identifierTypeResolver) {
 		org.openmrs.Patient patient = new org.openmrs.Patient();
 		
 		patient.setUuid(fhirPatient.getId());
 		patient.setBirthdate(fhirPatient.getBirthDate());
 		
-		if (!fhirPatient.getActive()) {
+		// a patient is active unless it says otherwise
+		if (fhirPatient.hasActive() && !fhirPatient.getActive()) {
 			patient.setVoided(true);
-			patient.setVoidReason("Voided by FHIR module");
+			patient.setVoidReason(VOID_REASON);
 		}
 		
 		if (fhirPatient.getDeceased() != null) {
@@ -114,7 +136,8 @@ public class PatientTranslatorImpl implements PatientTranslator {
 		}
 		
 		for (Identifier identifier : fhirPatient.getIdentifier()) {
-			patient.addIdentifier(identifierTranslator.toOpenmrsType(identifier));
+			patient.addIdentifier(identifierTypeResolver == null ? identifierTranslator.toOpenmrsType(identifier)
+			        : identifierTranslator.toOpenmrsType(identifier, identifierTypeResolver));
 		}
 		
 		for (HumanName name : fhirPatient.getName()) {
@@ -131,4 +154,147 @@ public class PatientTranslatorImpl implements PatientTranslator {
 		
 		return patient;
 	}
+	
+	@Override
+	public org.openmrs.Patient toOpenmrsType(org.openmrs.Patient currentPatient, Patient fhirPatient) {
+		// only what differs is set, so Hibernate's dirty checking writes only the rows which actually changed
+		if (!sameDate(currentPatient.getBirthdate(), fhirPatient.getBirthDate())) {
+			currentPatient.setBirthdate(fhirPatient.getBirthDate());
+		}
+		
+		boolean voided = fhirPatient.hasActive() && !fhirPatient.getActive();
+		if (voided != currentPatient.getVoided()) {
+			currentPatient.setVoided(voided);
+			currentPatient.setVoidReason(voided ? VOID_REASON : null);
+			if (!voided) {
+				currentPatient.setVoidedBy(null);
+				currentPatient.setDateVoided(null);
+			}
+		}
+		
+		boolean dead = false;
+		Date deathDate = null;
+		if (fhirPatient.hasDeceasedBooleanType()) {
+			dead = fhirPatient.getDeceasedBooleanType().booleanValue();
+		} else if (fhirPatient.hasDeceasedDateTimeType()) {
+			dead = true;
+			deathDate = fhirPatient.getDeceasedDateTimeType().getValue();
+		}
+		
+		if (dead != currentPatient.getDead()) {
+			currentPatient.setDead(dead);
+		}
+		
+		if (!sameDate(currentPatient.getDeathDate(), deathDate)) {
+			currentPatient.setDeathDate(deathDate);
+		}
+		
+		String gender = fhirPatient.getGender() == null ? null
+		        : genderTranslator.toOpenmrsType(fhirPatient.getGender());
+		if (!Objects.equals(currentPatient.getGender(), gender)) {
+			currentPatient.setGender(gender);
+		}
+		
+		updateIdentifiers(currentPatient, fhirPatient.getIdentifier());
+		updateNames(currentPatient, fhirPatient.getName());
+		updateAddresses(currentPatient, fhirPatient.getAddress());
+		
+		return currentPatient;
+	}
+	
+	private void updateIdentifiers(org.openmrs.Patient currentPatient, List<Identifier> identifiers) {
+		List<PatientIdentifier> unmatched = currentPatient.getActiveIdentifiers();
+		for (Identifier identifier : identifiers) {
+			// matching by content needs no identifier type, so unchanged identifiers cost no lookups
+			PatientIdentifier current = removeMatch(unmatched, identifier.getId(),
+			    candidate -> candidate.getIdentifierType().getName().equals(identifier.getSystem())
+			            && Objects.equals(candidate.getIdentifier(), identifier.getValue()));
+			if (current == null) {
+				PatientIdentifier added = identifierTranslator.toOpenmrsType(identifier);
+				added.setUuid(UUID.randomUUID().toString());
+				currentPatient.addIdentifier(added);
+				continue;
+			}
+			
+			identifierTranslator.toOpenmrsType(current, identifier);
+		}
+		
+		unmatched.forEach(PatientTranslatorImpl::voidData);
+	}
+	
+	private void updateNames(org.openmrs.Patient currentPatient, List<HumanName> names) {
+		List<PersonName> unmatched = currentPatient.getNames().stream().filter(name -> !name.getVoided())
+		        .collect(Collectors.toList());
+		for (HumanName name : names) {
+			PersonName incoming = nameTranslator.toOpenmrsType(name);
+			PersonName current = removeMatch(unmatched, name.getId(), candidate -> sameName(candidate, incoming));
+			if (current == null) {
+				incoming.setUuid(UUID.randomUUID().toString());
+				currentPatient.addName(incoming);
+				continue;
+			}
+			
+			nameTranslator.toOpenmrsType(current, name);
+		}
+		
+		unmatched.forEach(PatientTranslatorImpl::voidData);
+	}
+	
+	private void updateAddresses(org.openmrs.Patient currentPatient, List<Address> addresses) {
+		List<PersonAddress> unmatched = currentPatient.getAddresses().stream().filter(address -> !address.getVoided())
+		        .collect(Collectors.toList());
+		for (Address address : addresses) {
+			PersonAddress incoming = addressTranslator.toOpenmrsType(address);
+			PersonAddress current = removeMatch(unmatched, address.getId(),
+			    candidate -> sameAddress(candidate, incoming));
+			if (current == null) {
+				incoming.setUuid(UUID.randomUUID().toString());
+				currentPatient.addAddress(incoming);
+				continue;
+			}
+			
+			addressTranslator.toOpenmrsType(current, address);
+		}
+		
+		unmatched.forEach(PatientTranslatorImpl::voidData);
+	}
+	
+	/**
+	 * Removes and returns the element with the given id, or else the first one with the same content
+	 */
+	private static <T extends BaseOpenmrsData> T removeMatch(List<T> candidates, String id,
+	        Predicate<T> sameContent) {
+		T match = null;
+		if (id != null) {
+			match = candidates.stream().filter(candidate -> id.equals(candidate.getUuid())).findFirst().orElse(null);
+		}
+		
+		if (match == null) {
+			match = candidates.stream().filter(sameContent).findFirst().orElse(null);
+		}
+		
+		if (match != null) {
+			candidates.remove(match);
+		}
+		
+		return match;
+	}
+	
+	private static boolean sameName(PersonName current, PersonName incoming) {
+		return sameText(current.getGivenName(), incoming.getGivenName())
+		        && sameText(current.getMiddleName(), incoming.getMiddleName())
+		        && sameText(current.getFamilyName(), incoming.getFamilyName());
+	}
+	
+	private static boolean sameAddress(PersonAddress current, PersonAddress incoming) {
+		return sameText(current.getCityVillage(), incoming.getCityVillage())
+		        && sameText(current.getStateProvince(), incoming.getStateProvince())
+		        && sameText(current.getCountry(), incoming.getCountry())
+		        && sameText(current.getPostalCode(), incoming.getPostalCode());
+	}
+	
+	private static void voidData(BaseOpenmrsData data) {
+		data.setVoided(true);
+		data.setVoidReason(VOID_REASON);
+	}
 }
@@ -9,6 +9,8 @@
  */
 package org.openmrs.module.fhir2.api.translators.impl;
 
+import static org.openmrs.module.fhir2.api.translators.impl.TranslatorUtils.sameText;
+
 import java.util.List;
 
 import org.hl7.fhir.r4.model.HumanName;
@@ -69,4 +71,22 @@ public class PersonNameTranslatorImpl implements PersonNameTranslator {
 		
 		return personName;
 	}
+	
+	@Override
+	public PersonName toOpenmrsType(PersonName currentName, HumanName name) {
+		PersonName incoming = toOpenmrsType(name);
+		if (!sameText(currentName.getGivenName(), incoming.getGivenName())) {
+			currentName.setGivenName(incoming.getGivenName());
+		}
+		
+		if (!sameText(currentName.getMiddleName(), incoming.getMiddleName())) {
+			currentName.setMiddleName(incoming.getMiddleName());
+		}
+		
+		if (!sameText(currentName.getFamilyName(), incoming.getFamilyName())) {
+			currentName.setFamilyName(incoming.getFamilyName());
+		}
+		
+		return currentName;
+	}
 }
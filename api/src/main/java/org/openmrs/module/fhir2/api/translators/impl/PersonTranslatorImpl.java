@@ -95,7 +95,11 @@ public class PersonTranslatorImpl implements PersonTranslator {
 		Person openmrsPerson = new Person();
 		if (person != null) {
 			openmrsPerson.setUuid(person.getId());
-			openmrsPerson.setVoided(person.getActive());
+			// a person is active unless it says otherwise
+			if (person.hasActive() && !person.getActive()) {
+				openmrsPerson.setVoided(true);
+				openmrsPerson.setVoidReason("Voided by FHIR module");
+			}
 			openmrsPerson.setBirthdate(person.getBirthDate());
 
 			if (person.getGender() != null) {
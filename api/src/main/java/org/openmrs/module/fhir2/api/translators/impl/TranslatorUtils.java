@@ -0,0 +1,37 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.translators.impl;
+
+import java.util.Date;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Comparisons used when applying a FHIR resource to existing OpenMRS data, so that only values which differ are set
+ */
+final class TranslatorUtils {
+	
+	private TranslatorUtils() {
+	}
+	
+	/**
+	 * Missing and empty values are the same, as FHIR has no empty strings
+	 */
+	static boolean sameText(String current, String incoming) {
+		return StringUtils.defaultString(current).equals(StringUtils.defaultString(incoming));
+	}
+	
+	/**
+	 * Compares instants, as dates loaded by Hibernate are {@link java.sql.Timestamp}s, which never equal a {@link Date}
+	 */
+	static boolean sameDate(Date current, Date incoming) {
+		return current == null ? incoming == null : incoming != null && current.getTime() == incoming.getTime();
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.auth;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.Privilege;
+import org.openmrs.Role;
+import org.openmrs.User;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.api.FhirGlobalPropertyService;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BearerTokensTest {
+	
+	private static final String USER_UUID = "c98a1558-e131-11de-babe-001e378eb67e";
+	
+	private static final String SIGNING_KEY = Base64.getEncoder().encodeToString(new byte[32]);
+	
+	private static final String PRIVILEGE = "Get Patients";
+	
+	private static final Instant NOW = Instant.parse("2019-12-20T10:00:00Z");
+	
+	@Mock
+	private FhirGlobalPropertyService globalPropertyService;
+	
+	private final Properties runtimeProperties = new Properties();
+	
+	private BearerTokens bearerTokens;
+	
+	private User user;
+	
+	@Before
+	public void setup() {
+		bearerTokens = new BearerTokens();
+		bearerTokens.setGlobalPropertyService(globalPropertyService);
+		bearerTokens.setRuntimeProperties(() -> runtimeProperties);
+		bearerTokens.setClock(Clock.fixed(NOW, ZoneOffset.UTC));
+		
+		runtimeProperties.setProperty(FhirConstants.TOKEN_SIGNING_KEY_RUNTIME_PROPERTY, SIGNING_KEY);
+		when(globalPropertyService.getGlobalProperty(eq(FhirConstants.TOKEN_LIFETIME_SECONDS_PROPERTY), anyInt()))
+		        .thenReturn(3600);
+		
+		Role role = new Role("Clerk");
+		role.setPrivileges(Collections.singleton(new Privilege(PRIVILEGE)));
+		user = new User(501);
+		user.setUuid(USER_UUID);
+		user.setUsername("clerk");
+		user.setRoles(Collections.singleton(role));
+	}
+	
+	@Test
+	public void shouldRestoreUserFromToken() {
+		User verified = bearerTokens.verify(bearerTokens.issue(user));
+		
+		assertThat(verified, notNullValue());
+		assertThat(verified.getUserId(), equalTo(501));
+		assertThat(verified.getUuid(), equalTo(USER_UUID));
+		assertThat(verified.getUsername(), equalTo("clerk"));
+		assertThat(verified.hasRole("Clerk"), is(true));
+		assertThat(verified.hasPrivilege(PRIVILEGE), is(true));
+		assertThat(verified.hasPrivilege("Delete Patients"), is(false));
+	}
+	
+	@Test
+	public void shouldRejectExpiredToken() {
+		String token = bearerTokens.issue(user);
+		bearerTokens.setClock(Clock.fixed(NOW.plusSeconds(3600), ZoneOffset.UTC));
+		
+		assertThat(bearerTokens.verify(token), nullValue());
+	}
+	
+	@Test
+	public void shouldRejectTamperedToken() {
+		String[] parts = bearerTokens.issue(user).split("\\.");
+		String claims = new String(Base64.getUrlDecoder().decode(parts[1])).replace("501", "1");
+		String tampered = parts[0] + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(claims.getBytes())
+		        + "." + parts[2];
+		
+		assertThat(bearerTokens.verify(tampered), nullValue());
+	}
+	
+	@Test
+	public void shouldRejectMalformedToken() {
+		assertThat(bearerTokens.verify("not.a.token"), nullValue());
+		assertThat(bearerTokens.verify("garbage"), nullValue());
+	}
+	
+	@Test
+	public void shouldBeEnabledWithSigningKeyInRuntimeProperties() {
+		assertThat(bearerTokens.isEnabled(), is(true));
+	}
+	
+	@Test
+	public void shouldBeDisabledWithoutSigningKey() {
+		runtimeProperties.remove(FhirConstants.TOKEN_SIGNING_KEY_RUNTIME_PROPERTY);
+		
+		assertThat(bearerTokens.isEnabled(), is(false));
+	}
+	
+	@Test
+	public void shouldBeDisabledWithShortSigningKey() {
+		runtimeProperties.setProperty(FhirConstants.TOKEN_SIGNING_KEY_RUNTIME_PROPERTY,
+		    Base64.getEncoder().encodeToString(new byte[16]));
+		
+		assertThat(bearerTokens.isEnabled(), is(false));
+	}
+}
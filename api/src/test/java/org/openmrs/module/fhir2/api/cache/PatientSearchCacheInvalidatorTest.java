@@ -0,0 +1,153 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.cache;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.hibernate.SessionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.PersonName;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.TestFhirSpringConfiguration;
+import org.openmrs.module.fhir2.api.FhirGlobalPropertyService;
+import org.openmrs.module.fhir2.api.dao.FhirPatientDao;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+@ContextConfiguration(classes = TestFhirSpringConfiguration.class, inheritLocations = false)
+public class PatientSearchCacheInvalidatorTest extends BaseModuleContextSensitiveTest {
+	
+	private static final String PATIENT_UUID = "da7f524f-27ce-4bb2-86d6-6d1d05312bd5";
+	
+	private static final String PARAMETER = org.hl7.fhir.r4.model.Patient.SP_GIVEN;
+	
+	private static final String PATIENT_GIVEN_NAME = "Horatio";
+	
+	@Inject
+	private FhirPatientDao dao;
+	
+	@Inject
+	private PatientSearchCacheInvalidator invalidator;
+	
+	@Inject
+	private PatientSearchCache registeredSearchCache;
+	
+	@Inject
+	@Named("sessionFactory")
+	private SessionFactory sessionFactory;
+	
+	@Inject
+	private PlatformTransactionManager transactionManager;
+	
+	private PatientSearchCache searchCache;
+	
+	@Before
+	public void setup() {
+		FhirGlobalPropertyService globalPropertyService = mock(FhirGlobalPropertyService.class);
+		when(globalPropertyService.getGlobalProperty(FhirConstants.SEARCH_CACHE_ENABLED_PROPERTY, false)).thenReturn(true);
+		when(globalPropertyService.getGlobalProperty(eq(FhirConstants.SEARCH_CACHE_TTL_PROPERTY), anyInt())).thenReturn(30);
+		when(globalPropertyService.getGlobalProperty(eq(FhirConstants.SEARCH_CACHE_MAX_ENTRIES_PROPERTY), anyInt()))
+		        .thenReturn(100);
+		
+		searchCache = new PatientSearchCache();
+		searchCache.setGlobalPropertyService(globalPropertyService);
+		invalidator.setSearchCache(searchCache);
+	}
+	
+	@After
+	public void tearDown() {
+		invalidator.setSearchCache(registeredSearchCache);
+	}
+	
+	@Test
+	public void shouldNotReturnCachedResultOnceANameIsSaved() {
+		cacheSearchByGivenName();
+		
+		inCompletedTransaction(patient -> patient.addName(new PersonName(PATIENT_GIVEN_NAME, null, "Hornblowing")));
+		
+		assertThat(searchCache.get(PARAMETER, PATIENT_GIVEN_NAME), nullValue());
+	}
+	
+	@Test
+	public void shouldNotReturnCachedResultOnceANameIsVoided() {
+		long generation = cacheSearchByGivenName();
+		
+		inCompletedTransaction(patient -> {
+			PersonName name = patient.getPersonName();
+			name.setVoided(true);
+			name.setVoidReason("test");
+		});
+		
+		assertThat(searchCache.get(PARAMETER, PATIENT_GIVEN_NAME), nullValue());
+		assertThat(searchCache.getGeneration(), greaterThan(generation));
+	}
+	
+	@Test
+	public void shouldKeepCachedResultWhenNoNameChanges() {
+		cacheSearchByGivenName();
+		
+		inCompletedTransaction(patient -> {});
+		
+		assertThat(searchCache.get(PARAMETER, PATIENT_GIVEN_NAME), contains(PATIENT_UUID));
+	}
+	
+	/**
+	 * Runs a search by given name and caches its result, as the patient service does
+	 * 
+	 * @return the generation of the cache the result was cached under
+	 */
+	private long cacheSearchByGivenName() {
+		assertThat(searchCache.isEnabled(), is(true));
+		long generation = searchCache.getGeneration();
+		List<String> uuids = dao.findPatientsByGivenName(PATIENT_GIVEN_NAME).stream().map(Patient::getUuid)
+		        .collect(Collectors.toList());
+		searchCache.put(PARAMETER, PATIENT_GIVEN_NAME, uuids, generation);
+		
+		assertThat(searchCache.get(PARAMETER, PATIENT_GIVEN_NAME), contains(PATIENT_UUID));
+		return generation;
+	}
+	
+	/**
+	 * Changes the patient in a transaction of its own, which the interceptor sees complete. The transaction is rolled
+	 * back after it has been flushed, so the change does not outlive the test.
+	 */
+	private void inCompletedTransaction(Consumer<Patient> change) {
+		TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+		transaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		transaction.execute(status -> {
+			Patient patient = dao.getPatientByUuid(PATIENT_UUID);
+			change.accept(patient);
+			sessionFactory.getCurrentSession().flush();
+			status.setRollbackOnly();
+			return null;
+		});
+	}
+}
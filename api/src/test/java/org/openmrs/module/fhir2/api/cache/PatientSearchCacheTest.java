@@ -0,0 +1,102 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.cache;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.api.FhirGlobalPropertyService;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PatientSearchCacheTest {
+	
+	private static final String PATIENT_UUID = "256ccf6d-6b41-455c-9be2-51ff4386ae76";
+	
+	private static final String OTHER_PATIENT_UUID = "61b38324-e2fd-4feb-95b7-9e9a2a4400df";
+	
+	@Mock
+	private FhirGlobalPropertyService globalPropertyService;
+	
+	private PatientSearchCache searchCache;
+	
+	@Before
+	public void setup() {
+		searchCache = new PatientSearchCache();
+		searchCache.setGlobalPropertyService(globalPropertyService);
+		
+		when(globalPropertyService.getGlobalProperty(FhirConstants.SEARCH_CACHE_ENABLED_PROPERTY, false)).thenReturn(true);
+		when(globalPropertyService.getGlobalProperty(eq(FhirConstants.SEARCH_CACHE_TTL_PROPERTY), anyInt())).thenReturn(30);
+		when(globalPropertyService.getGlobalProperty(eq(FhirConstants.SEARCH_CACHE_MAX_ENTRIES_PROPERTY), anyInt()))
+		        .thenReturn(100);
+	}
+	
+	@Test
+	public void shouldBeDisabledByDefault() {
+		when(globalPropertyService.getGlobalProperty(FhirConstants.SEARCH_CACHE_ENABLED_PROPERTY, false))
+		        .thenReturn(false);
+		
+		assertThat(searchCache.isEnabled(), is(false));
+		assertThat(searchCache.get("name", "Jean"), nullValue());
+	}
+	
+	@Test
+	public void shouldReturnCachedUuidsInOrder() {
+		assertThat(searchCache.isEnabled(), is(true));
+		searchCache.put("name", "Jean", Arrays.asList(PATIENT_UUID, OTHER_PATIENT_UUID), searchCache.getGeneration());
+		
+		assertThat(searchCache.get("name", "Jean"), contains(PATIENT_UUID, OTHER_PATIENT_UUID));
+	}
+	
+	@Test
+	public void shouldNormalizeSearchValueCase() {
+		searchCache.isEnabled();
+		searchCache.put("given", "Jean", Arrays.asList(PATIENT_UUID), searchCache.getGeneration());
+		
+		assertThat(searchCache.get("given", "JEAN"), contains(PATIENT_UUID));
+		assertThat(searchCache.get("family", "Jean"), nullValue());
+	}
+	
+	@Test
+	public void shouldDropEntriesWhenInvalidated() {
+		searchCache.isEnabled();
+		long generation = searchCache.getGeneration();
+		searchCache.put("name", "Jean", Arrays.asList(PATIENT_UUID), generation);
+		
+		searchCache.invalidateAll();
+		
+		assertThat(searchCache.getGeneration(), equalTo(generation + 1));
+		assertThat(searchCache.get("name", "Jean"), nullValue());
+	}
+	
+	@Test
+	public void shouldNotCacheResultsOfSearchRunningDuringInvalidation() {
+		searchCache.isEnabled();
+		long generation = searchCache.getGeneration();
+		
+		searchCache.invalidateAll();
+		searchCache.put("name", "Jean", Arrays.asList(PATIENT_UUID), generation);
+		
+		assertThat(searchCache.get("name", "Jean"), nullValue());
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.changes;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class ChangeOperationTest {
+	
+	@Test
+	public void shouldKeepCreateOfResourceChangedInSameTransaction() {
+		assertThat(ChangeOperation.CREATE.merge(ChangeOperation.UPDATE), equalTo(ChangeOperation.CREATE));
+		assertThat(ChangeOperation.CREATE.merge(ChangeOperation.VOID), equalTo(ChangeOperation.CREATE));
+	}
+	
+	@Test
+	public void shouldKeepVoidOfResourceChangedInSameTransaction() {
+		assertThat(ChangeOperation.UPDATE.merge(ChangeOperation.VOID), equalTo(ChangeOperation.VOID));
+		assertThat(ChangeOperation.VOID.merge(ChangeOperation.UPDATE), equalTo(ChangeOperation.VOID));
+	}
+	
+	@Test
+	public void shouldAlwaysKeepDelete() {
+		assertThat(ChangeOperation.CREATE.merge(ChangeOperation.DELETE), equalTo(ChangeOperation.DELETE));
+		assertThat(ChangeOperation.DELETE.merge(ChangeOperation.UPDATE), equalTo(ChangeOperation.DELETE));
+	}
+	
+	@Test
+	public void shouldMergeUpdates() {
+		assertThat(ChangeOperation.UPDATE.merge(ChangeOperation.UPDATE), equalTo(ChangeOperation.UPDATE));
+	}
+}
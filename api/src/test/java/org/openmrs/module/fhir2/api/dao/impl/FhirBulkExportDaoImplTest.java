@@ -0,0 +1,225 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.dao.impl;
+
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeNotNull;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+import org.hibernate.Hibernate;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.Person;
+import org.openmrs.PersonAddress;
+import org.openmrs.PersonName;
+import org.openmrs.module.fhir2.TestFhirSpringConfiguration;
+import org.openmrs.module.fhir2.api.sync.SyncArea;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.test.context.ContextConfiguration;
+
+/**
+ * The DAO reads in sessions of its own, which only see committed data, so these tests rely on the standard test data
+ * set, which is committed before the tests run.
+ */
+@ContextConfiguration(classes = TestFhirSpringConfiguration.class, inheritLocations = false)
+public class FhirBulkExportDaoImplTest extends BaseModuleContextSensitiveTest {
+	
+	private static final int PAGE_SIZE = 2;
+	
+	private FhirBulkExportDaoImpl dao;
+	
+	@Inject
+	private Provider<SessionFactory> sessionFactoryProvider;
+	
+	@Before
+	public void setup() {
+		dao = new FhirBulkExportDaoImpl();
+		dao.setSessionFactory(sessionFactoryProvider.get());
+	}
+	
+	@Test
+	public void shouldPageThroughAllPatientsInKeyOrder() {
+		List<Integer> patientIds = new ArrayList<>();
+		
+		List<Patient> page;
+		int lastPatientId = 0;
+		while (!(page = dao.getPatientPage(lastPatientId, Integer.MAX_VALUE, null, PAGE_SIZE)).isEmpty()) {
+			assertThat(page.size(), lessThanOrEqualTo(PAGE_SIZE));
+			for (Patient patient : page) {
+				assertThat(patient.getPatientId(), greaterThan(lastPatientId));
+				assertThat(patient.getVoided(), is(false));
+				lastPatientId = patient.getPatientId();
+				patientIds.add(lastPatientId);
+			}
+		}
+		
+		assertThat(patientIds.size(), greaterThan(PAGE_SIZE));
+	}
+	
+	@Test
+	public void shouldReturnPatientsWithEverythingTranslatedLoaded() {
+		List<Patient> page = dao.getPatientPage(0, Integer.MAX_VALUE, null, PAGE_SIZE);
+		
+		assertThat(page, not(empty()));
+		for (Patient patient : page) {
+			assertThat(Hibernate.isInitialized(patient.getNames()), is(true));
+			assertThat(Hibernate.isInitialized(patient.getAddresses()), is(true));
+			assertThat(Hibernate.isInitialized(patient.getIdentifiers()), is(true));
+			patient.getIdentifiers().forEach(identifier -> assertThat(
+			    Hibernate.isInitialized(identifier.getIdentifierType()), is(true)));
+		}
+	}
+	
+	@Test
+	public void shouldPageThroughAllPersonsInKeyOrder() {
+		List<Person> first = dao.getPersonPage(0, Integer.MAX_VALUE, null, PAGE_SIZE);
+		assertThat(first, hasSize(PAGE_SIZE));
+		assertThat(first.get(0).getPersonId(), lessThanOrEqualTo(first.get(1).getPersonId()));
+		
+		List<Person> second = dao.getPersonPage(first.get(PAGE_SIZE - 1).getPersonId(), Integer.MAX_VALUE, null,
+		    PAGE_SIZE);
+		assertThat(second, not(empty()));
+		assertThat(second.get(0).getPersonId(), greaterThan(first.get(PAGE_SIZE - 1).getPersonId()));
+		assertThat(Hibernate.isInitialized(second.get(0).getNames()), is(true));
+	}
+	
+	@Test
+	public void shouldOnlyReturnRecordsChangedSince() {
+		Calendar tomorrow = Calendar.getInstance();
+		tomorrow.add(Calendar.DATE, 1);
+		
+		assertThat(dao.getPatientPage(0, Integer.MAX_VALUE, tomorrow.getTime(), PAGE_SIZE), empty());
+		assertThat(dao.getPersonPage(0, Integer.MAX_VALUE, tomorrow.getTime(), PAGE_SIZE), empty());
+		assertThat(dao.getPatientPage(0, Integer.MAX_VALUE, new Date(0), PAGE_SIZE), hasSize(PAGE_SIZE));
+	}
+	
+	@Test
+	public void shouldOnlyReturnRecordsInKeyRange() {
+		List<Patient> all = dao.getPatientPage(0, Integer.MAX_VALUE, null, PAGE_SIZE);
+		assertThat(all, hasSize(PAGE_SIZE));
+		
+		List<Patient> firstOnly = dao.getPatientPage(0, all.get(0).getPatientId(), null, PAGE_SIZE);
+		assertThat(firstOnly, hasSize(1));
+		assertThat(firstOnly.get(0).getPatientId(), equalTo(all.get(0).getPatientId()));
+	}
+	
+	@Test
+	public void shouldReturnGreatestKeys() {
+		List<Patient> page;
+		int lastPatientId = 0;
+		while (!(page = dao.getPatientPage(lastPatientId, Integer.MAX_VALUE, null, PAGE_SIZE)).isEmpty()) {
+			lastPatientId = page.get(page.size() - 1).getPatientId();
+		}
+		
+		assertThat(dao.getMaxPatientId(), greaterThanOrEqualTo(lastPatientId));
+		assertThat(dao.getMaxPersonId(), greaterThanOrEqualTo(dao.getMaxPatientId()));
+	}
+	
+	@Test
+	public void shouldOnlyReturnPatientsWithAnAddressInArea() {
+		String city = null;
+		Integer patientId = null;
+		List<Patient> page;
+		int lastPatientId = 0;
+		while (city == null
+		        && !(page = dao.getPatientPage(lastPatientId, Integer.MAX_VALUE, null, PAGE_SIZE)).isEmpty()) {
+			for (Patient patient : page) {
+				for (PersonAddress address : patient.getAddresses()) {
+					if (city == null && !address.getVoided() && address.getCityVillage() != null) {
+						city = address.getCityVillage();
+						patientId = patient.getPatientId();
+					}
+				}
+			}
+			lastPatientId = page.get(page.size() - 1).getPatientId();
+		}
+		assumeNotNull(city);
+		
+		List<Integer> patientIds = new ArrayList<>();
+		lastPatientId = 0;
+		while (!(page = dao.getPatientPage(new SyncArea(city, null, null, null), lastPatientId, null, PAGE_SIZE))
+		        .isEmpty()) {
+			for (Patient patient : page) {
+				assertThat(hasAddressIn(patient, city), is(true));
+				patientIds.add(patient.getPatientId());
+			}
+			lastPatientId = page.get(page.size() - 1).getPatientId();
+		}
+		assertThat(patientIds, hasItem(patientId));
+		
+		assertThat(dao.getPatientPage(new SyncArea(city, null, null, "No such country"), 0, null, PAGE_SIZE), empty());
+	}
+	
+	@Test
+	public void shouldIncludePatientsWhoseNameChangedSinceInSyncDelta() {
+		String city = null;
+		Integer patientId = null;
+		for (Patient patient : dao.getPatientPage(0, Integer.MAX_VALUE, null, Integer.MAX_VALUE)) {
+			for (PersonAddress address : patient.getAddresses()) {
+				if (city == null && !address.getVoided() && address.getCityVillage() != null
+				        && !patient.getNames().isEmpty()) {
+					city = address.getCityVillage();
+					patientId = patient.getPatientId();
+				}
+			}
+		}
+		assumeNotNull(city);
+		
+		Calendar since = Calendar.getInstance();
+		since.add(Calendar.DATE, 1);
+		Calendar changed = (Calendar) since.clone();
+		changed.add(Calendar.DATE, 1);
+		
+		// the DAO only sees committed data, so the statement is run in the test's own session, which sees the change
+		Session session = sessionFactoryProvider.get().getCurrentSession();
+		Query delta = session.createQuery(
+		    FhirQueries.SYNC_PATIENT_IDS + FhirQueries.SYNC_ADDRESS_CITY + FhirQueries.SYNC_PATIENTS_SINCE)
+		        .setInteger("lastId", patientId - 1).setString("city", city).setTimestamp("since", since.getTime())
+		        .setMaxResults(1);
+		assertThat(delta.uniqueResult(), nullValue());
+		
+		PersonName name = ((Patient) session.get(Patient.class, patientId)).getNames().iterator().next();
+		session.createQuery("update PersonName pn set pn.dateChanged = :changed where pn.personNameId = :id")
+		        .setTimestamp("changed", changed.getTime()).setInteger("id", name.getPersonNameId()).executeUpdate();
+		
+		assertThat(delta.uniqueResult(), equalTo((Object) patientId));
+	}
+	
+	private static boolean hasAddressIn(Patient patient, String city) {
+		for (PersonAddress address : patient.getAddresses()) {
+			if (!address.getVoided() && city.equals(address.getCityVillage())) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+}
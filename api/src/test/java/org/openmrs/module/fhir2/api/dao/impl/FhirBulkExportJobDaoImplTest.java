@@ -0,0 +1,242 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.dao.impl;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.SessionFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.TestFhirSpringConfiguration;
+import org.openmrs.module.fhir2.api.export.BulkExportJob;
+import org.openmrs.module.fhir2.api.export.BulkExportPartition;
+import org.openmrs.module.fhir2.api.export.BulkExportStatus;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.test.context.ContextConfiguration;
+
+/**
+ * Two nodes are simulated by two owners. The DAO updates partitions in bulk, which bypasses the session, so the session
+ * is cleared before anything is read back.
+ */
+@ContextConfiguration(classes = TestFhirSpringConfiguration.class, inheritLocations = false)
+public class FhirBulkExportJobDaoImplTest extends BaseModuleContextSensitiveTest {
+	
+	private static final String NODE_A = "node-a";
+	
+	private static final String NODE_B = "node-b";
+	
+	private static final long LEASE_DURATION = TimeUnit.MINUTES.toMillis(2);
+	
+	private FhirBulkExportJobDaoImpl dao;
+	
+	@Inject
+	private Provider<SessionFactory> sessionFactoryProvider;
+	
+	private BulkExportJob job;
+	
+	private int firstPartitionId;
+	
+	private int secondPartitionId;
+	
+	private Date now;
+	
+	@Before
+	public void setup() {
+		dao = new FhirBulkExportJobDaoImpl();
+		dao.setSessionFactory(sessionFactoryProvider.get());
+		
+		job = new BulkExportJob();
+		job.setUuid(UUID.randomUUID().toString());
+		job.setResourceTypeList(Arrays.asList(FhirConstants.PATIENT));
+		job.setRequest("http://localhost/ws/fhir2/$export");
+		job.setTransactionTime(new Date());
+		job.addPartition(newPartition(0, 50000, "Patient-1.ndjson"));
+		job.addPartition(newPartition(50000, Integer.MAX_VALUE, "Patient-2.ndjson"));
+		dao.saveJob(job);
+		
+		firstPartitionId = job.getPartitions().get(0).getPartitionId();
+		secondPartitionId = job.getPartitions().get(1).getPartitionId();
+		now = new Date();
+		clearSession();
+	}
+	
+	@Test
+	public void shouldOfferUnclaimedPartitions() {
+		assertThat(dao.getClaimablePartitionIds(now, 10), contains(firstPartitionId, secondPartitionId));
+		
+		claim(firstPartitionId, NODE_A, now);
+		
+		assertThat(dao.getClaimablePartitionIds(now, 10), contains(secondPartitionId));
+	}
+	
+	@Test
+	public void shouldOnlyLetOneNodeClaimPartition() {
+		BulkExportPartition partition = claim(firstPartitionId, NODE_A, now);
+		assertThat(partition, notNullValue());
+		assertThat(partition.getOwner(), equalTo(NODE_A));
+		assertThat(partition.getJob().getUuid(), equalTo(job.getUuid()));
+		
+		assertThat(claim(firstPartitionId, NODE_B, now), nullValue());
+		assertThat(getJob().getStatus(), equalTo(BulkExportStatus.IN_PROGRESS));
+	}
+	
+	@Test
+	public void shouldLetAnotherNodeTakeOverExpiredLease() {
+		claim(firstPartitionId, NODE_A, now);
+		
+		Date afterLeaseExpired = new Date(now.getTime() + LEASE_DURATION + 1);
+		assertThat(dao.getClaimablePartitionIds(afterLeaseExpired, 10), contains(firstPartitionId, secondPartitionId));
+		
+		BulkExportPartition partition = claim(firstPartitionId, NODE_B, afterLeaseExpired);
+		assertThat(partition, notNullValue());
+		assertThat(partition.getOwner(), equalTo(NODE_B));
+		assertThat(partition.getAttempts(), equalTo(2));
+		
+		assertThat(dao.renewLease(firstPartitionId, NODE_A, afterLeaseExpired), is(false));
+		assertThat(dao.completePartition(firstPartitionId, NODE_A, 10), is(false));
+		assertThat(dao.renewLease(firstPartitionId, NODE_B, afterLeaseExpired), is(true));
+	}
+	
+	@Test
+	public void shouldCompleteJobOnceEveryPartitionIsComplete() {
+		claim(firstPartitionId, NODE_A, now);
+		claim(secondPartitionId, NODE_B, now);
+		
+		assertThat(dao.completePartition(firstPartitionId, NODE_A, 10), is(true));
+		clearSession();
+		assertThat(getJob().getStatus(), equalTo(BulkExportStatus.IN_PROGRESS));
+		
+		assertThat(dao.completePartition(secondPartitionId, NODE_B, 5), is(true));
+		clearSession();
+		
+		BulkExportJob completed = getJob();
+		assertThat(completed.getStatus(), equalTo(BulkExportStatus.COMPLETE));
+		assertThat(completed.getDateFinished(), notNullValue());
+		assertThat(completed.getOutputs(), hasSize(2));
+		assertThat(completed.getOutputs().get(0).getCount(), equalTo(10L));
+		assertThat(completed.getOutputs().get(1).getCount(), equalTo(5L));
+	}
+	
+	@Test
+	public void shouldRetryFailedPartitionUntilMaxAttempts() {
+		claim(firstPartitionId, NODE_A, now);
+		dao.failPartition(firstPartitionId, NODE_A, "failed", 2);
+		clearSession();
+		assertThat(dao.getClaimablePartitionIds(now, 10), contains(firstPartitionId, secondPartitionId));
+		
+		claim(firstPartitionId, NODE_B, now);
+		dao.failPartition(firstPartitionId, NODE_B, "failed again", 2);
+		clearSession();
+		
+		BulkExportJob failed = getJob();
+		assertThat(failed.getStatus(), equalTo(BulkExportStatus.FAILED));
+		assertThat(failed.getError(), equalTo("failed again"));
+		assertThat(failed.getPartitions().get(0).getStatus(), equalTo(BulkExportStatus.FAILED));
+	}
+	
+	@Test
+	public void shouldReleasePartition() {
+		claim(firstPartitionId, NODE_A, now);
+		dao.releasePartition(firstPartitionId, NODE_A);
+		clearSession();
+		
+		assertThat(claim(firstPartitionId, NODE_B, now), notNullValue());
+	}
+	
+	@Test
+	public void shouldKeepCheckpointForNextOwner() {
+		claim(firstPartitionId, NODE_A, now);
+		assertThat(dao.checkpointPartition(firstPartitionId, NODE_A, 1500, 4096, 20,
+		    new Date(now.getTime() + LEASE_DURATION)), is(true));
+		
+		Date afterLeaseExpired = new Date(now.getTime() + LEASE_DURATION + 1);
+		BulkExportPartition partition = claim(firstPartitionId, NODE_B, afterLeaseExpired);
+		assertThat(partition.getLastKey(), equalTo(1500));
+		assertThat(partition.getFileOffset(), equalTo(4096L));
+		assertThat(partition.getResourceCount(), equalTo(20L));
+		
+		assertThat(dao.checkpointPartition(firstPartitionId, NODE_A, 2000, 8192, 40, afterLeaseExpired), is(false));
+	}
+	
+	@Test
+	public void shouldKeepCheckpointWhenPartitionIsReleased() {
+		claim(firstPartitionId, NODE_A, now);
+		dao.checkpointPartition(firstPartitionId, NODE_A, 1500, 4096, 20, new Date(now.getTime() + LEASE_DURATION));
+		dao.releasePartition(firstPartitionId, NODE_A);
+		clearSession();
+		
+		BulkExportPartition partition = claim(firstPartitionId, NODE_B, now);
+		assertThat(partition.getLastKey(), equalTo(1500));
+		assertThat(partition.getFileOffset(), equalTo(4096L));
+		assertThat(partition.getResourceCount(), equalTo(20L));
+	}
+	
+	@Test
+	public void shouldRevokeLeasesWhenJobIsCancelled() {
+		claim(firstPartitionId, NODE_A, now);
+		
+		dao.cancelJob(getJob());
+		clearSession();
+		
+		assertThat(getJob().getStatus(), equalTo(BulkExportStatus.CANCELLED));
+		assertThat(dao.renewLease(firstPartitionId, NODE_A, now), is(false));
+		assertThat(dao.getClaimablePartitionIds(now, 10), hasSize(0));
+	}
+	
+	@Test
+	public void shouldDeleteJobAndPartitions() {
+		dao.deleteJob(getJob());
+		clearSession();
+		
+		assertThat(dao.getJobByUuid(job.getUuid()), nullValue());
+		assertThat(claim(firstPartitionId, NODE_A, now), nullValue());
+	}
+	
+	private BulkExportPartition claim(int partitionId, String owner, Date time) {
+		BulkExportPartition partition = dao.claimPartition(partitionId, owner, time,
+		    new Date(time.getTime() + LEASE_DURATION));
+		clearSession();
+		return partition;
+	}
+	
+	private BulkExportJob getJob() {
+		return dao.getJobByUuid(job.getUuid());
+	}
+	
+	private void clearSession() {
+		sessionFactoryProvider.get().getCurrentSession().flush();
+		sessionFactoryProvider.get().getCurrentSession().clear();
+	}
+	
+	private static BulkExportPartition newPartition(int startKey, int endKey, String fileName) {
+		BulkExportPartition partition = new BulkExportPartition();
+		partition.setResourceType(FhirConstants.PATIENT);
+		partition.setStartKey(startKey);
+		partition.setLastKey(startKey);
+		partition.setEndKey(endKey);
+		partition.setFileName(fileName);
+		return partition;
+	}
+}
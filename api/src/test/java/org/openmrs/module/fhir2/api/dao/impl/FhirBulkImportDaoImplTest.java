@@ -0,0 +1,88 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.dao.impl;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertThat;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.hibernate.SessionFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.Person;
+import org.openmrs.PersonName;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.fhir2.TestFhirSpringConfiguration;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.test.context.ContextConfiguration;
+
+/**
+ * Identifier types are read in a session of their own, which cannot see data inserted by the test's transaction, so
+ * those tests use the committed standard test data only.
+ */
+@ContextConfiguration(classes = TestFhirSpringConfiguration.class, inheritLocations = false)
+public class FhirBulkImportDaoImplTest extends BaseModuleContextSensitiveTest {
+	
+	private static final String IDENTIFIER_TYPE_NAME = "Old Identification Number";
+	
+	private static final String OTHER_IDENTIFIER_TYPE_NAME = "OpenMRS Identification Number";
+	
+	private static final String UNKNOWN_IDENTIFIER_TYPE_NAME = "Unknown Identification Number";
+	
+	private FhirBulkImportDaoImpl dao;
+	
+	@Inject
+	private Provider<SessionFactory> sessionFactoryProvider;
+	
+	@Before
+	public void setup() {
+		dao = new FhirBulkImportDaoImpl();
+		dao.setSessionFactory(sessionFactoryProvider.get());
+		dao.setPatientService(Context.getPatientService());
+		dao.setPersonService(Context.getPersonService());
+	}
+	
+	@Test
+	public void shouldResolveIdentifierTypesByName() {
+		Map<String, PatientIdentifierType> identifierTypes = dao.getPatientIdentifierTypesByNames(
+		    Arrays.asList(IDENTIFIER_TYPE_NAME, OTHER_IDENTIFIER_TYPE_NAME, UNKNOWN_IDENTIFIER_TYPE_NAME));
+		
+		assertThat(identifierTypes.size(), equalTo(2));
+		assertThat(identifierTypes.get(IDENTIFIER_TYPE_NAME).getName(), equalTo(IDENTIFIER_TYPE_NAME));
+		assertThat(identifierTypes.get(OTHER_IDENTIFIER_TYPE_NAME).getName(), equalTo(OTHER_IDENTIFIER_TYPE_NAME));
+	}
+	
+	@Test
+	public void shouldSaveBatchOfPersons() {
+		Person first = newPerson("Jane", "Doe");
+		Person second = newPerson("John", "Doe");
+		
+		dao.saveBatch(Arrays.asList(first, second));
+		
+		assertThat(first.getPersonId(), notNullValue());
+		assertThat(second.getPersonId(), notNullValue());
+		assertThat(Context.getPersonService().getPersonByUuid(second.getUuid()).getNames(), hasSize(1));
+	}
+	
+	private static Person newPerson(String givenName, String familyName) {
+		Person person = new Person();
+		person.setGender("F");
+		person.addName(new PersonName(givenName, null, familyName));
+		return person;
+	}
+}
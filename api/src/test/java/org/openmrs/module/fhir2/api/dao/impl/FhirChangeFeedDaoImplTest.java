@@ -0,0 +1,98 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.dao.impl;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.hibernate.SessionFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.TestFhirSpringConfiguration;
+import org.openmrs.module.fhir2.api.changes.ChangeOperation;
+import org.openmrs.module.fhir2.api.changes.ResourceChange;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.test.context.ContextConfiguration;
+
+@ContextConfiguration(classes = TestFhirSpringConfiguration.class, inheritLocations = false)
+public class FhirChangeFeedDaoImplTest extends BaseModuleContextSensitiveTest {
+	
+	private static final long DAY = TimeUnit.DAYS.toMillis(1);
+	
+	private FhirChangeFeedDaoImpl dao;
+	
+	@Inject
+	private Provider<SessionFactory> sessionFactoryProvider;
+	
+	private ResourceChange old;
+	
+	private ResourceChange created;
+	
+	private ResourceChange voided;
+	
+	@Before
+	public void setup() {
+		dao = new FhirChangeFeedDaoImpl();
+		dao.setSessionFactory(sessionFactoryProvider.get());
+		
+		long now = System.currentTimeMillis();
+		old = saveChange(FhirConstants.PERSON, ChangeOperation.UPDATE, new Date(now - 10 * DAY));
+		created = saveChange(FhirConstants.PATIENT, ChangeOperation.CREATE, new Date(now));
+		voided = saveChange(FhirConstants.PATIENT, ChangeOperation.VOID, new Date(now));
+	}
+	
+	@Test
+	public void shouldReturnChangesAfterCursorInOrder() {
+		assertThat(getChangeIds(dao.getChangesAfter(old.getChangeId() - 1, 10)),
+		    contains(old.getChangeId(), created.getChangeId(), voided.getChangeId()));
+		assertThat(getChangeIds(dao.getChangesAfter(old.getChangeId(), 1)), contains(created.getChangeId()));
+		assertThat(dao.getChangesAfter(voided.getChangeId(), 10).isEmpty(), equalTo(true));
+	}
+	
+	@Test
+	public void shouldReturnLatestChangeId() {
+		assertThat(dao.getLatestChangeId(), greaterThanOrEqualTo(voided.getChangeId()));
+	}
+	
+	@Test
+	public void shouldDeleteChangesBefore() {
+		assertThat(dao.deleteChangesBefore(new Date(System.currentTimeMillis() - DAY)), greaterThanOrEqualTo(1));
+		sessionFactoryProvider.get().getCurrentSession().clear();
+		
+		assertThat(getChangeIds(dao.getChangesAfter(old.getChangeId() - 1, 10)),
+		    contains(created.getChangeId(), voided.getChangeId()));
+	}
+	
+	private ResourceChange saveChange(String resourceType, ChangeOperation operation, Date dateCreated) {
+		ResourceChange change = new ResourceChange();
+		change.setResourceType(resourceType);
+		change.setResourceUuid(UUID.randomUUID().toString());
+		change.setOperation(operation);
+		change.setDateCreated(dateCreated);
+		sessionFactoryProvider.get().getCurrentSession().save(change);
+		return change;
+	}
+	
+	private static List<Long> getChangeIds(List<ResourceChange> changes) {
+		return changes.stream().map(ResourceChange::getChangeId).collect(Collectors.toList());
+	}
+}
@@ -0,0 +1,253 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.dao.impl;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import liquibase.Liquibase;
+import liquibase.database.Database;
+import liquibase.database.DatabaseFactory;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.resource.ClassLoaderResourceAccessor;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.hql.internal.ast.ASTQueryTranslatorFactory;
+import org.hibernate.hql.spi.ParameterTranslations;
+import org.hibernate.hql.spi.QueryTranslator;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.fhir2.TestFhirSpringConfiguration;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.test.context.ContextConfiguration;
+
+/**
+ * Verifies that the statements issued by the FHIR DAOs are answered from an index once the module's changesets have
+ * been applied. Each statement is translated from its HQL in {@link FhirQueries} to the SQL Hibernate runs, its
+ * parameters are replaced by literals and the database is asked to EXPLAIN it.
+ * <p>
+ * The name searches compare the lower-cased names, which H2 cannot index, so for them only the lookup of the patients
+ * is checked: the names are matched in a subquery and the patients are then read by key.
+ * <p>
+ * Not covered are the {@code _filter} statements, whose conditions are compiled per request, the {@code max}
+ * statements, which H2 answers with a direct lookup it reports as a scan, and the export lease statements, which read
+ * one small row per partition.
+ */
+@ContextConfiguration(classes = TestFhirSpringConfiguration.class, inheritLocations = false)
+public class FhirDaoQueryPlanTest extends BaseModuleContextSensitiveTest {
+
+	private static final String MODULE_CHANGELOG = "liquibase.xml";
+
+	private static final String TABLE_SCAN = "tableScan";
+
+	private static final String PERSON_NAME_SCAN = "PUBLIC.PERSON_NAME." + TABLE_SCAN;
+
+	@Inject
+	@Named("sessionFactory")
+	private SessionFactory sessionFactory;
+
+	@Before
+	public void setup() throws Exception {
+		Database database = DatabaseFactory.getInstance()
+		        .findCorrectDatabaseImplementation(new JdbcConnection(getConnection()));
+		new Liquibase(MODULE_CHANGELOG, new ClassLoaderResourceAccessor(), database).update(null);
+	}
+
+	@Test
+	public void shouldUseIndexForPatientByUuid() throws Exception {
+		assertIndexed(FhirQueries.PATIENT_BY_UUID, parameter("uuid", "'256ccf6d-6b41-455c-9be2-51ff4386ae76'"));
+	}
+
+	@Test
+	public void shouldUseIndexForPatientsByUuids() throws Exception {
+		assertIndexed(FhirQueries.PATIENTS_BY_UUIDS, parameter("uuids", "'256ccf6d-6b41-455c-9be2-51ff4386ae76'"));
+	}
+
+	@Test
+	public void shouldUseIndexForPersonByUuid() throws Exception {
+		assertIndexed(FhirQueries.PERSON_BY_UUID, parameter("uuid", "'256ccf6d-6b41-455c-9be2-51ff4386ae76'"));
+	}
+
+	@Test
+	public void shouldUseIndexForLoadedCollections() throws Exception {
+		assertIndexed(FhirQueries.PATIENT_ADDRESSES_BY_IDS, parameter("ids", "2"));
+		assertIndexed(FhirQueries.PATIENT_IDENTIFIERS_BY_IDS, parameter("ids", "2"));
+		assertIndexed(FhirQueries.PERSON_ADDRESSES_BY_IDS, parameter("ids", "2"));
+	}
+
+	@Test
+	public void shouldReadPatientsByKeyForPatientsByName() throws Exception {
+		assertPatientsReadByKey(FhirQueries.PATIENTS_BY_NAME, parameter("name", "'jean%'"));
+	}
+
+	@Test
+	public void shouldReadPatientsByKeyForStreamedPatientsByName() throws Exception {
+		assertPatientsReadByKey(FhirQueries.STREAM_PATIENTS_BY_NAME, parameter("name", "'jean%'"));
+	}
+
+	@Test
+	public void shouldReadPatientsByKeyForPatientsByGivenName() throws Exception {
+		assertPatientsReadByKey(FhirQueries.PATIENTS_BY_GIVEN_NAME, parameter("givenName", "'jean%'"));
+	}
+
+	@Test
+	public void shouldReadPatientsByKeyForPatientsByFamilyName() throws Exception {
+		assertPatientsReadByKey(FhirQueries.PATIENTS_BY_FAMILY_NAME, parameter("familyName", "'claud%'"));
+	}
+
+	@Test
+	public void shouldReadPatientsByKeyForStreamedPatientsByGivenName() throws Exception {
+		assertPatientsReadByKey(FhirQueries.STREAM_PATIENTS_BY_GIVEN_NAME, parameter("givenName", "'jean%'"));
+	}
+
+	@Test
+	public void shouldReadPatientsByKeyForStreamedPatientsByFamilyName() throws Exception {
+		assertPatientsReadByKey(FhirQueries.STREAM_PATIENTS_BY_FAMILY_NAME, parameter("familyName", "'claud%'"));
+	}
+
+	@Test
+	public void shouldUseIndexForIdentifierTypeByUuid() throws Exception {
+		assertIndexed(FhirQueries.PATIENT_IDENTIFIER_TYPE_BY_UUID,
+		    parameter("uuid", "'c5576187-9a67-43a7-9b7c-04db22851211'"));
+	}
+
+	@Test
+	public void shouldUseIndexForIdentifierTypeByName() throws Exception {
+		assertIndexed(FhirQueries.PATIENT_IDENTIFIER_TYPE_BY_NAME, parameter("name", "'OpenMRS ID'"));
+	}
+
+	@Test
+	public void shouldUseIndexForIdentifierTypesByNames() throws Exception {
+		assertIndexed(FhirQueries.PATIENT_IDENTIFIER_TYPES_BY_NAMES, parameter("names", "'OpenMRS ID'"));
+	}
+
+	@Test
+	public void shouldUseIndexForExportedPatientIds() throws Exception {
+		Map<String, String> parameters = exportRange();
+		assertIndexed(FhirQueries.EXPORT_PATIENT_IDS, parameters);
+		parameters.put("since", "'2019-01-01 00:00:00'");
+		assertIndexed(FhirQueries.EXPORT_PATIENT_IDS_SINCE, parameters);
+	}
+
+	@Test
+	public void shouldUseIndexForExportedPersonIds() throws Exception {
+		Map<String, String> parameters = exportRange();
+		assertIndexed(FhirQueries.EXPORT_PERSON_IDS, parameters);
+		parameters.put("since", "'2019-01-01 00:00:00'");
+		assertIndexed(FhirQueries.EXPORT_PERSON_IDS_SINCE, parameters);
+	}
+
+	@Test
+	public void shouldUseIndexForExportedPages() throws Exception {
+		assertIndexed(FhirQueries.EXPORT_PATIENTS_BY_IDS, parameter("ids", "2"));
+		assertIndexed(FhirQueries.EXPORT_PERSONS_BY_IDS, parameter("ids", "2"));
+	}
+
+	@Test
+	public void shouldUseIndexForSyncedPatientIds() throws Exception {
+		Map<String, String> parameters = exportRange();
+		parameters.put("city", "'Indianapolis'");
+		String hql = FhirQueries.SYNC_PATIENT_IDS + FhirQueries.SYNC_ADDRESS_CITY + FhirQueries.SYNC_PATIENTS_NOT_VOIDED;
+		assertIndexed(hql, parameters);
+	}
+
+	@Test
+	public void shouldUseIndexForSyncedPatientIdsSince() throws Exception {
+		Map<String, String> parameters = exportRange();
+		parameters.put("city", "'Indianapolis'");
+		parameters.put("since", "'2019-01-01 00:00:00'");
+		String hql = FhirQueries.SYNC_PATIENT_IDS + FhirQueries.SYNC_ADDRESS_CITY + FhirQueries.SYNC_PATIENTS_SINCE;
+		assertIndexed(hql, parameters);
+	}
+
+	@Test
+	public void shouldUseIndexForChanges() throws Exception {
+		assertIndexed(FhirQueries.CHANGES_AFTER, parameter("changeId", "10"));
+	}
+
+	private void assertIndexed(String hql, Map<String, String> parameters) throws SQLException {
+		assertThat(hql, explain(toSql(hql, parameters)), not(containsString(TABLE_SCAN)));
+	}
+
+	/**
+	 * Asserts that a name search only scans the names, and reads the patients it finds by key
+	 */
+	private void assertPatientsReadByKey(String hql, Map<String, String> parameters) throws SQLException {
+		String plan = explain(toSql(hql, parameters));
+		assertThat(hql, plan, containsString("PERSON_NAME"));
+		assertThat(hql, plan.replace(PERSON_NAME_SCAN, ""), not(containsString(TABLE_SCAN)));
+	}
+
+	/**
+	 * @return the SQL Hibernate runs for the statement, with each parameter replaced by the given literal
+	 */
+	private String toSql(String hql, Map<String, String> parameters) {
+		QueryTranslator translator = new ASTQueryTranslatorFactory().createQueryTranslator(hql, hql,
+		    Collections.emptyMap(), (SessionFactoryImplementor) sessionFactory, null);
+		translator.compile(Collections.emptyMap(), false);
+		String sql = translator.getSQLString();
+
+		ParameterTranslations parameterTranslations = translator.getParameterTranslations();
+		String[] literals = new String[sql.length()];
+		for (Object name : parameterTranslations.getNamedParameterNames()) {
+			String literal = parameters.get(name);
+			if (literal == null) {
+				throw new IllegalArgumentException("No value for parameter " + name + " of " + hql);
+			}
+
+			for (int location : parameterTranslations.getNamedParameterSqlLocations((String) name)) {
+				literals[location] = literal;
+			}
+		}
+
+		StringBuilder bound = new StringBuilder(sql.length());
+		int location = 0;
+		for (char c : sql.toCharArray()) {
+			bound.append(c == '?' ? literals[location++] : String.valueOf(c));
+		}
+
+		return bound.toString();
+	}
+
+	private String explain(String sql) throws SQLException {
+		StringBuilder plan = new StringBuilder();
+		try (Statement statement = getConnection().createStatement();
+		        ResultSet resultSet = statement.executeQuery("EXPLAIN " + sql)) {
+			while (resultSet.next()) {
+				plan.append(resultSet.getString(1));
+			}
+		}
+
+		return plan.toString();
+	}
+
+	private static Map<String, String> parameter(String name, String literal) {
+		Map<String, String> parameters = new HashMap<>();
+		parameters.put(name, literal);
+		return parameters;
+	}
+
+	private static Map<String, String> exportRange() {
+		Map<String, String> parameters = parameter("lastId", "0");
+		parameters.put("maxId", "1000");
+		return parameters;
+	}
+}
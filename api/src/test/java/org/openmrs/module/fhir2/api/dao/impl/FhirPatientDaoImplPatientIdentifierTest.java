@@ -22,6 +22,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.openmrs.PatientIdentifierType;
 import org.openmrs.module.fhir2.TestFhirSpringConfiguration;
+import org.openmrs.module.fhir2.api.FhirGlobalPropertyService;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.springframework.test.context.ContextConfiguration;
 
@@ -43,10 +44,14 @@ public class FhirPatientDaoImplPatientIdentifierTest extends BaseModuleContextSe
 	@Inject
 	private Provider<SessionFactory> sessionFactoryProvider;
 	
+	@Inject
+	private FhirGlobalPropertyService globalPropertyService;
+	
 	@Before
 	public void setup() throws Exception {
 		dao = new FhirPatientDaoImpl();
 		dao.setSessionFactory(sessionFactoryProvider.get());
+		dao.setGlobalPropertyService(globalPropertyService);
 		executeDataSet(PATIENT_IDENTIFIER_DATA_XML);
 	}
 	
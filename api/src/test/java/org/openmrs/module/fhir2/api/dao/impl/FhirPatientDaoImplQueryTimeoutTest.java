@@ -0,0 +1,110 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.dao.impl;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.api.FhirGlobalPropertyService;
+import org.openmrs.module.fhir2.api.search.SearchCancellation;
+
+@RunWith(MockitoJUnitRunner.class)
+public class FhirPatientDaoImplQueryTimeoutTest {
+	
+	private static final String PATIENT_UUID = "256ccf6d-6b41-455c-9be2-51ff4386ae76";
+	
+	private static final int LOOKUP_TIMEOUT = 3;
+	
+	private static final int SEARCH_TIMEOUT = 7;
+	
+	private static final int STREAM_TIMEOUT = 11;
+	
+	@Mock
+	private FhirGlobalPropertyService globalPropertyService;
+	
+	@Mock
+	private SessionFactory sessionFactory;
+	
+	@Mock
+	private Session session;
+	
+	@Mock
+	private Query query;
+	
+	@Mock
+	private ScrollableResults results;
+	
+	private FhirPatientDaoImpl dao;
+	
+	@Before
+	public void setup() {
+		dao = new FhirPatientDaoImpl();
+		dao.setSessionFactory(sessionFactory);
+		dao.setGlobalPropertyService(globalPropertyService);
+		
+		when(globalPropertyService.getGlobalProperty(eq(FhirConstants.LOOKUP_TIMEOUT_SECONDS_PROPERTY), anyInt()))
+		        .thenReturn(LOOKUP_TIMEOUT);
+		when(globalPropertyService.getGlobalProperty(eq(FhirConstants.SEARCH_TIMEOUT_SECONDS_PROPERTY), anyInt()))
+		        .thenReturn(SEARCH_TIMEOUT);
+		when(globalPropertyService.getGlobalProperty(eq(FhirConstants.STREAM_TIMEOUT_SECONDS_PROPERTY), anyInt()))
+		        .thenReturn(STREAM_TIMEOUT);
+		
+		when(sessionFactory.getCurrentSession()).thenReturn(session);
+		when(session.createQuery(anyString())).thenReturn(query);
+		when(query.setTimeout(anyInt())).thenReturn(query);
+		when(query.setString(anyString(), anyString())).thenReturn(query);
+		when(query.setReadOnly(anyBoolean())).thenReturn(query);
+		when(query.setFetchSize(anyInt())).thenReturn(query);
+		when(query.list()).thenReturn(Collections.emptyList());
+		when(query.scroll(any(ScrollMode.class))).thenReturn(results);
+	}
+	
+	@Test
+	public void shouldApplyConfiguredLookupTimeout() {
+		dao.getPatientByUuid(PATIENT_UUID);
+		
+		verify(session).createQuery(FhirQueries.PATIENT_BY_UUID);
+		verify(query).setTimeout(LOOKUP_TIMEOUT);
+	}
+	
+	@Test
+	public void shouldApplyConfiguredSearchTimeout() {
+		dao.findPatientsByGivenName("Jean");
+		
+		verify(session).createQuery(FhirQueries.PATIENTS_BY_GIVEN_NAME);
+		verify(query).setTimeout(SEARCH_TIMEOUT);
+	}
+	
+	@Test
+	public void shouldApplyConfiguredStreamTimeout() {
+		dao.streamPatientsByGivenName("Jean", patient -> {}, new SearchCancellation());
+		
+		verify(session).createQuery(FhirQueries.STREAM_PATIENTS_BY_GIVEN_NAME);
+		verify(query).setTimeout(STREAM_TIMEOUT);
+	}
+}
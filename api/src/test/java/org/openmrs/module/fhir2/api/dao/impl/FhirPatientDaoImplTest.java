@@ -12,22 +12,31 @@ package org.openmrs.module.fhir2.api.dao.impl;
 import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Provider;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.stream.Collectors;
 
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import org.hibernate.SessionFactory;
 import org.junit.Before;
 import org.junit.Test;
 import org.openmrs.Patient;
 import org.openmrs.api.PatientService;
 import org.openmrs.module.fhir2.TestFhirSpringConfiguration;
+import org.openmrs.module.fhir2.api.FhirGlobalPropertyService;
+import org.openmrs.module.fhir2.api.search.FilterParser;
+import org.openmrs.module.fhir2.api.search.SearchCancellation;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.springframework.test.context.ContextConfiguration;
 
@@ -57,11 +66,15 @@ public class FhirPatientDaoImplTest extends BaseModuleContextSensitiveTest {
 	@Inject
 	private Provider<SessionFactory> sessionFactoryProvider;
 	
+	@Inject
+	private FhirGlobalPropertyService globalPropertyService;
+	
 	@Before
 	public void setup() throws Exception {
 		dao = new FhirPatientDaoImpl();
 		dao.setPatientService(patientServiceProvider.get());
 		dao.setSessionFactory(sessionFactoryProvider.get());
+		dao.setGlobalPropertyService(globalPropertyService);
 		executeDataSet(PATIENT_SEARCH_DATA_XML);
 	}
 	
@@ -88,6 +101,14 @@ public class FhirPatientDaoImplTest extends BaseModuleContextSensitiveTest {
 		assertThat(results.size(), greaterThan(1));
 	}
 	
+	@Test
+	public void shouldSearchForPatientsByNameIgnoringCase() {
+		List<Patient> results = dao.findPatientsByName(PATIENT_FAMILY_NAME.toUpperCase());
+		
+		assertThat(results, not(empty()));
+		assertThat(results.get(0).getFamilyName(), equalTo(PATIENT_FAMILY_NAME));
+	}
+	
 	@Test
 	public void shouldReturnEmptyListWhenPatientNameNotMatched() {
 		List<Patient> results = dao.findPatientsByName(PATIENT_NOT_FOUND_NAME);
@@ -140,4 +161,122 @@ public class FhirPatientDaoImplTest extends BaseModuleContextSensitiveTest {
 		assertThat(results, notNullValue());
 		assertThat(results, empty());
 	}
+	
+	@Test
+	public void shouldSearchForPatientsByGivenNameIgnoringCase() {
+		List<Patient> results = dao.findPatientsByGivenName(PATIENT_PARTIAL_GIVEN_NAME.toUpperCase());
+		
+		assertThat(results.size(), equalTo(dao.findPatientsByGivenName(PATIENT_PARTIAL_GIVEN_NAME).size()));
+		assertThat(results.size(), greaterThan(1));
+	}
+	
+	@Test
+	public void shouldSearchForPatientsByFamilyNameIgnoringCase() {
+		List<Patient> results = dao.findPatientsByFamilyName(PATIENT_FAMILY_NAME.toLowerCase());
+		
+		assertThat(results, not(empty()));
+		assertThat(results.get(0).getFamilyName(), equalTo(PATIENT_FAMILY_NAME));
+	}
+	
+	@Test
+	public void shouldStreamPatientsMatchingGivenNameIgnoringCase() {
+		List<Patient> results = new ArrayList<>();
+		dao.streamPatientsByGivenName(PATIENT_PARTIAL_GIVEN_NAME.toLowerCase(), results::add, new SearchCancellation());
+		
+		assertThat(results.size(), greaterThan(1));
+	}
+	
+	@Test
+	public void shouldStreamPatientsMatchingGivenName() {
+		List<Patient> results = new ArrayList<>();
+		dao.streamPatientsByGivenName(PATIENT_PARTIAL_GIVEN_NAME, results::add, new SearchCancellation());
+		
+		assertThat(results.size(), greaterThan(1));
+		assertThat(results.size(), equalTo(dao.findPatientsByGivenName(PATIENT_PARTIAL_GIVEN_NAME).size()));
+	}
+	
+	@Test
+	public void shouldStreamPatientsMatchingFamilyName() {
+		List<Patient> results = new ArrayList<>();
+		dao.streamPatientsByFamilyName(PATIENT_FAMILY_NAME, results::add, new SearchCancellation());
+		
+		assertThat(results, not(empty()));
+		assertThat(results.get(0).getFamilyName(), equalTo(PATIENT_FAMILY_NAME));
+	}
+	
+	@Test
+	public void shouldStreamTheSamePatientsAsTheSearchByName() {
+		List<Patient> results = new ArrayList<>();
+		dao.streamPatientsByName(PATIENT_PARTIAL_GIVEN_NAME, results::add, new SearchCancellation());
+		
+		List<Patient> searched = dao.findPatientsByName(PATIENT_PARTIAL_GIVEN_NAME);
+		assertThat(results.size(), greaterThan(1));
+		assertThat(results.stream().map(Patient::getUuid).collect(Collectors.toSet()),
+		    equalTo(searched.stream().map(Patient::getUuid).collect(Collectors.toSet())));
+	}
+	
+	@Test
+	public void shouldStreamNothingWhenPatientNameNotMatched() {
+		List<Patient> results = new ArrayList<>();
+		dao.streamPatientsByName(PATIENT_NOT_FOUND_NAME, results::add, new SearchCancellation());
+		
+		assertThat(results, empty());
+	}
+	
+	@Test
+	public void shouldStopStreamingOnceCancelled() {
+		SearchCancellation cancellation = new SearchCancellation();
+		List<Patient> results = new ArrayList<>();
+		try {
+			dao.streamPatientsByGivenName(PATIENT_PARTIAL_GIVEN_NAME, patient -> {
+				results.add(patient);
+				cancellation.cancel();
+			}, cancellation);
+			fail("The stream should have been cancelled");
+		}
+		catch (CancellationException e) {
+			assertThat(results, hasSize(1));
+		}
+	}
+	
+	@Test(expected = CancellationException.class)
+	public void shouldNotStreamWhenAlreadyCancelled() {
+		SearchCancellation cancellation = new SearchCancellation();
+		cancellation.cancel();
+		
+		dao.streamPatientsByFamilyName(PATIENT_FAMILY_NAME, patient -> {}, cancellation);
+	}
+	
+	@Test
+	public void shouldFindPatientsByFilter() {
+		List<Patient> results = dao.findPatientsByFilter(FilterParser.parse("family eq \"" + PATIENT_FAMILY_NAME + "\""));
+		assertThat(results, not(empty()));
+		assertThat(results.get(0).getFamilyName(), equalTo(PATIENT_FAMILY_NAME));
+	}
+	
+	@Test
+	public void shouldFindPatientsByFilterWithOr() {
+		List<Patient> results = dao.findPatientsByFilter(FilterParser.parse("family eq \"" + PATIENT_FAMILY_NAME
+		        + "\" or family eq \"" + PATIENT_NOT_FOUND_NAME + "\""));
+		assertThat(results.size(), equalTo(dao.findPatientsByFilter(
+		    FilterParser.parse("family eq \"" + PATIENT_FAMILY_NAME + "\"")).size()));
+	}
+	
+	@Test
+	public void shouldReturnEmptyListWhenFilterNotMatched() {
+		List<Patient> results = dao.findPatientsByFilter(FilterParser.parse("family eq \"" + PATIENT_FAMILY_NAME
+		        + "\" and given eq \"" + PATIENT_NOT_FOUND_NAME + "\""));
+		assertThat(results, empty());
+	}
+	
+	@Test
+	public void shouldFindPatientsByFilterOnNamePrefix() {
+		List<Patient> results = dao.findPatientsByFilter(FilterParser.parse("given sw " + PATIENT_PARTIAL_GIVEN_NAME));
+		assertThat(results.size(), greaterThan(1));
+	}
+	
+	@Test(expected = InvalidRequestException.class)
+	public void shouldRejectUnsupportedFilterParameter() {
+		dao.findPatientsByFilter(FilterParser.parse("telecom eq 555-1234"));
+	}
 }
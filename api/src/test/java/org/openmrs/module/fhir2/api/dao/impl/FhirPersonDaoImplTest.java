@@ -9,16 +9,15 @@
  */
 package org.openmrs.module.fhir2.api.dao.impl;
 
+import org.hibernate.SessionFactory;
 import org.junit.Before;
 import org.junit.Test;
 import org.openmrs.Person;
-import org.openmrs.api.PersonService;
 import org.openmrs.module.fhir2.TestFhirSpringConfiguration;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.springframework.test.context.ContextConfiguration;
 
 import javax.inject.Inject;
-import javax.inject.Named;
 import javax.inject.Provider;
 
 import static org.junit.Assert.assertEquals;
@@ -41,13 +40,12 @@ public class FhirPersonDaoImplTest extends BaseModuleContextSensitiveTest {
 	private FhirPersonDaoImpl fhirPersonDao;
 	
 	@Inject
-	@Named("personService")
-	private Provider<PersonService> personServiceProvider;
+	private Provider<SessionFactory> sessionFactoryProvider;
 	
 	@Before
 	public void setup() throws Exception {
 		fhirPersonDao = new FhirPersonDaoImpl();
-		fhirPersonDao.setPersonService(personServiceProvider.get());
+		fhirPersonDao.setSessionFactory(sessionFactoryProvider.get());
 		executeDataSet(PERSON_INITIAL_DATA_XML);
 	}
 	
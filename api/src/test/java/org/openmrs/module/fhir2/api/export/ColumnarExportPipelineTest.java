@@ -0,0 +1,120 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.export;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openmrs.api.APIException;
+
+public class ColumnarExportPipelineTest {
+	
+	private static final int RECORDS = 1000;
+	
+	private static final int PAGE_SIZE = 7;
+	
+	private static final int ROW_GROUP_SIZE = 10 * PAGE_SIZE;
+	
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	
+	private ExecutorService readerExecutor;
+	
+	private ExecutorService translatorExecutor;
+	
+	@Before
+	public void setup() {
+		readerExecutor = Executors.newSingleThreadExecutor();
+		translatorExecutor = Executors.newFixedThreadPool(4);
+	}
+	
+	@After
+	public void tearDown() {
+		readerExecutor.shutdownNow();
+		translatorExecutor.shutdownNow();
+	}
+	
+	@Test
+	public void shouldWriteEveryRecordInKeyOrder() throws Exception {
+		File file = temporaryFolder.newFile();
+		AtomicLong progress = new AtomicLong();
+		
+		long count = pipeline(RECORDS, false).build().export(file, progress::addAndGet);
+		
+		Map<String, List<String>> columns = ParquetTestReader.read(Files.readAllBytes(file.toPath()));
+		assertThat(count, equalTo((long) RECORDS));
+		assertThat(progress.get(), equalTo((long) RECORDS));
+		assertThat(columns.get("id"), hasSize(RECORDS));
+		assertThat(columns.get("family"), hasSize(RECORDS));
+		for (int i = 0; i < RECORDS; i++) {
+			assertThat(columns.get("id").get(i), equalTo(Integer.toString(i + 1)));
+			assertThat(columns.get("family").get(i), equalTo("Family " + (i + 1)));
+		}
+	}
+	
+	@Test
+	public void shouldWriteFileWithoutRowsWhenThereAreNoRecords() throws Exception {
+		File file = temporaryFolder.newFile();
+		
+		assertThat(pipeline(0, false).build().export(file, written -> {}), equalTo(0L));
+		assertThat(ParquetTestReader.read(Files.readAllBytes(file.toPath())).get("id"), hasSize(0));
+	}
+	
+	@Test(expected = CancellationException.class)
+	public void shouldStopWhenCancelled() throws Exception {
+		pipeline(RECORDS, true).build().export(temporaryFolder.newFile(), written -> {});
+	}
+	
+	@Test(expected = APIException.class)
+	public void shouldFailWhenReaderFails() throws Exception {
+		pipeline(RECORDS, false).reader((lastKey, maxResults) -> {
+			if (lastKey > 0) {
+				throw new APIException("read failed");
+			}
+			return IntStream.rangeClosed(1, maxResults).boxed().collect(Collectors.toList());
+		}).build().export(temporaryFolder.newFile(), written -> {});
+	}
+	
+	private ColumnarExportPipeline.ColumnarExportPipelineBuilder<Integer> pipeline(int records, boolean cancelled) {
+		return ColumnarExportPipeline.<Integer> builder()
+		        .reader((lastKey, maxResults) -> IntStream
+		                .rangeClosed(lastKey + 1, Math.min(records, lastKey + maxResults)).boxed()
+		                .collect(Collectors.toList()))
+		        .keyExtractor(Integer::intValue).translator(this::translate)
+		        .view(new ViewDefinition("Patient").column("id", "id").column("family", "name.family"))
+		        .readerExecutor(readerExecutor).translatorExecutor(translatorExecutor).pageSize(PAGE_SIZE)
+		        .maxPagesInFlight(2).rowGroupSize(ROW_GROUP_SIZE).cancelled(() -> cancelled);
+	}
+	
+	private Patient translate(Integer key) {
+		Patient patient = new Patient();
+		patient.setId(Integer.toString(key));
+		patient.addName().setFamily("Family " + key);
+		return patient;
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.export;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openmrs.api.APIException;
+
+public class NdjsonExportPipelineTest {
+	
+	private static final int RECORDS = 1000;
+	
+	private static final int PAGE_SIZE = 7;
+	
+	private static FhirContext fhirContext;
+	
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	
+	private ExecutorService readerExecutor;
+	
+	private ExecutorService translatorExecutor;
+	
+	@BeforeClass
+	public static void setupFhirContext() {
+		fhirContext = FhirContext.forR4();
+	}
+	
+	@Before
+	public void setup() {
+		readerExecutor = Executors.newSingleThreadExecutor();
+		translatorExecutor = Executors.newFixedThreadPool(4);
+	}
+	
+	@After
+	public void tearDown() {
+		readerExecutor.shutdownNow();
+		translatorExecutor.shutdownNow();
+	}
+	
+	@Test
+	public void shouldWriteEveryRecordInKeyOrder() throws Exception {
+		File file = temporaryFolder.newFile();
+		AtomicLong progress = new AtomicLong();
+		
+		long count = pipeline(RECORDS, false).build().export(file, progress::addAndGet);
+		
+		List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+		assertThat(count, equalTo((long) RECORDS));
+		assertThat(progress.get(), equalTo((long) RECORDS));
+		assertThat(lines, hasSize(RECORDS));
+		for (int i = 0; i < RECORDS; i++) {
+			Patient patient = fhirContext.newJsonParser().parseResource(Patient.class, lines.get(i));
+			assertThat(patient.getIdElement().getIdPart(), equalTo(Integer.toString(i + 1)));
+		}
+	}
+	
+	@Test
+	public void shouldWriteEmptyFileWhenThereAreNoRecords() throws Exception {
+		File file = temporaryFolder.newFile();
+		
+		assertThat(pipeline(0, false).build().export(file, written -> {}), equalTo(0L));
+		assertThat(file.length(), equalTo(0L));
+	}
+	
+	@Test(expected = CancellationException.class)
+	public void shouldStopWhenCancelled() throws Exception {
+		pipeline(RECORDS, true).build().export(temporaryFolder.newFile(), written -> {});
+	}
+	
+	@Test
+	public void shouldResumeFromCheckpointWithoutDuplicatesOrGaps() throws Exception {
+		File file = temporaryFolder.newFile();
+		List<long[]> checkpoints = new CopyOnWriteArrayList<>();
+		try {
+			pipeline(RECORDS, false).cancelled(() -> checkpoints.size() >= 3)
+			        .checkpointer(new RecordingCheckpointer(checkpoints)).build().export(file, written -> {});
+		}
+		catch (CancellationException e) {
+			// expected, the export is interrupted after its third checkpoint
+		}
+		
+		// a crash after the checkpoint leaves part of a record behind
+		Files.write(file.toPath(), "{\"resourceType\":\"Pat".getBytes(StandardCharsets.UTF_8),
+		    StandardOpenOption.APPEND);
+		
+		long[] checkpoint = checkpoints.get(checkpoints.size() - 1);
+		long count = pipeline(RECORDS, false).firstKey((int) checkpoint[0]).build().export(file, checkpoint[1],
+		    checkpoint[2], written -> {});
+		
+		List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+		assertThat(count, equalTo((long) RECORDS));
+		assertThat(lines, hasSize(RECORDS));
+		for (int i = 0; i < RECORDS; i++) {
+			Patient patient = fhirContext.newJsonParser().parseResource(Patient.class, lines.get(i));
+			assertThat(patient.getIdElement().getIdPart(), equalTo(Integer.toString(i + 1)));
+		}
+	}
+	
+	@Test(expected = APIException.class)
+	public void shouldFailWhenReaderFails() throws Exception {
+		NdjsonExportPipeline.<Integer> builder().reader((lastKey, maxResults) -> {
+			if (lastKey > 0) {
+				throw new APIException("read failed");
+			}
+			return IntStream.rangeClosed(1, maxResults).boxed().collect(Collectors.toList());
+		}).keyExtractor(Integer::intValue).translator(this::translate).fhirContext(fhirContext)
+		        .readerExecutor(readerExecutor).translatorExecutor(translatorExecutor).pageSize(PAGE_SIZE)
+		        .maxPagesInFlight(2).cancelled(() -> false).build().export(temporaryFolder.newFile(), written -> {});
+	}
+	
+	private NdjsonExportPipeline.NdjsonExportPipelineBuilder<Integer> pipeline(int records, boolean cancelled) {
+		return NdjsonExportPipeline.<Integer> builder()
+		        .reader((lastKey, maxResults) -> IntStream.rangeClosed(lastKey + 1, Math.min(records, lastKey + maxResults))
+		                .boxed().collect(Collectors.toList()))
+		        .keyExtractor(Integer::intValue).translator(this::translate).fhirContext(fhirContext)
+		        .readerExecutor(readerExecutor).translatorExecutor(translatorExecutor).pageSize(PAGE_SIZE)
+		        .maxPagesInFlight(2).cancelled(() -> cancelled);
+	}
+	
+	private Patient translate(Integer key) {
+		Patient patient = new Patient();
+		patient.setId(Integer.toString(key));
+		return patient;
+	}
+	
+	/**
+	 * Records every checkpoint as its last key, file offset and resource count
+	 */
+	private static class RecordingCheckpointer implements NdjsonExportPipeline.Checkpointer {
+		
+		private final List<long[]> checkpoints;
+		
+		private RecordingCheckpointer(List<long[]> checkpoints) {
+			this.checkpoints = checkpoints;
+		}
+		
+		@Override
+		public boolean isDue() {
+			return true;
+		}
+		
+		@Override
+		public void checkpoint(int lastKey, long fileOffset, long resourceCount) {
+			checkpoints.add(new long[] { lastKey, fileOffset, resourceCount });
+		}
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.export;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ParquetFileWriterTest {
+	
+	@Test
+	public void shouldWriteColumnsOfEveryRowGroup() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (ParquetFileWriter writer = new ParquetFileWriter(out, Arrays.asList("id", "family"))) {
+			writer.writeRowGroup(Arrays.asList(ParquetFileWriter.encodeColumn(Arrays.asList("1", "2", "3")),
+			    ParquetFileWriter.encodeColumn(Arrays.asList("Doe", null, "Müller"))), 3);
+			writer.writeRowGroup(Arrays.asList(ParquetFileWriter.encodeColumn(Collections.singletonList("4")),
+			    ParquetFileWriter.encodeColumn(Collections.singletonList(null))), 1);
+		}
+		
+		Map<String, List<String>> columns = ParquetTestReader.read(out.toByteArray());
+		assertThat(columns.keySet(), contains("id", "family"));
+		assertThat(columns.get("id"), contains("1", "2", "3", "4"));
+		assertThat(columns.get("family"), contains("Doe", null, "Müller", null));
+	}
+	
+	@Test
+	public void shouldWriteManyValuesInOneColumn() throws Exception {
+		List<String> values = new ArrayList<>();
+		for (int i = 0; i < 5000; i++) {
+			values.add(i % 3 == 0 ? null : Integer.toString(i));
+		}
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (ParquetFileWriter writer = new ParquetFileWriter(out, Collections.singletonList("value"))) {
+			writer.writeRowGroup(Collections.singletonList(ParquetFileWriter.encodeColumn(values)), values.size());
+		}
+		
+		List<String> read = ParquetTestReader.read(out.toByteArray()).get("value");
+		assertThat(read, hasSize(values.size()));
+		assertThat(read, equalTo(values));
+		assertThat(read.get(0), nullValue());
+	}
+	
+	@Test
+	public void shouldWriteValidFileWithoutRowGroups() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new ParquetFileWriter(out, Collections.singletonList("id")).close();
+		
+		assertThat(ParquetTestReader.read(out.toByteArray()).get("id"), hasSize(0));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectRowGroupWithWrongNumberOfColumns() throws Exception {
+		try (ParquetFileWriter writer = new ParquetFileWriter(new ByteArrayOutputStream(), Arrays.asList("a", "b"))) {
+			List<String> values = Collections.singletonList("x");
+			writer.writeRowGroup(Collections.singletonList(ParquetFileWriter.encodeColumn(values)), 1);
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.export;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads back the subset of Parquet written by {@link ParquetFileWriter}, so the tests can check what was written
+ */
+class ParquetTestReader {
+	
+	private final byte[] bytes;
+	
+	private int position;
+	
+	private ParquetTestReader(byte[] bytes, int position) {
+		this.bytes = bytes;
+		this.position = position;
+	}
+	
+	/**
+	 * @return the values of every column, by column name, in the order of the schema
+	 */
+	@SuppressWarnings("unchecked")
+	static Map<String, List<String>> read(byte[] file) throws IOException {
+		String magic = "PAR1";
+		if (!new String(file, 0, 4, StandardCharsets.US_ASCII).equals(magic)
+		        || !new String(file, file.length - 4, 4, StandardCharsets.US_ASCII).equals(magic)) {
+			throw new IOException("Not a Parquet file");
+		}
+		
+		int footerLength = ByteBuffer.wrap(file, file.length - 8, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+		Map<Integer, Object> metadata = new ParquetTestReader(file, file.length - 8 - footerLength).readStruct();
+		
+		Map<String, List<String>> columns = new LinkedHashMap<>();
+		List<Map<Integer, Object>> schema = (List<Map<Integer, Object>>) metadata.get(2);
+		for (Map<Integer, Object> element : schema.subList(1, schema.size())) {
+			columns.put((String) element.get(4), new ArrayList<>());
+		}
+		
+		for (Map<Integer, Object> rowGroup : (List<Map<Integer, Object>>) metadata.get(4)) {
+			for (Map<Integer, Object> chunk : (List<Map<Integer, Object>>) rowGroup.get(1)) {
+				Map<Integer, Object> columnMetadata = (Map<Integer, Object>) chunk.get(3);
+				String name = ((List<String>) columnMetadata.get(3)).get(0);
+				columns.get(name).addAll(readPage(file, (int) (long) columnMetadata.get(9)));
+			}
+		}
+		
+		return columns;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static List<String> readPage(byte[] file, int offset) throws IOException {
+		ParquetTestReader reader = new ParquetTestReader(file, offset);
+		Map<Integer, Object> header = reader.readStruct();
+		int valueCount = (int) (long) ((Map<Integer, Object>) header.get(5)).get(1);
+		
+		ByteArrayOutputStream page = new ByteArrayOutputStream();
+		try (InputStream in = new GZIPInputStream(
+		        new ByteArrayInputStream(file, reader.position, (int) (long) header.get(3)))) {
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				page.write(buffer, 0, read);
+			}
+		}
+		
+		ByteBuffer body = ByteBuffer.wrap(page.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+		int levelsLength = body.getInt();
+		ParquetTestReader levels = new ParquetTestReader(page.toByteArray(), 4);
+		levels.readVarint();
+		int bitsStart = levels.position;
+		body.position(4 + levelsLength);
+		
+		List<String> values = new ArrayList<>(valueCount);
+		for (int i = 0; i < valueCount; i++) {
+			if ((levels.bytes[bitsStart + i / 8] >> (i % 8) & 1) == 0) {
+				values.add(null);
+			} else {
+				byte[] value = new byte[body.getInt()];
+				body.get(value);
+				values.add(new String(value, StandardCharsets.UTF_8));
+			}
+		}
+		
+		return values;
+	}
+	
+	private Map<Integer, Object> readStruct() {
+		Map<Integer, Object> struct = new HashMap<>();
+		int lastFieldId = 0;
+		int header;
+		while ((header = bytes[position++] & 0xFF) != 0) {
+			int delta = header >> 4;
+			int fieldId = delta == 0 ? (int) readZigZag() : lastFieldId + delta;
+			struct.put(fieldId, readValue(header & 0x0F));
+			lastFieldId = fieldId;
+		}
+		
+		return struct;
+	}
+	
+	private Object readValue(int type) {
+		switch (type) {
+			case ThriftCompactWriter.I32:
+			case ThriftCompactWriter.I64:
+				return readZigZag();
+			case ThriftCompactWriter.BINARY:
+				int length = (int) readVarint();
+				String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+				position += length;
+				return value;
+			case ThriftCompactWriter.STRUCT:
+				return readStruct();
+			case ThriftCompactWriter.LIST:
+				int header = bytes[position++] & 0xFF;
+				int size = header >> 4 == 15 ? (int) readVarint() : header >> 4;
+				List<Object> list = new ArrayList<>(size);
+				for (int i = 0; i < size; i++) {
+					list.add(readValue(header & 0x0F));
+				}
+				return list;
+			default:
+				throw new IllegalStateException("Unexpected type " + type);
+		}
+	}
+	
+	private long readZigZag() {
+		long value = readVarint();
+		return value >>> 1 ^ -(value & 1);
+	}
+	
+	private long readVarint() {
+		long value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = bytes[position++] & 0xFF;
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		
+		return value;
+	}
+}
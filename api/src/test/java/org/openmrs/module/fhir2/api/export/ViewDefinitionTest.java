@@ -0,0 +1,81 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.export;
+
+import static org.hamcrest.Matchers.arrayContaining;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Person;
+import org.junit.Test;
+
+public class ViewDefinitionTest {
+	
+	private static final String PATIENT_UUID = "7c1a2bd0-7e8c-4d6b-bd35-bd7a1d8ed5b0";
+	
+	private static final String OPENMRS_ID = "OpenMRS ID";
+	
+	private static final String OLD_ID = "Old Identification Number";
+	
+	@Test
+	public void shouldFlattenPatientDemographics() {
+		Patient patient = new Patient();
+		patient.setId(PATIENT_UUID);
+		patient.setGender(Enumerations.AdministrativeGender.FEMALE);
+		patient.getBirthDateElement().setValueAsString("1980-04-12");
+		patient.addName().setFamily("Doe").addGiven("Jane").addGiven("Mary");
+		patient.addName().setFamily("Smith");
+		patient.addAddress().setCity("Maputo");
+		patient.addIdentifier().setSystem(OLD_ID).setValue("101-6");
+		patient.addIdentifier().setSystem(OPENMRS_ID).setValue("1003EY");
+		
+		ViewDefinition view = ViewDefinition.patient(Arrays.asList(OPENMRS_ID, OLD_ID));
+		
+		assertThat(view.getColumnNames(), contains("id", "gender", "birth_date", "family", "given", "city",
+		    "identifier_openmrs_id", "identifier_old_identification_number"));
+		assertThat(view.evaluate(patient),
+		    arrayContaining(PATIENT_UUID, "female", "1980-04-12", "Doe", "Jane", "Maputo", "1003EY", "101-6"));
+	}
+	
+	@Test
+	public void shouldLeaveMissingValuesNull() {
+		Person person = new Person();
+		person.setId(PATIENT_UUID);
+		
+		assertThat(ViewDefinition.person().evaluate(person),
+		    arrayContaining(PATIENT_UUID, null, null, null, null, null));
+	}
+	
+	@Test
+	public void shouldMatchLiteralsContainingDotsAndQuotes() {
+		Patient patient = new Patient();
+		patient.addIdentifier().setSystem("Dr. O'Brien's (old) ID").setValue("42");
+		
+		ViewDefinition view = ViewDefinition.patient(Collections.singletonList("Dr. O'Brien's (old) ID"));
+		
+		assertThat(view.evaluate(patient)[6], equalTo("42"));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectUnsupportedPath() {
+		new ViewDefinition("Patient").column("family", "name.family.substring(1)");
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectDuplicateColumn() {
+		new ViewDefinition("Patient").column("id", "id").column("id", "identifier.value");
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.impl;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import javax.inject.Inject;
+
+import java.util.List;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Person;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.Test;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.fhir2.TestFhirSpringConfiguration;
+import org.openmrs.module.fhir2.api.FhirBundleService;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+@ContextConfiguration(classes = TestFhirSpringConfiguration.class, inheritLocations = false)
+public class FhirBundleServiceImplTest extends BaseModuleContextSensitiveTest {
+	
+	private static final String PATIENT_UUID = "da7f524f-27ce-4bb2-86d6-6d1d05312bd5";
+	
+	private static final String NEW_PERSON_UUID = "5c521595-4e12-46b0-8248-b8f2d3697766";
+	
+	private static final String LINKED_PERSON_UUID = "8a6c5a47-1b5a-4b9c-9d54-0f1ce9b6e0f0";
+	
+	private static final String MISSING_UUID = "f0b3bd2a-0000-4d6e-8bc6-1d1e3c3e2b3f";
+	
+	private static final String URN_UUID_PREFIX = "urn:uuid:";
+	
+	@Inject
+	private FhirBundleService bundleService;
+	
+	@Inject
+	private PlatformTransactionManager transactionManager;
+	
+	@Test
+	public void processTransaction_shouldCreateBeforeReadingAndRespondInEntryOrder() {
+		Bundle transaction = new Bundle();
+		addRequest(transaction, HTTPVerb.GET, "Person/" + NEW_PERSON_UUID);
+		addCreate(transaction, NEW_PERSON_UUID, person());
+		
+		List<BundleEntryComponent> entries = bundleService.processTransaction(transaction).getEntry();
+		
+		assertThat(entries, hasSize(2));
+		assertThat(entries.get(0).getResponse().getStatus(), equalTo("200 OK"));
+		assertThat(entries.get(0).getResource().getIdElement().getIdPart(), equalTo(NEW_PERSON_UUID));
+		assertThat(entries.get(1).getResponse().getStatus(), equalTo("201 Created"));
+		assertThat(entries.get(1).getResponse().getLocation(), equalTo("Person/" + NEW_PERSON_UUID));
+	}
+	
+	@Test
+	public void processTransaction_shouldSaveNothingWhenAnEntryFails() {
+		Bundle transaction = new Bundle();
+		addCreate(transaction, NEW_PERSON_UUID, person());
+		addRequest(transaction, HTTPVerb.GET, "Person/" + MISSING_UUID);
+		
+		TransactionTemplate template = new TransactionTemplate(transactionManager);
+		template.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		try {
+			template.execute(status -> bundleService.processTransaction(transaction));
+			fail("The transaction should have failed on its second entry");
+		}
+		catch (ResourceNotFoundException e) {
+			assertThat(e.getMessage(), containsString("Bundle entry 1"));
+		}
+		
+		assertThat(Context.getPersonService().getPersonByUuid(NEW_PERSON_UUID), nullValue());
+	}
+	
+	@Test
+	public void processTransaction_shouldResolveReferencesToCreatedEntries() {
+		Person linked = person();
+		linked.addLink().setTarget(new Reference(URN_UUID_PREFIX + NEW_PERSON_UUID));
+		
+		Bundle transaction = new Bundle();
+		addCreate(transaction, LINKED_PERSON_UUID, linked);
+		addCreate(transaction, NEW_PERSON_UUID, person());
+		
+		bundleService.processTransaction(transaction);
+		
+		assertThat(linked.getLinkFirstRep().getTarget().getReference(), equalTo("Person/" + NEW_PERSON_UUID));
+		assertThat(Context.getPersonService().getPersonByUuid(NEW_PERSON_UUID), notNullValue());
+	}
+	
+	@Test
+	public void processTransaction_shouldRejectReferencesToUnknownEntries() {
+		Person linked = person();
+		linked.addLink().setTarget(new Reference(URN_UUID_PREFIX + MISSING_UUID));
+		
+		Bundle transaction = new Bundle();
+		addCreate(transaction, LINKED_PERSON_UUID, linked);
+		
+		try {
+			bundleService.processTransaction(transaction);
+			fail("The transaction should have rejected the unresolved reference");
+		}
+		catch (InvalidRequestException e) {
+			assertThat(e.getMessage(), containsString("Bundle entry 0"));
+			assertThat(e.getMessage(), containsString(URN_UUID_PREFIX + MISSING_UUID));
+		}
+	}
+	
+	@Test
+	public void processBatch_shouldReportTheOutcomeOfEachEntry() {
+		Bundle batch = new Bundle();
+		addRequest(batch, HTTPVerb.GET, "Patient/" + PATIENT_UUID);
+		addRequest(batch, HTTPVerb.GET, "Patient/" + MISSING_UUID);
+		addRequest(batch, HTTPVerb.POST, "Observation").setResource(new Observation());
+		
+		List<BundleEntryComponent> entries = bundleService.processBatch(batch).getEntry();
+		
+		assertThat(entries, hasSize(3));
+		assertThat(entries.get(0).getResponse().getStatus(), equalTo("200 OK"));
+		assertThat(entries.get(0).getResource().getIdElement().getIdPart(), equalTo(PATIENT_UUID));
+		assertFailed(entries.get(1), "404");
+		assertFailed(entries.get(2), "400");
+	}
+	
+	private static void assertFailed(BundleEntryComponent entry, String status) {
+		assertThat(entry.getResponse().getStatus(), equalTo(status));
+		assertThat(entry.getResource(), nullValue());
+		assertThat(entry.getResponse().getOutcome(), instanceOf(OperationOutcome.class));
+	}
+	
+	private static Person person() {
+		Person person = new Person();
+		person.addName().setFamily("Bundled").addGiven("Entry");
+		person.setGender(Enumerations.AdministrativeGender.FEMALE);
+		return person;
+	}
+	
+	private static BundleEntryComponent addCreate(Bundle bundle, String uuid, Resource resource) {
+		return addRequest(bundle, HTTPVerb.POST, resource.fhirType()).setFullUrl(URN_UUID_PREFIX + uuid)
+		        .setResource(resource);
+	}
+	
+	private static BundleEntryComponent addRequest(Bundle bundle, HTTPVerb method, String url) {
+		BundleEntryComponent entry = bundle.addEntry();
+		entry.getRequest().setMethod(method).setUrl(url);
+		return entry;
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.impl;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.api.FhirGlobalPropertyService;
+import org.openmrs.module.fhir2.api.changes.ChangeFeedMonitor;
+import org.openmrs.module.fhir2.api.changes.ChangeOperation;
+import org.openmrs.module.fhir2.api.changes.ResourceChange;
+import org.openmrs.module.fhir2.api.dao.FhirChangeFeedDao;
+
+@RunWith(MockitoJUnitRunner.class)
+public class FhirChangeFeedServiceImplTest {
+	
+	private static final int MAX_RESULTS = 10;
+	
+	private static final int COMMIT_TIMEOUT_SECONDS = 120;
+	
+	@Mock
+	private FhirChangeFeedDao dao;
+	
+	@Mock
+	private ChangeFeedMonitor monitor;
+	
+	@Mock
+	private FhirGlobalPropertyService globalPropertyService;
+	
+	private FhirChangeFeedServiceImpl changeFeedService;
+	
+	@Before
+	public void setup() {
+		changeFeedService = new FhirChangeFeedServiceImpl();
+		changeFeedService.setDao(dao);
+		changeFeedService.setMonitor(monitor);
+		changeFeedService.setGlobalPropertyService(globalPropertyService);
+		
+		when(globalPropertyService.getGlobalProperty(eq(FhirConstants.CHANGES_RETENTION_DAYS_PROPERTY), anyInt()))
+		        .thenReturn(7);
+		when(globalPropertyService.getGlobalProperty(eq(FhirConstants.CHANGES_COMMIT_TIMEOUT_SECONDS_PROPERTY),
+		    anyInt())).thenReturn(COMMIT_TIMEOUT_SECONDS);
+	}
+	
+	@Test
+	public void getChanges_shouldStopAtAGapWhichMayStillCommit() throws Exception {
+		long now = System.currentTimeMillis();
+		when(dao.getChangesAfter(0, MAX_RESULTS)).thenReturn(Arrays.asList(change(1, now), change(3, now)));
+		
+		assertThat(getChangeIds(0), contains(1L));
+	}
+	
+	@Test
+	public void getChanges_shouldPassAGapWhichWasRolledBack() throws Exception {
+		long now = System.currentTimeMillis();
+		when(dao.getChangesAfter(0, MAX_RESULTS)).thenReturn(Arrays.asList(change(1, now), change(3, now)));
+		when(monitor.isRolledBack(2)).thenReturn(true);
+		
+		assertThat(getChangeIds(0), contains(1L, 3L));
+	}
+	
+	@Test
+	public void getChanges_shouldPassAGapOlderThanTheCommitTimeout() throws Exception {
+		long then = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(COMMIT_TIMEOUT_SECONDS + 1);
+		when(dao.getChangesAfter(0, MAX_RESULTS)).thenReturn(Arrays.asList(change(1, then), change(3, then)));
+		
+		assertThat(getChangeIds(0), contains(1L, 3L));
+	}
+	
+	@Test
+	public void getChanges_shouldWaitForTheConfiguredCommitTimeout() throws Exception {
+		when(globalPropertyService.getGlobalProperty(eq(FhirConstants.CHANGES_COMMIT_TIMEOUT_SECONDS_PROPERTY),
+		    anyInt())).thenReturn(COMMIT_TIMEOUT_SECONDS * 3);
+		// older than the default timeout, but not than the configured one
+		long then = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(COMMIT_TIMEOUT_SECONDS * 2);
+		when(dao.getChangesAfter(0, MAX_RESULTS)).thenReturn(Arrays.asList(change(1, then), change(3, then)));
+		
+		assertThat(getChangeIds(0), contains(1L));
+	}
+	
+	@Test
+	public void getChanges_shouldNotPassAGapWhichIsStillUncommittedOnThisNode() throws Exception {
+		long then = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(COMMIT_TIMEOUT_SECONDS + 1);
+		when(dao.getChangesAfter(0, MAX_RESULTS)).thenReturn(Arrays.asList(change(1, then), change(3, then)));
+		when(monitor.hasUncommitted(2, 3)).thenReturn(true);
+		
+		assertThat(getChangeIds(0), contains(1L));
+	}
+	
+	@Test
+	public void getChanges_shouldNotPassAGapAfterTheCursor() throws Exception {
+		long now = System.currentTimeMillis();
+		when(dao.getChangesAfter(1, MAX_RESULTS)).thenReturn(Arrays.asList(change(3, now), change(4, now)));
+		
+		assertThat(getChangeIds(1), empty());
+	}
+	
+	private List<Long> getChangeIds(long cursor) throws InterruptedException {
+		return changeFeedService.getChanges(cursor, MAX_RESULTS, 0).stream().map(ResourceChange::getChangeId)
+		        .collect(Collectors.toList());
+	}
+	
+	private static ResourceChange change(long changeId, long dateCreated) {
+		ResourceChange change = new ResourceChange();
+		change.setChangeId(changeId);
+		change.setResourceType(FhirConstants.PATIENT);
+		change.setResourceUuid("da7f524f-27ce-4bb2-86d6-6d1d05312bd5");
+		change.setOperation(ChangeOperation.UPDATE);
+		change.setDateCreated(new Date(dateCreated));
+		return change;
+	}
+}
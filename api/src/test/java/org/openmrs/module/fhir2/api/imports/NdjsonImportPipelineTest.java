@@ -0,0 +1,201 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.imports;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.junit.Assert.assertThat;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.Person;
+import org.openmrs.api.APIException;
+
+public class NdjsonImportPipelineTest {
+	
+	private static final String SYSTEM = "Old Identification Number";
+	
+	private static final String UNKNOWN_SYSTEM = "Unknown Identification Number";
+	
+	private static final int BATCH_SIZE = 3;
+	
+	private static FhirContext fhirContext;
+	
+	private ExecutorService translatorExecutor;
+	
+	private List<List<Person>> savedBatches;
+	
+	private List<Set<String>> resolvedSystems;
+	
+	@BeforeClass
+	public static void setupFhirContext() {
+		fhirContext = FhirContext.forR4();
+	}
+	
+	@Before
+	public void setup() {
+		translatorExecutor = Executors.newFixedThreadPool(4);
+		savedBatches = new CopyOnWriteArrayList<>();
+		resolvedSystems = new CopyOnWriteArrayList<>();
+	}
+	
+	@After
+	public void tearDown() {
+		translatorExecutor.shutdownNow();
+	}
+	
+	@Test
+	public void shouldImportEveryLineInBatches() throws Exception {
+		StringBuilder ndjson = new StringBuilder();
+		for (int i = 1; i <= 10; i++) {
+			ndjson.append(patient(Integer.toString(i), SYSTEM)).append('\n');
+		}
+		
+		BulkImportResult result = pipeline(savedBatches::add).run(new StringReader(ndjson.toString()));
+		
+		assertThat(result.getResourceCount(), equalTo(10L));
+		assertThat(result.getImportedCount(), equalTo(10L));
+		assertThat(result.getErrorCount(), equalTo(0L));
+		assertThat(savedBatches, hasSize(4));
+		assertThat(savedBatches.stream().flatMap(List::stream).map(Person::getUuid).collect(Collectors.toList()),
+		    contains("1", "2", "3", "4", "5", "6", "7", "8", "9", "10"));
+	}
+	
+	@Test
+	public void shouldResolveIdentifierTypesOncePerBatch() throws Exception {
+		String ndjson = patient("1", SYSTEM) + "\n" + patient("2", SYSTEM) + "\n" + patient("3", SYSTEM) + "\n";
+		
+		pipeline(savedBatches::add).run(new StringReader(ndjson));
+		
+		assertThat(resolvedSystems, contains(Collections.singleton(SYSTEM)));
+		org.openmrs.Patient patient = (org.openmrs.Patient) savedBatches.get(0).get(0);
+		assertThat(patient.getPatientIdentifier().getIdentifierType().getName(), equalTo(SYSTEM));
+	}
+	
+	@Test
+	public void shouldReportLinesWhichCannotBeImportedWithoutStopping() throws Exception {
+		String ndjson = patient("1", SYSTEM) + "\n" // 1
+		        + "{\"resourceType\":\"Patient\",\n" // 2, malformed
+		        + "\n" // 3, blank
+		        + fhirContext.newJsonParser().encodeResourceToString(new Observation()) + "\n" // 4, unsupported
+		        + patient("5", UNKNOWN_SYSTEM) + "\n" // 5, no such identifier type
+		        + patient("6", SYSTEM) + "\n";
+		
+		BulkImportResult result = pipeline(savedBatches::add).run(new StringReader(ndjson));
+		
+		assertThat(result.getResourceCount(), equalTo(5L));
+		assertThat(result.getImportedCount(), equalTo(2L));
+		assertThat(result.getErrorCount(), equalTo(3L));
+		assertThat(result.getErrors().stream().map(BulkImportError::getLineNumber).collect(Collectors.toList()),
+		    contains(2L, 4L, 5L));
+		assertThat(result.getErrors().get(1).getMessage(), containsString("Observation"));
+	}
+	
+	@Test
+	public void shouldRetryRecordsOfFailedBatchOneAtATime() throws Exception {
+		String ndjson = patient("1", SYSTEM) + "\n" + patient("bad", SYSTEM) + "\n" + patient("3", SYSTEM) + "\n";
+		
+		BulkImportResult result = pipeline(batch -> {
+			if (batch.stream().anyMatch(person -> "bad".equals(person.getUuid()))) {
+				throw new APIException("could not save");
+			}
+			savedBatches.add(batch);
+		}).run(new StringReader(ndjson));
+		
+		assertThat(result.getImportedCount(), equalTo(2L));
+		assertThat(result.getErrors(), hasSize(1));
+		assertThat(result.getErrors().get(0).getLineNumber(), equalTo(2L));
+		assertThat(result.getErrors().get(0).getMessage(), equalTo("could not save"));
+		assertThat(savedBatches, hasSize(2));
+	}
+	
+	@Test
+	public void shouldOnlyKeepMaxErrors() throws Exception {
+		StringBuilder ndjson = new StringBuilder();
+		for (int i = 0; i < 10; i++) {
+			ndjson.append("not json\n");
+		}
+		
+		BulkImportResult result = pipeline(savedBatches::add).run(new StringReader(ndjson.toString()));
+		
+		assertThat(result.getErrorCount(), equalTo(10L));
+		assertThat(result.getErrors(), hasSize(5));
+	}
+	
+	private NdjsonImportPipeline pipeline(Consumer<List<Person>> writer) {
+		return NdjsonImportPipeline.builder().fhirContext(fhirContext)
+		        .resourceTypes(new HashSet<>(Arrays.asList("Patient", "Person"))).identifierTypeResolver(this::resolve)
+		        .translator(this::translate).writer(writer).translatorExecutor(translatorExecutor).batchSize(BATCH_SIZE)
+		        .maxBatchesInFlight(2).maxErrors(5).build();
+	}
+	
+	private Map<String, PatientIdentifierType> resolve(Set<String> systems) {
+		resolvedSystems.add(new HashSet<>(systems));
+		
+		Map<String, PatientIdentifierType> identifierTypes = new HashMap<>();
+		if (systems.contains(SYSTEM)) {
+			PatientIdentifierType identifierType = new PatientIdentifierType();
+			identifierType.setName(SYSTEM);
+			identifierTypes.put(SYSTEM, identifierType);
+		}
+		
+		return identifierTypes;
+	}
+	
+	/**
+	 * A minimal stand-in for the patient translator
+	 */
+	private Person translate(IBaseResource resource, Map<String, PatientIdentifierType> identifierTypes) {
+		Patient fhirPatient = (Patient) resource;
+		org.openmrs.Patient patient = new org.openmrs.Patient();
+		patient.setUuid(fhirPatient.getIdElement().getIdPart());
+		for (Identifier identifier : fhirPatient.getIdentifier()) {
+			PatientIdentifierType identifierType = identifierTypes.get(identifier.getSystem());
+			if (identifierType == null) {
+				throw new APIException("cannot find identifier type for " + identifier.getSystem());
+			}
+			patient.addIdentifier(new PatientIdentifier(identifier.getValue(), identifierType, null));
+		}
+		
+		return patient;
+	}
+	
+	private static String patient(String id, String system) {
+		Patient patient = new Patient();
+		patient.setId(id);
+		patient.addIdentifier().setSystem(system).setValue("ID-" + id);
+		return fhirContext.newJsonParser().encodeResourceToString(patient);
+	}
+}
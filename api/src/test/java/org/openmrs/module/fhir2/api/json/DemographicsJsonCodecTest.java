@@ -0,0 +1,182 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.json;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.StringWriter;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Address;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DateType;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Person;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.Test;
+
+public class DemographicsJsonCodecTest {
+	
+	private static final String PATIENT_UUID = "256ccf6d-6b41-455c-9be2-51ff4386ae76";
+	
+	private static final String PERSON_UUID = "5c521595-4e12-46b0-8248-b8f2d3697766";
+	
+	private static final FhirContext HAPI = FhirContext.forR4();
+	
+	private static final FhirContext FAST = new FastJsonFhirContext();
+	
+	@Test
+	public void shouldEncodePatientAsHapiDoes() throws Exception {
+		Patient patient = patient();
+		
+		assertThat(DemographicsJsonCodec.canEncode(patient), is(true));
+		assertThat(encode(patient), equalTo(HAPI.newJsonParser().encodeResourceToString(patient)));
+		assertThat(FAST.newJsonParser().encodeResourceToString(patient),
+		    equalTo(HAPI.newJsonParser().encodeResourceToString(patient)));
+	}
+	
+	@Test
+	public void shouldEncodeDeceasedDateTimeAsHapiDoes() throws Exception {
+		Patient patient = patient();
+		patient.setDeceased(new DateTimeType("2019-11-02T10:15:00+03:00"));
+		
+		assertThat(encode(patient), equalTo(HAPI.newJsonParser().encodeResourceToString(patient)));
+	}
+	
+	@Test
+	public void shouldEncodeMinimalPatientAsHapiDoes() throws Exception {
+		Patient patient = new Patient();
+		patient.setId(PATIENT_UUID);
+		
+		assertThat(encode(patient), equalTo(HAPI.newJsonParser().encodeResourceToString(patient)));
+	}
+	
+	@Test
+	public void shouldEncodePersonAsHapiDoes() throws Exception {
+		Person person = person();
+		
+		assertThat(DemographicsJsonCodec.canEncode(person), is(true));
+		assertThat(encode(person), equalTo(HAPI.newJsonParser().encodeResourceToString(person)));
+	}
+	
+	@Test
+	public void shouldLeaveUnsupportedElementsToHapi() {
+		Patient patient = patient();
+		patient.addTelecom().setValue("555-0100");
+		
+		assertThat(DemographicsJsonCodec.canEncode(patient), is(false));
+		assertThat(FAST.newJsonParser().encodeResourceToString(patient),
+		    equalTo(HAPI.newJsonParser().encodeResourceToString(patient)));
+	}
+	
+	@Test
+	public void shouldLeaveExtensionsAndNullGenderToHapi() {
+		Patient withExtension = patient();
+		withExtension.getBirthDateElement().addExtension("http://example.com/accuracy", new StringType("estimated"));
+		Patient withNullGender = patient();
+		withNullGender.setGender(Enumerations.AdministrativeGender.NULL);
+		
+		assertThat(DemographicsJsonCodec.canEncode(withExtension), is(false));
+		assertThat(DemographicsJsonCodec.canEncode(withNullGender), is(false));
+	}
+	
+	@Test
+	public void shouldLeavePrettyPrintingToHapi() {
+		Patient patient = patient();
+		
+		assertThat(FAST.newJsonParser().setPrettyPrint(true).encodeResourceToString(patient),
+		    equalTo(HAPI.newJsonParser().setPrettyPrint(true).encodeResourceToString(patient)));
+	}
+	
+	@Test
+	public void shouldParsePatientAsHapiDoes() {
+		String json = HAPI.newJsonParser().encodeResourceToString(patient());
+		
+		Patient parsed = (Patient) DemographicsJsonCodec.parse(Patient.class, json);
+		Patient expected = HAPI.newJsonParser().parseResource(Patient.class, json);
+		
+		assertThat(parsed.getIdElement().getValue(), equalTo(expected.getIdElement().getValue()));
+		assertThat(parsed.equalsDeep(expected), is(true));
+	}
+	
+	@Test
+	public void shouldParsePersonAsHapiDoes() {
+		String json = HAPI.newJsonParser().encodeResourceToString(person());
+		
+		Person parsed = (Person) DemographicsJsonCodec.parse(null, json);
+		Person expected = HAPI.newJsonParser().parseResource(Person.class, json);
+		
+		assertThat(parsed.equalsDeep(expected), is(true));
+	}
+	
+	@Test
+	public void shouldLeaveUnknownMembersToHapi() {
+		String json = "{\"resourceType\":\"Patient\",\"id\":\"" + PATIENT_UUID
+		        + "\",\"telecom\":[{\"value\":\"555-0100\"}]}";
+		
+		assertThat(DemographicsJsonCodec.parse(Patient.class, json), nullValue());
+		assertThat(FAST.newJsonParser().parseResource(json), instanceOf(Patient.class));
+		assertThat(FAST.newJsonParser().parseResource(Patient.class, json).getTelecomFirstRep().getValue(),
+		    equalTo("555-0100"));
+	}
+	
+	@Test
+	public void shouldLeaveOtherResourceTypesToHapi() {
+		String json = HAPI.newJsonParser().encodeResourceToString(person());
+		
+		assertThat(DemographicsJsonCodec.parse(Patient.class, json), nullValue());
+	}
+	
+	private static String encode(IBaseResource resource) throws Exception {
+		StringWriter writer = new StringWriter();
+		DemographicsJsonCodec.encode(resource, writer);
+		return writer.toString();
+	}
+	
+	private static Patient patient() {
+		Patient patient = new Patient();
+		patient.setId(PATIENT_UUID);
+		patient.setActive(true);
+		patient.addIdentifier().setId("5d6f5e2c-8ea0-4d58-9b8c-6a3ec6b0a9e1").setUse(Identifier.IdentifierUse.OFFICIAL)
+		        .setSystem("OpenMRS ID").setValue("101-6");
+		patient.addName().setId("a5b6e4a8-2b8e-4d39-a5b3-7f1fb6b8e1c4").setFamily("O'Brien & \"Sons\"")
+		        .addGiven("Jean").addGiven("René");
+		patient.setGender(Enumerations.AdministrativeGender.FEMALE);
+		patient.setBirthDateElement(new DateType("1980-03-14"));
+		patient.setDeceased(new BooleanType(false));
+		patient.addAddress().setId("f1c6f1b4-3b6d-4f44-9d2b-2a7e3f1c9d10").setUse(Address.AddressUse.HOME)
+		        .setCity("Indianapolis").setState("IN").setPostalCode("46202").setCountry("USA");
+		return patient;
+	}
+	
+	private static Person person() {
+		Person person = new Person();
+		person.setId(PERSON_UUID);
+		person.setActive(true);
+		person.addName().setId("a5b6e4a8-2b8e-4d39-a5b3-7f1fb6b8e1c4").setFamily("Doe").addGiven("John");
+		person.setGender(Enumerations.AdministrativeGender.MALE);
+		person.setBirthDateElement(new DateType("1975-01"));
+		person.addAddress().setCity("Kampala").setCountry("Uganda").setUse(Address.AddressUse.OLD);
+		Reference target = new Reference().setDisplay("John Doe");
+		target.setId("Patient/" + PATIENT_UUID);
+		person.addLink().setTarget(target);
+		return person;
+	}
+}
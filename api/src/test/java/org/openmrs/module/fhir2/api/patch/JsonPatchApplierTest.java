@@ -0,0 +1,124 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.patch;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Date;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Person;
+import org.openmrs.PersonAddress;
+import org.openmrs.PersonName;
+import org.openmrs.module.fhir2.api.translators.impl.AddressTranslatorImpl;
+import org.openmrs.module.fhir2.api.translators.impl.GenderTranslatorImpl;
+import org.openmrs.module.fhir2.api.translators.impl.PersonNameTranslatorImpl;
+
+public class JsonPatchApplierTest {
+	
+	private static final String NAME_UUID = "ac0c1e5a-6eb7-4f2e-8a1c-31a6ef2c6f5b";
+	
+	private static final String GIVEN_NAME = "John";
+	
+	private static final String FAMILY_NAME = "Doe";
+	
+	private static final String CITY = "Maputo";
+	
+	private JsonPatchApplier applier;
+	
+	private Person person;
+	
+	private PersonName name;
+	
+	@Before
+	public void setup() {
+		applier = new JsonPatchApplier();
+		applier.setFhirContext(FhirContext.forR4());
+		applier.setNameTranslator(new PersonNameTranslatorImpl());
+		applier.setAddressTranslator(new AddressTranslatorImpl());
+		applier.setGenderTranslator(new GenderTranslatorImpl());
+		
+		name = new PersonName(GIVEN_NAME, null, FAMILY_NAME);
+		name.setUuid(NAME_UUID);
+		person = new Person();
+		person.setGender("M");
+		person.addName(name);
+	}
+	
+	@Test
+	public void shouldReplaceFieldWithinName() {
+		applier.applyToPerson(person, "[{\"op\":\"replace\",\"path\":\"/name/0/family\",\"value\":\"Smith\"}]");
+		
+		assertThat(person.getNames(), hasSize(1));
+		assertThat(name.getFamilyName(), equalTo("Smith"));
+		assertThat(name.getGivenName(), equalTo(GIVEN_NAME));
+		assertThat(name.getUuid(), equalTo(NAME_UUID));
+	}
+	
+	@Test
+	public void shouldAddAddress() {
+		applier.applyToPerson(person,
+		    "[{\"op\":\"add\",\"path\":\"/address/-\",\"value\":{\"city\":\"" + CITY + "\"}}]");
+		
+		assertThat(person.getAddresses(), hasSize(1));
+		PersonAddress address = person.getAddresses().iterator().next();
+		assertThat(address.getCityVillage(), equalTo(CITY));
+		assertThat(address.getUuid(), notNullValue());
+	}
+	
+	@Test
+	public void shouldVoidRemovedName() {
+		applier.applyToPerson(person, "[{\"op\":\"remove\",\"path\":\"/name/0\"}]");
+		
+		assertThat(name.getVoided(), is(true));
+		assertThat(name.getVoidReason(), notNullValue());
+	}
+	
+	@Test
+	public void shouldReplaceGender() {
+		applier.applyToPerson(person, "[{\"op\":\"replace\",\"path\":\"/gender\",\"value\":\"female\"}]");
+		
+		assertThat(person.getGender(), equalTo("F"));
+	}
+	
+	@Test
+	public void shouldRemoveBirthDate() {
+		person.setBirthdate(new Date());
+		
+		applier.applyToPerson(person, "[{\"op\":\"remove\",\"path\":\"/birthDate\"}]");
+		
+		assertThat(person.getBirthdate(), nullValue());
+	}
+	
+	@Test
+	public void shouldVoidInactivePerson() {
+		applier.applyToPerson(person, "[{\"op\":\"replace\",\"path\":\"/active\",\"value\":false}]");
+		
+		assertThat(person.getVoided(), is(true));
+	}
+	
+	@Test(expected = InvalidRequestException.class)
+	public void shouldRejectUnsupportedElement() {
+		applier.applyToPerson(person, "[{\"op\":\"replace\",\"path\":\"/telecom\",\"value\":[]}]");
+	}
+	
+	@Test(expected = InvalidRequestException.class)
+	public void shouldRejectInvalidValue() {
+		applier.applyToPerson(person, "[{\"op\":\"replace\",\"path\":\"/birthDate\",\"value\":\"not a date\"}]");
+	}
+}
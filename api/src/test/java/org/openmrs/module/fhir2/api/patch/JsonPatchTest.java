@@ -0,0 +1,100 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.patch;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+public class JsonPatchTest {
+	
+	private static final String DOCUMENT = "{\"name\":[{\"family\":\"Doe\",\"given\":[\"John\"]}],\"gender\":\"male\"}";
+	
+	@Test
+	public void shouldParseOperations() {
+		List<JsonPatch.Operation> operations = JsonPatch.parse("[{\"op\":\"replace\",\"path\":\"/name/0/family\","
+		        + "\"value\":\"Smith\"},{\"op\":\"remove\",\"path\":\"/a~1b/c~0d\"}]");
+		
+		assertThat(operations, hasSize(2));
+		assertThat(operations.get(0).is(JsonPatch.REPLACE), is(true));
+		assertThat(operations.get(0).getPath(), contains("name", "0", "family"));
+		assertThat(operations.get(0).getValue().getAsString(), equalTo("Smith"));
+		assertThat(operations.get(1).is(JsonPatch.REMOVE), is(true));
+		assertThat(operations.get(1).getPath(), contains("a/b", "c~d"));
+	}
+	
+	@Test(expected = InvalidRequestException.class)
+	public void shouldRejectUnsupportedOperation() {
+		JsonPatch.parse("[{\"op\":\"move\",\"from\":\"/gender\",\"path\":\"/name\"}]");
+	}
+	
+	@Test(expected = InvalidRequestException.class)
+	public void shouldRejectAddWithoutValue() {
+		JsonPatch.parse("[{\"op\":\"add\",\"path\":\"/gender\"}]");
+	}
+	
+	@Test(expected = InvalidRequestException.class)
+	public void shouldRejectDocumentWhichIsNotAnArray() {
+		JsonPatch.parse("{\"op\":\"remove\",\"path\":\"/gender\"}");
+	}
+	
+	@Test
+	public void shouldReplaceMember() {
+		JsonElement document = apply(DOCUMENT,
+		    "[{\"op\":\"replace\",\"path\":\"/name/0/family\",\"value\":\"Smith\"}]");
+		
+		assertThat(document.getAsJsonObject().getAsJsonArray("name").get(0).getAsJsonObject().get("family")
+		        .getAsString(), equalTo("Smith"));
+	}
+	
+	@Test
+	public void shouldInsertIntoArray() {
+		JsonElement document = apply(DOCUMENT, "[{\"op\":\"add\",\"path\":\"/name/0/given/0\",\"value\":\"Jack\"},"
+		        + "{\"op\":\"add\",\"path\":\"/name/0/given/-\",\"value\":\"Jim\"}]");
+		
+		assertThat(document.getAsJsonObject().getAsJsonArray("name").get(0).getAsJsonObject().getAsJsonArray("given")
+		        .toString(), equalTo("[\"Jack\",\"John\",\"Jim\"]"));
+	}
+	
+	@Test
+	public void shouldRemoveMember() {
+		JsonElement document = apply(DOCUMENT, "[{\"op\":\"remove\",\"path\":\"/gender\"}]");
+		
+		assertThat(document.getAsJsonObject().has("gender"), is(false));
+	}
+	
+	@Test(expected = InvalidRequestException.class)
+	public void shouldRejectReplacingMissingMember() {
+		apply(DOCUMENT, "[{\"op\":\"replace\",\"path\":\"/birthDate\",\"value\":\"2000-01-01\"}]");
+	}
+	
+	@Test(expected = InvalidRequestException.class)
+	public void shouldRejectIndexBeyondArray() {
+		apply(DOCUMENT, "[{\"op\":\"remove\",\"path\":\"/name/1\"}]");
+	}
+	
+	private static JsonElement apply(String document, String patch) {
+		JsonElement json = new JsonParser().parse(document);
+		for (JsonPatch.Operation operation : JsonPatch.parse(patch)) {
+			JsonPatch.apply(json, operation.getPath(), operation);
+		}
+		
+		return json;
+	}
+}
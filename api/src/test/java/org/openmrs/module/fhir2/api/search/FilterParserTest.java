@@ -0,0 +1,96 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.api.search;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertThat;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Test;
+
+public class FilterParserTest {
+	
+	@Test
+	public void shouldParseSingleComparison() {
+		FilterExpression result = FilterParser.parse("family eq Otieno");
+		
+		assertThat(result, instanceOf(FilterExpression.Comparison.class));
+		FilterExpression.Comparison comparison = (FilterExpression.Comparison) result;
+		assertThat(comparison.getParameter(), equalTo("family"));
+		assertThat(comparison.getOperator(), equalTo(FilterOperator.EQ));
+		assertThat(comparison.getValue(), equalTo("Otieno"));
+	}
+	
+	@Test
+	public void shouldParseQuotedValueWithEscapedQuote() {
+		FilterExpression.Comparison comparison = (FilterExpression.Comparison) FilterParser
+		        .parse("given sw \"Jean \\\"Claude\"");
+		
+		assertThat(comparison.getOperator(), equalTo(FilterOperator.SW));
+		assertThat(comparison.getValue(), equalTo("Jean \"Claude"));
+	}
+	
+	@Test
+	public void shouldParseParenthesizedOrWithinAnd() {
+		FilterExpression result = FilterParser
+		        .parse("(family eq \"Otieno\" or family eq \"Odhiambo\") and birthdate ge 1990");
+		
+		assertThat(result, instanceOf(FilterExpression.And.class));
+		FilterExpression.And and = (FilterExpression.And) result;
+		assertThat(and.getOperands(), hasSize(2));
+		assertThat(and.getOperands().get(0), instanceOf(FilterExpression.Or.class));
+		assertThat(((FilterExpression.Or) and.getOperands().get(0)).getOperands(), hasSize(2));
+		assertThat(and.getOperands().get(1), instanceOf(FilterExpression.Comparison.class));
+	}
+	
+	@Test
+	public void shouldBindAndMoreTightlyThanOr() {
+		FilterExpression result = FilterParser.parse("family eq a or family eq b and given eq c");
+		
+		assertThat(result, instanceOf(FilterExpression.Or.class));
+		assertThat(((FilterExpression.Or) result).getOperands().get(1), instanceOf(FilterExpression.And.class));
+	}
+	
+	@Test
+	public void shouldParseNot() {
+		FilterExpression result = FilterParser.parse("not (gender eq male)");
+		
+		assertThat(result, instanceOf(FilterExpression.Not.class));
+		assertThat(((FilterExpression.Not) result).getOperand(), instanceOf(FilterExpression.Comparison.class));
+	}
+	
+	@Test(expected = InvalidRequestException.class)
+	public void shouldRejectUnsupportedOperator() {
+		FilterParser.parse("family re Otieno");
+	}
+	
+	@Test(expected = InvalidRequestException.class)
+	public void shouldRejectUnbalancedParentheses() {
+		FilterParser.parse("(family eq Otieno");
+	}
+	
+	@Test(expected = InvalidRequestException.class)
+	public void shouldRejectTrailingInput() {
+		FilterParser.parse("family eq Otieno)");
+	}
+	
+	@Test(expected = InvalidRequestException.class)
+	public void shouldRejectMissingValue() {
+		FilterParser.parse("family eq");
+	}
+	
+	@Test(expected = InvalidRequestException.class)
+	public void shouldRejectTooManyComparisons() {
+		FilterParser.parse(StringUtils.repeat("family eq a", " or ", FilterParser.MAX_COMPARISONS + 1));
+	}
+}
@@ -12,6 +12,7 @@ package org.openmrs.module.fhir2.api.translators.impl;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 
 import org.hl7.fhir.r4.model.Address;
@@ -154,4 +155,21 @@ public class AddressTranslatorImplTest {
 		assertThat(addressTranslator.toOpenmrsType(address).getPreferred(), is(false));
 	}
 	
+	@Test
+	public void shouldUpdateChangedFieldsOnly() {
+		PersonAddress currentAddress = new PersonAddress();
+		currentAddress.setUuid(PERSON_ADDRESS_UUID);
+		currentAddress.setCityVillage(CITY);
+		currentAddress.setPostalCode("1000");
+		Address address = new Address();
+		address.setCity(CITY);
+		address.setPostalCode(POSTAL_CODE);
+		
+		PersonAddress result = addressTranslator.toOpenmrsType(currentAddress, address);
+		assertThat(result, sameInstance(currentAddress));
+		assertThat(result.getPostalCode(), equalTo(POSTAL_CODE));
+		assertThat(result.getCityVillage(), equalTo(CITY));
+		assertThat(result.getUuid(), equalTo(PERSON_ADDRESS_UUID));
+	}
+
 }
@@ -14,7 +14,10 @@ import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import org.hl7.fhir.r4.model.Identifier;
@@ -149,6 +152,21 @@ public class PatientIdentifierTranslatorImplTest {
 		assertThat(identifierTranslator.toOpenmrsType(identifier).getPreferred(), is(false));
 	}
 	
+	@Test
+	public void shouldResolveIdentifierTypeWithGivenResolver() {
+		Identifier identifier = new Identifier();
+		identifier.setSystem(IDENTIFIER_TYPE_NAME);
+		identifier.setValue(IDENTIFIER);
+		
+		PatientIdentifierType identifierType = new PatientIdentifierType();
+		identifierType.setUuid(IDENTIFIER_TYPE_UUID);
+		identifierType.setName(IDENTIFIER_TYPE_NAME);
+		
+		PatientIdentifier result = identifierTranslator.toOpenmrsType(identifier, i -> identifierType);
+		assertThat(result.getIdentifierType(), equalTo(identifierType));
+		verify(patientService, never()).getPatientIdentifierTypeByIdentifier(any(Identifier.class));
+	}
+	
 	@Test
 	public void shuoldConvertNullIdentifierToNull() {
 		assertThat(identifierTranslator.toOpenmrsType(null), nullValue());
@@ -12,14 +12,18 @@ package org.openmrs.module.fhir2.api.translators.impl;
 import static org.hamcrest.Matchers.allOf;
 import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.hasProperty;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.argThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.time.Instant;
@@ -39,6 +43,7 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
 import org.openmrs.PersonAddress;
 import org.openmrs.PersonName;
 import org.openmrs.module.fhir2.api.translators.AddressTranslator;
@@ -57,6 +62,10 @@ public class PatientTranslatorImplTest {
 	
 	private static final String PATIENT_FAMILY_NAME = "van Damme";
 	
+	private static final String NAME_UUID = "246802-bdfhjl-246802";
+	
+	private static final String IDENTIFIER_TYPE_NAME = "OpenMRS ID";
+	
 	private static final String ADDRESS_UUID = "135791-acegik-135791";
 	
 	private static final String ADDRESS_CITY = "Maputo";
@@ -239,6 +248,12 @@ public class PatientTranslatorImplTest {
 		assertThat(result.getVoidReason(), equalTo("Voided by FHIR module"));
 	}
 	
+	@Test
+	public void shouldNotVoidPatientWithoutActive() {
+		org.openmrs.Patient result = patientTranslator.toOpenmrsType(new Patient());
+		assertThat(result.getVoided(), is(false));
+	}
+	
 	@Test
 	public void shouldTranslateAliveFhirPatientToAlive() {
 		Patient patient = new Patient();
@@ -330,4 +345,86 @@ public class PatientTranslatorImplTest {
 		assertThat(result.getAddresses(), hasItem(hasProperty("cityVillage", equalTo(ADDRESS_CITY))));
 	}
 	
+	@Test
+	public void shouldKeepUnchangedNameWhenUpdatingPatient() {
+		org.openmrs.Patient currentPatient = new org.openmrs.Patient();
+		PersonName currentName = new PersonName(PATIENT_GIVEN_NAME, null, PATIENT_FAMILY_NAME);
+		currentName.setUuid(NAME_UUID);
+		currentPatient.addName(currentName);
+		when(nameTranslator.toOpenmrsType(any()))
+		        .thenReturn(new PersonName(PATIENT_GIVEN_NAME, "", PATIENT_FAMILY_NAME));
+		
+		Patient patient = new Patient();
+		patient.addName().setFamily(PATIENT_FAMILY_NAME).addGiven(PATIENT_GIVEN_NAME);
+		
+		org.openmrs.Patient result = patientTranslator.toOpenmrsType(currentPatient, patient);
+		assertThat(result, sameInstance(currentPatient));
+		assertThat(result.getNames(), hasSize(1));
+		assertThat(result.getPersonName(), sameInstance(currentName));
+		assertThat(currentName.getVoided(), is(false));
+		assertThat(currentName.getMiddleName(), equalTo(null));
+	}
+	
+	@Test
+	public void shouldUpdateNameMatchedByIdWhenUpdatingPatient() {
+		org.openmrs.Patient currentPatient = new org.openmrs.Patient();
+		PersonName currentName = new PersonName(PATIENT_GIVEN_NAME, null, PATIENT_FAMILY_NAME);
+		currentName.setUuid(NAME_UUID);
+		currentPatient.addName(currentName);
+		when(nameTranslator.toOpenmrsType(any())).thenReturn(new PersonName(PATIENT_GIVEN_NAME, null, "Norris"));
+		
+		Patient patient = new Patient();
+		HumanName name = patient.addName().setFamily("Norris").addGiven(PATIENT_GIVEN_NAME);
+		name.setId(NAME_UUID);
+		
+		org.openmrs.Patient result = patientTranslator.toOpenmrsType(currentPatient, patient);
+		assertThat(result.getNames(), hasSize(1));
+		assertThat(currentName.getVoided(), is(false));
+		verify(nameTranslator).toOpenmrsType(currentName, name);
+	}
+	
+	@Test
+	public void shouldVoidRemovedNameAndAddNewNameWhenUpdatingPatient() {
+		org.openmrs.Patient currentPatient = new org.openmrs.Patient();
+		PersonName currentName = new PersonName(PATIENT_GIVEN_NAME, null, PATIENT_FAMILY_NAME);
+		currentName.setUuid(NAME_UUID);
+		currentPatient.addName(currentName);
+		when(nameTranslator.toOpenmrsType(any())).thenReturn(new PersonName("Chuck", null, "Norris"));
+		
+		Patient patient = new Patient();
+		patient.addName().setFamily("Norris").addGiven("Chuck");
+		
+		org.openmrs.Patient result = patientTranslator.toOpenmrsType(currentPatient, patient);
+		assertThat(result.getNames(), hasSize(2));
+		assertThat(currentName.getVoided(), is(true));
+		assertThat(result.getPersonName().getFamilyName(), equalTo("Norris"));
+	}
+	
+	@Test
+	public void shouldNotResolveIdentifierTypeOfUnchangedIdentifierWhenUpdatingPatient() {
+		PatientIdentifierType identifierType = new PatientIdentifierType();
+		identifierType.setName(IDENTIFIER_TYPE_NAME);
+		org.openmrs.Patient currentPatient = new org.openmrs.Patient();
+		PatientIdentifier currentIdentifier = new PatientIdentifier(PATIENT_IDENTIFIER_UUID, identifierType, null);
+		currentPatient.addIdentifier(currentIdentifier);
+		
+		Patient patient = new Patient();
+		patient.addIdentifier().setSystem(IDENTIFIER_TYPE_NAME).setValue(PATIENT_IDENTIFIER_UUID);
+		
+		org.openmrs.Patient result = patientTranslator.toOpenmrsType(currentPatient, patient);
+		assertThat(result.getIdentifiers(), hasSize(1));
+		assertThat(currentIdentifier.getVoided(), is(false));
+		verify(identifierTranslator, never()).toOpenmrsType(any(Identifier.class));
+	}
+	
+	@Test
+	public void shouldVoidPatientWhichBecameInactiveWhenUpdatingPatient() {
+		org.openmrs.Patient currentPatient = new org.openmrs.Patient();
+		
+		Patient patient = new Patient();
+		patient.setActive(false);
+		
+		assertThat(patientTranslator.toOpenmrsType(currentPatient, patient).getVoided(), is(true));
+	}
+
 }
@@ -14,6 +14,7 @@ import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 
 import org.hl7.fhir.r4.model.HumanName;
@@ -119,4 +120,20 @@ public class PersonNameTranslatorImplTest {
 		assertThat(personNameTranslator.toOpenmrsType(name).getFamilyName(), equalTo(PERSON_FAMILY_NAME));
 	}
 	
+	@Test
+	public void shouldUpdateChangedNamesOnly() {
+		PersonName currentName = new PersonName(PERSON_GIVEN_NAME, PERSON_MIDDLE_NAME, "Claudent");
+		currentName.setUuid(PERSON_NAME_UUID);
+		HumanName name = new HumanName();
+		name.addGiven(PERSON_GIVEN_NAME);
+		name.addGiven(PERSON_MIDDLE_NAME);
+		name.setFamily(PERSON_FAMILY_NAME);
+		
+		PersonName result = personNameTranslator.toOpenmrsType(currentName, name);
+		assertThat(result, sameInstance(currentName));
+		assertThat(result.getFamilyName(), equalTo(PERSON_FAMILY_NAME));
+		assertThat(result.getGivenName(), equalTo(PERSON_GIVEN_NAME));
+		assertThat(result.getUuid(), equalTo(PERSON_NAME_UUID));
+	}
+
 }
@@ -115,6 +115,20 @@ public class PersonTranslatorImplTest {
 		assertThat(result.getActive(), is(false));
 	}
 
+	@Test
+	public void shouldNotVoidActivePerson() {
+		org.hl7.fhir.r4.model.Person fhirPerson = new org.hl7.fhir.r4.model.Person();
+		fhirPerson.setActive(true);
+		assertThat(personTranslator.toOpenmrsType(fhirPerson).getVoided(), is(false));
+	}
+
+	@Test
+	public void shouldVoidInactivePerson() {
+		org.hl7.fhir.r4.model.Person fhirPerson = new org.hl7.fhir.r4.model.Person();
+		fhirPerson.setActive(false);
+		assertThat(personTranslator.toOpenmrsType(fhirPerson).getVoided(), is(true));
+	}
+
 	@Test
 	public void shouldTranslateOpenmrsPersonNameToFhirPersonName() {
 		HumanName humanName = new HumanName();
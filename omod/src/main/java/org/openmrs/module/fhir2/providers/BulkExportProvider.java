@@ -0,0 +1,230 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.providers;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.text.StringEscapeUtils;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.StringType;
+import org.openmrs.module.fhir2.api.FhirBulkExportService;
+import org.openmrs.module.fhir2.api.export.BulkExportFormat;
+import org.openmrs.module.fhir2.api.export.BulkExportJob;
+import org.openmrs.module.fhir2.api.export.BulkExportOutput;
+import org.openmrs.module.fhir2.api.export.BulkExportStorage;
+import org.openmrs.module.fhir2.util.FileDownloadWriter;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+/**
+ * Implements the FHIR Bulk Data $export operation using the asynchronous request pattern: the kick-off request starts
+ * a background export and returns a status URL in its Content-Location header; the status URL answers 202 until the
+ * export has finished and then returns a manifest of the NDJSON files, which are downloaded through
+ * {@value #EXPORT_FILE}, see {@link FileDownloadWriter}. An {@code _outputFormat} of {@value #PARQUET} exports the
+ * resources flattened into Parquet files instead, see {@link org.openmrs.module.fhir2.api.export.ViewDefinition}. A
+ * DELETE of the status URL cancels the export, see {@link org.openmrs.module.fhir2.web.servlet.FhirRestServlet}.
+ * <p>
+ * Starting an export requires the privileges to read every exported resource type, and an export can only be
+ * followed, downloaded and cancelled by the user who started it, see {@link FhirBulkExportService}.
+ */
+@Component
+@Qualifier("fhirPlainProviders")
+@Setter(AccessLevel.PACKAGE)
+public class BulkExportProvider {
+	
+	public static final String EXPORT_POLL_STATUS = "$export-poll-status";
+	
+	public static final String EXPORT_FILE = "$export-file";
+	
+	public static final String PARAM_JOB_ID = "_jobId";
+	
+	private static final String PARAM_FILE = "_file";
+	
+	private static final String HEADER_PREFER = "Prefer";
+	
+	private static final String PREFER_RESPOND_ASYNC = "respond-async";
+	
+	private static final String HEADER_PROGRESS = "X-Progress";
+	
+	private static final String HEADER_RETRY_AFTER = "Retry-After";
+	
+	private static final String RETRY_AFTER_SECONDS = "10";
+	
+	private static final String PARQUET = "parquet";
+	
+	private static final Set<String> NDJSON_FORMATS = Collections.unmodifiableSet(
+	    new HashSet<>(Arrays.asList(BulkExportFormat.NDJSON.getContentType(), "application/ndjson", "ndjson")));
+	
+	private static final Set<String> PARQUET_FORMATS = Collections
+	        .unmodifiableSet(new HashSet<>(Arrays.asList(BulkExportFormat.PARQUET.getContentType(), PARQUET)));
+	
+	@Inject
+	private FhirBulkExportService exportService;
+	
+	@Operation(name = "$export", idempotent = true, manualResponse = true)
+	@SuppressWarnings("unused")
+	public void export(@OperationParam(name = "_type") StringType type, @OperationParam(name = "_since") InstantType since,
+	        @OperationParam(name = "_outputFormat") StringType outputFormat, RequestDetails requestDetails,
+	        HttpServletResponse response) {
+		kickOff(exportService.getSupportedResourceTypes(), type, since, outputFormat, requestDetails, response);
+	}
+	
+	@Operation(name = EXPORT_POLL_STATUS, idempotent = true, manualResponse = true)
+	@SuppressWarnings("unused")
+	public void exportPollStatus(@OperationParam(name = PARAM_JOB_ID) StringType jobId, RequestDetails requestDetails,
+	        HttpServletResponse response) throws IOException {
+		BulkExportJob job = getJob(jobId);
+		switch (job.getStatus()) {
+			case ACCEPTED:
+			case IN_PROGRESS:
+				response.setStatus(HttpServletResponse.SC_ACCEPTED);
+				response.setHeader(HEADER_PROGRESS,
+				    job.getCompletedPartitionCount() + " of " + job.getPartitions().size() + " partitions exported");
+				response.setHeader(HEADER_RETRY_AFTER, RETRY_AFTER_SECONDS);
+				break;
+			case COMPLETE:
+				response.setStatus(HttpServletResponse.SC_OK);
+				response.setContentType(Constants.CT_JSON);
+				response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+				writeManifest(job, requestDetails.getFhirServerBase(), response.getWriter());
+				break;
+			case FAILED:
+				throw new InternalErrorException("The export failed: " + job.getError());
+			default:
+				throw new ResourceNotFoundException("Could not find export with id " + job.getUuid());
+		}
+	}
+	
+	@Operation(name = EXPORT_FILE, idempotent = true, manualResponse = true)
+	@SuppressWarnings("unused")
+	public void exportFile(@OperationParam(name = PARAM_JOB_ID) StringType jobId,
+	        @OperationParam(name = PARAM_FILE) StringType fileName, HttpServletRequest request,
+	        HttpServletResponse response) throws IOException {
+		// only files named in the job's manifest are served, which also rules out paths outside the export
+		File file = jobId == null || fileName == null ? null
+		        : exportService.getExportFile(jobId.getValue(), fileName.getValue());
+		if (file == null || !file.isFile()) {
+			throw new ResourceNotFoundException("Could not find file " + fileName + " in export " + jobId);
+		}
+		
+		new FileDownloadWriter(file, BulkExportStorage.getCompressedFile(file),
+		        BulkExportFormat.forFileName(file.getName()).getContentType()).write(request, response);
+	}
+	
+	/**
+	 * Cancels an export and deletes its files. HAPI only routes GET and POST requests to operations, so this is called
+	 * by the servlet for a DELETE of the {@value #EXPORT_POLL_STATUS} URL.
+	 */
+	public void cancelExport(String jobId, HttpServletResponse response) throws IOException {
+		if (StringUtils.isBlank(jobId) || !exportService.deleteExport(jobId)) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "Could not find export with id " + jobId);
+			return;
+		}
+		
+		response.setStatus(HttpServletResponse.SC_ACCEPTED);
+	}
+	
+	/**
+	 * Starts an export of some or all of the given resource types; shared by the system and type level operations
+	 */
+	void kickOff(Set<String> resourceTypes, StringType type, InstantType since, StringType outputFormat,
+	        RequestDetails requestDetails, HttpServletResponse response) {
+		String prefer = requestDetails.getHeader(HEADER_PREFER);
+		if (prefer == null || !prefer.contains(PREFER_RESPOND_ASYNC)) {
+			throw new InvalidRequestException("$export must be requested with the header Prefer: respond-async");
+		}
+		
+		BulkExportFormat format = BulkExportFormat.NDJSON;
+		if (outputFormat != null && PARQUET_FORMATS.contains(outputFormat.getValue())) {
+			format = BulkExportFormat.PARQUET;
+		} else if (outputFormat != null && !NDJSON_FORMATS.contains(outputFormat.getValue())) {
+			throw new InvalidRequestException("Unsupported _outputFormat " + outputFormat.getValue());
+		}
+		
+		Set<String> exportedTypes = resourceTypes;
+		if (type != null && StringUtils.isNotBlank(type.getValue())) {
+			exportedTypes = new LinkedHashSet<>();
+			for (String requestedType : StringUtils.split(type.getValue(), ',')) {
+				if (!resourceTypes.contains(requestedType.trim())) {
+					throw new InvalidRequestException("Resources of type " + requestedType + " cannot be exported here");
+				}
+				
+				exportedTypes.add(requestedType.trim());
+			}
+		}
+		
+		BulkExportJob job = exportService.startExport(exportedTypes, since == null ? null : since.getValue(), format,
+		    requestDetails.getCompleteUrl());
+		
+		response.setStatus(HttpServletResponse.SC_ACCEPTED);
+		response.setHeader(Constants.HEADER_CONTENT_LOCATION,
+		    requestDetails.getFhirServerBase() + "/" + EXPORT_POLL_STATUS + "?" + PARAM_JOB_ID + "=" + job.getUuid());
+	}
+	
+	private BulkExportJob getJob(StringType jobId) {
+		BulkExportJob job = jobId == null ? null : exportService.getExport(jobId.getValue());
+		if (job == null) {
+			throw new ResourceNotFoundException("Could not find export with id " + jobId);
+		}
+		
+		return job;
+	}
+	
+	private static void writeManifest(BulkExportJob job, String serverBase, Writer writer) throws IOException {
+		writer.write("{\"transactionTime\":\"");
+		writer.write(new InstantType(job.getTransactionTime()).getValueAsString());
+		writer.write("\",\"request\":\"");
+		writer.write(StringEscapeUtils.escapeJson(job.getRequest()));
+		// the files are served by this server, so they are protected by the same authentication as the export itself
+		writer.write("\",\"requiresAccessToken\":true,\"output\":[");
+		
+		boolean first = true;
+		for (BulkExportOutput output : job.getOutputs()) {
+			if (!first) {
+				writer.write(',');
+			}
+			first = false;
+			
+			writer.write("{\"type\":\"");
+			writer.write(output.getResourceType());
+			writer.write("\",\"url\":\"");
+			writer.write(StringEscapeUtils.escapeJson(serverBase + "/" + EXPORT_FILE + "?" + PARAM_JOB_ID + "="
+			        + job.getUuid() + "&" + PARAM_FILE + "=" + output.getFileName()));
+			writer.write("\",\"count\":");
+			writer.write(Long.toString(output.getCount()));
+			writer.write('}');
+		}
+		
+		writer.write("],\"error\":[]}");
+		writer.flush();
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.providers;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.StringType;
+import org.openmrs.module.fhir2.api.FhirBulkImportService;
+import org.openmrs.module.fhir2.api.imports.BulkImportError;
+import org.openmrs.module.fhir2.api.imports.BulkImportResult;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+/**
+ * Implements a $import operation which creates Patient and Person resources from NDJSON, either posted as the body of
+ * the request with an NDJSON content type, or read from a file in the import directory named by {@value #PARAM_FILE}.
+ * The body is streamed, so it is never held in memory as a whole. The response is an OperationOutcome counting the
+ * imported resources, with an issue for every line which could not be imported.
+ */
+@Component
+@Qualifier("fhirPlainProviders")
+@Setter(AccessLevel.PACKAGE)
+public class BulkImportProvider {
+	
+	private static final String PARAM_FILE = "_file";
+	
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	
+	private static final Set<String> NDJSON_CONTENT_TYPES = Collections.unmodifiableSet(
+	    new HashSet<>(Arrays.asList("application/fhir+ndjson", "application/ndjson", "application/x-ndjson")));
+	
+	@Inject
+	private FhirBulkImportService importService;
+	
+	@Operation(name = "$import", manualRequest = true)
+	@SuppressWarnings("unused")
+	public OperationOutcome bulkImport(@OperationParam(name = PARAM_FILE) StringType fileName,
+	        HttpServletRequest request) throws IOException {
+		BulkImportResult result;
+		if (fileName != null && StringUtils.isNotBlank(fileName.getValue())) {
+			result = importService.importFile(fileName.getValue());
+		} else if (isNdjson(request.getContentType())) {
+			result = importService.importNdjson(new BufferedReader(
+			        new InputStreamReader(request.getInputStream(), StandardCharsets.UTF_8), READ_BUFFER_SIZE));
+		} else {
+			throw new InvalidRequestException(
+			        "$import needs either a " + PARAM_FILE + " parameter or a body of type application/fhir+ndjson");
+		}
+		
+		return toOperationOutcome(result);
+	}
+	
+	private static boolean isNdjson(String contentType) {
+		return contentType != null
+		        && NDJSON_CONTENT_TYPES.contains(StringUtils.substringBefore(contentType, ";").trim().toLowerCase());
+	}
+	
+	private static OperationOutcome toOperationOutcome(BulkImportResult result) {
+		OperationOutcome outcome = new OperationOutcome();
+		outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+		        .setCode(OperationOutcome.IssueType.INFORMATIONAL)
+		        .setDiagnostics("Imported " + result.getImportedCount() + " of " + result.getResourceCount() + " resources");
+		
+		for (BulkImportError error : result.getErrors()) {
+			outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR)
+			        .setCode(OperationOutcome.IssueType.PROCESSING).setDiagnostics(error.getMessage())
+			        .addLocation("Line " + error.getLineNumber());
+		}
+		
+		long unreported = result.getErrorCount() - result.getErrors().size();
+		if (unreported > 0) {
+			outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.ERROR)
+			        .setCode(OperationOutcome.IssueType.TOOCOSTLY)
+			        .setDiagnostics(unreported + " more lines could not be imported");
+		}
+		
+		return outcome;
+	}
+}
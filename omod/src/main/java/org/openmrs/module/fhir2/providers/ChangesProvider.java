@@ -0,0 +1,152 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.providers;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.StringType;
+import org.openmrs.module.fhir2.api.FhirChangeFeedService;
+import org.openmrs.module.fhir2.api.changes.ResourceChange;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+/**
+ * Implements the {@value #CHANGES} feed of every create, update, void and delete of a Person or Patient. A consumer
+ * passes the cursor returned by its previous request as {@value #PARAM_CURSOR} and receives the changes after it, in
+ * the order they were committed, together with the cursor to pass next. If there are no changes yet the request is
+ * held open for up to {@value #PARAM_WAIT} seconds and answered as soon as there is one, so consumers get changes
+ * with little delay without polling.
+ * <p>
+ * The feed only says what changed; consumers read the resources themselves. A deleted resource can no longer be read,
+ * and a voided one is read as inactive.
+ */
+@Component
+@Qualifier("fhirPlainProviders")
+@Setter(AccessLevel.PACKAGE)
+public class ChangesProvider {
+	
+	public static final String CHANGES = "$changes";
+	
+	private static final String PARAM_CURSOR = "_cursor";
+	
+	private static final String PARAM_COUNT = "_count";
+	
+	private static final String PARAM_WAIT = "_wait";
+	
+	private static final int DEFAULT_COUNT = 100;
+	
+	private static final int MAX_COUNT = 1000;
+	
+	private static final int DEFAULT_WAIT_SECONDS = 20;
+	
+	private static final int MAX_WAIT_SECONDS = 60;
+	
+	@Inject
+	private FhirChangeFeedService changeFeedService;
+	
+	@Operation(name = CHANGES, idempotent = true, manualResponse = true)
+	@SuppressWarnings("unused")
+	public void changes(@OperationParam(name = PARAM_CURSOR) StringType cursor,
+	        @OperationParam(name = PARAM_COUNT) IntegerType count, @OperationParam(name = PARAM_WAIT) IntegerType wait,
+	        HttpServletResponse response) throws IOException {
+		long after = parseCursor(cursor);
+		int maxResults = Math.min(getValue(count, PARAM_COUNT, DEFAULT_COUNT), MAX_COUNT);
+		int waitSeconds = Math.min(getValue(wait, PARAM_WAIT, DEFAULT_WAIT_SECONDS), MAX_WAIT_SECONDS);
+		
+		List<ResourceChange> changes;
+		try {
+			changes = changeFeedService.getChanges(after, maxResults, TimeUnit.SECONDS.toMillis(waitSeconds));
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException("Interrupted while waiting for changes", e);
+		}
+		
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType(Constants.CT_JSON);
+		response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		writeChanges(after, changes, response.getWriter());
+	}
+	
+	private static void writeChanges(long after, List<ResourceChange> changes, Writer writer) throws IOException {
+		long next = changes.isEmpty() ? after : changes.get(changes.size() - 1).getChangeId();
+		writer.write("{\"cursor\":\"");
+		writer.write(Long.toString(next));
+		writer.write("\",\"changes\":[");
+		
+		boolean first = true;
+		for (ResourceChange change : changes) {
+			if (!first) {
+				writer.write(',');
+			}
+			first = false;
+			
+			// the values are ids, uuids, resource types and enum names, none of which need escaping
+			writer.write("{\"cursor\":\"");
+			writer.write(Long.toString(change.getChangeId()));
+			writer.write("\",\"resourceType\":\"");
+			writer.write(change.getResourceType());
+			writer.write("\",\"id\":\"");
+			writer.write(change.getResourceUuid());
+			writer.write("\",\"operation\":\"");
+			writer.write(change.getOperation().name().toLowerCase());
+			writer.write("\",\"time\":\"");
+			writer.write(new InstantType(change.getDateCreated()).getValueAsString());
+			writer.write("\"}");
+		}
+		
+		writer.write("]}");
+		writer.flush();
+	}
+	
+	private static long parseCursor(StringType cursor) {
+		if (cursor == null || !cursor.hasValue()) {
+			return 0;
+		}
+		
+		try {
+			long after = Long.parseLong(cursor.getValue().trim());
+			if (after >= 0) {
+				return after;
+			}
+		}
+		catch (NumberFormatException e) {
+			// reported below
+		}
+		
+		throw new InvalidRequestException(PARAM_CURSOR + " must be a cursor returned by " + CHANGES);
+	}
+	
+	private static int getValue(IntegerType value, String name, int defaultValue) {
+		if (value == null || !value.hasValue()) {
+			return defaultValue;
+		} else if (value.getValue() < 0) {
+			throw new InvalidRequestException(name + " must not be negative");
+		}
+		
+		return value.getValue();
+	}
+}
@@ -10,22 +10,52 @@
 package org.openmrs.module.fhir2.providers;
 
 import javax.inject.Inject;
+import javax.inject.Named;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.constraints.NotNull;
 
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Consumer;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.annotation.Create;
 import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.annotation.Patch;
 import ca.uhn.fhir.rest.annotation.Read;
 import ca.uhn.fhir.rest.annotation.RequiredParam;
+import ca.uhn.fhir.rest.annotation.ResourceParam;
 import ca.uhn.fhir.rest.annotation.Search;
+import ca.uhn.fhir.rest.annotation.Update;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.PatchTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import lombok.AccessLevel;
 import lombok.Setter;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.InstantType;
 import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StringType;
+import org.openmrs.module.fhir2.FhirConstants;
 import org.openmrs.module.fhir2.api.FhirPatientService;
+import org.openmrs.module.fhir2.api.search.SearchCancellation;
+import org.openmrs.module.fhir2.util.ClientDisconnectWatchdog;
 import org.openmrs.module.fhir2.util.FhirUtils;
+import org.openmrs.module.fhir2.util.StreamingBundleWriter;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
@@ -37,6 +67,16 @@ public class PatientFhirResourceProvider implements IResourceProvider {
 	@Inject
 	private FhirPatientService patientService;
 	
+	@Inject
+	@Named("fhirR4")
+	private FhirContext fhirContext;
+	
+	@Inject
+	private BulkExportProvider bulkExportProvider;
+	
+	@Inject
+	private ClientDisconnectWatchdog disconnectWatchdog;
+	
 	@Override
 	public Class<? extends IBaseResource> getResourceType() {
 		return Patient.class;
@@ -52,6 +92,44 @@ public class PatientFhirResourceProvider implements IResourceProvider {
 		return patient;
 	}
 	
+	@Create
+	@SuppressWarnings("unused")
+	public MethodOutcome createPatient(@ResourceParam Patient patient) {
+		Patient createdPatient = patientService.createPatient(patient);
+		
+		MethodOutcome outcome = new MethodOutcome(new IdType(FhirConstants.PATIENT, createdPatient.getId()), true);
+		outcome.setResource(createdPatient);
+		return outcome;
+	}
+	
+	@Update
+	@SuppressWarnings("unused")
+	public MethodOutcome updatePatient(@IdParam @NotNull IdType id, @ResourceParam Patient patient) {
+		Patient updatedPatient = patientService.updatePatient(id.getIdPart(), patient);
+		
+		MethodOutcome outcome = new MethodOutcome(new IdType(FhirConstants.PATIENT, updatedPatient.getId()), false);
+		outcome.setResource(updatedPatient);
+		return outcome;
+	}
+	
+	/**
+	 * Applies a JSON Patch to a patient; FHIRPath Patch is not supported by this version of HAPI
+	 */
+	@Patch
+	@SuppressWarnings("unused")
+	public MethodOutcome patchPatient(@IdParam @NotNull IdType id, PatchTypeEnum patchType,
+	        @ResourceParam String body) {
+		if (patchType != PatchTypeEnum.JSON_PATCH) {
+			throw new InvalidRequestException("Only JSON Patch is supported");
+		}
+		
+		Patient patchedPatient = patientService.patchPatient(id.getIdPart(), body);
+		
+		MethodOutcome outcome = new MethodOutcome(new IdType(FhirConstants.PATIENT, patchedPatient.getId()), false);
+		outcome.setResource(patchedPatient);
+		return outcome;
+	}
+	
 	@Search
 	@SuppressWarnings("unused")
 	public Bundle findPatientsByName(@RequiredParam(name = Patient.SP_NAME) @NotNull String name) {
@@ -69,4 +147,78 @@ public class PatientFhirResourceProvider implements IResourceProvider {
 	public Bundle findPatientsByFamilyName(@RequiredParam(name = Patient.SP_FAMILY) @NotNull String family) {
 		return FhirUtils.convertSearchResultsToBundle(patientService.findPatientsByFamilyName(family));
 	}
+	
+	@Search
+	@SuppressWarnings("unused")
+	public Bundle findPatientsByFilter(@RequiredParam(name = Constants.PARAM_FILTER) @NotNull String filter) {
+		return FhirUtils.convertSearchResultsToBundle(patientService.findPatientsByFilter(filter));
+	}
+	
+	/**
+	 * Streaming variant of the name searches: matching patients are written to the response as JSON searchset bundle
+	 * entries as they are read from the database, so memory use does not depend on the size of the result. If the
+	 * client disconnects, the search is cancelled, including the statement it is running.
+	 */
+	@Operation(name = "$stream", idempotent = true, manualResponse = true)
+	@SuppressWarnings("unused")
+	public void streamPatients(@OperationParam(name = Patient.SP_NAME) StringType name,
+	        @OperationParam(name = Patient.SP_GIVEN) StringType given,
+	        @OperationParam(name = Patient.SP_FAMILY) StringType family, RequestDetails requestDetails,
+	        HttpServletResponse response) throws IOException {
+		int parameterCount = (name == null ? 0 : 1) + (given == null ? 0 : 1) + (family == null ? 0 : 1);
+		if (parameterCount != 1) {
+			throw new InvalidRequestException("Exactly one of the name, given or family parameters must be supplied");
+		}
+		
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType(Constants.CT_FHIR_JSON_NEW);
+		response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		
+		// unlike the response's PrintWriter, a writer on its output stream throws once the client has disconnected
+		Writer responseWriter = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
+		StreamingBundleWriter bundleWriter = new StreamingBundleWriter(fhirContext, responseWriter,
+		        requestDetails.getFhirServerBase());
+		SearchCancellation cancellation = new SearchCancellation();
+		Consumer<Patient> writeEntry = patient -> {
+			try {
+				bundleWriter.addEntry(patient);
+			}
+			catch (IOException e) {
+				cancellation.cancel();
+				throw new UncheckedIOException(e);
+			}
+		};
+		
+		ScheduledFuture<?> heartbeats = disconnectWatchdog.watch(bundleWriter, cancellation);
+		try {
+			if (name != null) {
+				patientService.streamPatientsByName(name.getValue(), writeEntry, cancellation);
+			} else if (given != null) {
+				patientService.streamPatientsByGivenName(given.getValue(), writeEntry, cancellation);
+			} else {
+				patientService.streamPatientsByFamilyName(family.getValue(), writeEntry, cancellation);
+			}
+		}
+		catch (CancellationException e) {
+			// the client has gone away, so there is no one to send the rest of the response to
+			return;
+		}
+		finally {
+			heartbeats.cancel(false);
+		}
+		
+		bundleWriter.finish();
+	}
+	
+	/**
+	 * Type level bulk data export of every patient, see {@link BulkExportProvider}
+	 */
+	@Operation(name = "$export", idempotent = true, manualResponse = true)
+	@SuppressWarnings("unused")
+	public void exportPatients(@OperationParam(name = "_type") StringType type,
+	        @OperationParam(name = "_since") InstantType since, @OperationParam(name = "_outputFormat") StringType outputFormat,
+	        RequestDetails requestDetails, HttpServletResponse response) {
+		bulkExportProvider.kickOff(Collections.singleton(FhirConstants.PATIENT), type, since, outputFormat, requestDetails,
+		    response);
+	}
 }
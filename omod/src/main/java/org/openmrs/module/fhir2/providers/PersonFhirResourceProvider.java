@@ -10,19 +10,26 @@
 package org.openmrs.module.fhir2.providers;
 
 import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Patch;
 import ca.uhn.fhir.rest.annotation.Read;
+import ca.uhn.fhir.rest.annotation.ResourceParam;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.PatchTypeEnum;
 import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import lombok.AccessLevel;
 import lombok.Setter;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.Person;
+import org.openmrs.module.fhir2.FhirConstants;
 import org.openmrs.module.fhir2.api.FhirPersonService;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
 import javax.inject.Inject;
+import javax.validation.constraints.NotNull;
 
 @Component
 @Qualifier("fhirResources")
@@ -45,4 +52,22 @@ public class PersonFhirResourceProvider implements IResourceProvider {
 		}
 		return person;
 	}
+	
+	/**
+	 * Applies a JSON Patch to a person; FHIRPath Patch is not supported by this version of HAPI
+	 */
+	@Patch
+	@SuppressWarnings("unused")
+	public MethodOutcome patchPerson(@IdParam @NotNull IdType id, PatchTypeEnum patchType,
+	        @ResourceParam String body) {
+		if (patchType != PatchTypeEnum.JSON_PATCH) {
+			throw new InvalidRequestException("Only JSON Patch is supported");
+		}
+		
+		Person person = fhirPersonService.patchPerson(id.getIdPart(), body);
+		
+		MethodOutcome outcome = new MethodOutcome(new IdType(FhirConstants.PERSON, person.getId()), false);
+		outcome.setResource(person);
+		return outcome;
+	}
 }
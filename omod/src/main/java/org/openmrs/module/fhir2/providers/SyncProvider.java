@@ -0,0 +1,166 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.providers;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.zip.GZIPOutputStream;
+
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.hl7.fhir.r4.model.StringType;
+import org.openmrs.module.fhir2.api.FhirSyncService;
+import org.openmrs.module.fhir2.api.export.BulkExportFormat;
+import org.openmrs.module.fhir2.api.export.BulkExportStorage;
+import org.openmrs.module.fhir2.api.sync.SyncArea;
+import org.openmrs.module.fhir2.api.sync.SyncSnapshot;
+import org.openmrs.module.fhir2.util.ContentEncoding;
+import org.openmrs.module.fhir2.util.FileDownloadWriter;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+/**
+ * Offline sync for mobile clients. A client first downloads the {@value #SYNC_SNAPSHOT} of the patients in its area,
+ * given either as a location, whose address is used, or as address fields, and keeps the version returned in the
+ * {@value #HEADER_SYNC_VERSION} header. From then on it asks for the {@value #SYNC_DELTA} since the version it holds,
+ * which only contains the patients changed since, and keeps the version returned with that. Snapshots are built in the
+ * background, see {@link org.openmrs.module.fhir2.api.sync.SyncSnapshotWorker}, so the first request for an area is
+ * answered with a 202 until its snapshot is ready.
+ */
+@Component
+@Qualifier("fhirPlainProviders")
+@Setter(AccessLevel.PACKAGE)
+public class SyncProvider {
+	
+	public static final String SYNC_SNAPSHOT = "$sync-snapshot";
+	
+	public static final String SYNC_DELTA = "$sync-delta";
+	
+	public static final String HEADER_SYNC_VERSION = "X-Sync-Version";
+	
+	private static final String PARAM_LOCATION = "location";
+	
+	private static final String PARAM_CITY = "address-city";
+	
+	private static final String PARAM_STATE = "address-state";
+	
+	private static final String PARAM_POSTAL_CODE = "address-postalcode";
+	
+	private static final String PARAM_COUNTRY = "address-country";
+	
+	private static final String PARAM_SINCE = "_since";
+	
+	private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+	
+	private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+	
+	private static final String HEADER_RETRY_AFTER = "Retry-After";
+	
+	private static final String HEADER_VARY = "Vary";
+	
+	private static final String GZIP = "gzip";
+	
+	private static final String RETRY_AFTER_SECONDS = "30";
+	
+	@Inject
+	private FhirSyncService syncService;
+	
+	@Operation(name = SYNC_SNAPSHOT, idempotent = true, manualResponse = true)
+	@SuppressWarnings("unused")
+	public void syncSnapshot(@OperationParam(name = PARAM_LOCATION) StringType location,
+	        @OperationParam(name = PARAM_CITY) StringType city, @OperationParam(name = PARAM_STATE) StringType state,
+	        @OperationParam(name = PARAM_POSTAL_CODE) StringType postalCode,
+	        @OperationParam(name = PARAM_COUNTRY) StringType country, HttpServletRequest request,
+	        HttpServletResponse response) throws IOException {
+		SyncSnapshot snapshot = syncService.getSnapshot(getArea(location, city, state, postalCode, country));
+		if (snapshot == null) {
+			response.setStatus(HttpServletResponse.SC_ACCEPTED);
+			response.setHeader(HEADER_RETRY_AFTER, RETRY_AFTER_SECONDS);
+			return;
+		}
+		
+		response.setHeader(HEADER_SYNC_VERSION, Long.toString(snapshot.getVersion()));
+		new FileDownloadWriter(snapshot.getFile(), BulkExportStorage.getCompressedFile(snapshot.getFile()),
+		        BulkExportFormat.NDJSON.getContentType()).write(request, response);
+	}
+	
+	@Operation(name = SYNC_DELTA, idempotent = true, manualResponse = true)
+	@SuppressWarnings("unused")
+	public void syncDelta(@OperationParam(name = PARAM_LOCATION) StringType location,
+	        @OperationParam(name = PARAM_CITY) StringType city, @OperationParam(name = PARAM_STATE) StringType state,
+	        @OperationParam(name = PARAM_POSTAL_CODE) StringType postalCode,
+	        @OperationParam(name = PARAM_COUNTRY) StringType country,
+	        @OperationParam(name = PARAM_SINCE) StringType since, HttpServletRequest request,
+	        HttpServletResponse response) throws IOException {
+		SyncArea area = getArea(location, city, state, postalCode, country);
+		Date sinceVersion = parseVersion(since);
+		// the version is taken before reading, so changes made while the delta is written are in the next delta too
+		long version = System.currentTimeMillis();
+		
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType(BulkExportFormat.NDJSON.getContentType());
+		response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		response.setHeader(HEADER_SYNC_VERSION, Long.toString(version));
+		response.setHeader(HEADER_VARY, HEADER_ACCEPT_ENCODING);
+		
+		OutputStream out = response.getOutputStream();
+		if (ContentEncoding.acceptsGzip(request)) {
+			response.setHeader(HEADER_CONTENT_ENCODING, GZIP);
+			out = new GZIPOutputStream(out);
+		}
+		
+		try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+			syncService.writeDelta(area, sinceVersion, writer);
+		}
+	}
+	
+	private SyncArea getArea(StringType location, StringType city, StringType state, StringType postalCode,
+	        StringType country) {
+		if (location != null && location.hasValue()) {
+			return syncService.getLocationArea(location.getValue());
+		}
+		
+		try {
+			return new SyncArea(getValue(city), getValue(state), getValue(postalCode), getValue(country));
+		}
+		catch (IllegalArgumentException e) {
+			throw new InvalidRequestException("Either a " + PARAM_LOCATION + " or at least one of " + PARAM_CITY + ", "
+			        + PARAM_STATE + ", " + PARAM_POSTAL_CODE + " and " + PARAM_COUNTRY + " is required");
+		}
+	}
+	
+	private static Date parseVersion(StringType since) {
+		if (since == null || !since.hasValue()) {
+			throw new InvalidRequestException(PARAM_SINCE + " is required, it is the version the client holds");
+		}
+		
+		try {
+			return new Date(Long.parseLong(since.getValue().trim()));
+		}
+		catch (NumberFormatException e) {
+			throw new InvalidRequestException(PARAM_SINCE + " must be a version returned by " + SYNC_SNAPSHOT);
+		}
+	}
+	
+	private static String getValue(StringType value) {
+		return value == null ? null : value.getValue();
+	}
+}
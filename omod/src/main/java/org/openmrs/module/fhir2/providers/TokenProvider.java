@@ -0,0 +1,79 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.providers;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.exceptions.NotImplementedOperationException;
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.fhir2.api.auth.BearerTokens;
+import org.openmrs.module.fhir2.web.filter.BearerTokenUserContext;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+/**
+ * Implements {@value #TOKEN}, which issues a bearer token to the user who authenticated the request, see
+ * {@link BearerTokens}. The token is sent as {@code Authorization: Bearer <token>} with later requests, which are then
+ * authenticated without a session. A token cannot be used to obtain another one, so it cannot outlive its expiry.
+ */
+@Component
+@Qualifier("fhirPlainProviders")
+@Setter(AccessLevel.PACKAGE)
+public class TokenProvider {
+	
+	public static final String TOKEN = "$token";
+	
+	@Inject
+	private BearerTokens bearerTokens;
+	
+	@Operation(name = TOKEN, manualResponse = true)
+	@SuppressWarnings("unused")
+	public void issueToken(HttpServletResponse response) throws IOException {
+		if (!bearerTokens.isEnabled()) {
+			throw new NotImplementedOperationException("Bearer tokens are not enabled on this server");
+		}
+		
+		User user = Context.getAuthenticatedUser();
+		if (user == null) {
+			throw new AuthenticationException("A token can only be issued to an authenticated user");
+		} else if (Context.getUserContext() instanceof BearerTokenUserContext) {
+			throw new ForbiddenOperationException("A token cannot be issued to a request authenticated by a token");
+		}
+		
+		String token = bearerTokens.issue(user);
+		
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType(Constants.CT_JSON);
+		response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		// tokens must not be kept by caches
+		response.setHeader(Constants.HEADER_CACHE_CONTROL, "no-store");
+		
+		// a token only consists of Base64url characters and dots, which need no escaping
+		Writer writer = response.getWriter();
+		writer.write("{\"access_token\":\"");
+		writer.write(token);
+		writer.write("\",\"token_type\":\"Bearer\",\"expires_in\":");
+		writer.write(Integer.toString(bearerTokens.getLifetimeSeconds()));
+		writer.write('}');
+		writer.flush();
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.providers;
+
+import javax.inject.Inject;
+
+import ca.uhn.fhir.rest.annotation.Transaction;
+import ca.uhn.fhir.rest.annotation.TransactionParam;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openmrs.module.fhir2.api.FhirBundleService;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+
+/**
+ * Accepts batch and transaction bundles posted to the base of the server, so that many operations can be sent in a
+ * single request, see {@link FhirBundleService}
+ */
+@Component
+@Qualifier("fhirPlainProviders")
+@Setter(AccessLevel.PACKAGE)
+public class TransactionProvider {
+	
+	@Inject
+	private FhirBundleService bundleService;
+	
+	@Transaction
+	@SuppressWarnings("unused")
+	public Bundle transaction(@TransactionParam Bundle bundle) {
+		if (bundle.getType() == Bundle.BundleType.BATCH) {
+			return bundleService.processBatch(bundle);
+		} else if (bundle.getType() == Bundle.BundleType.TRANSACTION) {
+			return bundleService.processTransaction(bundle);
+		}
+		
+		throw new InvalidRequestException("Only bundles of type batch or transaction can be processed");
+	}
+}
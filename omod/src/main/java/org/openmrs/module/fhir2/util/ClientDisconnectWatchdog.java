@@ -0,0 +1,85 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.util;
+
+import javax.annotation.PreDestroy;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.module.fhir2.api.search.SearchCancellation;
+import org.springframework.stereotype.Component;
+
+/**
+ * Notices clients which disconnect while a response is being streamed. A servlet container only reports a disconnect
+ * when the response is written to, and a search can go a long time between two entries, so the watchdog writes a
+ * heartbeat to the response periodically and cancels the search as soon as that fails. This relies on the response
+ * being written through a writer which reports the failure, see {@link StreamingBundleWriter}.
+ */
+@Component
+@Setter(AccessLevel.PACKAGE)
+public class ClientDisconnectWatchdog {
+	
+	private static final Log log = LogFactory.getLog(ClientDisconnectWatchdog.class);
+	
+	private long heartbeatInterval = TimeUnit.SECONDS.toMillis(5);
+	
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "fhir2-disconnect-watchdog");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	/**
+	 * Watches a streamed response until the returned future is cancelled, which should be done once the response has
+	 * been written
+	 *
+	 * @param bundleWriter the writer of the response
+	 * @param cancellation the cancellation of the search producing the response
+	 * @return the future of the heartbeats
+	 */
+	public ScheduledFuture<?> watch(StreamingBundleWriter bundleWriter, SearchCancellation cancellation) {
+		return scheduler.scheduleWithFixedDelay(() -> {
+			if (cancellation.isCancelled()) {
+				return;
+			}
+			
+			try {
+				bundleWriter.heartbeat();
+			}
+			catch (IOException e) {
+				log.debug("Client disconnected, cancelling its search", e);
+				cancelQuietly(cancellation);
+			}
+		}, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+	}
+	
+	private static void cancelQuietly(SearchCancellation cancellation) {
+		try {
+			cancellation.cancel();
+		}
+		catch (RuntimeException e) {
+			// the search notices the cancellation on its next row even if its statement could not be cancelled
+			log.warn("Unable to cancel the statement of a search", e);
+		}
+	}
+	
+	@PreDestroy
+	public void shutdown() {
+		scheduler.shutdownNow();
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.util;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Content negotiation of the encodings responses are compressed with. The FHIR servlet compresses its responses itself,
+ * see {@link org.openmrs.module.fhir2.web.servlet.ResponseCompression}, so it hides the {@code Accept-Encoding} header
+ * from the request it passes on and keeps it in {@link #ACCEPT_ENCODING_ATTRIBUTE}; responses which are already
+ * compressed, such as the gzipped copies of export files, consult that instead.
+ */
+public final class ContentEncoding {
+	
+	public static final String GZIP = "gzip";
+	
+	public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+	
+	public static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+	
+	public static final String ACCEPT_ENCODING_ATTRIBUTE = ContentEncoding.class.getName() + ".acceptEncoding";
+	
+	private ContentEncoding() {
+	}
+	
+	/**
+	 * @return the {@code Accept-Encoding} header the client sent, which may be null
+	 */
+	public static String getAcceptEncoding(HttpServletRequest request) {
+		Object acceptEncoding = request.getAttribute(ACCEPT_ENCODING_ATTRIBUTE);
+		return acceptEncoding instanceof String ? (String) acceptEncoding : request.getHeader(HEADER_ACCEPT_ENCODING);
+	}
+	
+	/**
+	 * @return whether the client accepts a gzipped response
+	 */
+	public static boolean acceptsGzip(HttpServletRequest request) {
+		return acceptsGzip(getAcceptEncoding(request));
+	}
+	
+	/**
+	 * @param acceptEncoding the {@code Accept-Encoding} header of a request, which may be null
+	 * @return whether the client accepts a gzipped response
+	 */
+	public static boolean acceptsGzip(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return false;
+		}
+		
+		for (String coding : StringUtils.split(acceptEncoding, ',')) {
+			String[] parts = StringUtils.split(coding, ';');
+			if (parts.length > 0 && GZIP.equalsIgnoreCase(parts[0].trim())) {
+				return parts.length == 1 || !parts[1].trim().matches("q\\s*=\\s*0(\\.0*)?");
+			}
+		}
+		
+		return false;
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.util;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a file as the response to a GET. If the servlet container supports sendfile (Tomcat with the NIO or APR
+ * connector) and the request is processed on the container's thread, the container is asked to send the file once the
+ * request has been handled, which copies it from the file system cache to the socket without passing it through the
+ * JVM; see {@link org.openmrs.module.fhir2.web.servlet.RequestExecutor}, which runs downloads on that thread.
+ * <p>
+ * Otherwise the file is written to the response's output stream with {@link FileChannel#transferTo}. The output stream
+ * is not a channel the file can be transferred to directly, so this is not zero-copy: the bytes are copied through a
+ * buffer on the heap, a chunk at a time, as they would be by a plain read and write loop.
+ * <p>
+ * A single byte range can be requested with a {@code Range} header, optionally guarded by {@code If-Range}, so an
+ * interrupted download can be resumed. If the file has a gzipped copy, that copy is sent, with
+ * {@code Content-Encoding: gzip}, to clients which accept gzip; ranges then refer to the gzipped bytes.
+ */
+public class FileDownloadWriter {
+	
+	private static final String SENDFILE_SUPPORT_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+	
+	private static final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+	
+	private static final String SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+	
+	private static final String SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
+	
+	private static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+	
+	private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+	
+	private static final String HEADER_CONTENT_RANGE = "Content-Range";
+	
+	private static final String HEADER_ETAG = "ETag";
+	
+	private static final String HEADER_IF_RANGE = "If-Range";
+	
+	private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+	
+	private static final String HEADER_RANGE = "Range";
+	
+	private static final String HEADER_VARY = "Vary";
+	
+	private static final String BYTES_UNIT = "bytes";
+	
+	/**
+	 * Returned by {@link #parseRange(String, long)} for a range which lies beyond the end of the file
+	 */
+	private static final long[] NOT_SATISFIABLE = new long[0];
+	
+	private final File file;
+	
+	private final File compressedFile;
+	
+	private final String contentType;
+	
+	/**
+	 * @param file the file to send
+	 * @param compressedFile the gzipped copy of the file, which need not exist
+	 * @param contentType the content type of the uncompressed file
+	 */
+	public FileDownloadWriter(File file, File compressedFile, String contentType) {
+		this.file = file;
+		this.compressedFile = compressedFile;
+		this.contentType = contentType;
+	}
+	
+	public void write(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		boolean hasCompressedFile = compressedFile != null && compressedFile.isFile();
+		boolean compressed = hasCompressedFile && ContentEncoding.acceptsGzip(request);
+		File sent = compressed ? compressedFile : file;
+		
+		long length = sent.length();
+		// HTTP dates have a resolution of seconds
+		long lastModified = sent.lastModified() / 1000 * 1000;
+		String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + (compressed ? "-gz" : "")
+		        + "\"";
+		
+		response.setContentType(contentType);
+		response.setHeader(HEADER_ACCEPT_RANGES, BYTES_UNIT);
+		response.setHeader(HEADER_ETAG, etag);
+		response.setDateHeader(HEADER_LAST_MODIFIED, lastModified);
+		if (hasCompressedFile) {
+			response.setHeader(HEADER_VARY, ContentEncoding.HEADER_ACCEPT_ENCODING);
+		}
+		if (compressed) {
+			response.setHeader(ContentEncoding.HEADER_CONTENT_ENCODING, ContentEncoding.GZIP);
+		}
+		
+		long start = 0;
+		long end = length - 1;
+		String range = request.getHeader(HEADER_RANGE);
+		long[] requestedRange = range == null || !ifRangeMatches(request, etag, lastModified) ? null
+		        : parseRange(range, length);
+		if (requestedRange == NOT_SATISFIABLE) {
+			response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			response.setHeader(HEADER_CONTENT_RANGE, BYTES_UNIT + " */" + length);
+			return;
+		} else if (requestedRange != null) {
+			start = requestedRange[0];
+			end = requestedRange[1];
+			response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			response.setHeader(HEADER_CONTENT_RANGE, BYTES_UNIT + " " + start + "-" + end + "/" + length);
+		} else {
+			response.setStatus(HttpServletResponse.SC_OK);
+		}
+		
+		// Content-Length is set as a header, as the int taken by setContentLength is too small for large exports
+		response.setHeader(HEADER_CONTENT_LENGTH, Long.toString(end + 1 - start));
+		if (length == 0) {
+			return;
+		}
+		
+		// the container only sends a file after a request which it processed on its own thread
+		if (!request.isAsyncStarted() && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTRIBUTE))) {
+			request.setAttribute(SENDFILE_FILENAME_ATTRIBUTE, sent.getCanonicalPath());
+			request.setAttribute(SENDFILE_START_ATTRIBUTE, start);
+			// the end of a sendfile range is exclusive
+			request.setAttribute(SENDFILE_END_ATTRIBUTE, end + 1);
+			return;
+		}
+		
+		try (FileChannel channel = FileChannel.open(sent.toPath(), StandardOpenOption.READ)) {
+			WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+			long position = start;
+			while (position <= end) {
+				long transferred = channel.transferTo(position, end + 1 - position, out);
+				if (transferred <= 0) {
+					throw new EOFException("File " + sent + " was truncated while it was being sent");
+				}
+				
+				position += transferred;
+			}
+		}
+	}
+	
+	/**
+	 * @return the first and last byte of the range, {@link #NOT_SATISFIABLE}, or null if the header should be ignored
+	 *         because it is malformed or asks for several ranges
+	 */
+	static long[] parseRange(String range, long length) {
+		String unitPrefix = BYTES_UNIT + "=";
+		if (!range.startsWith(unitPrefix) || range.indexOf(',') >= 0) {
+			return null;
+		}
+		
+		String spec = range.substring(unitPrefix.length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0) {
+			return null;
+		}
+		
+		try {
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash + 1).trim();
+			if (first.isEmpty()) {
+				// the last n bytes
+				long suffixLength = Long.parseLong(last);
+				if (suffixLength <= 0 || length == 0) {
+					return NOT_SATISFIABLE;
+				}
+				
+				return new long[] { Math.max(0, length - suffixLength), length - 1 };
+			}
+			
+			long start = Long.parseLong(first);
+			long end = last.isEmpty() ? length - 1 : Long.parseLong(last);
+			if (start < 0 || end < start) {
+				return null;
+			}
+			
+			if (start >= length) {
+				return NOT_SATISFIABLE;
+			}
+			
+			return new long[] { start, Math.min(end, length - 1) };
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * A range is only sent if the file is still the one the client started downloading, otherwise the whole file is
+	 */
+	private static boolean ifRangeMatches(HttpServletRequest request, String etag, long lastModified) {
+		String ifRange = request.getHeader(HEADER_IF_RANGE);
+		if (ifRange == null) {
+			return true;
+		}
+		
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			// weak entity tags never match, as a range needs the bytes to be identical
+			return ifRange.equals(etag);
+		}
+		
+		try {
+			return request.getDateHeader(HEADER_IF_RANGE) == lastModified;
+		}
+		catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.util;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import org.apache.commons.text.StringEscapeUtils;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Writes a JSON searchset {@link org.hl7.fhir.r4.model.Bundle} one entry at a time, so that a search result never has
+ * to be held in memory as a whole. Only the entry being written is encoded; the bundle envelope is written by hand
+ * around the entries and the total is emitted after the last entry, see {@link #finish()}.
+ * <p>
+ * The writer may be used from more than one thread, so that {@link #heartbeat()} can be called while a slow search is
+ * still looking for the next entry. It should be given a writer which throws once the client has disconnected, such as
+ * an {@link java.io.OutputStreamWriter} on the response's output stream; a {@link PrintWriter}, which only records
+ * the failure, is checked after each write.
+ */
+public class StreamingBundleWriter {
+	
+	private final Writer writer;
+	
+	private final IParser parser;
+	
+	private final String serverBase;
+	
+	private int total = 0;
+	
+	public StreamingBundleWriter(FhirContext fhirContext, Writer writer, String serverBase) throws IOException {
+		this.writer = writer;
+		this.parser = fhirContext.newJsonParser();
+		this.serverBase = serverBase;
+		
+		writer.write("{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"entry\":[");
+	}
+	
+	public synchronized void addEntry(Resource resource) throws IOException {
+		if (total++ > 0) {
+			writer.write(',');
+		}
+		
+		writer.write("{\"fullUrl\":\"");
+		writer.write(StringEscapeUtils.escapeJson(
+		    serverBase + "/" + resource.getResourceType().name() + "/" + resource.getIdElement().getIdPart()));
+		writer.write("\",\"resource\":");
+		// the parser closes the writer it encodes to, so it is only given a view of ours
+		parser.encodeResourceToWriter(resource, new NonClosingWriter(writer));
+		writer.write(",\"search\":{\"mode\":\"match\"}}");
+		checkError();
+	}
+	
+	public synchronized int getTotal() {
+		return total;
+	}
+	
+	/**
+	 * Terminates the bundle. This should only be called once every entry has been written, so that a stream which was
+	 * aborted part way through is not mistaken for a complete result by the client.
+	 */
+	public synchronized void finish() throws IOException {
+		writer.write("],\"total\":");
+		writer.write(Integer.toString(total));
+		writer.write('}');
+		writer.flush();
+		checkError();
+	}
+	
+	/**
+	 * Writes whitespace, which is allowed between any two JSON tokens, and flushes it to the client. This fails with an
+	 * {@link IOException} once the client has disconnected, even if no entry has been written for a while.
+	 */
+	public synchronized void heartbeat() throws IOException {
+		writer.write(' ');
+		writer.flush();
+		checkError();
+	}
+	
+	/**
+	 * A {@link PrintWriter} swallows the exceptions of the stream it writes to, so they are raised here instead
+	 */
+	private void checkError() throws IOException {
+		if (writer instanceof PrintWriter && ((PrintWriter) writer).checkError()) {
+			throw new IOException("Could not write to the client, which has probably disconnected");
+		}
+	}
+	
+	private static class NonClosingWriter extends FilterWriter {
+		
+		NonClosingWriter(Writer out) {
+			super(out);
+		}
+		
+		@Override
+		public void close() {
+			// everything written so far has already been passed on to the underlying writer
+		}
+	}
+}
@@ -22,10 +22,19 @@ import java.nio.charset.StandardCharsets;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang3.StringUtils;
+import org.openmrs.User;
 import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.fhir2.api.auth.BearerTokens;
 
 public class AuthenticationFilter implements Filter {
 
+	private static final String BEARER_PREFIX = "Bearer ";
+
+	private volatile CredentialCache credentialCache;
+
+	private volatile BearerTokens bearerTokens;
+
 	@Override
 	public void init(FilterConfig filterConfig) {
 	}
@@ -44,17 +53,36 @@ public class AuthenticationFilter implements Filter {
 
 			if (!Context.isAuthenticated()) {
 				String basicAuth = httpRequest.getHeader("Authorization");
-				if (!StringUtils.isBlank(basicAuth)) {
+				if (StringUtils.startsWithIgnoreCase(basicAuth, BEARER_PREFIX)) {
+					// bearer tokens are verified without a session or any database access
+					User user = getBearerTokens().verify(basicAuth.substring(BEARER_PREFIX.length()).trim());
+					if (user == null) {
+						HttpServletResponse httpResponse = (HttpServletResponse) response;
+						httpResponse.setHeader("WWW-Authenticate", "Bearer error=\"invalid_token\"");
+						httpResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Not authenticated");
+						return;
+					}
+
+					Context.setUserContext(new BearerTokenUserContext(user));
+				} else if (!StringUtils.isBlank(basicAuth)) {
 					// this is "Basic ${base64encode(username + ":" + password)}"
 					try {
 						basicAuth = basicAuth.substring(6); // remove the leading "Basic "
-						String decoded = new String(Base64.decodeBase64(basicAuth), StandardCharsets.UTF_8);
-						String[] userAndPass = decoded.split(":");
-						Context.authenticate(userAndPass[0], userAndPass[1]);
+						// clients which do not keep a session send the same credentials with every request
+						UserContext cached = getCredentialCache().get(basicAuth);
+						if (cached != null) {
+							Context.setUserContext(cached);
+						} else {
+							String decoded = new String(Base64.decodeBase64(basicAuth), StandardCharsets.UTF_8);
+							String[] userAndPass = decoded.split(":");
+							Context.authenticate(userAndPass[0], userAndPass[1]);
+							getCredentialCache().put(basicAuth, Context.getUserContext());
+						}
 					}
 					catch (Exception ignored) {
 						HttpServletResponse httpResponse = (HttpServletResponse) response;
 						httpResponse.sendError(HttpServletResponse.SC_UNAUTHORIZED, "Not authenticated");
+						return;
 					}
 				} else {
 					// This sends 401 error if not authenticated
@@ -68,6 +96,25 @@ public class AuthenticationFilter implements Filter {
 		chain.doFilter(request, response);
 	}
 
+	/**
+	 * The filter is created by the web application rather than Spring, so its components are looked up on first use
+	 */
+	private CredentialCache getCredentialCache() {
+		if (credentialCache == null) {
+			credentialCache = Context.getRegisteredComponents(CredentialCache.class).get(0);
+		}
+
+		return credentialCache;
+	}
+
+	private BearerTokens getBearerTokens() {
+		if (bearerTokens == null) {
+			bearerTokens = Context.getRegisteredComponents(BearerTokens.class).get(0);
+		}
+
+		return bearerTokens;
+	}
+
 	@Override
 	public void destroy() {
 	}
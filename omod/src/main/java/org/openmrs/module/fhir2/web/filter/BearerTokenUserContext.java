@@ -0,0 +1,43 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.web.filter;
+
+import org.openmrs.User;
+import org.openmrs.api.context.UserContext;
+
+/**
+ * The context of a request authenticated by a bearer token. Its user is the one rebuilt from the token, with the roles
+ * and privileges the token carries, and is never reloaded from the database.
+ */
+public class BearerTokenUserContext extends UserContext {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private final User user;
+	
+	public BearerTokenUserContext(User user) {
+		this.user = user;
+	}
+	
+	@Override
+	public User getAuthenticatedUser() {
+		return user;
+	}
+	
+	@Override
+	public boolean isAuthenticated() {
+		return true;
+	}
+	
+	@Override
+	public void refreshAuthenticatedUser() {
+		// the token is the only record of the user's privileges the request may rely on
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.web.filter;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.apache.commons.codec.binary.Base64;
+import org.hibernate.SessionFactory;
+import org.hibernate.action.spi.AfterTransactionCompletionProcess;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventSource;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostDeleteEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+import org.openmrs.User;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.api.db.LoginCredential;
+import org.openmrs.module.fhir2.api.auth.AuthenticatedUserContext;
+import org.springframework.stereotype.Component;
+
+/**
+ * Remembers the users which recently authenticated with HTTP Basic credentials, so that a client which sends its
+ * credentials with every request, rather than keeping a session, is not put through the password hash and the loading
+ * of the user and its roles each time.
+ * <p>
+ * Entries are keyed by an HMAC of the credentials under a key which is generated when the module starts and never
+ * leaves memory, so the cache holds nothing from which a password could be recovered. They expire a short while after
+ * the authentication, and are dropped as soon as the user or their password is changed, including when the user is
+ * retired. Only a snapshot of the authenticated user and their locale is kept, and each request is given a context of
+ * its own built from it, so that what one request puts in its context, such as proxy privileges, never reaches
+ * another.
+ */
+@Component
+@Setter(AccessLevel.PACKAGE)
+public class CredentialCache implements PostUpdateEventListener, PostDeleteEventListener {
+	
+	private static final long serialVersionUID = 1L;
+	
+	private static final String HMAC_ALGORITHM = "HmacSHA256";
+	
+	private static final int MAXIMUM_SIZE = 1000;
+	
+	private static final long EXPIRY_SECONDS = 120;
+	
+	@Inject
+	@Named("sessionFactory")
+	private transient SessionFactory sessionFactory;
+	
+	private final transient Cache<String, CachedUser> users;
+	
+	private final transient ThreadLocal<Mac> mac;
+	
+	public CredentialCache() {
+		this(Ticker.systemTicker());
+	}
+	
+	CredentialCache(Ticker ticker) {
+		users = CacheBuilder.newBuilder().maximumSize(MAXIMUM_SIZE).expireAfterWrite(EXPIRY_SECONDS, TimeUnit.SECONDS)
+		        .ticker(ticker).build();
+		
+		byte[] key = new byte[32];
+		new SecureRandom().nextBytes(key);
+		SecretKeySpec keySpec = new SecretKeySpec(key, HMAC_ALGORITHM);
+		mac = ThreadLocal.withInitial(() -> {
+			try {
+				Mac instance = Mac.getInstance(HMAC_ALGORITHM);
+				instance.init(keySpec);
+				return instance;
+			}
+			catch (GeneralSecurityException e) {
+				throw new IllegalStateException("Unable to create an " + HMAC_ALGORITHM + " instance", e);
+			}
+		});
+	}
+	
+	@PostConstruct
+	public void register() {
+		EventListenerRegistry registry = ((SessionFactoryImplementor) sessionFactory).getServiceRegistry()
+		        .getService(EventListenerRegistry.class);
+		registry.appendListeners(EventType.POST_UPDATE, this);
+		registry.appendListeners(EventType.POST_DELETE, this);
+	}
+	
+	/**
+	 * @param credentials the credentials sent by the client
+	 * @return a new context for the user the credentials authenticated recently, or null
+	 */
+	public UserContext get(String credentials) {
+		CachedUser cached = users.getIfPresent(digest(credentials));
+		return cached == null ? null : AuthenticatedUserContext.copyOf(cached.userContext);
+	}
+	
+	/**
+	 * @param credentials the credentials the user has just been authenticated with
+	 * @param userContext the context holding the authenticated user, which is not kept itself
+	 */
+	public void put(String credentials, UserContext userContext) {
+		User user = userContext.getAuthenticatedUser();
+		if (user != null && user.getUserId() != null) {
+			UserContext snapshot = AuthenticatedUserContext.copyOf(userContext);
+			users.put(digest(credentials), new CachedUser(user.getUserId(), snapshot));
+		}
+	}
+	
+	/**
+	 * Forgets every authentication of a user
+	 */
+	public void invalidate(Integer userId) {
+		users.asMap().values().removeIf(cached -> cached.userId.equals(userId));
+	}
+	
+	@Override
+	public void onPostUpdate(PostUpdateEvent event) {
+		onChange(event.getSession(), event.getEntity());
+	}
+	
+	@Override
+	public void onPostDelete(PostDeleteEvent event) {
+		onChange(event.getSession(), event.getEntity());
+	}
+	
+	@Override
+	public boolean requiresPostCommitHanding(EntityPersister persister) {
+		return false;
+	}
+	
+	private void onChange(EventSource session, Object entity) {
+		Integer userId;
+		if (entity instanceof User) {
+			userId = ((User) entity).getUserId();
+		} else if (entity instanceof LoginCredential) {
+			userId = ((LoginCredential) entity).getUserId();
+		} else {
+			return;
+		}
+		
+		if (userId == null) {
+			return;
+		}
+		
+		invalidate(userId);
+		// until the change commits, the old credentials can still authenticate and be cached again
+		session.getActionQueue()
+		        .registerProcess((AfterTransactionCompletionProcess) (success, completed) -> invalidate(userId));
+	}
+	
+	private String digest(String credentials) {
+		return Base64.encodeBase64String(mac.get().doFinal(credentials.getBytes(StandardCharsets.UTF_8)));
+	}
+	
+	private static final class CachedUser {
+		
+		private final Integer userId;
+		
+		private final UserContext userContext;
+		
+		private CachedUser(Integer userId, UserContext userContext) {
+			this.userId = userId;
+			this.userContext = userContext;
+		}
+	}
+}
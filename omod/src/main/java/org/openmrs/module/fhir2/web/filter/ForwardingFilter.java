@@ -15,11 +15,26 @@ import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
 
+import org.openmrs.module.web.WebModuleUtil;
+
+/**
+ * Passes requests for {@code /ws/fhir2/...} straight to the FHIR servlet. The servlet is called directly rather than
+ * through a forward to {@code /ms/fhir2Servlet/...}, so the request is not dispatched a second time, the filters
+ * mapped to the module servlet path (including authentication) do not run again, and the request path is only parsed
+ * here.
+ */
 public class ForwardingFilter implements Filter {
 	
+	private static final String FHIR_SERVLET_NAME = "fhir2Servlet";
+	
+	private static final String WS_PATH = "/ws/fhir2";
+	
+	private volatile HttpServlet fhirServlet;
+	
 	@Override
 	public void init(FilterConfig filterConfig) {
 	}
@@ -28,18 +43,36 @@ public class ForwardingFilter implements Filter {
 	public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException, ServletException {
 		HttpServletRequest request = (HttpServletRequest) req;
 		String requestURI = request.getRequestURI();
+		String contextPath = request.getContextPath();
 		
-		String contextPath = ((HttpServletRequest) req).getContextPath();
-		String prefix = contextPath + "/ws/fhir2/";
-		if (requestURI.startsWith(prefix)) {
-			String newURI = requestURI.replace(prefix, "/ms/fhir2Servlet/");
+		int prefixLength = contextPath.length() + WS_PATH.length();
+		String pathPrefix = WS_PATH + "/";
+		if (requestURI.startsWith(contextPath) && requestURI.startsWith(pathPrefix, contextPath.length())) {
+			HttpServlet servlet = getFhirServlet();
+			if (servlet != null) {
+				servlet.service(new ModuleServletRequest(request, prefixLength), res);
+				return;
+			}
+			
+			// the module servlet has not been registered yet, so leave it to the module servlet dispatcher
+			String newURI = ModuleServletRequest.SERVLET_PATH + ModuleServletRequest.MODULE_SERVLET_PATH
+			        + requestURI.substring(prefixLength);
 			req.getRequestDispatcher(newURI).forward(req, res);
 		} else {
 			chain.doFilter(req, res);
 		}
 	}
 	
+	private HttpServlet getFhirServlet() {
+		if (fhirServlet == null) {
+			fhirServlet = WebModuleUtil.getServlet(FHIR_SERVLET_NAME);
+		}
+		
+		return fhirServlet;
+	}
+	
 	@Override
 	public void destroy() {
+		fhirServlet = null;
 	}
 }
@@ -0,0 +1,72 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.web.filter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * Presents a request for {@code /ws/fhir2/...} as the request for {@code /ms/fhir2Servlet/...} which the module
+ * servlet dispatcher would have passed to the FHIR servlet, so that the servlet can be called directly. The paths are
+ * computed once, when the request is wrapped.
+ */
+class ModuleServletRequest extends HttpServletRequestWrapper {
+	
+	static final String SERVLET_PATH = "/ms";
+	
+	static final String MODULE_SERVLET_PATH = "/fhir2Servlet";
+	
+	private final String requestURI;
+	
+	private final String pathInfo;
+	
+	private final StringBuffer requestURL;
+	
+	/**
+	 * @param request the request for {@code /ws/fhir2/...}
+	 * @param prefixLength the length of the request URI up to, but not including, the slash after {@code /ws/fhir2}
+	 */
+	ModuleServletRequest(HttpServletRequest request, int prefixLength) {
+		super(request);
+		
+		String originalURI = request.getRequestURI();
+		String path = originalURI.substring(prefixLength);
+		requestURI = request.getContextPath() + SERVLET_PATH + MODULE_SERVLET_PATH + path;
+		
+		String originalPathInfo = request.getPathInfo();
+		int slash = originalPathInfo == null ? -1 : originalPathInfo.indexOf('/', 1);
+		pathInfo = MODULE_SERVLET_PATH + (slash < 0 ? "" : originalPathInfo.substring(slash));
+		
+		StringBuffer originalURL = request.getRequestURL();
+		requestURL = new StringBuffer(originalURL.length() + requestURI.length() - originalURI.length());
+		requestURL.append(originalURL, 0, originalURL.length() - originalURI.length()).append(requestURI);
+	}
+	
+	@Override
+	public String getRequestURI() {
+		return requestURI;
+	}
+	
+	@Override
+	public StringBuffer getRequestURL() {
+		// callers may modify the buffer they are given
+		return new StringBuffer(requestURL);
+	}
+	
+	@Override
+	public String getServletPath() {
+		return SERVLET_PATH;
+	}
+	
+	@Override
+	public String getPathInfo() {
+		return pathInfo;
+	}
+}
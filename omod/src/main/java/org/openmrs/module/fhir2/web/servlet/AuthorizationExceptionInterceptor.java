@@ -0,0 +1,49 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.web.servlet;
+
+import javax.servlet.http.HttpServletRequest;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+import org.openmrs.api.APIAuthenticationException;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.ContextAuthenticationException;
+
+/**
+ * Reports a missing privilege as 401 Unauthorized to an anonymous client and as 403 Forbidden to an authenticated one,
+ * rather than as the 500 HAPI reports for any exception it does not know
+ */
+public class AuthorizationExceptionInterceptor extends InterceptorAdapter {
+	
+	@Override
+	public BaseServerResponseException preProcessOutgoingException(RequestDetails theRequestDetails,
+	        Throwable theException, HttpServletRequest theServletRequest) {
+		// HAPI wraps the exceptions thrown by providers, so the whole chain of causes is checked
+		for (Throwable cause = theException; cause != null; cause = cause.getCause()) {
+			if (cause instanceof ContextAuthenticationException || cause instanceof APIAuthenticationException) {
+				if (!Context.isAuthenticated()) {
+					return new AuthenticationException(cause.getMessage());
+				}
+				
+				return new ForbiddenOperationException(cause.getMessage());
+			}
+			
+			if (cause.getCause() == cause) {
+				break;
+			}
+		}
+		
+		return null;
+	}
+}
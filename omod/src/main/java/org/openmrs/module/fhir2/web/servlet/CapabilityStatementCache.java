@@ -0,0 +1,361 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.web.servlet;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import com.google.common.hash.Hashing;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openmrs.module.fhir2.util.ContentEncoding;
+
+/**
+ * The CapabilityStatement served at {@code [base]/metadata}, kept encoded in JSON and XML, and gzipped, so that it is
+ * neither rebuilt from the registered providers nor encoded again on every request. Each representation is served with
+ * a strong ETag, so clients which revalidate, such as health checks, get a 304 without a body.
+ * <p>
+ * The statement is built by HAPI the first time it is requested, as it names the base URL of the server it was
+ * requested from; one is kept per base URL. They are all discarded when the providers registered with the servlet
+ * change. Requests with any parameter other than {@code _format}, or for an encoding other than JSON or XML, are left
+ * to HAPI.
+ */
+class CapabilityStatementCache {
+	
+	static final String METADATA_PATH = "metadata";
+	
+	private static final String PARAM_FORMAT = "_format";
+	
+	private static final String HEADER_ACCEPT = "Accept";
+	
+	private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+	
+	private static final String HEADER_ETAG = "ETag";
+	
+	private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+	
+	private static final String HEADER_VARY = "Vary";
+	
+	private static final String ANY_MEDIA_TYPE = "*/*";
+	
+	/**
+	 * A server is normally reached through one or two base URLs; this only bounds the cache against clients which send
+	 * arbitrary Host headers
+	 */
+	private static final int MAX_SERVER_BASES = 16;
+	
+	private final Map<String, EncodedStatement> statements = new ConcurrentHashMap<>();
+	
+	private final AtomicLong generation = new AtomicLong();
+	
+	/**
+	 * @return the encoding to serve the statement in, or null if the request should be left to HAPI
+	 */
+	static EncodingEnum negotiate(HttpServletRequest request) {
+		Map<String, String[]> parameters = request.getParameterMap();
+		for (String name : parameters.keySet()) {
+			if (!PARAM_FORMAT.equals(name)) {
+				return null;
+			}
+		}
+		
+		String[] format = parameters.get(PARAM_FORMAT);
+		if (format != null) {
+			return format.length == 1 ? supported(EncodingEnum.forContentType(format[0])) : null;
+		}
+		
+		String accept = request.getHeader(HEADER_ACCEPT);
+		if (StringUtils.isBlank(accept)) {
+			return EncodingEnum.JSON;
+		}
+		
+		// media ranges are taken in order; preferences expressed with quality values are left to HAPI
+		for (String range : StringUtils.split(accept, ',')) {
+			String[] parts = StringUtils.split(range, ';');
+			if (parts.length == 0) {
+				continue;
+			}
+			
+			if (parts.length > 1) {
+				return null;
+			}
+			
+			String mediaType = parts[0].trim();
+			if (ANY_MEDIA_TYPE.equals(mediaType)) {
+				return EncodingEnum.JSON;
+			}
+			
+			EncodingEnum encoding = supported(EncodingEnum.forContentType(mediaType));
+			if (encoding != null) {
+				return encoding;
+			}
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * @return the statement for the base URL, or null if it has yet to be built
+	 */
+	EncodedStatement get(String serverBase) {
+		return statements.get(serverBase);
+	}
+	
+	/**
+	 * @return the generation to pass to {@link #put(String, long, EncodedStatement)} for a statement built from now on
+	 */
+	long getGeneration() {
+		return generation.get();
+	}
+	
+	/**
+	 * Keeps a statement, unless the providers changed while it was being built
+	 */
+	void put(String serverBase, long builtInGeneration, EncodedStatement statement) {
+		if (statements.size() >= MAX_SERVER_BASES) {
+			statements.clear();
+		}
+		
+		statements.put(serverBase, statement);
+		if (generation.get() != builtInGeneration) {
+			statements.remove(serverBase, statement);
+		}
+	}
+	
+	void invalidate() {
+		generation.incrementAndGet();
+		statements.clear();
+	}
+	
+	private static EncodingEnum supported(EncodingEnum encoding) {
+		return encoding == EncodingEnum.JSON || encoding == EncodingEnum.XML ? encoding : null;
+	}
+	
+	/**
+	 * The representations of a CapabilityStatement
+	 */
+	static final class EncodedStatement {
+		
+		private final Representation json;
+		
+		private final Representation xml;
+		
+		private EncodedStatement(Representation json, Representation xml) {
+			this.json = json;
+			this.xml = xml;
+		}
+		
+		/**
+		 * @param body the statement as HAPI wrote it
+		 * @return the encoded statement, or null if the response is not a statement in a supported encoding
+		 */
+		static EncodedStatement from(FhirContext fhirContext, CapturedResponse body) throws IOException {
+			if (body.getStatus() != HttpServletResponse.SC_OK || body.getContentType() == null) {
+				return null;
+			}
+			
+			EncodingEnum encoding = supported(
+			    EncodingEnum.forContentType(StringUtils.substringBefore(body.getContentType(), ";").trim()));
+			if (encoding == null) {
+				return null;
+			}
+			
+			IBaseResource statement;
+			try {
+				statement = encoding.newParser(fhirContext).parseResource(body.getBodyAsString());
+			}
+			catch (DataFormatException e) {
+				return null;
+			}
+			
+			String json = fhirContext.newJsonParser().encodeResourceToString(statement);
+			String xml = fhirContext.newXmlParser().encodeResourceToString(statement);
+			return new EncodedStatement(new Representation(EncodingEnum.JSON, json),
+			        new Representation(EncodingEnum.XML, xml));
+		}
+		
+		void write(HttpServletRequest request, HttpServletResponse response, EncodingEnum encoding)
+		        throws IOException {
+			Representation representation = encoding == EncodingEnum.XML ? xml : json;
+			boolean compressed = ContentEncoding.acceptsGzip(request);
+			String etag = compressed ? representation.compressedEtag : representation.etag;
+			
+			response.setHeader(HEADER_ETAG, etag);
+			response.setHeader(HEADER_CACHE_CONTROL, "no-cache");
+			response.setHeader(HEADER_VARY, HEADER_ACCEPT + ", " + ContentEncoding.HEADER_ACCEPT_ENCODING);
+			if (matches(request.getHeader(HEADER_IF_NONE_MATCH), etag)) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+			
+			byte[] body = compressed ? representation.compressed : representation.bytes;
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.setContentType(encoding.getResourceContentTypeNonLegacy() + ";charset=UTF-8");
+			if (compressed) {
+				response.setHeader(ContentEncoding.HEADER_CONTENT_ENCODING, ContentEncoding.GZIP);
+			}
+			response.setContentLength(body.length);
+			
+			ServletOutputStream out = response.getOutputStream();
+			out.write(body);
+			out.flush();
+		}
+		
+		private static boolean matches(String ifNoneMatch, String etag) {
+			if (ifNoneMatch == null) {
+				return false;
+			}
+			
+			for (String candidate : StringUtils.split(ifNoneMatch, ',')) {
+				String trimmed = candidate.trim();
+				// If-None-Match uses the weak comparison
+				if (trimmed.startsWith("W/")) {
+					trimmed = trimmed.substring(2);
+				}
+				
+				if ("*".equals(trimmed) || etag.equals(trimmed)) {
+					return true;
+				}
+			}
+			
+			return false;
+		}
+	}
+	
+	private static final class Representation {
+		
+		private final byte[] bytes;
+		
+		private final byte[] compressed;
+		
+		private final String etag;
+		
+		private final String compressedEtag;
+		
+		private Representation(EncodingEnum encoding, String body) throws IOException {
+			bytes = body.getBytes(StandardCharsets.UTF_8);
+			
+			ByteArrayOutputStream gzipped = new ByteArrayOutputStream(bytes.length / 4);
+			try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+				out.write(bytes);
+			}
+			compressed = gzipped.toByteArray();
+			
+			String hash = Hashing.sha256().hashBytes(bytes).toString().substring(0, 32);
+			etag = "\"" + hash + "-" + encoding.getFormatContentType() + "\"";
+			compressedEtag = "\"" + hash + "-" + encoding.getFormatContentType() + "-gz\"";
+		}
+	}
+	
+	/**
+	 * A response whose body is kept rather than sent; its status and headers are set on the wrapped response
+	 */
+	static final class CapturedResponse extends HttpServletResponseWrapper {
+		
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		
+		private ServletOutputStream outputStream;
+		
+		private PrintWriter writer;
+		
+		CapturedResponse(HttpServletResponse response) {
+			super(response);
+		}
+		
+		@Override
+		public ServletOutputStream getOutputStream() {
+			if (writer != null) {
+				throw new IllegalStateException("getWriter() has already been called on this response");
+			}
+			
+			if (outputStream == null) {
+				outputStream = new ServletOutputStream() {
+					
+					@Override
+					public void write(int b) {
+						body.write(b);
+					}
+					
+					@Override
+					public void write(byte[] b, int off, int len) {
+						body.write(b, off, len);
+					}
+				};
+			}
+			
+			return outputStream;
+		}
+		
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			if (writer == null) {
+				if (outputStream != null) {
+					throw new IllegalStateException("getOutputStream() has already been called on this response");
+				}
+				
+				writer = new PrintWriter(new OutputStreamWriter(body, getCharacterEncoding()));
+			}
+			
+			return writer;
+		}
+		
+		@Override
+		public void flushBuffer() {
+			if (writer != null) {
+				writer.flush();
+			}
+		}
+		
+		@Override
+		public void resetBuffer() {
+			flushBuffer();
+			body.reset();
+		}
+		
+		@Override
+		public void reset() {
+			resetBuffer();
+			super.reset();
+		}
+		
+		String getBodyAsString() {
+			flushBuffer();
+			return new String(body.toByteArray(), Charset.forName(getCharacterEncoding()));
+		}
+		
+		/**
+		 * Sends the body as it was written, for a response which is not kept
+		 */
+		void replay() throws IOException {
+			flushBuffer();
+			if (body.size() > 0) {
+				ServletOutputStream out = getResponse().getOutputStream();
+				body.writeTo(out);
+				out.flush();
+			}
+		}
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.web.servlet;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.zip.GZIPOutputStream;
+
+import org.openmrs.module.fhir2.util.ContentEncoding;
+
+/**
+ * A response which is gzipped as it is written. The first bytes are held back until there are more than the threshold,
+ * so that small responses, which gain little from compression, are sent as they are, with a {@code Content-Length}.
+ * Beyond that the response is compressed as it is written and never held in memory as a whole; flushing the response
+ * flushes the compressed bytes written so far, so streamed responses reach the client as they are produced.
+ * <p>
+ * Responses which set their own {@code Content-Encoding} or {@code Content-Length}, or whose content type is not
+ * textual, are passed through unchanged.
+ */
+public class CompressingResponse extends HttpServletResponseWrapper {
+	
+	private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+	
+	private static final String HEADER_VARY = "Vary";
+	
+	private static final int GZIP_BUFFER_SIZE = 8192;
+	
+	private final int threshold;
+	
+	private boolean passThrough;
+	
+	private CompressingOutputStream outputStream;
+	
+	private PrintWriter writer;
+	
+	CompressingResponse(HttpServletResponse response, int threshold) {
+		super(response);
+		this.threshold = threshold;
+	}
+	
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException {
+		if (writer != null) {
+			throw new IllegalStateException("getWriter() has already been called on this response");
+		}
+		
+		if (outputStream == null) {
+			outputStream = new CompressingOutputStream();
+		}
+		
+		return outputStream;
+	}
+	
+	@Override
+	public PrintWriter getWriter() throws IOException {
+		if (writer == null) {
+			if (outputStream != null) {
+				throw new IllegalStateException("getOutputStream() has already been called on this response");
+			}
+			
+			outputStream = new CompressingOutputStream();
+			writer = new PrintWriter(new OutputStreamWriter(outputStream, getCharacterEncoding()));
+		}
+		
+		return writer;
+	}
+	
+	@Override
+	public void setContentLength(int length) {
+		passThrough = true;
+		super.setContentLength(length);
+	}
+	
+	@Override
+	public void setHeader(String name, String value) {
+		checkHeader(name);
+		super.setHeader(name, value);
+	}
+	
+	@Override
+	public void addHeader(String name, String value) {
+		checkHeader(name);
+		super.addHeader(name, value);
+	}
+	
+	@Override
+	public void setIntHeader(String name, int value) {
+		checkHeader(name);
+		super.setIntHeader(name, value);
+	}
+	
+	@Override
+	public void addIntHeader(String name, int value) {
+		checkHeader(name);
+		super.addIntHeader(name, value);
+	}
+	
+	@Override
+	public void flushBuffer() throws IOException {
+		if (writer != null) {
+			writer.flush();
+		} else if (outputStream != null) {
+			outputStream.flush();
+		}
+		
+		super.flushBuffer();
+	}
+	
+	@Override
+	public void resetBuffer() {
+		if (outputStream != null) {
+			outputStream.resetBuffer();
+		}
+		
+		super.resetBuffer();
+	}
+	
+	@Override
+	public void reset() {
+		if (outputStream != null) {
+			outputStream.resetBuffer();
+		}
+		
+		passThrough = false;
+		super.reset();
+	}
+	
+	/**
+	 * Writes whatever is still held back and finishes the compressed stream. This must be called once the request has
+	 * been handled.
+	 */
+	public void finish() throws IOException {
+		if (outputStream == null) {
+			return;
+		}
+		
+		// flushing the writer flushes the stream too, which must not be taken for a response being streamed
+		outputStream.finishing = true;
+		if (writer != null) {
+			writer.flush();
+		}
+		
+		outputStream.finish();
+	}
+	
+	private void checkHeader(String name) {
+		// a response which knows its length or is already encoded is sent as it is
+		if (HEADER_CONTENT_LENGTH.equalsIgnoreCase(name)
+		        || ContentEncoding.HEADER_CONTENT_ENCODING.equalsIgnoreCase(name)) {
+			passThrough = true;
+		}
+	}
+	
+	private boolean isCompressible() {
+		if (passThrough || containsHeader(ContentEncoding.HEADER_CONTENT_ENCODING)) {
+			return false;
+		}
+		
+		String contentType = getContentType();
+		return contentType == null || contentType.startsWith("text/") || contentType.contains("json")
+		        || contentType.contains("xml");
+	}
+	
+	private class CompressingOutputStream extends ServletOutputStream {
+		
+		private ByteArrayOutputStream heldBack = new ByteArrayOutputStream();
+		
+		private OutputStream out;
+		
+		private boolean finishing;
+		
+		@Override
+		public void write(int b) throws IOException {
+			if (out == null && heldBack.size() + 1 <= threshold) {
+				heldBack.write(b);
+				return;
+			}
+			
+			start(true).write(b);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (out == null && heldBack.size() + len <= threshold) {
+				heldBack.write(b, off, len);
+				return;
+			}
+			
+			start(true).write(b, off, len);
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			// a response flushed part way through is being streamed, so it should reach the client straight away
+			if (!finishing && (out != null || heldBack.size() > 0)) {
+				start(true).flush();
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			finish();
+		}
+		
+		private void resetBuffer() {
+			if (out == null) {
+				heldBack.reset();
+			}
+		}
+		
+		private void finish() throws IOException {
+			if (out == null) {
+				if (heldBack.size() == 0) {
+					// nothing was written, e.g. as the container sends a file itself, so the response is left alone
+					return;
+				}
+				
+				start(false);
+			}
+			
+			if (out instanceof GZIPOutputStream) {
+				((GZIPOutputStream) out).finish();
+			}
+			
+			out.flush();
+		}
+		
+		/**
+		 * Decides whether to compress the response, and writes what was held back
+		 *
+		 * @param large whether the response is larger than the threshold, or of unknown length
+		 */
+		private OutputStream start(boolean large) throws IOException {
+			if (out != null) {
+				return out;
+			}
+			
+			HttpServletResponse response = (HttpServletResponse) getResponse();
+			OutputStream raw = response.getOutputStream();
+			if (isCompressible()) {
+				// the headers are set on the wrapped response, as they are not the application's own
+				response.addHeader(HEADER_VARY, ContentEncoding.HEADER_ACCEPT_ENCODING);
+				if (large) {
+					response.setHeader(ContentEncoding.HEADER_CONTENT_ENCODING, ContentEncoding.GZIP);
+					out = new GZIPOutputStream(raw, GZIP_BUFFER_SIZE, true);
+				} else {
+					response.setContentLength(heldBack.size());
+				}
+			}
+			
+			if (out == null) {
+				out = raw;
+			}
+			
+			heldBack.writeTo(out);
+			heldBack = null;
+			return out;
+		}
+	}
+}
@@ -13,20 +13,27 @@ import javax.inject.Inject;
 import javax.inject.Named;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
 
 import java.util.Collection;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.interceptor.LoggingInterceptor;
 import lombok.AccessLevel;
 import lombok.Setter;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.reflect.FieldUtils;
 import org.openmrs.api.context.Context;
 import org.openmrs.api.context.ServiceContext;
 import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.providers.BulkExportProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
@@ -37,9 +44,22 @@ public class FhirRestServlet extends RestfulServer {
 	
 	private static final long serialVersionUID = 1L;
 	
+	private static final String MODULE_SERVLET_PATH = "/fhir2Servlet";
+	
 	@Inject
 	private LoggingInterceptor loggingInterceptor;
 	
+	@Inject
+	private BulkExportProvider bulkExportProvider;
+	
+	@Inject
+	private RequestExecutor requestExecutor;
+	
+	@Inject
+	private ResponseCompression responseCompression;
+	
+	private transient CapabilityStatementCache capabilityStatements = new CapabilityStatementCache();
+	
 	@Override
 	protected void initialize() {
 		// ensure properties for this class are properly injected
@@ -54,6 +74,7 @@ public class FhirRestServlet extends RestfulServer {
 		
 		setDefaultResponseEncoding(EncodingEnum.JSON);
 		registerInterceptor(loggingInterceptor);
+		registerInterceptor(new AuthorizationExceptionInterceptor());
 	}
 	
 	@Override
@@ -61,10 +82,89 @@ public class FhirRestServlet extends RestfulServer {
 		return FhirConstants.OPENMRS_FHIR_SERVER_NAME;
 	}
 	
+	/**
+	 * Requests are run in the bulkhead of their kind rather than on the container's thread, see
+	 * {@link RequestExecutor}, and their responses are compressed as they are written, see {@link ResponseCompression}
+	 */
+	@Override
+	protected void service(HttpServletRequest request, HttpServletResponse response)
+	        throws ServletException, IOException {
+		requestExecutor.execute(request, response, (executedRequest, executedResponse) -> {
+			CompressingResponse compressingResponse = responseCompression.compress(executedRequest, executedResponse);
+			HttpServletRequest negotiatedRequest = responseCompression.negotiate(executedRequest);
+			if (compressingResponse == null) {
+				super.service(negotiatedRequest, executedResponse);
+				return;
+			}
+			
+			super.service(negotiatedRequest, compressingResponse);
+			compressingResponse.finish();
+		});
+	}
+	
+	@Override
+	protected void handleRequest(RequestTypeEnum requestType, HttpServletRequest request, HttpServletResponse response)
+	        throws ServletException, IOException {
+		// HAPI does not route DELETE requests to operations, but the bulk data specification cancels an export by
+		// deleting its status URL
+		if (requestType == RequestTypeEnum.DELETE
+		        && request.getRequestURI().endsWith("/" + BulkExportProvider.EXPORT_POLL_STATUS)) {
+			bulkExportProvider.cancelExport(request.getParameter(BulkExportProvider.PARAM_JOB_ID), response);
+			return;
+		}
+		
+		if (requestType == RequestTypeEnum.GET && serveCapabilityStatement(request, response)) {
+			return;
+		}
+		
+		super.handleRequest(requestType, request, response);
+	}
+	
+	/**
+	 * Serves the CapabilityStatement from its encoded form, see {@link CapabilityStatementCache}
+	 *
+	 * @return whether the request was for the CapabilityStatement and has been handled
+	 */
+	private boolean serveCapabilityStatement(HttpServletRequest request, HttpServletResponse response)
+	        throws ServletException, IOException {
+		String requestPath = StringUtils.removeStart(
+		    getRequestPath(request.getRequestURI(), request.getContextPath(), request.getServletPath()), "/");
+		if (!CapabilityStatementCache.METADATA_PATH.equals(requestPath)) {
+			return false;
+		}
+		
+		EncodingEnum encoding = CapabilityStatementCache.negotiate(request);
+		if (encoding == null) {
+			return false;
+		}
+		
+		String serverBase = getServerAddressStrategy().determineServerBase(getServletContext(), request);
+		CapabilityStatementCache.EncodedStatement statement = capabilityStatements.get(serverBase);
+		if (statement != null) {
+			addHeadersToResponse(response);
+			statement.write(request, response, encoding);
+			return true;
+		}
+		
+		// HAPI builds the statement, which is kept if it is one it can serve
+		long generation = capabilityStatements.getGeneration();
+		CapabilityStatementCache.CapturedResponse captured = new CapabilityStatementCache.CapturedResponse(response);
+		super.handleRequest(RequestTypeEnum.GET, request, captured);
+		statement = CapabilityStatementCache.EncodedStatement.from(getFhirContext(), captured);
+		if (statement == null) {
+			captured.replay();
+			return true;
+		}
+		
+		capabilityStatements.put(serverBase, generation, statement);
+		statement.write(request, response, encoding);
+		return true;
+	}
+	
 	@Override
 	protected String getRequestPath(String requestFullPath, String servletContextPath, String servletPath) {
 		return requestFullPath.substring(escapedLength(servletContextPath) + escapedLength(servletPath)
-		        + escapedLength("/fhir2Servlet"));
+		        + escapedLength(MODULE_SERVLET_PATH));
 	}
 	
 	@Override
@@ -79,5 +179,26 @@ public class FhirRestServlet extends RestfulServer {
 	@Qualifier("fhirResources")
 	public void setResourceProviders(Collection<IResourceProvider> theProviders) {
 		super.setResourceProviders(theProviders);
+		capabilityStatements.invalidate();
+	}
+	
+	@Override
+	@Autowired
+	@Qualifier("fhirPlainProviders")
+	public void setPlainProviders(Collection<Object> theProviders) {
+		super.setPlainProviders(theProviders);
+		capabilityStatements.invalidate();
+	}
+	
+	@Override
+	public void registerProviders(Collection<?> theProviders) {
+		super.registerProviders(theProviders);
+		capabilityStatements.invalidate();
+	}
+	
+	@Override
+	public void unregisterProviders(Collection<?> theProviders) {
+		super.unregisterProviders(theProviders);
+		capabilityStatements.invalidate();
 	}
 }
@@ -0,0 +1,135 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.web.servlet;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.springframework.stereotype.Component;
+
+/**
+ * Admission control per user and per {@link RequestBulkhead}. Each user has a token bucket for each kind of request,
+ * which limits the rate of their requests while allowing short bursts, and may only have a limited number of requests
+ * of each kind queued or running at once. A request over either limit is rejected straight away, with the time after
+ * which it may be retried, so a client which floods the server is slowed down before its requests reach the
+ * bulkheads or the database, and without affecting other users.
+ */
+@Component
+public class RequestAdmission {
+	
+	private static final long IDLE_EXPIRY_MINUTES = 10;
+	
+	private static final long CONCURRENCY_RETRY_AFTER_MILLIS = 1000;
+	
+	private final Map<RequestBulkhead, LoadingCache<String, UserLimit>> limits = new EnumMap<>(RequestBulkhead.class);
+	
+	public RequestAdmission() {
+		for (RequestBulkhead bulkhead : RequestBulkhead.values()) {
+			limits.put(bulkhead, CacheBuilder.newBuilder().expireAfterAccess(IDLE_EXPIRY_MINUTES, TimeUnit.MINUTES)
+			        .build(CacheLoader.from(user -> new UserLimit(bulkhead))));
+		}
+	}
+	
+	/**
+	 * @param user identifies the user sending the request
+	 * @param bulkhead the bulkhead the request is run in
+	 * @return the admitted request, which must be released once it has been processed, or a rejection
+	 */
+	public Admission admit(String user, RequestBulkhead bulkhead) {
+		return limits.get(bulkhead).getUnchecked(user).tryAcquire(System.nanoTime());
+	}
+	
+	/**
+	 * The outcome of admission control for a request
+	 */
+	public static final class Admission {
+		
+		private final UserLimit limit;
+		
+		private final long retryAfterMillis;
+		
+		private final AtomicBoolean released = new AtomicBoolean();
+		
+		private Admission(UserLimit limit, long retryAfterMillis) {
+			this.limit = limit;
+			this.retryAfterMillis = retryAfterMillis;
+		}
+		
+		public boolean isAdmitted() {
+			return limit != null;
+		}
+		
+		/**
+		 * @return the time after which a rejected request may be retried, in seconds
+		 */
+		public long getRetryAfterSeconds() {
+			return Math.max(1, TimeUnit.MILLISECONDS.toSeconds(retryAfterMillis + 999));
+		}
+		
+		/**
+		 * Releases an admitted request once it has been processed; releasing it again has no effect
+		 */
+		public void release() {
+			if (limit != null && released.compareAndSet(false, true)) {
+				limit.release();
+			}
+		}
+	}
+	
+	/**
+	 * The limits of one user for one kind of request
+	 */
+	static final class UserLimit {
+		
+		private final double tokensPerNano;
+		
+		private final int burst;
+		
+		private final int maxConcurrent;
+		
+		private double tokens;
+		
+		private long lastRefill;
+		
+		private int inFlight;
+		
+		UserLimit(RequestBulkhead bulkhead) {
+			this.tokensPerNano = bulkhead.getRequestsPerSecondPerUser() / TimeUnit.SECONDS.toNanos(1);
+			this.burst = bulkhead.getBurstPerUser();
+			this.maxConcurrent = bulkhead.getMaxConcurrentPerUser();
+			this.tokens = burst;
+			this.lastRefill = System.nanoTime();
+		}
+		
+		synchronized Admission tryAcquire(long now) {
+			tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNano);
+			lastRefill = now;
+			
+			if (inFlight >= maxConcurrent) {
+				return new Admission(null, CONCURRENCY_RETRY_AFTER_MILLIS);
+			} else if (tokens < 1) {
+				return new Admission(null, TimeUnit.NANOSECONDS.toMillis((long) ((1 - tokens) / tokensPerNano)));
+			}
+			
+			tokens--;
+			inFlight++;
+			return new Admission(this, 0);
+		}
+		
+		synchronized void release() {
+			inFlight--;
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.web.servlet;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openmrs.module.fhir2.FhirConstants;
+
+/**
+ * The bulkheads FHIR requests are run in. Each has a bounded executor of its own, see {@link RequestExecutor}, so a
+ * burst of one kind of request only queues behind itself, and is rejected once its queue is full, rather than
+ * occupying the threads every other kind of request needs.
+ */
+public enum RequestBulkhead {
+	
+	/**
+	 * Reads and writes of single resources, and anything else which does not fit the other bulkheads
+	 */
+	READ(32, 200, 50, 100),
+	
+	/**
+	 * Searches, which may read many records
+	 */
+	SEARCH(8, 50, 10, 20),
+	
+	/**
+	 * Bulk operations: exports, imports, offline sync and batch or transaction bundles
+	 */
+	BULK(4, 20, 1, 5),
+	
+	/**
+	 * Long-polls of the change feed, which mostly wait
+	 */
+	FEED(32, 8, 5, 10);
+	
+	private final int threads;
+	
+	private final int queueSize;
+	
+	private final double requestsPerSecondPerUser;
+	
+	private final int burstPerUser;
+	
+	RequestBulkhead(int threads, int queueSize, double requestsPerSecondPerUser, int burstPerUser) {
+		this.threads = threads;
+		this.queueSize = queueSize;
+		this.requestsPerSecondPerUser = requestsPerSecondPerUser;
+		this.burstPerUser = burstPerUser;
+	}
+	
+	public int getThreads() {
+		return threads;
+	}
+	
+	public int getQueueSize() {
+		return queueSize;
+	}
+	
+	/**
+	 * @return the global property which overrides the number of threads of this bulkhead
+	 */
+	public String getThreadsProperty() {
+		return FhirConstants.BULKHEAD_PROPERTY_PREFIX + name().toLowerCase() + ".threads";
+	}
+	
+	/**
+	 * @return the global property which overrides the queue size of this bulkhead
+	 */
+	public String getQueueSizeProperty() {
+		return FhirConstants.BULKHEAD_PROPERTY_PREFIX + name().toLowerCase() + ".queueSize";
+	}
+	
+	/**
+	 * @return the rate at which a single user may send requests of this kind, see {@link RequestAdmission}
+	 */
+	public double getRequestsPerSecondPerUser() {
+		return requestsPerSecondPerUser;
+	}
+	
+	/**
+	 * @return the number of requests of this kind a single user may send at once after being idle
+	 */
+	public int getBurstPerUser() {
+		return burstPerUser;
+	}
+	
+	/**
+	 * @return the number of requests of this kind a single user may have queued or running at once, which leaves part
+	 *         of the default bulkhead to the other users
+	 */
+	public int getMaxConcurrentPerUser() {
+		return Math.max(1, threads / 2);
+	}
+	
+	/**
+	 * @param method the HTTP method of the request
+	 * @param path the path of the request relative to the FHIR base, e.g. {@code Patient/123}
+	 * @return the bulkhead the request is run in
+	 */
+	public static RequestBulkhead forRequest(String method, String path) {
+		String[] segments = StringUtils.split(path, '/');
+		for (String segment : segments) {
+			if (segment.startsWith("$")) {
+				if (segment.equals("$changes")) {
+					return FEED;
+				} else if (segment.startsWith("$export") || segment.startsWith("$import")
+				        || segment.startsWith("$sync")) {
+					return BULK;
+				}
+				
+				return READ;
+			}
+		}
+		
+		if (segments.length == 0) {
+			// a POST to the base is a batch or transaction; a GET is a search across resource types
+			return "POST".equalsIgnoreCase(method) ? BULK : SEARCH;
+		} else if (segments.length == 1) {
+			// a POST to a resource type creates a resource
+			return "GET".equalsIgnoreCase(method) && !"metadata".equals(segments[0]) ? SEARCH : READ;
+		} else if (segments.length == 2 && "_search".equals(segments[1])) {
+			return SEARCH;
+		}
+		
+		return READ;
+	}
+}
@@ -0,0 +1,346 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.web.servlet;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.api.FhirGlobalPropertyService;
+import org.openmrs.module.fhir2.providers.BulkExportProvider;
+import org.openmrs.module.fhir2.web.servlet.RequestAdmission.Admission;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs FHIR requests on the bounded executor of their {@link RequestBulkhead}. Where the servlet container supports
+ * asynchronous processing for the request, the container's thread is released as soon as the request has been
+ * queued, and the request is run on behalf of the user who sent it, in an OpenMRS session of its own. Otherwise the
+ * request is run on the container's thread, as dispatching it would only leave that thread waiting, but it still
+ * counts against the threads of its bulkhead. A request whose bulkhead is full is rejected with a 503, and one over
+ * the limits of its user, see {@link RequestAdmission}, with a 429. Downloads of export files are admitted in the same
+ * way but are run on the container's thread, so the container can send the file itself.
+ * <p>
+ * The threads and queue size of each bulkhead are global properties, see {@link RequestBulkhead#getThreadsProperty()}.
+ * A change to the threads is applied within a minute, while the queues are sized when the first request is run. An
+ * asynchronous request which is not done within {@link FhirConstants#REQUEST_TIMEOUT_SECONDS_PROPERTY} is
+ * interrupted and answered with a 503.
+ */
+@Component
+@Setter(AccessLevel.PACKAGE)
+public class RequestExecutor {
+	
+	private static final Log log = LogFactory.getLog(RequestExecutor.class);
+	
+	private static final String HEADER_RETRY_AFTER = "Retry-After";
+	
+	private static final String RETRY_AFTER_SECONDS = "5";
+	
+	private static final int SC_TOO_MANY_REQUESTS = 429;
+	
+	private static final long KEEP_ALIVE_SECONDS = 60;
+	
+	private static final String SERVLET_NAME = "/fhir2Servlet";
+	
+	private static final long SETTINGS_REFRESH_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+	
+	/**
+	 * Longer than the longest long-poll of the change feed
+	 */
+	private static final int DEFAULT_REQUEST_TIMEOUT_SECONDS = 300;
+	
+	@Inject
+	private RequestAdmission admission;
+	
+	@Inject
+	private FhirGlobalPropertyService globalPropertyService;
+	
+	private volatile Map<RequestBulkhead, ThreadPoolExecutor> executors = Collections.emptyMap();
+	
+	/**
+	 * The requests of each bulkhead which are being run on the container's threads
+	 */
+	private final Map<RequestBulkhead, AtomicInteger> inlineRequests = new EnumMap<>(RequestBulkhead.class);
+	
+	private volatile long requestTimeout;
+	
+	private volatile long settingsLoadedAt;
+	
+	public RequestExecutor() {
+		for (RequestBulkhead bulkhead : RequestBulkhead.values()) {
+			inlineRequests.put(bulkhead, new AtomicInteger());
+		}
+	}
+	
+	@PreDestroy
+	public void stop() {
+		executors.values().forEach(ThreadPoolExecutor::shutdownNow);
+	}
+	
+	/**
+	 * Runs a request in its bulkhead
+	 */
+	public void execute(HttpServletRequest request, HttpServletResponse response, RequestHandler handler)
+	        throws ServletException, IOException {
+		String path = StringUtils.substringAfter(request.getRequestURI(), SERVLET_NAME);
+		RequestBulkhead bulkhead = RequestBulkhead.forRequest(request.getMethod(), path);
+		
+		Admission admitted = admission.admit(getUser(request), bulkhead);
+		if (!admitted.isAdmitted()) {
+			log.debug("Rejected a FHIR request as its user is over their " + bulkhead + " limits");
+			response.setHeader(HEADER_RETRY_AFTER, Long.toString(admitted.getRetryAfterSeconds()));
+			response.sendError(SC_TOO_MANY_REQUESTS, "Too many requests, please retry later");
+			return;
+		}
+		
+		if (isFileDownload(path)) {
+			// the container only sends a file itself after a request it processed on its own thread, see
+			// FileDownloadWriter, and a download only waits on the network, so it is not dispatched to the bulkhead
+			try {
+				handler.handle(request, response);
+			}
+			finally {
+				admitted.release();
+			}
+			
+			return;
+		}
+		
+		refreshSettings();
+		try {
+			if (request.isAsyncSupported()) {
+				dispatch(bulkhead, handler, request, response, admitted);
+			} else {
+				executeInline(bulkhead, handler, request, response, admitted);
+			}
+		}
+		catch (IOException | ServletException | RuntimeException e) {
+			admitted.release();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Queues an admitted request on the executor of its bulkhead and releases the container's thread; the admission is
+	 * released once the request has been processed, rejected or timed out
+	 */
+	private void dispatch(RequestBulkhead bulkhead, RequestHandler handler, HttpServletRequest request,
+	        HttpServletResponse response, Admission admitted) throws IOException {
+		UserContext userContext = Context.getUserContext();
+		AsyncContext asyncContext = request.startAsync(request, response);
+		asyncContext.setTimeout(requestTimeout);
+		
+		// the request is completed either by the thread which ran it or by the container once it has timed out; the
+		// listener is added before the request is queued, as a request which is done at once has completed its context
+		AtomicBoolean completed = new AtomicBoolean();
+		AtomicReference<Future<?>> future = new AtomicReference<>();
+		asyncContext.addListener(new AsyncListener() {
+			
+			@Override
+			public void onTimeout(AsyncEvent event) {
+				if (completed.compareAndSet(false, true)) {
+					log.warn("Interrupted FHIR request " + request.getRequestURI() + " as it took longer than "
+					        + requestTimeout + " ms");
+					// a request still queued is never run, so its admission is released here
+					Future<?> queued = future.get();
+					if (queued != null) {
+						queued.cancel(true);
+					}
+					
+					admitted.release();
+					sendError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+					asyncContext.complete();
+				}
+			}
+			
+			@Override
+			public void onComplete(AsyncEvent event) {
+			}
+			
+			@Override
+			public void onError(AsyncEvent event) {
+			}
+			
+			@Override
+			public void onStartAsync(AsyncEvent event) {
+			}
+		});
+		
+		try {
+			future.set(executors.get(bulkhead).submit(() -> {
+				try {
+					inSession(userContext, handler, request, response);
+				}
+				catch (ServletException | IOException | RuntimeException e) {
+					log.error("Could not process FHIR request " + request.getRequestURI(), e);
+					sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+				}
+				finally {
+					admitted.release();
+					if (completed.compareAndSet(false, true)) {
+						asyncContext.complete();
+					}
+				}
+			}));
+		}
+		catch (RejectedExecutionException e) {
+			admitted.release();
+			if (completed.compareAndSet(false, true)) {
+				reject(bulkhead, response);
+				asyncContext.complete();
+			}
+		}
+	}
+	
+	/**
+	 * Runs an admitted request on the container's thread, if its bulkhead has a thread to spare
+	 */
+	private void executeInline(RequestBulkhead bulkhead, RequestHandler handler, HttpServletRequest request,
+	        HttpServletResponse response, Admission admitted) throws ServletException, IOException {
+		AtomicInteger running = inlineRequests.get(bulkhead);
+		try {
+			if (running.incrementAndGet() > executors.get(bulkhead).getMaximumPoolSize()) {
+				reject(bulkhead, response);
+				return;
+			}
+			
+			handler.handle(request, response);
+		}
+		finally {
+			running.decrementAndGet();
+			admitted.release();
+		}
+	}
+	
+	/**
+	 * Reads the bulkhead and timeout settings, and creates the executors the first time they are read
+	 */
+	private void refreshSettings() {
+		long now = System.currentTimeMillis();
+		if (now - settingsLoadedAt < SETTINGS_REFRESH_INTERVAL) {
+			return;
+		}
+		
+		synchronized (this) {
+			if (now - settingsLoadedAt < SETTINGS_REFRESH_INTERVAL) {
+				return;
+			}
+			
+			Map<RequestBulkhead, ThreadPoolExecutor> current = executors.isEmpty()
+			        ? new EnumMap<>(RequestBulkhead.class) : executors;
+			for (RequestBulkhead bulkhead : RequestBulkhead.values()) {
+				int threads = Math.max(1,
+				    globalPropertyService.getGlobalProperty(bulkhead.getThreadsProperty(), bulkhead.getThreads()));
+				ThreadPoolExecutor executor = current.get(bulkhead);
+				if (executor == null) {
+					int queueSize = Math.max(1, globalPropertyService.getGlobalProperty(bulkhead.getQueueSizeProperty(),
+					    bulkhead.getQueueSize()));
+					current.put(bulkhead, createExecutor(bulkhead, threads, queueSize));
+				} else if (threads > executor.getMaximumPoolSize()) {
+					executor.setMaximumPoolSize(threads);
+					executor.setCorePoolSize(threads);
+				} else if (threads < executor.getMaximumPoolSize()) {
+					executor.setCorePoolSize(threads);
+					executor.setMaximumPoolSize(threads);
+				}
+			}
+			
+			executors = current;
+			int requestTimeoutSeconds = globalPropertyService
+			        .getGlobalProperty(FhirConstants.REQUEST_TIMEOUT_SECONDS_PROPERTY, DEFAULT_REQUEST_TIMEOUT_SECONDS);
+			requestTimeout = TimeUnit.SECONDS.toMillis(Math.max(1, requestTimeoutSeconds));
+			settingsLoadedAt = now;
+		}
+	}
+	
+	private static ThreadPoolExecutor createExecutor(RequestBulkhead bulkhead, int threads, int queueSize) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+		        new ArrayBlockingQueue<>(queueSize), new ThreadFactoryBuilder()
+		                .setNameFormat("fhir2-" + bulkhead.name().toLowerCase() + "-%d").setDaemon(true).build());
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+	
+	/**
+	 * @return the uuid of the authenticated user, or the address of the client for requests which need no user
+	 */
+	private static String getUser(HttpServletRequest request) {
+		User user = Context.getAuthenticatedUser();
+		return user != null ? user.getUuid() : "address:" + request.getRemoteAddr();
+	}
+	
+	private static boolean isFileDownload(String path) {
+		return StringUtils.removeEnd(path, "/").endsWith("/" + BulkExportProvider.EXPORT_FILE);
+	}
+	
+	private static void inSession(UserContext userContext, RequestHandler handler, HttpServletRequest request,
+	        HttpServletResponse response) throws ServletException, IOException {
+		Context.openSession();
+		try {
+			Context.setUserContext(userContext);
+			handler.handle(request, response);
+		}
+		finally {
+			Context.closeSession();
+		}
+	}
+	
+	private static void reject(RequestBulkhead bulkhead, HttpServletResponse response) throws IOException {
+		log.warn("Rejected a FHIR request as the " + bulkhead + " bulkhead is full");
+		response.setHeader(HEADER_RETRY_AFTER, RETRY_AFTER_SECONDS);
+		response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The server is busy, please retry later");
+	}
+	
+	private static void sendError(HttpServletResponse response, int status) {
+		if (!response.isCommitted()) {
+			try {
+				response.sendError(status);
+			}
+			catch (IOException e) {
+				log.debug("Could not send error", e);
+			}
+		}
+	}
+	
+	/**
+	 * Processes a request, i.e. the servlet's own processing
+	 */
+	public interface RequestHandler {
+		
+		void handle(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException;
+	}
+}
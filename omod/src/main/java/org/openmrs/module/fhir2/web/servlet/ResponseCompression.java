@@ -0,0 +1,106 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.web.servlet;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+
+import lombok.AccessLevel;
+import lombok.Setter;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.api.FhirGlobalPropertyService;
+import org.openmrs.module.fhir2.util.ContentEncoding;
+import org.springframework.stereotype.Component;
+
+/**
+ * Negotiates the compression of FHIR responses. Responses to clients which accept gzip are compressed as they are
+ * written, unless they are smaller than the {@link FhirConstants#COMPRESSION_THRESHOLD_PROPERTY} global property, see
+ * {@link CompressingResponse}. Responses which set their own {@code Content-Encoding}, such as the gzipped copies of
+ * export files, or their {@code Content-Length}, such as file downloads, are passed through as they are.
+ * <p>
+ * Only gzip is offered, as the JDK has no encoder for brotli or zstd.
+ */
+@Component
+@Setter(AccessLevel.PACKAGE)
+public class ResponseCompression {
+	
+	private static final long SETTINGS_REFRESH_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+	
+	private static final int DEFAULT_THRESHOLD = 1024;
+	
+	@Inject
+	private FhirGlobalPropertyService globalPropertyService;
+	
+	private volatile int threshold = DEFAULT_THRESHOLD;
+	
+	private volatile long settingsLoadedAt;
+	
+	/**
+	 * @param request a request to the FHIR servlet
+	 * @return the request to pass on, from which the {@code Accept-Encoding} header has been removed so that HAPI does
+	 *         not compress the response too
+	 */
+	public HttpServletRequest negotiate(HttpServletRequest request) {
+		String acceptEncoding = request.getHeader(ContentEncoding.HEADER_ACCEPT_ENCODING);
+		if (acceptEncoding == null) {
+			return request;
+		}
+		
+		request.setAttribute(ContentEncoding.ACCEPT_ENCODING_ATTRIBUTE, acceptEncoding);
+		return new HttpServletRequestWrapper(request) {
+			
+			@Override
+			public String getHeader(String name) {
+				return isAcceptEncoding(name) ? null : super.getHeader(name);
+			}
+			
+			@Override
+			public Enumeration<String> getHeaders(String name) {
+				return isAcceptEncoding(name) ? Collections.emptyEnumeration() : super.getHeaders(name);
+			}
+			
+			private boolean isAcceptEncoding(String name) {
+				return ContentEncoding.HEADER_ACCEPT_ENCODING.equalsIgnoreCase(name);
+			}
+		};
+	}
+	
+	/**
+	 * @param request a request to the FHIR servlet
+	 * @param response the response to the request
+	 * @return the response to write to, which must be finished once the request has been handled, or null if the
+	 *         response is not to be compressed
+	 */
+	public CompressingResponse compress(HttpServletRequest request, HttpServletResponse response) {
+		int currentThreshold = getThreshold();
+		if (currentThreshold < 0 || !ContentEncoding.acceptsGzip(request)) {
+			return null;
+		}
+		
+		return new CompressingResponse(response, currentThreshold);
+	}
+	
+	private int getThreshold() {
+		long now = System.currentTimeMillis();
+		if (now - settingsLoadedAt >= SETTINGS_REFRESH_INTERVAL) {
+			threshold = globalPropertyService.getGlobalProperty(FhirConstants.COMPRESSION_THRESHOLD_PROPERTY,
+			    DEFAULT_THRESHOLD);
+			settingsLoadedAt = now;
+		}
+		
+		return threshold;
+	}
+}
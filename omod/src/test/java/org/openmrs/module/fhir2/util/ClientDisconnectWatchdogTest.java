@@ -0,0 +1,96 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.util;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Function;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.fhir2.api.search.SearchCancellation;
+
+public class ClientDisconnectWatchdogTest {
+	
+	private static final long HEARTBEAT_INTERVAL = 50;
+	
+	private static final long DISCONNECT_TIMEOUT = 5000;
+	
+	private static final String SERVER_BASE = "http://localhost/openmrs/ws/fhir2";
+	
+	private static final FhirContext fhirContext = FhirContext.forR4();
+	
+	private ClientDisconnectWatchdog watchdog;
+	
+	@Before
+	public void setup() {
+		watchdog = new ClientDisconnectWatchdog();
+		watchdog.setHeartbeatInterval(HEARTBEAT_INTERVAL);
+	}
+	
+	@After
+	public void tearDown() {
+		watchdog.shutdown();
+	}
+	
+	@Test
+	public void shouldCancelSearchWhenClientDisconnects() throws Exception {
+		assertCancelledOnDisconnect(out -> new OutputStreamWriter(out, StandardCharsets.UTF_8));
+	}
+	
+	@Test
+	public void shouldCancelSearchWhenClientDisconnectsFromPrintWriter() throws Exception {
+		// a servlet response's own writer is a PrintWriter, which does not throw when the client has gone away
+		assertCancelledOnDisconnect(out -> new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+	}
+	
+	private void assertCancelledOnDisconnect(Function<OutputStream, Writer> responseWriter) throws Exception {
+		try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		        Socket client = new Socket(server.getInetAddress(), server.getLocalPort());
+		        Socket connection = server.accept()) {
+			StreamingBundleWriter bundleWriter = new StreamingBundleWriter(fhirContext,
+			        responseWriter.apply(connection.getOutputStream()), SERVER_BASE);
+			SearchCancellation cancellation = new SearchCancellation();
+			
+			ScheduledFuture<?> heartbeats = watchdog.watch(bundleWriter, cancellation);
+			try {
+				Thread.sleep(HEARTBEAT_INTERVAL * 4);
+				assertThat(cancellation.isCancelled(), is(false));
+				
+				client.close();
+				assertThat(awaitCancellation(cancellation), is(true));
+			}
+			finally {
+				heartbeats.cancel(false);
+			}
+		}
+	}
+	
+	private static boolean awaitCancellation(SearchCancellation cancellation) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + DISCONNECT_TIMEOUT;
+		while (!cancellation.isCancelled() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(HEARTBEAT_INTERVAL);
+		}
+		
+		return cancellation.isCancelled();
+	}
+}
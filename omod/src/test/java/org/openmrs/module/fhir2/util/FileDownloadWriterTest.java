@@ -0,0 +1,229 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.util;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+public class FileDownloadWriterTest {
+	
+	private static final String CONTENT_TYPE = "application/fhir+ndjson";
+	
+	private static final int LENGTH = 100;
+	
+	private static final long LAST_MODIFIED = 1500000000000L;
+	
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+	
+	private byte[] content;
+	
+	private FileDownloadWriter writer;
+	
+	@Before
+	public void setup() throws IOException {
+		content = new byte[LENGTH];
+		for (int i = 0; i < LENGTH; i++) {
+			content[i] = (byte) i;
+		}
+		
+		File file = temporaryFolder.newFile("Patient.ndjson");
+		Files.write(file.toPath(), content);
+		file.setLastModified(LAST_MODIFIED);
+		writer = new FileDownloadWriter(file, new File(temporaryFolder.getRoot(), "Patient.ndjson.gz"), CONTENT_TYPE);
+	}
+	
+	@Test
+	public void parseRange_shouldParseAClosedRange() {
+		assertRange(FileDownloadWriter.parseRange("bytes=10-19", LENGTH), 10, 19);
+		assertRange(FileDownloadWriter.parseRange("bytes=90-1000", LENGTH), 90, LENGTH - 1);
+	}
+	
+	@Test
+	public void parseRange_shouldParseAnOpenRange() {
+		assertRange(FileDownloadWriter.parseRange("bytes=10-", LENGTH), 10, LENGTH - 1);
+	}
+	
+	@Test
+	public void parseRange_shouldParseASuffixRange() {
+		assertRange(FileDownloadWriter.parseRange("bytes=-10", LENGTH), LENGTH - 10, LENGTH - 1);
+		assertRange(FileDownloadWriter.parseRange("bytes=-1000", LENGTH), 0, LENGTH - 1);
+	}
+	
+	@Test
+	public void parseRange_shouldRejectARangeBeyondTheEndOfTheFile() {
+		assertNotSatisfiable(FileDownloadWriter.parseRange("bytes=100-", LENGTH));
+		assertNotSatisfiable(FileDownloadWriter.parseRange("bytes=150-200", LENGTH));
+		assertNotSatisfiable(FileDownloadWriter.parseRange("bytes=-0", LENGTH));
+		assertNotSatisfiable(FileDownloadWriter.parseRange("bytes=-10", 0));
+	}
+	
+	@Test
+	public void parseRange_shouldIgnoreMalformedAndMultipleRanges() {
+		assertThat(FileDownloadWriter.parseRange("bytes=0-9,20-29", LENGTH), nullValue());
+		assertThat(FileDownloadWriter.parseRange("bytes=20-10", LENGTH), nullValue());
+		assertThat(FileDownloadWriter.parseRange("bytes=ten-", LENGTH), nullValue());
+		assertThat(FileDownloadWriter.parseRange("bytes=10", LENGTH), nullValue());
+		assertThat(FileDownloadWriter.parseRange("items=0-9", LENGTH), nullValue());
+	}
+	
+	@Test
+	public void write_shouldSendTheRequestedRange() throws IOException {
+		HttpServletRequest request = request("bytes=10-19");
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		ByteArrayOutputStream body = capture(response);
+		
+		writer.write(request, response);
+		
+		verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		verify(response).setHeader("Content-Range", "bytes 10-19/" + LENGTH);
+		verify(response).setHeader("Content-Length", "10");
+		assertThat(body.toByteArray(), equalTo(Arrays.copyOfRange(content, 10, 20)));
+	}
+	
+	@Test
+	public void write_shouldAnswerARangeBeyondTheEndOfTheFileWith416() throws IOException {
+		HttpServletRequest request = request("bytes=" + LENGTH + "-");
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		
+		writer.write(request, response);
+		
+		verify(response).setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+		verify(response).setHeader("Content-Range", "bytes */" + LENGTH);
+		verify(response, never()).getOutputStream();
+	}
+	
+	@Test
+	public void write_shouldSendTheRangeIfTheETagMatches() throws IOException {
+		String etag = getETag();
+		HttpServletRequest request = request("bytes=10-19");
+		when(request.getHeader("If-Range")).thenReturn(etag);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		ByteArrayOutputStream body = capture(response);
+		
+		writer.write(request, response);
+		
+		verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		assertThat(body.size(), equalTo(10));
+	}
+	
+	@Test
+	public void write_shouldSendTheWholeFileIfTheETagDoesNotMatch() throws IOException {
+		String etag = getETag();
+		assertWholeFileSentFor("\"0-0\"");
+		assertWholeFileSentFor("W/" + etag);
+	}
+	
+	@Test
+	public void write_shouldSendTheRangeIfTheFileIsUnmodifiedSinceTheDate() throws IOException {
+		HttpServletRequest request = request("bytes=10-19");
+		when(request.getHeader("If-Range")).thenReturn("Fri, 14 Jul 2017 02:40:00 GMT");
+		when(request.getDateHeader("If-Range")).thenReturn(LAST_MODIFIED);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		ByteArrayOutputStream body = capture(response);
+		
+		writer.write(request, response);
+		
+		verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		assertThat(body.size(), equalTo(10));
+	}
+	
+	@Test
+	public void write_shouldSendTheWholeFileIfTheFileWasModifiedSinceTheDate() throws IOException {
+		HttpServletRequest request = request("bytes=10-19");
+		when(request.getHeader("If-Range")).thenReturn("Fri, 14 Jul 2017 02:30:00 GMT");
+		when(request.getDateHeader("If-Range")).thenReturn(LAST_MODIFIED - 600000);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		ByteArrayOutputStream body = capture(response);
+		
+		writer.write(request, response);
+		
+		verify(response).setStatus(HttpServletResponse.SC_OK);
+		assertThat(body.toByteArray(), equalTo(content));
+	}
+	
+	private void assertWholeFileSentFor(String ifRange) throws IOException {
+		HttpServletRequest request = request("bytes=10-19");
+		when(request.getHeader("If-Range")).thenReturn(ifRange);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		ByteArrayOutputStream body = capture(response);
+		
+		writer.write(request, response);
+		
+		verify(response).setStatus(HttpServletResponse.SC_OK);
+		verify(response, never()).setHeader(eq("Content-Range"), anyString());
+		assertThat(body.toByteArray(), equalTo(content));
+	}
+	
+	private String getETag() throws IOException {
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		capture(response);
+		writer.write(request(null), response);
+		
+		ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+		verify(response).setHeader(eq("ETag"), etag.capture());
+		return etag.getValue();
+	}
+	
+	private static HttpServletRequest request(String range) {
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getHeader("Range")).thenReturn(range);
+		return request;
+	}
+	
+	private static ByteArrayOutputStream capture(HttpServletResponse response) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+			
+			@Override
+			public void write(int b) {
+				body.write(b);
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) {
+				body.write(b, off, len);
+			}
+		});
+		
+		return body;
+	}
+	
+	private static void assertRange(long[] range, long start, long end) {
+		assertThat(range, equalTo(new long[] { start, end }));
+	}
+	
+	private static void assertNotSatisfiable(long[] range) {
+		assertThat(range.length, equalTo(0));
+	}
+}
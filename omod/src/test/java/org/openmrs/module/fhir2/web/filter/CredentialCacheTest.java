@@ -0,0 +1,136 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.web.filter;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Ticker;
+import org.hibernate.action.spi.AfterTransactionCompletionProcess;
+import org.hibernate.engine.spi.ActionQueue;
+import org.hibernate.event.spi.EventSource;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.openmrs.User;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.api.db.LoginCredential;
+import org.openmrs.module.fhir2.api.auth.AuthenticatedUserContext;
+
+public class CredentialCacheTest {
+	
+	private static final String CREDENTIALS = "YWRtaW46dGVzdA==";
+	
+	private static final String OTHER_CREDENTIALS = "b3RoZXI6dGVzdA==";
+	
+	private static final Integer USER_ID = 1;
+	
+	private static final Integer OTHER_USER_ID = 2;
+	
+	private final AtomicLong nanos = new AtomicLong();
+	
+	private CredentialCache credentialCache;
+	
+	private User user;
+	
+	@Before
+	public void setup() {
+		credentialCache = new CredentialCache(new Ticker() {
+			
+			@Override
+			public long read() {
+				return nanos.get();
+			}
+		});
+		
+		user = new User(USER_ID);
+		UserContext userContext = new AuthenticatedUserContext(user);
+		userContext.setLocale(Locale.FRENCH);
+		credentialCache.put(CREDENTIALS, userContext);
+		credentialCache.put(OTHER_CREDENTIALS, new AuthenticatedUserContext(new User(OTHER_USER_ID)));
+	}
+	
+	@Test
+	public void get_shouldReturnANewContextForTheCachedUser() {
+		UserContext first = credentialCache.get(CREDENTIALS);
+		UserContext second = credentialCache.get(CREDENTIALS);
+		
+		assertThat(first, notNullValue());
+		assertThat(first.getAuthenticatedUser(), sameInstance(user));
+		assertThat(first.getLocale(), equalTo(Locale.FRENCH));
+		assertThat(second, not(sameInstance(first)));
+	}
+	
+	@Test
+	public void get_shouldNotReturnUserForOtherCredentials() {
+		assertThat(credentialCache.get("bm9ib2R5OnRlc3Q="), nullValue());
+	}
+	
+	@Test
+	public void get_shouldNotReturnUserOnceExpired() {
+		nanos.addAndGet(TimeUnit.SECONDS.toNanos(119));
+		assertThat(credentialCache.get(CREDENTIALS), notNullValue());
+		
+		nanos.addAndGet(TimeUnit.SECONDS.toNanos(2));
+		assertThat(credentialCache.get(CREDENTIALS), nullValue());
+	}
+	
+	@Test
+	public void invalidate_shouldOnlyForgetTheGivenUser() {
+		credentialCache.invalidate(USER_ID);
+		
+		assertThat(credentialCache.get(CREDENTIALS), nullValue());
+		assertThat(credentialCache.get(OTHER_CREDENTIALS), notNullValue());
+	}
+	
+	@Test
+	public void onPostUpdate_shouldForgetAChangedUserNowAndOnceTheChangeCompletes() {
+		ActionQueue actionQueue = mock(ActionQueue.class);
+		EventSource session = mock(EventSource.class);
+		when(session.getActionQueue()).thenReturn(actionQueue);
+		
+		credentialCache.onPostUpdate(new PostUpdateEvent(user, USER_ID, null, null, null, null, session));
+		assertThat(credentialCache.get(CREDENTIALS), nullValue());
+		
+		// the old credentials are authenticated again before the change commits
+		credentialCache.put(CREDENTIALS, new AuthenticatedUserContext(user));
+		ArgumentCaptor<AfterTransactionCompletionProcess> process = ArgumentCaptor
+		        .forClass(AfterTransactionCompletionProcess.class);
+		verify(actionQueue).registerProcess(process.capture());
+		process.getValue().doAfterTransactionCompletion(true, null);
+		
+		assertThat(credentialCache.get(CREDENTIALS), nullValue());
+		assertThat(credentialCache.get(OTHER_CREDENTIALS), notNullValue());
+	}
+	
+	@Test
+	public void onPostUpdate_shouldForgetAUserWhosePasswordChanged() {
+		EventSource session = mock(EventSource.class);
+		when(session.getActionQueue()).thenReturn(mock(ActionQueue.class));
+		LoginCredential credential = new LoginCredential();
+		credential.setUserId(USER_ID);
+		
+		credentialCache.onPostUpdate(new PostUpdateEvent(credential, USER_ID, null, null, null, null, session));
+		
+		assertThat(credentialCache.get(CREDENTIALS), nullValue());
+	}
+}
@@ -0,0 +1,250 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.web.servlet;
+
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.openmrs.module.fhir2.util.ContentEncoding;
+
+public class CapabilityStatementCacheTest {
+	
+	private static final String SERVER_BASE = "http://localhost:8080/openmrs/ws/fhir2";
+	
+	private static final String PUBLISHER = "OpenMRS";
+	
+	private static FhirContext fhirContext;
+	
+	private static CapabilityStatementCache.EncodedStatement statement;
+	
+	@BeforeClass
+	public static void setupStatement() throws IOException {
+		fhirContext = FhirContext.forR4();
+		
+		CapabilityStatement capabilityStatement = new CapabilityStatement();
+		capabilityStatement.setStatus(Enumerations.PublicationStatus.ACTIVE);
+		capabilityStatement.setPublisher(PUBLISHER);
+		
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		when(response.getStatus()).thenReturn(HttpServletResponse.SC_OK);
+		when(response.getContentType()).thenReturn("application/fhir+json;charset=UTF-8");
+		when(response.getCharacterEncoding()).thenReturn(StandardCharsets.UTF_8.name());
+		CapabilityStatementCache.CapturedResponse captured = new CapabilityStatementCache.CapturedResponse(response);
+		captured.getWriter().write(fhirContext.newJsonParser().encodeResourceToString(capabilityStatement));
+		
+		statement = CapabilityStatementCache.EncodedStatement.from(fhirContext, captured);
+	}
+	
+	@Test
+	public void negotiate_shouldServeJsonByDefault() {
+		assertThat(CapabilityStatementCache.negotiate(request(null, null)), equalTo(EncodingEnum.JSON));
+		assertThat(CapabilityStatementCache.negotiate(request(null, "*/*")), equalTo(EncodingEnum.JSON));
+	}
+	
+	@Test
+	public void negotiate_shouldServeTheFormatRequested() {
+		assertThat(CapabilityStatementCache.negotiate(request("xml", null)), equalTo(EncodingEnum.XML));
+		assertThat(CapabilityStatementCache.negotiate(request("json", "application/fhir+xml")),
+		    equalTo(EncodingEnum.JSON));
+		assertThat(CapabilityStatementCache.negotiate(request(null, "text/html, application/fhir+xml")),
+		    equalTo(EncodingEnum.XML));
+	}
+	
+	@Test
+	public void negotiate_shouldLeaveOtherRequestsToHapi() {
+		HttpServletRequest withOtherParameter = request(null, null);
+		when(withOtherParameter.getParameterMap())
+		        .thenReturn(Collections.singletonMap("_summary", new String[] { "true" }));
+		
+		assertThat(CapabilityStatementCache.negotiate(withOtherParameter), nullValue());
+		assertThat(CapabilityStatementCache.negotiate(request(null, "application/fhir+xml;q=0.9")), nullValue());
+		assertThat(CapabilityStatementCache.negotiate(request(null, "text/html")), nullValue());
+	}
+	
+	@Test
+	public void write_shouldServeTheStatementWithAnETag() throws IOException {
+		assertThat(statement, notNullValue());
+		HttpServletResponse response = response();
+		ByteArrayOutputStream body = capture(response);
+		
+		statement.write(request(null, null), response, EncodingEnum.JSON);
+		
+		verify(response).setStatus(HttpServletResponse.SC_OK);
+		verify(response).setHeader(eq("ETag"), anyString());
+		verify(response, never()).setHeader(eq(ContentEncoding.HEADER_CONTENT_ENCODING), anyString());
+		CapabilityStatement served = fhirContext.newJsonParser().parseResource(CapabilityStatement.class,
+		    new String(body.toByteArray(), StandardCharsets.UTF_8));
+		assertThat(served.getPublisher(), equalTo(PUBLISHER));
+	}
+	
+	@Test
+	public void write_shouldAnswerARevalidationWithNotModified() throws IOException {
+		String etag = getETag(request(null, null), EncodingEnum.JSON);
+		
+		HttpServletRequest revalidation = request(null, null);
+		when(revalidation.getHeader("If-None-Match")).thenReturn(etag);
+		HttpServletResponse response = response();
+		statement.write(revalidation, response, EncodingEnum.JSON);
+		
+		verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		verify(response).setHeader("ETag", etag);
+		verify(response, never()).getOutputStream();
+	}
+	
+	@Test
+	public void write_shouldServeEachEncodingWithItsOwnETag() throws IOException {
+		String jsonETag = getETag(request(null, null), EncodingEnum.JSON);
+		String xmlETag = getETag(request(null, null), EncodingEnum.XML);
+		
+		assertThat(xmlETag, not(equalTo(jsonETag)));
+		
+		HttpServletRequest revalidation = request(null, null);
+		when(revalidation.getHeader("If-None-Match")).thenReturn(jsonETag);
+		HttpServletResponse response = response();
+		capture(response);
+		statement.write(revalidation, response, EncodingEnum.XML);
+		
+		verify(response).setStatus(HttpServletResponse.SC_OK);
+	}
+	
+	@Test
+	public void write_shouldServeTheGzippedStatementToClientsWhichAcceptIt() throws IOException {
+		HttpServletRequest request = request(null, null);
+		when(request.getHeader(ContentEncoding.HEADER_ACCEPT_ENCODING)).thenReturn("gzip, deflate");
+		HttpServletResponse response = response();
+		ByteArrayOutputStream body = capture(response);
+		
+		statement.write(request, response, EncodingEnum.JSON);
+		
+		verify(response).setHeader(ContentEncoding.HEADER_CONTENT_ENCODING, ContentEncoding.GZIP);
+		verify(response).setContentLength(body.size());
+		CapabilityStatement served = fhirContext.newJsonParser().parseResource(CapabilityStatement.class,
+		    gunzip(body.toByteArray()));
+		assertThat(served.getPublisher(), equalTo(PUBLISHER));
+		
+		String gzippedETag = getETag(request, EncodingEnum.JSON);
+		assertThat(gzippedETag, endsWith("-gz\""));
+		assertThat(gzippedETag, not(equalTo(getETag(request(null, null), EncodingEnum.JSON))));
+	}
+	
+	@Test
+	public void put_shouldKeepAStatementPerServerBase() {
+		CapabilityStatementCache cache = new CapabilityStatementCache();
+		cache.put(SERVER_BASE, cache.getGeneration(), statement);
+		
+		assertThat(cache.get(SERVER_BASE), sameInstance(statement));
+		assertThat(cache.get("http://other.example.com/openmrs/ws/fhir2"), nullValue());
+	}
+	
+	@Test
+	public void invalidate_shouldDiscardTheStatements() {
+		CapabilityStatementCache cache = new CapabilityStatementCache();
+		cache.put(SERVER_BASE, cache.getGeneration(), statement);
+		
+		cache.invalidate();
+		
+		assertThat(cache.get(SERVER_BASE), nullValue());
+	}
+	
+	@Test
+	public void put_shouldDiscardAStatementBuiltBeforeAnInvalidation() {
+		CapabilityStatementCache cache = new CapabilityStatementCache();
+		long generation = cache.getGeneration();
+		
+		cache.invalidate();
+		cache.put(SERVER_BASE, generation, statement);
+		
+		assertThat(cache.get(SERVER_BASE), nullValue());
+	}
+	
+	private static String getETag(HttpServletRequest request, EncodingEnum encoding) throws IOException {
+		HttpServletResponse response = response();
+		capture(response);
+		statement.write(request, response, encoding);
+		
+		ArgumentCaptor<String> etag = ArgumentCaptor.forClass(String.class);
+		verify(response).setHeader(eq("ETag"), etag.capture());
+		return etag.getValue();
+	}
+	
+	private static HttpServletRequest request(String format, String accept) {
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		Map<String, String[]> parameters = new HashMap<>();
+		if (format != null) {
+			parameters.put("_format", new String[] { format });
+		}
+		
+		when(request.getParameterMap()).thenReturn(parameters);
+		when(request.getHeader("Accept")).thenReturn(accept);
+		return request;
+	}
+	
+	private static HttpServletResponse response() {
+		return mock(HttpServletResponse.class);
+	}
+	
+	private static ByteArrayOutputStream capture(HttpServletResponse response) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+			
+			@Override
+			public void write(int b) {
+				body.write(b);
+			}
+		});
+		
+		return body;
+	}
+	
+	private static String gunzip(byte[] compressed) throws IOException {
+		ByteArrayOutputStream uncompressed = new ByteArrayOutputStream();
+		try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				uncompressed.write(buffer, 0, read);
+			}
+		}
+		
+		return new String(uncompressed.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.web.servlet;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.fhir2.util.ContentEncoding;
+
+public class CompressingResponseTest {
+	
+	private static final int THRESHOLD = 1024;
+	
+	private static final String SMALL_CONTENT = "{\"resourceType\":\"Patient\"}";
+	
+	private static final String LARGE_CONTENT = "{\"resourceType\":\"Bundle\",\"entry\":["
+	        + StringUtils.repeat("{\"resource\":{\"resourceType\":\"Patient\"}}", ",", 100) + "]}";
+	
+	private final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+	
+	private HttpServletResponse response;
+	
+	private CompressingResponse compressingResponse;
+	
+	@Before
+	public void setup() throws IOException {
+		response = mock(HttpServletResponse.class);
+		when(response.getContentType()).thenReturn("application/fhir+json;charset=UTF-8");
+		when(response.getCharacterEncoding()).thenReturn(StandardCharsets.UTF_8.name());
+		when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+			
+			@Override
+			public void write(int b) {
+				sent.write(b);
+			}
+		});
+		
+		compressingResponse = new CompressingResponse(response, THRESHOLD);
+	}
+	
+	@Test
+	public void shouldSendASmallResponseUncompressedWithItsLength() throws IOException {
+		compressingResponse.getOutputStream().write(SMALL_CONTENT.getBytes(StandardCharsets.UTF_8));
+		
+		// nothing is sent until the response is finished
+		assertThat(sent.size(), equalTo(0));
+		
+		compressingResponse.finish();
+		
+		assertThat(sent(), equalTo(SMALL_CONTENT));
+		verify(response).setContentLength(SMALL_CONTENT.length());
+		verify(response, never()).setHeader(eq(ContentEncoding.HEADER_CONTENT_ENCODING), anyString());
+	}
+	
+	@Test
+	public void shouldSendASmallResponseWrittenToTheWriterUncompressed() throws IOException {
+		PrintWriter writer = compressingResponse.getWriter();
+		writer.write(SMALL_CONTENT);
+		compressingResponse.finish();
+		
+		assertThat(sent(), equalTo(SMALL_CONTENT));
+		verify(response).setContentLength(SMALL_CONTENT.length());
+		verify(response, never()).setHeader(eq(ContentEncoding.HEADER_CONTENT_ENCODING), anyString());
+	}
+	
+	@Test
+	public void shouldGzipALargeResponse() throws IOException {
+		compressingResponse.getWriter().write(LARGE_CONTENT);
+		compressingResponse.finish();
+		
+		assertThat(gunzip(sent.toByteArray()), equalTo(LARGE_CONTENT));
+		verify(response).setHeader(ContentEncoding.HEADER_CONTENT_ENCODING, ContentEncoding.GZIP);
+		verify(response).addHeader("Vary", ContentEncoding.HEADER_ACCEPT_ENCODING);
+		verify(response, never()).setContentLength(anyInt());
+	}
+	
+	@Test
+	public void shouldCompressAndSendAResponseFlushedPartWayThrough() throws IOException {
+		ServletOutputStream outputStream = compressingResponse.getOutputStream();
+		outputStream.write(SMALL_CONTENT.getBytes(StandardCharsets.UTF_8));
+		outputStream.flush();
+		
+		assertThat(sent.size(), greaterThan(0));
+		verify(response).setHeader(ContentEncoding.HEADER_CONTENT_ENCODING, ContentEncoding.GZIP);
+		
+		outputStream.write(SMALL_CONTENT.getBytes(StandardCharsets.UTF_8));
+		compressingResponse.finish();
+		
+		assertThat(gunzip(sent.toByteArray()), equalTo(SMALL_CONTENT + SMALL_CONTENT));
+	}
+	
+	@Test
+	public void shouldPassThroughAResponseWhichSetsItsContentLength() throws IOException {
+		byte[] content = LARGE_CONTENT.getBytes(StandardCharsets.UTF_8);
+		compressingResponse.setContentLength(content.length);
+		compressingResponse.getOutputStream().write(content);
+		compressingResponse.finish();
+		
+		assertThat(sent(), equalTo(LARGE_CONTENT));
+		verify(response).setContentLength(content.length);
+		verify(response, never()).setHeader(eq(ContentEncoding.HEADER_CONTENT_ENCODING), anyString());
+		verify(response, never()).addHeader(eq("Vary"), anyString());
+	}
+	
+	@Test
+	public void shouldPassThroughAResponseWhichSetsItsContentEncoding() throws IOException {
+		compressingResponse.setHeader(ContentEncoding.HEADER_CONTENT_ENCODING, ContentEncoding.GZIP);
+		compressingResponse.getOutputStream().write(LARGE_CONTENT.getBytes(StandardCharsets.UTF_8));
+		compressingResponse.finish();
+		
+		assertThat(sent(), equalTo(LARGE_CONTENT));
+		verify(response).setHeader(ContentEncoding.HEADER_CONTENT_ENCODING, ContentEncoding.GZIP);
+		verify(response, never()).addHeader(eq("Vary"), anyString());
+		verify(response, never()).setContentLength(anyInt());
+	}
+	
+	private String sent() {
+		return new String(sent.toByteArray(), StandardCharsets.UTF_8);
+	}
+	
+	private static String gunzip(byte[] compressed) throws IOException {
+		ByteArrayOutputStream uncompressed = new ByteArrayOutputStream();
+		try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				uncompressed.write(buffer, 0, read);
+			}
+		}
+		
+		return new String(uncompressed.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
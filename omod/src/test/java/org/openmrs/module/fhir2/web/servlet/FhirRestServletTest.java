@@ -0,0 +1,60 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.web.servlet;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class FhirRestServletTest {
+	
+	private CapabilityStatementCache capabilityStatements;
+	
+	private FhirRestServlet servlet;
+	
+	@Before
+	public void setup() {
+		capabilityStatements = mock(CapabilityStatementCache.class);
+		servlet = new FhirRestServlet();
+		servlet.setCapabilityStatements(capabilityStatements);
+	}
+	
+	@Test
+	public void registerProviders_shouldInvalidateTheCapabilityStatement() {
+		servlet.registerProviders(Collections.singletonList(new Object()));
+		
+		verify(capabilityStatements).invalidate();
+	}
+	
+	@Test
+	public void unregisterProviders_shouldInvalidateTheCapabilityStatement() {
+		servlet.unregisterProviders(Collections.emptyList());
+		
+		verify(capabilityStatements).invalidate();
+	}
+	
+	@Test
+	public void setResourceProviders_shouldInvalidateTheCapabilityStatement() {
+		servlet.setResourceProviders(Collections.emptyList());
+		
+		verify(capabilityStatements).invalidate();
+	}
+	
+	@Test
+	public void setPlainProviders_shouldInvalidateTheCapabilityStatement() {
+		servlet.setPlainProviders(Collections.emptyList());
+		
+		verify(capabilityStatements).invalidate();
+	}
+}
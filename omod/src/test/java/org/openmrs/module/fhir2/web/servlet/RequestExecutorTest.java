@@ -0,0 +1,187 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.fhir2.web.servlet;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.api.db.ContextDAO;
+import org.openmrs.module.fhir2.FhirConstants;
+import org.openmrs.module.fhir2.api.FhirGlobalPropertyService;
+
+public class RequestExecutorTest {
+	
+	private static final String READ_URI = "/openmrs/ws/fhir2Servlet/Patient/123";
+	
+	private static final String BULK_URI = "/openmrs/ws/fhir2Servlet/Patient/$export";
+	
+	private static final int REQUEST_TIMEOUT_SECONDS = 60;
+	
+	private FhirGlobalPropertyService globalPropertyService;
+	
+	private RequestExecutor requestExecutor;
+	
+	@Before
+	public void setup() {
+		globalPropertyService = mock(FhirGlobalPropertyService.class);
+		when(globalPropertyService.getGlobalProperty(anyString(), anyInt()))
+		        .thenAnswer(invocation -> invocation.getArguments()[1]);
+		when(globalPropertyService.getGlobalProperty(eq(FhirConstants.REQUEST_TIMEOUT_SECONDS_PROPERTY), anyInt()))
+		        .thenReturn(REQUEST_TIMEOUT_SECONDS);
+		
+		requestExecutor = new RequestExecutor();
+		requestExecutor.setAdmission(new RequestAdmission());
+		requestExecutor.setGlobalPropertyService(globalPropertyService);
+		
+		new Context().setContextDAO(mock(ContextDAO.class));
+		Context.setUserContext(new UserContext());
+	}
+	
+	@After
+	public void tearDown() {
+		requestExecutor.stop();
+		Context.clearUserContext();
+		new Context().setContextDAO(null);
+	}
+	
+	@Test
+	public void execute_shouldRunARequestWithoutAsyncSupportOnTheCallingThread() throws Exception {
+		HttpServletRequest request = request(READ_URI, false);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		AtomicReference<Thread> handledBy = new AtomicReference<>();
+		
+		requestExecutor.execute(request, response, (req, resp) -> handledBy.set(Thread.currentThread()));
+		
+		assertThat(handledBy.get(), equalTo(Thread.currentThread()));
+		verify(response, never()).sendError(anyInt());
+		verify(response, never()).sendError(anyInt(), anyString());
+	}
+	
+	@Test
+	public void execute_shouldRejectARequestWithoutAsyncSupportWhenItsBulkheadHasNoThreadToSpare() throws Exception {
+		when(globalPropertyService.getGlobalProperty(eq(RequestBulkhead.READ.getThreadsProperty()), anyInt()))
+		        .thenReturn(1);
+		HttpServletResponse nestedResponse = mock(HttpServletResponse.class);
+		AtomicBoolean nestedHandled = new AtomicBoolean();
+		
+		requestExecutor.execute(request(READ_URI, false), mock(HttpServletResponse.class),
+		    (req, resp) -> requestExecutor.execute(request(READ_URI, false), nestedResponse,
+		        (nestedReq, nestedResp) -> nestedHandled.set(true)));
+		
+		assertThat(nestedHandled.get(), is(false));
+		verify(nestedResponse).sendError(eq(HttpServletResponse.SC_SERVICE_UNAVAILABLE), anyString());
+	}
+	
+	@Test
+	public void execute_shouldRejectRequestsOverTheRateOfTheUser() throws Exception {
+		for (int i = 0; i < RequestBulkhead.BULK.getBurstPerUser(); i++) {
+			HttpServletResponse response = mock(HttpServletResponse.class);
+			requestExecutor.execute(request(BULK_URI, false), response, (req, resp) -> {});
+			verify(response, never()).sendError(anyInt(), anyString());
+		}
+		
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		AtomicBoolean handled = new AtomicBoolean();
+		requestExecutor.execute(request(BULK_URI, false), response, (req, resp) -> handled.set(true));
+		
+		assertThat(handled.get(), is(false));
+		verify(response).setHeader(eq("Retry-After"), anyString());
+		verify(response).sendError(eq(429), anyString());
+	}
+	
+	@Test
+	public void execute_shouldRunAnAsyncRequestInItsBulkheadAndCompleteIt() throws Exception {
+		HttpServletRequest request = request(READ_URI, true);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		AsyncContext asyncContext = mock(AsyncContext.class);
+		when(request.startAsync(request, response)).thenReturn(asyncContext);
+		AtomicReference<Thread> handledBy = new AtomicReference<>();
+		
+		requestExecutor.execute(request, response, (req, resp) -> handledBy.set(Thread.currentThread()));
+		
+		verify(asyncContext, timeout(5000)).complete();
+		assertThat(handledBy.get(), not(equalTo(Thread.currentThread())));
+		assertThat(handledBy.get().getName(), startsWith("fhir2-read-"));
+		
+		InOrder inOrder = inOrder(asyncContext);
+		inOrder.verify(asyncContext).setTimeout(TimeUnit.SECONDS.toMillis(REQUEST_TIMEOUT_SECONDS));
+		inOrder.verify(asyncContext).addListener(any(AsyncListener.class));
+		inOrder.verify(asyncContext).complete();
+		verify(response, never()).sendError(anyInt());
+	}
+	
+	@Test
+	public void execute_shouldInterruptAnAsyncRequestWhichTimesOut() throws Exception {
+		HttpServletRequest request = request(READ_URI, true);
+		HttpServletResponse response = mock(HttpServletResponse.class);
+		AsyncContext asyncContext = mock(AsyncContext.class);
+		when(request.startAsync(request, response)).thenReturn(asyncContext);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch interrupted = new CountDownLatch(1);
+		
+		requestExecutor.execute(request, response, (req, resp) -> {
+			started.countDown();
+			try {
+				Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+			}
+			catch (InterruptedException e) {
+				interrupted.countDown();
+			}
+		});
+		
+		assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+		ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+		verify(asyncContext).addListener(listener.capture());
+		listener.getValue().onTimeout(null);
+		
+		assertThat(interrupted.await(5, TimeUnit.SECONDS), is(true));
+		verify(response).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		verify(asyncContext).complete();
+	}
+	
+	private static HttpServletRequest request(String uri, boolean asyncSupported) {
+		HttpServletRequest request = mock(HttpServletRequest.class);
+		when(request.getRequestURI()).thenReturn(uri);
+		when(request.getMethod()).thenReturn("GET");
+		when(request.getRemoteAddr()).thenReturn("127.0.0.1");
+		when(request.isAsyncSupported()).thenReturn(asyncSupported);
+		return request;
+	}
+}